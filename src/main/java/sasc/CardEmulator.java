@@ -18,14 +18,27 @@ package sasc;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import nanoxml.XMLElement;
 import sasc.iso7816.AID;
+import sasc.emv.ApplicationCryptogram;
 import sasc.emv.EMVSession;
+import sasc.emv.EMVTags;
 import sasc.util.Log;
 import sasc.emv.SW;
+import sasc.iso7816.BERTLV;
+import sasc.iso7816.SmartCardException;
+import sasc.iso7816.TLVException;
+import sasc.iso7816.TLVUtil;
+import sasc.iso7816.TLVWriter;
+import sasc.iso7816.TagAndLength;
 import sasc.smartcard.common.SessionProcessingEnv;
 import sasc.terminal.CardResponse;
 import sasc.terminal.Terminal;
@@ -38,6 +51,11 @@ import sasc.util.Util;
  *
  * Emulate the external behavior of a Smart Card.
  *
+ * Applications configured with an ICC private key (and/or a session key) also support
+ * GET CHALLENGE, INTERNAL AUTHENTICATE (DDA) and GENERATE AC (with CDA if requested),
+ * computing real signatures and cryptograms (see ApplicationCryptogram), and
+ * incrementing the ATC for each transaction.
+ *
  * @author sasc
  */
 public class CardEmulator implements CardConnection {
@@ -45,6 +63,7 @@ public class CardEmulator implements CardConnection {
     private final static byte[] SELECT_DDF_PSE = Util.fromHexString("00 A4 04 00 0E 31 50 41 59 2E 53 59 53 2E 44 44 46 30 31");
     private final static byte[] SELECT_MASTER_FILE = Util.fromHexString("00 A4 00 00 00");
     Card card = new Card();
+    private final SecureRandom random = new SecureRandom();
 
     public CardEmulator(String filename) throws TerminalException {
         _initFromFile(filename);
@@ -87,6 +106,14 @@ public class CardEmulator implements CardConnection {
         byte[] getProcessingOpts = null;
         byte[] adf = null;
         Map<Integer, File> filesMap = null;
+        BigInteger iccPrivateKeyModulus = null;
+        BigInteger iccPrivateKeyExponent = null;
+        int iccKeyLength = 0;
+        byte[] sessionKey = null;
+        byte[] issuerApplicationData = null;
+        byte[] cdol1 = null;
+        byte[] pdolRelatedData = new byte[0];
+        boolean acGenerated = false; //Since the last GET PROCESSING OPTIONS
     }
 
     private class File {
@@ -182,6 +209,12 @@ public class CardEmulator implements CardConnection {
                         app.getProcessingOpts = Util.fromHexString(Util.removeCRLFTab(appChildElement.getContent().trim()));
                     } else if ("Files".equalsIgnoreCase(appChildElementName)) {
                         app.filesMap = parseFilesElement(appChildElement);
+                    } else if ("ICCPrivateKey".equalsIgnoreCase(appChildElementName)) {
+                        parseICCPrivateKeyElement(appChildElement, app);
+                    } else if ("SessionKey".equalsIgnoreCase(appChildElementName)) {
+                        app.sessionKey = Util.fromHexString(appChildElement.getContent().trim());
+                    } else if ("IssuerApplicationData".equalsIgnoreCase(appChildElementName)) {
+                        app.issuerApplicationData = Util.fromHexString(appChildElement.getContent().trim());
                     } else {
                         throw new RuntimeException("Unexpected XML Element: <" + appChildElementName + "> : " + appChildElement);
                     }
@@ -211,6 +244,59 @@ public class CardEmulator implements CardConnection {
         }
     }
 
+    private void parseICCPrivateKeyElement(XMLElement keyElement, Application app) {
+        byte[] modulus = null;
+        byte[] exponent = null;
+        for (Object keyChildObject : keyElement.getChildren()) {
+            XMLElement keyChildElement = (XMLElement) keyChildObject;
+            String keyChildElementName = keyChildElement.getName();
+            if ("Modulus".equalsIgnoreCase(keyChildElementName)) {
+                modulus = Util.fromHexString(Util.removeCRLFTab(keyChildElement.getContent().trim()));
+            } else if ("PrivateExponent".equalsIgnoreCase(keyChildElementName)) {
+                exponent = Util.fromHexString(Util.removeCRLFTab(keyChildElement.getContent().trim()));
+            } else {
+                throw new RuntimeException("Unexpected XML Element: <" + keyChildElementName + "> : " + keyChildElement);
+            }
+        }
+        if (modulus == null || exponent == null) {
+            throw new RuntimeException("ICCPrivateKey must contain <Modulus> and <PrivateExponent>");
+        }
+        setICCPrivateKey(app, modulus, exponent);
+    }
+
+    /**
+     * Sets the ICC private key used to sign dynamic data (DDA and CDA)
+     *
+     * @param modulus the modulus (the length of the signatures)
+     */
+    public void setICCPrivateKey(AID aid, byte[] modulus, byte[] privateExponent) {
+        setICCPrivateKey(getApplication(aid), modulus, privateExponent);
+    }
+
+    /**
+     * Sets the 16 byte session key used to compute Application Cryptograms
+     */
+    public void setSessionKey(AID aid, byte[] sessionKey) {
+        if (sessionKey == null || sessionKey.length != 16) {
+            throw new IllegalArgumentException("Session key must be 16 bytes");
+        }
+        getApplication(aid).sessionKey = Util.copyByteArray(sessionKey);
+    }
+
+    private Application getApplication(AID aid) {
+        Application app = card.applicationsMap.get(aid);
+        if (app == null) {
+            throw new IllegalArgumentException("No application with AID " + aid);
+        }
+        return app;
+    }
+
+    private static void setICCPrivateKey(Application app, byte[] modulus, byte[] privateExponent) {
+        app.iccPrivateKeyModulus = new BigInteger(1, modulus);
+        app.iccPrivateKeyExponent = new BigInteger(1, privateExponent);
+        app.iccKeyLength = (app.iccPrivateKeyModulus.bitLength() + 7) / 8;
+    }
+
     private static boolean hasLe(byte[] cmd){
         if(cmd.length < 5){
             return false;
@@ -226,6 +312,11 @@ public class CardEmulator implements CardConnection {
         return false;
     }
 
+    @Override
+    public CardResponse transmit(byte[] buffer, int offset, int length) throws TerminalException {
+        return transmit(Arrays.copyOfRange(buffer, offset, offset + length));
+    }
+
     @Override
     public CardResponse transmit(byte[] cmd) throws TerminalException {
         CardResponse response = null;
@@ -259,6 +350,12 @@ public class CardEmulator implements CardConnection {
                     case (byte) 0x20: //VERIFY
                         responseBytes = processVerify(cmd);
                         break;
+                    case (byte) 0x84: //GET CHALLENGE
+                        responseBytes = processGetChallenge(cmd);
+                        break;
+                    case (byte) 0x88: //INTERNAL AUTHENTICATE
+                        responseBytes = processInternalAuthenticate(cmd);
+                        break;
                     default:
                         throw new RuntimeException("INS " + Util.byte2Hex(ins) + " not implemented yet. cmd=" + cmdStr);
                 }
@@ -271,6 +368,9 @@ public class CardEmulator implements CardConnection {
                     case (byte) 0xCA: //GET DATA
                         responseBytes = processGetData(cmd);
                         break;
+                    case (byte) 0xAE: //GENERATE AC
+                        responseBytes = processGenerateAC(cmd);
+                        break;
                     default:
                         throw new RuntimeException("INS " + Util.byte2Hex(ins) + " not implemented yet. cmd=" + cmdStr);
                 }
@@ -416,9 +516,218 @@ public class CardEmulator implements CardConnection {
         if (card.selectedApp == null) {
             return createResponse(null, SW.COMMAND_NOT_ALLOWED_CONDITIONS_OF_USE_NOT_SATISFIED); //TODO check correct SW
         }
+        byte[] data = getDataBytes(cmd);
+        if (data.length >= 2 && data[0] == (byte) 0x83) { //Command Template
+            int headerLength = (data[1] & 0xFF) == 0x81 ? 3 : 2;
+            card.selectedApp.pdolRelatedData = Arrays.copyOfRange(data, Math.min(headerLength, data.length), data.length);
+        } else {
+            card.selectedApp.pdolRelatedData = new byte[0];
+        }
+        card.selectedApp.acGenerated = false;
         return createResponse(card.selectedApp.getProcessingOpts, SW.SUCCESS);
     }
 
+    private byte[] processGetChallenge(byte[] cmd) {
+        byte[] challenge = new byte[8];
+        random.nextBytes(challenge);
+        return createResponse(challenge, SW.SUCCESS);
+    }
+
+    /**
+     * Dynamic Data Authentication, EMV Book 2 section 6.5
+     */
+    private byte[] processInternalAuthenticate(byte[] cmd) {
+        Application app = card.selectedApp;
+        if (app == null) {
+            return createResponse(null, SW.COMMAND_NOT_ALLOWED_CONDITIONS_OF_USE_NOT_SATISFIED);
+        }
+        if (app.iccPrivateKeyModulus == null) {
+            return createResponse(null, SW.INSTRUCTION_CODE_NOT_SUPPORTED_OR_INVALID);
+        }
+        //ICC Dynamic Data: length of the ICC Dynamic Number, followed by the number
+        byte[] iccDynamicData = new byte[9];
+        iccDynamicData[0] = 0x08;
+        fillRandom(iccDynamicData, 1, 8);
+        byte[] sdad = signDynamicData(app, iccDynamicData, getDataBytes(cmd));
+        return createResponse(new TLVWriter(sdad.length + 4).write(EMVTags.RESPONSE_MESSAGE_TEMPLATE_1, sdad).toByteArray(), SW.SUCCESS);
+    }
+
+    /**
+     * GENERATE AC: format 1 (tag '80'), or format 2 (tag '77') with the Signed Dynamic
+     * Application Data if CDA is requested (EMV Book 2 section 6.6.1)
+     */
+    private byte[] processGenerateAC(byte[] cmd) {
+        Application app = card.selectedApp;
+        if (app == null) {
+            return createResponse(null, SW.COMMAND_NOT_ALLOWED_CONDITIONS_OF_USE_NOT_SATISFIED);
+        }
+        if (app.sessionKey == null) {
+            return createResponse(null, SW.INSTRUCTION_CODE_NOT_SUPPORTED_OR_INVALID);
+        }
+        int cryptogramType = cmd[2] & 0xC0; //00 = AAC, 40 = TC, 80 = ARQC
+        if (cryptogramType == 0xC0) {
+            return createResponse(null, SW.INCORRECT_PARAMETERS_P1_P2);
+        }
+        boolean cdaRequested = (cmd[2] & 0x10) != 0;
+        if (cdaRequested && app.iccPrivateKeyModulus == null) {
+            return createResponse(null, SW.INCORRECT_PARAMETERS_P1_P2);
+        }
+        if (!app.acGenerated) { //The second GENERATE AC of a transaction uses the same ATC
+            if (app.atc >= 0xFFFF) {
+                return createResponse(null, SW.COMMAND_NOT_ALLOWED_CONDITIONS_OF_USE_NOT_SATISFIED);
+            }
+            app.atc = Math.max(app.atc, 0) + 1;
+            app.acGenerated = true;
+        }
+        byte[] cdolRelatedData = getDataBytes(cmd);
+        byte[] atc = new byte[]{(byte) (app.atc >>> 8), (byte) app.atc};
+        byte[] ac = ApplicationCryptogram.calculate(app.sessionKey, cdolRelatedData, getAIP(app), app.atc);
+        byte cid = (byte) cryptogramType;
+
+        TLVWriter writer = new TLVWriter();
+        if (!cdaRequested) {
+            writer.begin(EMVTags.RESPONSE_MESSAGE_TEMPLATE_1);
+            writer.writeRaw(new byte[]{cid}, 0, 1);
+            writer.writeRaw(atc, 0, atc.length);
+            writer.writeRaw(ac, 0, ac.length);
+            if (app.issuerApplicationData != null) {
+                writer.writeRaw(app.issuerApplicationData, 0, app.issuerApplicationData.length);
+            }
+            writer.end();
+            return createResponse(writer.toByteArray(), SW.SUCCESS);
+        }
+
+        writer.begin(EMVTags.RESPONSE_MESSAGE_TEMPLATE_2);
+        writer.write(EMVTags.CRYPTOGRAM_INFORMATION_DATA, cid);
+        writer.write(EMVTags.APP_TRANSACTION_COUNTER, atc);
+        if (app.issuerApplicationData != null) {
+            writer.write(EMVTags.ISSUER_APPLICATION_DATA, app.issuerApplicationData);
+        }
+        //Transaction Data Hash Code: PDOL data, CDOL1 data, and the data objects in the response (after the '77' header)
+        MessageDigest sha1 = getSHA1();
+        sha1.update(app.pdolRelatedData);
+        sha1.update(cdolRelatedData);
+        sha1.update(writer.getBuffer(), 2, writer.size() - 2);
+        byte[] transactionDataHashCode = sha1.digest();
+
+        //ICC Dynamic Data: ICC Dynamic Number, CID, AC and Transaction Data Hash Code
+        byte[] iccDynamicData = new byte[1 + 8 + 1 + 8 + 20];
+        iccDynamicData[0] = 0x08;
+        fillRandom(iccDynamicData, 1, 8);
+        iccDynamicData[9] = cid;
+        System.arraycopy(ac, 0, iccDynamicData, 10, 8);
+        System.arraycopy(transactionDataHashCode, 0, iccDynamicData, 18, 20);
+        byte[] sdad = signDynamicData(app, iccDynamicData, getUnpredictableNumber(app, cdolRelatedData));
+        writer.write(EMVTags.SIGNED_DYNAMIC_APPLICATION_DATA, sdad);
+        writer.end();
+        return createResponse(writer.toByteArray(), SW.SUCCESS);
+    }
+
+    /**
+     * Signs dynamic data in format '05' (EMV Book 2, Table 17)
+     *
+     * @param terminalData the data hashed after the signed data (DDOL data, or the Unpredictable Number for CDA)
+     */
+    private byte[] signDynamicData(Application app, byte[] iccDynamicData, byte[] terminalData) {
+        int keyLength = app.iccKeyLength;
+        int paddingLength = keyLength - 25 - iccDynamicData.length;
+        if (paddingLength < 0) {
+            throw new SmartCardException("ICC key too short for " + iccDynamicData.length + " bytes of dynamic data");
+        }
+        byte[] data = new byte[keyLength];
+        data[0] = 0x6A; //Header
+        data[1] = 0x05; //Signed Data Format
+        data[2] = 0x01; //Hash Algorithm Indicator (SHA-1)
+        data[3] = (byte) iccDynamicData.length;
+        System.arraycopy(iccDynamicData, 0, data, 4, iccDynamicData.length);
+        Arrays.fill(data, 4 + iccDynamicData.length, keyLength - 21, (byte) 0xBB);
+        MessageDigest sha1 = getSHA1();
+        sha1.update(data, 1, keyLength - 22);
+        sha1.update(terminalData);
+        System.arraycopy(sha1.digest(), 0, data, keyLength - 21, 20);
+        data[keyLength - 1] = (byte) 0xBC; //Trailer
+        return Util.resizeArray(Util.performRSA(data, app.iccPrivateKeyExponent, app.iccPrivateKeyModulus), keyLength);
+    }
+
+    private static byte[] getAIP(Application app) {
+        byte[] gpoResponse = app.getProcessingOpts;
+        if (gpoResponse != null) {
+            try {
+                for (BERTLV tlv : TLVUtil.parseList(gpoResponse)) {
+                    if (tlv.getTag().equals(EMVTags.RESPONSE_MESSAGE_TEMPLATE_1) && tlv.getLength() >= 2) {
+                        return Arrays.copyOf(tlv.getValueBytes(), 2);
+                    }
+                    if (tlv.getTag().equals(EMVTags.RESPONSE_MESSAGE_TEMPLATE_2)) {
+                        for (BERTLV child : tlv.getChildren()) {
+                            if (child.getTag().equals(EMVTags.APPLICATION_INTERCHANGE_PROFILE)) {
+                                return child.getValueBytes();
+                            }
+                        }
+                    }
+                }
+            } catch (TLVException ex) {
+                Log.debug("Emulator: invalid GET PROCESSING OPTIONS response: " + ex.getMessage());
+            }
+        }
+        return new byte[2];
+    }
+
+    /**
+     * @return the Unpredictable Number from the CDOL1 related data (or an empty array, if not in CDOL1)
+     */
+    private static byte[] getUnpredictableNumber(Application app, byte[] cdolRelatedData) {
+        if (app.cdol1 == null) {
+            app.cdol1 = findCDOL1(app);
+        }
+        int offset = 0;
+        for (TagAndLength tal : TLVUtil.parseTagAndLength(app.cdol1)) {
+            if (tal.getTag().equals(EMVTags.UNPREDICTABLE_NUMBER) && offset + tal.getLength() <= cdolRelatedData.length) {
+                return Arrays.copyOfRange(cdolRelatedData, offset, offset + tal.getLength());
+            }
+            offset += tal.getLength();
+        }
+        return new byte[0];
+    }
+
+    private static byte[] findCDOL1(Application app) {
+        if (app.filesMap != null) {
+            for (File file : app.filesMap.values()) {
+                for (Record record : file.recordsMap.values()) {
+                    try {
+                        List<BERTLV> tlvs = TLVUtil.parseList(record.data);
+                        for (BERTLV tlv : tlvs) {
+                            if (!tlv.getTag().equals(EMVTags.RECORD_TEMPLATE)) {
+                                continue;
+                            }
+                            for (BERTLV child : tlv.getChildren()) {
+                                if (child.getTag().equals(EMVTags.CDOL1)) {
+                                    return child.getValueBytes();
+                                }
+                            }
+                        }
+                    } catch (TLVException ex) {
+                        //Not TLV coded
+                    }
+                }
+            }
+        }
+        return new byte[0];
+    }
+
+    private void fillRandom(byte[] buf, int offset, int length) {
+        byte[] rnd = new byte[length];
+        random.nextBytes(rnd);
+        System.arraycopy(rnd, 0, buf, offset, length);
+    }
+
+    private static MessageDigest getSHA1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new SmartCardException("SHA-1 hash algorithm not available", ex);
+        }
+    }
+
     private byte[] processVerify(byte[] cmd) {
         if (card.selectedApp == null) {
             return createResponse(null, SW.COMMAND_NOT_ALLOWED_CONDITIONS_OF_USE_NOT_SATISFIED); //TODO check correct SW
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+
+/**
+ * OutputStream that feeds a JTextArea without flooding the Event Dispatch Thread.
+ *
+ * Written text is buffered, and appended to the text area in one chunk per
+ * flush interval. The text area keeps at most maxLines lines (the oldest lines
+ * are removed). The complete output can also be written to a transcript file.
+ *
+ * Since the text area does not hold all the output, callers that need to know
+ * if a line was printed can watch for it (see watch(..) and hasSeen(..)).
+ *
+ * @author sasc
+ */
+public class ConsoleSink extends OutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+    //Upper bound for text not yet appended (if the EDT falls behind), in chars per line kept
+    private static final int MAX_PENDING_CHARS_PER_LINE = 256;
+
+    private final JTextArea textArea;
+    private final int maxLines;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer inBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer outBuffer = CharBuffer.allocate(BUFFER_SIZE);
+    private StringBuilder pending = new StringBuilder();
+    private final StringBuilder currentLine = new StringBuilder();
+    private final Set<String> watched = new HashSet<String>();
+    private final Set<String> seen = new HashSet<String>();
+    private final OutputStream transcript;
+    private final ScheduledExecutorService flusher;
+    private boolean closed = false;
+
+    /**
+     * @param transcriptFile the file to write the complete output to, or null
+     */
+    public ConsoleSink(JTextArea textArea, int maxLines, long flushIntervalMillis, File transcriptFile) throws IOException {
+        if (textArea == null) {
+            throw new IllegalArgumentException("Param textArea cannot be null");
+        }
+        if (maxLines < 1) {
+            throw new IllegalArgumentException("maxLines must be > 0: " + maxLines);
+        }
+        this.textArea = textArea;
+        this.maxLines = maxLines;
+        this.decoder = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.transcript = transcriptFile != null ? new BufferedOutputStream(new FileOutputStream(transcriptFile)) : null;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ConsoleSink");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flushToTextArea();
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records if any line written after this call contains the text
+     */
+    public synchronized void watch(String text) {
+        watched.add(text);
+    }
+
+    public synchronized boolean hasSeen(String text) {
+        return seen.contains(text);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("ConsoleSink is closed");
+        }
+        if (transcript != null) {
+            transcript.write(b, off, len);
+        }
+        while (len > 0) {
+            int n = Math.min(len, inBuffer.remaining());
+            inBuffer.put(b, off, n);
+            off += n;
+            len -= n;
+            inBuffer.flip();
+            decoder.decode(inBuffer, outBuffer, false);
+            inBuffer.compact(); //Keeps an incomplete multi byte character for the next write
+            outBuffer.flip();
+            appendDecoded(outBuffer);
+            outBuffer.clear();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        //PrintStream (autoflush) calls this for every line.
+        //The text area and the transcript are flushed by the flusher thread instead
+    }
+
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        flushToTextArea();
+        synchronized (this) {
+            closed = true;
+            if (transcript != null) {
+                transcript.close();
+            }
+        }
+    }
+
+    private void appendDecoded(CharBuffer chars) {
+        int maxPending = maxLines * MAX_PENDING_CHARS_PER_LINE;
+        while (chars.hasRemaining()) {
+            char c = chars.get();
+            pending.append(c);
+            if (c == '\n') {
+                if (!watched.isEmpty()) {
+                    for (String text : watched) {
+                        if (currentLine.indexOf(text) >= 0) {
+                            seen.add(text);
+                        }
+                    }
+                }
+                currentLine.setLength(0);
+            } else if (!watched.isEmpty()) {
+                currentLine.append(c);
+            }
+        }
+        if (pending.length() > 2 * maxPending) {
+            //The text area would trim this anyway. Trimming to half keeps the cost amortized
+            pending.delete(0, pending.length() - maxPending);
+        }
+    }
+
+    private void flushToTextArea() {
+        final String text;
+        synchronized (this) {
+            if (transcript != null) {
+                try {
+                    transcript.flush();
+                } catch (IOException ex) {
+                    //Keep updating the text area
+                }
+            }
+            if (pending.length() == 0) {
+                return;
+            }
+            text = pending.toString();
+            pending = new StringBuilder(Math.min(text.length(), BUFFER_SIZE));
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                textArea.append(text);
+                int excess = textArea.getLineCount() - maxLines;
+                if (excess > 0) {
+                    try {
+                        textArea.replaceRange("", 0, textArea.getLineStartOffset(excess));
+                    } catch (BadLocationException ex) {
+                        //Should not happen. Leave the text as is
+                    }
+                }
+            }
+        });
+    }
+}
@@ -18,8 +18,8 @@ package sasc;
 import java.awt.Desktop;
 import java.awt.Dimension;
 import java.awt.Toolkit;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -33,7 +33,6 @@ import javax.swing.JOptionPane;
 import javax.swing.JPasswordField;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
-import javax.swing.SwingUtilities;
 import org.jdesktop.application.SingleFrameApplication;
 import sasc.emv.EMVApplication;
 import sasc.smartcard.common.CardExplorer;
@@ -47,7 +46,13 @@ import sasc.util.Log;
  */
 public class GUI extends SingleFrameApplication {
 
+    private static final int CONSOLE_MAX_LINES = 20000;
+    private static final long CONSOLE_FLUSH_INTERVAL_MILLIS = 50;
+    private static final String FINISHED_MARKER = "Finished Processing card.";
+    private static final String ERROR_MARKER = "Error processing app";
+
     JTextArea console;
+    private ConsoleSink consoleSink;
 
     @Override
     protected void startup() {
@@ -79,42 +84,37 @@ public class GUI extends SingleFrameApplication {
     }
 
     public void addText(String text) {
-        console.append(text);
-    }
-
-    private void updateTextArea(final String text) {
-        SwingUtilities.invokeLater(new Runnable() {
-
-            @Override
-            public void run() {
-                console.append(text);
-            }
-        });
+        try {
+            consoleSink.write(text.getBytes());
+        } catch (IOException ex) {
+            //Sink is closed
+        }
     }
 
     private void redirectSystemStreams() {
-        OutputStream out = new OutputStream() {
-
-            @Override
-            public void write(final int b) throws IOException {
-                updateTextArea(String.valueOf((char) b));
-            }
-
-            @Override
-            public void write(byte[] b, int off, int len) throws IOException {
-                updateTextArea(new String(b, off, len));
-            }
-
-            @Override
-            public void write(byte[] b) throws IOException {
-                write(b, 0, b.length);
+        //Output is appended to the console in chunks, and the full output is kept in a transcript file
+        File transcriptFile = null;
+        try {
+            transcriptFile = File.createTempFile("javaemvreader-", ".log");
+            consoleSink = new ConsoleSink(console, CONSOLE_MAX_LINES, CONSOLE_FLUSH_INTERVAL_MILLIS, transcriptFile);
+        } catch (IOException ex) {
+            transcriptFile = null;
+            try {
+                consoleSink = new ConsoleSink(console, CONSOLE_MAX_LINES, CONSOLE_FLUSH_INTERVAL_MILLIS, null);
+            } catch (IOException ex2) {
+                throw new RuntimeException(ex2);
             }
-        };
+        }
+        consoleSink.watch(FINISHED_MARKER);
+        consoleSink.watch(ERROR_MARKER);
 
-        Log.setPrintWriter(new PrintWriter(new PrintStream(out, true)));
-        System.setOut(new PrintStream(out, true));
-        System.setErr(new PrintStream(out, true));
+        Log.setPrintWriter(new PrintWriter(new PrintStream(consoleSink, true)));
+        System.setOut(new PrintStream(consoleSink, true));
+        System.setErr(new PrintStream(consoleSink, true));
 
+        if (transcriptFile != null) {
+            System.out.println("Full output is written to " + transcriptFile.getAbsolutePath());
+        }
     }
 
     private class ExplorerRunner implements Runnable {
@@ -128,7 +128,7 @@ public class GUI extends SingleFrameApplication {
             } catch (Exception ex) {
                 StringWriter st = new StringWriter();
                 ex.printStackTrace(new PrintWriter(st));
-                console.append(st.toString());
+                addText(st.toString());
             } finally {
                 //Show submit feedback dialogue
                 boolean foundUnhandledRecords = false;
@@ -144,8 +144,8 @@ public class GUI extends SingleFrameApplication {
                     }
                 }
 
-                if (!console.getText().contains("Finished Processing card.") 
-                        || console.getText().contains("Error processing app")) {
+                if (!consoleSink.hasSeen(FINISHED_MARKER) 
+                        || consoleSink.hasSeen(ERROR_MARKER)) {
                     //Assume something failed. Show Popup with option to send email
                     submitFeedback("[JavaEMVReader-BUGREPORT]", "Error", "Something failed. Would you like to send an email report?");
                 }else if(foundUnhandledRecords){
@@ -170,7 +170,7 @@ public class GUI extends SingleFrameApplication {
                     } catch (Exception ex) {
                         StringWriter st = new StringWriter();
                         ex.printStackTrace(new PrintWriter(st));
-                        console.append(st.toString());
+                        addText(st.toString());
                     }
                 }
 
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import sasc.iso7816.SmartCardException;
+
+/**
+ * Application Cryptogram (AC) computation, EMV Book 2 Annex A1.2 and 8.1:
+ * an 8 byte MAC (ISO/IEC 9797-1 MAC Algorithm 3 with DES, padding method 2)
+ * over the transaction data, using a 16 byte (double length DES) session key.
+ *
+ * The data is the CDOL related data (which contains the minimum set of data
+ * elements recommended in Table 26), followed by the AIP and the ATC.
+ *
+ * @author sasc
+ */
+public class ApplicationCryptogram {
+
+    private ApplicationCryptogram() {
+        //Static methods only
+    }
+
+    /**
+     * @param sessionKey the 16 byte AC session key
+     * @param cdolRelatedData the data sent in the GENERATE AC command
+     * @param aip the 2 byte Application Interchange Profile
+     * @param atc the Application Transaction Counter
+     * @return the 8 byte cryptogram
+     */
+    public static byte[] calculate(byte[] sessionKey, byte[] cdolRelatedData, byte[] aip, int atc) {
+        byte[] data = new byte[cdolRelatedData.length + 4];
+        System.arraycopy(cdolRelatedData, 0, data, 0, cdolRelatedData.length);
+        data[cdolRelatedData.length] = aip[0];
+        data[cdolRelatedData.length + 1] = aip[1];
+        data[cdolRelatedData.length + 2] = (byte) (atc >>> 8);
+        data[cdolRelatedData.length + 3] = (byte) atc;
+        return calculateMAC(sessionKey, data);
+    }
+
+    /**
+     * ISO/IEC 9797-1 MAC Algorithm 3 (Retail MAC) with DES and padding method 2
+     *
+     * @param key 16 byte key (KL || KR)
+     */
+    public static byte[] calculateMAC(byte[] key, byte[] data) {
+        if (key == null || key.length != 16) {
+            throw new IllegalArgumentException("Key must be 16 bytes");
+        }
+        //Padding method 2: '80' followed by '00's to a multiple of 8 bytes
+        int paddedLength = (data.length / 8 + 1) * 8;
+        byte[] padded = new byte[paddedLength];
+        System.arraycopy(data, 0, padded, 0, data.length);
+        padded[data.length] = (byte) 0x80;
+        try {
+            byte[] lastBlockInput = new byte[8];
+            if (paddedLength > 8) {
+                //CBC with KL over all the blocks but the last
+                Cipher des = Cipher.getInstance("DES/CBC/NoPadding");
+                des.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, 8, "DES"), new IvParameterSpec(new byte[8]));
+                byte[] cbc = des.doFinal(padded, 0, paddedLength - 8);
+                System.arraycopy(cbc, cbc.length - 8, lastBlockInput, 0, 8);
+            }
+            for (int i = 0; i < 8; i++) {
+                lastBlockInput[i] ^= padded[paddedLength - 8 + i];
+            }
+            //Last block: encrypt with KL, decrypt with KR, encrypt with KL (= 3DES with the key KL||KR||KL)
+            byte[] tripleDESKey = new byte[24];
+            System.arraycopy(key, 0, tripleDESKey, 0, 16);
+            System.arraycopy(key, 0, tripleDESKey, 16, 8);
+            Cipher desede = Cipher.getInstance("DESede/ECB/NoPadding");
+            desede.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(tripleDESKey, "DESede"));
+            return desede.doFinal(lastBlockInput);
+        } catch (GeneralSecurityException ex) {
+            throw new SmartCardException("Unable to calculate MAC", ex);
+        }
+    }
+}
@@ -18,20 +18,37 @@ package sasc.emv;
 import sasc.iso7816.SmartCardException;
 import sasc.iso7816.AID;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import nanoxml.XMLElement;
-import sasc.util.ByteArrayWrapper;
+import sasc.util.Log;
 import sasc.util.Util;
 
 /**
@@ -65,11 +82,13 @@ import sasc.util.Util;
  */
 public class CA {
 
-    private static final Map<ByteArrayWrapper, CA> certificationAuthorities = new LinkedHashMap<ByteArrayWrapper, CA>();
+    //Immutable snapshot, replaced (copy-on-write) when keys are loaded, so lookups never block
+    private static volatile Store store = new Store(new LinkedHashMap<Long, CA>());
+    private static final Object WRITE_LOCK = new Object();
     private byte[] rid;
     private String name;
     private String description;
-    private Map<Integer, CAPublicKey> publicKeys = publicKeys = new LinkedHashMap<Integer, CAPublicKey>();
+    private Map<Integer, CAPublicKey> publicKeys = new LinkedHashMap<Integer, CAPublicKey>();
     private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("dd MMM yyyy", Locale.ENGLISH);
 
     static {
@@ -77,14 +96,20 @@ public class CA {
     }
 
     private static void _initFromFile(String filename) {
-        certificationAuthorities.clear();
-        addFromXmlFile(filename);
+        load(Util.loadResource(CA.class, filename), true);
     }
 
     private CA() {
         //Private constructor
     }
 
+    private CA(CA ca) {
+        this.rid = ca.rid;
+        this.name = ca.name;
+        this.description = ca.description;
+        this.publicKeys.putAll(ca.publicKeys);
+    }
+
     public static byte[] calculateCAPublicKeyCheckSum(byte[] rid, byte[] caPublicKeyIndex, byte[] caPublicKeyMod, byte[] caPublicKeyExp) {
         ByteArrayOutputStream stream = new ByteArrayOutputStream(rid.length + caPublicKeyIndex.length + caPublicKeyMod.length + caPublicKeyExp.length);
         stream.write(rid, 0, rid.length);
@@ -107,7 +132,7 @@ public class CA {
     //The RID and the Certification Public Key Index together uniquely identify the
     //Certification Authority Public Key and associate it with the proper Payment System
     public CAPublicKey getPublicKey(int index) {
-        return publicKeys.get(new Integer(index));
+        return publicKeys.get(Integer.valueOf(index));
     }
 
     public byte[] getRID() {
@@ -120,7 +145,7 @@ public class CA {
     //applications based on EMV ’96 IC Card Specification for Payment Systems, Version
     //3.1.1.
     private void setPublicKey(int index, CAPublicKey publicKey) {
-        Integer idx = new Integer(index);
+        Integer idx = Integer.valueOf(index);
         if (publicKeys.containsKey(idx)) {
             throw new IllegalArgumentException("Public Key index " + index + " already added");
         }
@@ -148,29 +173,128 @@ public class CA {
     }
 
     public static CA getCA(byte[] rid) {
-        return certificationAuthorities.get(ByteArrayWrapper.wrapperAround(rid));
+        if (rid == null || rid.length != 5) {
+            return null;
+        }
+        return store.cas.get(ridKey(rid));
+    }
+
+    /**
+     * Looks up a CA Public Key by RID and Certification Authority Public Key Index
+     *
+     * @param index 0-255
+     * @return the key, or null if not configured (or the index is out of range)
+     */
+    public static CAPublicKey getPublicKey(byte[] rid, int index) {
+        //An unset index (-1) must not match key 'FF'
+        if (rid == null || rid.length != 5 || index < 0 || index > 0xFF) {
+            return null;
+        }
+        return store.publicKeys.get(publicKeyKey(ridKey(rid), index));
     }
 
+    /**
+     * @deprecated use getCA(aid.getRIDBytes())
+     */
+    @Deprecated
     public static CA getCA(AID aid) {
-        return certificationAuthorities.get(ByteArrayWrapper.wrapperAround(aid.getRIDBytes()));
+        return getCA(aid.getRIDBytes());
     }
 
     public static Collection<CA> getCAs() {
-        return Collections.unmodifiableCollection(certificationAuthorities.values());
+        return store.cas.values();
     }
 
     public static void initFromFile(String fileName) {
         _initFromFile(fileName);
     }
 
+    /**
+     * Replaces all the CAs with the ones in the file (in the file system).
+     * Sessions in progress keep using the CAs they already got.
+     * If the file is not valid, the current CAs are kept.
+     */
+    public static void initFromFile(File file) {
+        try {
+            InputStream is = new FileInputStream(file);
+            try {
+                load(is, true);
+            } finally {
+                is.close();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
     public static void addFromXmlFile(String fileName) {
+        load(Util.loadResource(CA.class, fileName), false);
+    }
+
+    /**
+     * Loads the CAs from the file, and reloads them whenever the file changes
+     * (checked every intervalMillis, on a daemon thread). The file should be
+     * replaced atomically (eg written to a temporary file and renamed); a file that
+     * is not valid is ignored until it changes again.
+     *
+     * @return closing it stops watching the file
+     */
+    public static Closeable watchFile(final File file, long intervalMillis) {
+        initFromFile(file);
+        final ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("CA watcher"));
+        watcher.scheduleWithFixedDelay(new Runnable() {
+            private long lastModified = file.lastModified();
+            private long length = file.length();
+
+            @Override
+            public void run() {
+                long modified = file.lastModified();
+                long len = file.length();
+                if (modified == lastModified && len == length) {
+                    return;
+                }
+                lastModified = modified;
+                length = len;
+                try {
+                    initFromFile(file);
+                    Log.debug("Reloaded CA Public Keys from " + file);
+                } catch (RuntimeException ex) {
+                    Log.debug("Could not reload CA Public Keys from " + file + ": " + ex);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        return new Closeable() {
+            @Override
+            public void close() {
+                watcher.shutdownNow();
+            }
+        };
+    }
+
+    /**
+     * Parses into a copy of the current CAs, and publishes the copy if everything is valid
+     */
+    private static void load(InputStream is, boolean replace) {
+        synchronized (WRITE_LOCK) {
+            Map<Long, CA> cas = new LinkedHashMap<Long, CA>();
+            if (!replace) {
+                cas.putAll(store.cas);
+            }
+            parseXml(is, cas);
+            store = new Store(cas);
+        }
+    }
+
+    private static void parseXml(InputStream is, Map<Long, CA> cas) {
         try {
             XMLElement certificationAuthoritiesElement = new XMLElement();
-            certificationAuthoritiesElement.parseFromReader(new InputStreamReader(Util.loadResource(CA.class, fileName), "UTF-8"));
+            certificationAuthoritiesElement.parseFromReader(new InputStreamReader(is, "UTF-8"));
             
             if (!"CertificationAuthorities".equalsIgnoreCase(certificationAuthoritiesElement.getName())) {
                 throw new RuntimeException("Unexpected Root Element: <" + certificationAuthoritiesElement.getName() + "> . Expected <CertificationAuthorities>");
             }
+            List<PendingKey> pendingKeys = new ArrayList<PendingKey>();
+            Set<CA> copied = new HashSet<CA>();
             for (Object caObject : certificationAuthoritiesElement.getChildren()) {
                 XMLElement caElement = (XMLElement) caObject;
                 byte[] rid = Util.fromHexString(caElement.getStringAttribute("RID"));
@@ -178,11 +302,18 @@ public class CA {
                     throw new SmartCardException("Unexpected RID length: " + rid.length + ". Length must be 5 bytes. RID=" + Util.prettyPrintHexNoWrap(rid));
                 }
 
-                CA ca = CA.getCA(rid);
+                Long ridKey = ridKey(rid);
+                CA ca = cas.get(ridKey);
                 if(ca == null){
                     ca = new CA();
                     ca.setRID(rid);
-                    certificationAuthorities.put(ByteArrayWrapper.wrapperAround(ca.getRID()), ca);
+                    cas.put(ridKey, ca);
+                    copied.add(ca);
+                } else if (!copied.contains(ca)) {
+                    //Published CAs are never modified
+                    ca = new CA(ca);
+                    cas.put(ridKey, ca);
+                    copied.add(ca);
                 }
                 for (Object caChild : caElement.getChildren()) {
                     XMLElement caChildElement = (XMLElement) caChild;
@@ -194,60 +325,164 @@ public class CA {
                     } else if ("PublicKeys".equalsIgnoreCase(name)) {
                         for (Object pkObject : caChildElement.getChildren()) {
                             XMLElement pkElement = (XMLElement) pkObject;
-                            byte[] exp = null;
-                            byte[] mod = null;
-                            int index = pkElement.getIntAttribute("index");
-                            int hashAlgorithmIndicator = -1;
-                            int publicKeyAlgorithmIndicator = -1;
-                            String description = "";
+                            PendingKey pk = new PendingKey(ca);
+                            pk.index = pkElement.getIntAttribute("index");
+                            if (pk.index < 0 || pk.index > 0xFF) {
+                                throw new SmartCardException("CA Public Key index must be 0-255, but was: " + pk.index);
+                            }
                             String expirationDateStr = "";
-                            byte[] hash = null;
                             for (Object pkObjectChild : pkElement.getChildren()) {
                                 XMLElement pkChildElement = (XMLElement) pkObjectChild;
                                 String pkChildElementName = pkChildElement.getName();
                                 if ("Description".equalsIgnoreCase(pkChildElementName)) {
-                                    description = pkChildElement.getContent().trim();
+                                    pk.description = pkChildElement.getContent().trim();
                                 } else if ("ExpirationDate".equalsIgnoreCase(pkChildElementName)) {
                                     expirationDateStr = pkChildElement.getContent().trim();
                                 } else if ("Exponent".equalsIgnoreCase(pkChildElementName)) {
-                                    exp = Util.fromHexString(pkChildElement.getContent().trim());
+                                    pk.exp = Util.fromHexString(pkChildElement.getContent().trim());
                                 } else if ("Modulus".equalsIgnoreCase(pkChildElementName)) {
-                                    mod = Util.fromHexString(Util.removeCRLFTab(pkChildElement.getContent().trim()));
+                                    pk.mod = Util.fromHexString(Util.removeCRLFTab(pkChildElement.getContent().trim()));
                                 } else if ("HashAlgorithmIndicator".equalsIgnoreCase(pkChildElementName)) {
-                                    hashAlgorithmIndicator = Util.byteArrayToInt(Util.fromHexString(pkChildElement.getContent().trim()));
+                                    pk.hashAlgorithmIndicator = Util.byteArrayToInt(Util.fromHexString(pkChildElement.getContent().trim()));
                                 } else if ("Hash".equalsIgnoreCase(pkChildElementName)) {
-                                    hash = Util.fromHexString(Util.removeCRLFTab(pkChildElement.getContent().trim()));
+                                    pk.hash = Util.fromHexString(Util.removeCRLFTab(pkChildElement.getContent().trim()));
                                 } else if ("PublicKeyAlgorithmIndicator".equalsIgnoreCase(pkChildElementName)) {
-                                    publicKeyAlgorithmIndicator = Util.byteArrayToInt(Util.fromHexString(pkChildElement.getContent().trim()));
+                                    pk.publicKeyAlgorithmIndicator = Util.byteArrayToInt(Util.fromHexString(pkChildElement.getContent().trim()));
                                 } else {
                                     throw new RuntimeException("Unexpected XML Element: <" + pkChildElementName + "> : " + pkChildElement);
                                 }
 
                             }
-                            byte[] sha1ChecksumResult = calculateCAPublicKeyCheckSum(ca.getRID(), Util.intToByteArray(index), mod, exp);
-                            if (!Arrays.equals(hash, sha1ChecksumResult)) {
-                                throw new SmartCardException("Checksum not correct for key index " + index + " for CA RID " + Util.prettyPrintHexNoWrap(ca.getRID()) + ". Expected " + Util.byteArrayToHexString(hash) + " but was " + Util.byteArrayToHexString(sha1ChecksumResult));
-                            }
-                            Date expirationDate = null;
                             try {
-                                expirationDate = DATE_FORMAT.parse(expirationDateStr);
+                                pk.expirationDate = DATE_FORMAT.parse(expirationDateStr);
                             } catch (ParseException ex) {
                                 throw new SmartCardException("Expiration date not valid. Must be in the format dd MMM yyyy, (where MMM is the english name of the month), but was: "+expirationDateStr);
                             }
-                            CAPublicKey pk = new CAPublicKey(index, exp, mod, sha1ChecksumResult, publicKeyAlgorithmIndicator, hashAlgorithmIndicator, description, expirationDate);
-                            ca.setPublicKey(index, pk);
+                            pendingKeys.add(pk);
                         }
                     } else {
                         throw new RuntimeException("Unexpected XML Element: <" + name + "> : " + caChildElement);
                     }
                 }
             }
+            verifyCheckSums(pendingKeys);
+            for (PendingKey pk : pendingKeys) {
+                pk.ca.setPublicKey(pk.index, new CAPublicKey(pk.index, pk.exp, pk.mod, pk.sha1ChecksumResult, pk.publicKeyAlgorithmIndicator, pk.hashAlgorithmIndicator, pk.description, pk.expirationDate));
+            }
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
 
     }
 
+    /**
+     * Verifies the SHA-1 checksums of the keys, in parallel if there is more than one processor
+     */
+    private static void verifyCheckSums(List<PendingKey> pendingKeys) {
+        int numThreads = Math.min(pendingKeys.size(), Runtime.getRuntime().availableProcessors());
+        if (numThreads <= 1) {
+            for (PendingKey pk : pendingKeys) {
+                pk.call();
+            }
+            return;
+        }
+        try {
+            for (Future<Void> future : ChecksumExecutor.INSTANCE.invokeAll(pendingKeys)) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) ex.getCause();
+                    }
+                    throw new SmartCardException("Could not verify CA Public Key checksum", ex.getCause());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SmartCardException("Interrupted while verifying CA Public Key checksums", ex);
+        }
+    }
+
+    /**
+     * One pool for all loads (and reloads) of the store, created on first use
+     */
+    private static final class ChecksumExecutor {
+
+        static final ExecutorService INSTANCE = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), daemonThreadFactory("CA checksum"));
+    }
+
+    private static ThreadFactory daemonThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static Long ridKey(byte[] rid) {
+        long key = 0;
+        for (int i = 0; i < 5; i++) {
+            key = (key << 8) | (rid[i] & 0xFF);
+        }
+        return Long.valueOf(key);
+    }
+
+    private static Long publicKeyKey(Long ridKey, int index) {
+        return Long.valueOf((ridKey.longValue() << 8) | index);
+    }
+
+    /**
+     * The CAs, and all the CA Public Keys indexed by (RID, index)
+     */
+    private static final class Store {
+
+        private final Map<Long, CA> cas;
+        private final Map<Long, CAPublicKey> publicKeys = new HashMap<Long, CAPublicKey>();
+
+        private Store(Map<Long, CA> cas) {
+            this.cas = Collections.unmodifiableMap(cas);
+            for (Map.Entry<Long, CA> entry : cas.entrySet()) {
+                for (CAPublicKey pk : entry.getValue().publicKeys.values()) {
+                    publicKeys.put(publicKeyKey(entry.getKey(), pk.getIndex()), pk);
+                }
+            }
+        }
+    }
+
+    /**
+     * A CA Public Key that is parsed, but not yet verified
+     */
+    private static final class PendingKey implements Callable<Void> {
+
+        private final CA ca;
+        private int index;
+        private byte[] exp = null;
+        private byte[] mod = null;
+        private int hashAlgorithmIndicator = -1;
+        private int publicKeyAlgorithmIndicator = -1;
+        private String description = "";
+        private Date expirationDate = null;
+        private byte[] hash = null;
+        private byte[] sha1ChecksumResult = null;
+
+        private PendingKey(CA ca) {
+            this.ca = ca;
+        }
+
+        @Override
+        public Void call() {
+            sha1ChecksumResult = calculateCAPublicKeyCheckSum(ca.rid, Util.intToByteArray(index), mod, exp);
+            if (!Arrays.equals(hash, sha1ChecksumResult)) {
+                throw new SmartCardException("Checksum not correct for key index " + index + " for CA RID " + Util.prettyPrintHexNoWrap(ca.rid) + ". Expected " + Util.byteArrayToHexString(hash) + " but was " + Util.byteArrayToHexString(sha1ChecksumResult));
+            }
+            return null;
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -18,6 +18,7 @@ package sasc.emv;
 import sasc.iso7816.SmartCardException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.math.BigInteger;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
@@ -48,6 +49,10 @@ public class CAPublicKey {
     //using SHA-1
     private byte[] sha1CheckSum = null;
 
+    //Precomputed, since the key is used for every card
+    private final BigInteger exponentValue;
+    private final BigInteger modulusValue;
+
     public CAPublicKey(int index, byte[] exponent, byte[] modulus, byte[] sha1CheckSum, int publicKeyAlgorithmIndicator, int hashAlgorithmIndicator, String description, Date expirationDate){
         this.index = index;
         this.exponent = exponent;
@@ -57,6 +62,8 @@ public class CAPublicKey {
         this.hashAlgorithmIndicator = hashAlgorithmIndicator;
         this.description = description;
         this.expirationDate = expirationDate;
+        this.exponentValue = new BigInteger(1, exponent);
+        this.modulusValue = new BigInteger(1, modulus);
     }
 
     public int getIndex(){
@@ -83,6 +90,13 @@ public class CAPublicKey {
         return (Date)expirationDate.clone();
     }
 
+    /**
+     * Recovers the data signed with the corresponding CA Private Key
+     */
+    public byte[] performRSA(byte[] signedBytes){
+        return Util.performRSA(signedBytes, exponentValue, modulusValue);
+    }
+
     public int getHashAlgorithmIndicator(){
         return hashAlgorithmIndicator;
     }
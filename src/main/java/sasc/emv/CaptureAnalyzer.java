@@ -0,0 +1,621 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import nanoxml.XMLElement;
+import sasc.iso7816.AID;
+import sasc.iso7816.ATR;
+import sasc.iso7816.SmartCardException;
+import sasc.smartcard.common.Context;
+import sasc.smartcard.common.SmartCard;
+import sasc.util.Log;
+import sasc.util.Util;
+
+/**
+ * Offline analysis of recorded card captures.
+ *
+ * A capture is a card recorded in the CardEmulator XML format (&lt;EMVCard&gt;).
+ * The responses in each capture are decoded directly with the EMVUtil parsers
+ * (no emulated session), the certificates are validated against the CA store,
+ * and the results are aggregated into a Statistics object.
+ *
+ * Captures are read from directories (recursively) and from zip archives.
+ * They are analyzed in parallel by a fixed thread pool with a bounded work queue;
+ * when the queue is full the reading thread analyzes the capture itself, so only
+ * a few captures are held in memory at any time, regardless of the input size.
+ *
+ * If keepApplications is set, a CompactEMVApplication of each application is kept
+ * (about 1 KB per application), so the cards can be queried after the batch.
+ *
+ * @author sasc
+ */
+public class CaptureAnalyzer {
+
+    //Captures larger than this are not considered valid card recordings
+    private static final int MAX_CAPTURE_SIZE = 1024 * 1024;
+
+    private final int numThreads;
+    private final List<Statistics> threadStatistics = new ArrayList<Statistics>();
+    private final ThreadLocal<Statistics> localStatistics = new ThreadLocal<Statistics>() {
+        @Override
+        protected Statistics initialValue() {
+            Statistics stats = new Statistics();
+            synchronized (threadStatistics) {
+                threadStatistics.add(stats);
+            }
+            return stats;
+        }
+    };
+    private ThreadPoolExecutor executor;
+    private List<CompactEMVApplication> applications = null;
+
+    public CaptureAnalyzer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public CaptureAnalyzer(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be at least 1: " + numThreads);
+        }
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * @param keep true to keep a compact copy of the applications analyzed by the next batch
+     * (see getApplications())
+     */
+    public void setKeepApplications(boolean keep) {
+        applications = keep ? new ArrayList<CompactEMVApplication>() : null;
+    }
+
+    /**
+     * @return the applications analyzed (in no particular order), or null if keepApplications is not set
+     */
+    public List<CompactEMVApplication> getApplications() {
+        return applications;
+    }
+
+    /**
+     * Analyzes all captures (*.xml) found in the given files, directories and zip archives
+     */
+    public Statistics analyze(List<File> inputs) throws IOException, InterruptedException {
+        Context.init();
+        //The calling thread also analyzes captures when the queue is full
+        localStatistics.remove();
+        executor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(numThreads * 2),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            for (File input : inputs) {
+                submitFile(input);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        Statistics total = new Statistics();
+        synchronized (threadStatistics) {
+            for (Statistics stats : threadStatistics) {
+                total.merge(stats);
+            }
+            threadStatistics.clear();
+        }
+        return total;
+    }
+
+    private void submitFile(File file) throws IOException {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children == null) {
+                return;
+            }
+            Arrays.sort(children);
+            for (File child : children) {
+                submitFile(child);
+            }
+        } else {
+            String name = file.getName().toLowerCase();
+            if (name.endsWith(".zip")) {
+                submitZipEntries(file);
+            } else if (name.endsWith(".xml")) {
+                if (file.length() > MAX_CAPTURE_SIZE) {
+                    localStatistics.get().captureFailed();
+                    Log.info("Skipping capture " + file + ": too large (" + file.length() + " bytes)");
+                    return;
+                }
+                submit(file.getPath(), null, file);
+            }
+        }
+    }
+
+    private void submitZipEntries(File zipFile) throws IOException {
+        ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile));
+        try {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (entry.isDirectory() || !entry.getName().toLowerCase().endsWith(".xml")) {
+                    continue;
+                }
+                byte[] data = readBounded(zis);
+                if (data == null) {
+                    localStatistics.get().captureFailed();
+                    Log.info("Skipping capture " + zipFile + "!" + entry.getName() + ": too large");
+                    continue;
+                }
+                submit(zipFile.getPath() + "!" + entry.getName(), data, null);
+            }
+        } finally {
+            zis.close();
+        }
+    }
+
+    private void submit(final String captureName, final byte[] data, final File file) {
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                Statistics stats = localStatistics.get();
+                InputStream is = null;
+                try {
+                    is = data != null ? new ByteArrayInputStream(data) : new FileInputStream(file);
+                    if (applications == null) {
+                        analyzeCapture(is, stats, null);
+                    } else {
+                        List<CompactEMVApplication> compactApps = new ArrayList<CompactEMVApplication>();
+                        analyzeCapture(is, stats, compactApps);
+                        synchronized (applications) {
+                            applications.addAll(compactApps);
+                        }
+                    }
+                } catch (Exception ex) {
+                    //A broken capture must not stop the batch
+                    stats.captureFailed();
+                    Log.info("Error analyzing capture " + captureName + ": " + ex.toString());
+                    Log.debug(Util.getStackTrace(ex));
+                } finally {
+                    if (is != null) {
+                        try {
+                            is.close();
+                        } catch (IOException ignore) {
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    //Returns null if the stream holds more than MAX_CAPTURE_SIZE bytes
+    private static byte[] readBounded(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) != -1) {
+            if (bos.size() + n > MAX_CAPTURE_SIZE) {
+                return null;
+            }
+            bos.write(buf, 0, n);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Decodes one capture and adds the results to stats
+     */
+    public static void analyzeCapture(InputStream is, Statistics stats) throws IOException {
+        analyzeCapture(is, stats, null);
+    }
+
+    /**
+     * Decodes one capture and adds the results to stats
+     *
+     * @param compactApps if not null, a CompactEMVApplication of each application is added
+     */
+    public static void analyzeCapture(InputStream is, Statistics stats, List<CompactEMVApplication> compactApps) throws IOException {
+        for (EMVApplication app : readCapture(is, compactApps)) {
+            stats.applicationAnalyzed(app);
+        }
+        stats.captureAnalyzed();
+    }
+
+    static List<EMVApplication> readCapture(InputStream is, List<CompactEMVApplication> compactApps) throws IOException {
+        XMLElement emvCardElement = new XMLElement();
+        emvCardElement.parseFromReader(new InputStreamReader(is, "UTF-8"));
+        if (!"EMVCard".equalsIgnoreCase(emvCardElement.getName())) {
+            throw new SmartCardException("Unexpected Root Element: <" + emvCardElement.getName() + "> . Expected <EMVCard>");
+        }
+
+        SmartCard card = null;
+        List<EMVApplication> apps = new ArrayList<EMVApplication>();
+
+        for (Object childObject : emvCardElement.getChildren()) {
+            XMLElement child = (XMLElement) childObject;
+            String childName = child.getName();
+            if ("ATR".equalsIgnoreCase(childName)) {
+                card = new SmartCard(new ATR(getHexContent(child)));
+            } else if ("DirectoryDefinitionFile".equalsIgnoreCase(childName)) {
+                card = checkCard(card);
+                card.setPSE(EMVUtil.parseFCIDDF(getHexContent(child), card));
+            } else if ("Files".equalsIgnoreCase(childName)) {
+                card = checkCard(card);
+                for (byte[] record : getRecords(child)) {
+                    EMVUtil.parsePSERecord(record, card);
+                }
+            } else if ("Applications".equalsIgnoreCase(childName)) {
+                for (Object appObject : child.getChildren()) {
+                    CompactEMVApplication.Builder builder = compactApps != null ? new CompactEMVApplication.Builder() : null;
+                    apps.add(parseApplication((XMLElement) appObject, builder));
+                    if (builder != null) {
+                        compactApps.add(builder.build());
+                    }
+                }
+            }
+        }
+        return apps;
+    }
+
+    private static SmartCard checkCard(SmartCard card) {
+        if (card == null) {
+            throw new SmartCardException("Capture must start with the <ATR> element");
+        }
+        return card;
+    }
+
+    /**
+     * @param builder if not null, the FCI, the GPO response and the records are added to it
+     */
+    private static EMVApplication parseApplication(XMLElement appElement, CompactEMVApplication.Builder builder) {
+        EMVApplication app = new EMVApplication();
+        app.setAID(new AID(appElement.getStringAttribute("AID")));
+        XMLElement filesElement = null;
+        for (Object appChildObject : appElement.getChildren()) {
+            XMLElement appChild = (XMLElement) appChildObject;
+            String name = appChild.getName();
+            if ("ApplicationDefinitionFile".equalsIgnoreCase(name)) {
+                byte[] fci = getHexContent(appChild);
+                EMVUtil.parseFCIADF(fci, app);
+                if (builder != null) {
+                    builder.add(fci);
+                }
+            } else if ("GetProcessingOptions".equalsIgnoreCase(name)) {
+                byte[] gpoResponse = getHexContent(appChild);
+                EMVUtil.parseProcessingOpts(gpoResponse, app);
+                if (builder != null) {
+                    builder.add(gpoResponse);
+                }
+            } else if ("Files".equalsIgnoreCase(name)) {
+                filesElement = appChild;
+            }
+        }
+        if (filesElement != null) {
+            Map<Integer, Map<Integer, byte[]>> recordsBySFI = getRecordsBySFI(filesElement);
+            readAppRecords(recordsBySFI, app);
+            if (builder != null) {
+                for (Map<Integer, byte[]> records : recordsBySFI.values()) {
+                    for (byte[] record : records.values()) {
+                        builder.add(record);
+                    }
+                }
+            }
+        }
+        app.setAllAppRecordsInAFLRead();
+        return app;
+    }
+
+    /**
+     * Processes the records the same way as EMVSession does when reading the card:
+     * the records listed in the AFL are stored in their AEF (and marked if they are
+     * involved in offline data authentication), so the static data to be authenticated
+     * can be built. Without an AFL (no GPO response), the records are only parsed
+     */
+    private static void readAppRecords(Map<Integer, Map<Integer, byte[]>> recordsBySFI, EMVApplication app) {
+        ApplicationFileLocator afl = app.getApplicationFileLocator();
+        if (afl == null) {
+            for (Map<Integer, byte[]> records : recordsBySFI.values()) {
+                for (byte[] record : records.values()) {
+                    EMVUtil.parseAppRecord(record, app);
+                }
+            }
+            return;
+        }
+        for (ApplicationElementaryFile aef : afl.getApplicationElementaryFiles()) {
+            Map<Integer, byte[]> records = recordsBySFI.get(aef.getSFI().getValue());
+            for (int recordNum = aef.getStartRecordNumber(); recordNum <= aef.getEndRecordNumber(); recordNum++) {
+                byte[] data = records != null ? records.get(recordNum) : null;
+                if (data == null) {
+                    throw new SmartCardException("Capture does not contain SFI " + aef.getSFI().getValue() + " Record Number: " + recordNum);
+                }
+                EMVUtil.parseAppRecord(data, app);
+                boolean isInvolvedInOfflineDataAuthentication = (recordNum - aef.getStartRecordNumber() + 1) <= aef.getNumRecordsInvolvedInOfflineDataAuthentication();
+                aef.setRecord(recordNum, new Record(data, recordNum, isInvolvedInOfflineDataAuthentication));
+            }
+        }
+    }
+
+    private static List<byte[]> getRecords(XMLElement filesElement) {
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (Object efObject : filesElement.getChildren()) {
+            for (Object recordObject : ((XMLElement) efObject).getChildren()) {
+                records.add(getHexContent((XMLElement) recordObject));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * &lt;ElementaryFile sfi="n"&gt;&lt;Record number="m"&gt; -> SFI -> record number -> data
+     */
+    private static Map<Integer, Map<Integer, byte[]>> getRecordsBySFI(XMLElement filesElement) {
+        Map<Integer, Map<Integer, byte[]>> recordsBySFI = new TreeMap<Integer, Map<Integer, byte[]>>();
+        for (Object efObject : filesElement.getChildren()) {
+            XMLElement efElement = (XMLElement) efObject;
+            int sfi = efElement.getIntAttribute("sfi");
+            Map<Integer, byte[]> records = recordsBySFI.get(sfi);
+            if (records == null) {
+                records = new TreeMap<Integer, byte[]>();
+                recordsBySFI.put(sfi, records);
+            }
+            for (Object recordObject : efElement.getChildren()) {
+                XMLElement recordElement = (XMLElement) recordObject;
+                records.put(recordElement.getIntAttribute("number"), getHexContent(recordElement));
+            }
+        }
+        return recordsBySFI;
+    }
+
+    private static byte[] getHexContent(XMLElement element) {
+        return Util.fromHexString(Util.removeCRLFTab(element.getContent().trim()));
+    }
+
+    /**
+     * Aggregated results. Instances are confined to one thread while
+     * collecting, and merged when the batch is done
+     */
+    public static class Statistics {
+
+        private long numCaptures = 0;
+        private long numFailedCaptures = 0;
+        private long numApplications = 0;
+        private final Map<String, long[]> aids = new TreeMap<String, long[]>();
+        private final Map<String, long[]> odaMethods = new TreeMap<String, long[]>();
+        private final Map<String, long[]> cvmRules = new TreeMap<String, long[]>();
+        private final Map<String, long[]> issuerKeyLengths = new TreeMap<String, long[]>();
+        private final Map<String, long[]> iccKeyLengths = new TreeMap<String, long[]>();
+        private final Map<String, long[]> certificates = new TreeMap<String, long[]>();
+        private final Map<String, long[]> expiryYears = new TreeMap<String, long[]>();
+
+        public long getNumCaptures() {
+            return numCaptures;
+        }
+
+        public long getNumFailedCaptures() {
+            return numFailedCaptures;
+        }
+
+        public long getNumApplications() {
+            return numApplications;
+        }
+
+        public Map<String, long[]> getAIDs() {
+            return aids;
+        }
+
+        public Map<String, long[]> getODAMethods() {
+            return odaMethods;
+        }
+
+        public Map<String, long[]> getCVMRules() {
+            return cvmRules;
+        }
+
+        public Map<String, long[]> getCertificateResults() {
+            return certificates;
+        }
+
+        void captureAnalyzed() {
+            numCaptures++;
+        }
+
+        void captureFailed() {
+            numFailedCaptures++;
+        }
+
+        void applicationAnalyzed(EMVApplication app) {
+            numApplications++;
+            increment(aids, Util.byteArrayToHexString(app.getAID().getAIDBytes()));
+
+            ApplicationInterchangeProfile aip = app.getApplicationInterchangeProfile();
+            if (aip == null) {
+                increment(odaMethods, "Unknown (no AIP)");
+            } else if (aip.isCDASupported()) {
+                increment(odaMethods, "CDA");
+            } else if (aip.isDDASupported()) {
+                increment(odaMethods, "DDA");
+            } else if (aip.isSDASupported()) {
+                increment(odaMethods, "SDA");
+            } else {
+                increment(odaMethods, "None");
+            }
+
+            CVMList cvmList = app.getCVMList();
+            if (cvmList != null) {
+                for (CVRule rule : cvmList.getRules()) {
+                    increment(cvmRules, rule.getRule().getDescription());
+                }
+            }
+
+            Date expirationDate = app.getExpirationDate();
+            if (expirationDate != null) {
+                Calendar cal = Calendar.getInstance();
+                cal.setTime(expirationDate);
+                increment(expiryYears, String.valueOf(cal.get(Calendar.YEAR)));
+            }
+
+            validateCertificates(app);
+        }
+
+        private void validateCertificates(EMVApplication app) {
+            IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
+            if (issuerCert == null) {
+                increment(certificates, "Issuer certificate not present");
+                return;
+            }
+            if (!validate(issuerCert)) {
+                increment(certificates, "Issuer certificate invalid (or CA key not found)");
+                return;
+            }
+            increment(certificates, "Issuer certificate valid");
+            increment(issuerKeyLengths, String.valueOf(issuerCert.getIssuerPublicKey().getKeyLengthInBytes() * 8));
+
+            ICCPublicKeyCertificate iccCert = app.getICCPublicKeyCertificate();
+            if (iccCert != null) {
+                if (validate(iccCert)) {
+                    increment(certificates, "ICC certificate valid");
+                    increment(iccKeyLengths, String.valueOf(iccCert.getICCPublicKey().getKeyLengthInBytes() * 8));
+                } else {
+                    increment(certificates, "ICC certificate invalid");
+                }
+            }
+            SignedStaticApplicationData ssad = app.getSignedStaticApplicationData();
+            if (ssad != null) {
+                increment(certificates, validate(ssad) ? "Signed Static Application Data valid" : "Signed Static Application Data invalid");
+            }
+        }
+
+        private static boolean validate(IssuerPublicKeyCertificate cert) {
+            try {
+                return cert.validate();
+            } catch (SmartCardException ex) {
+                return false;
+            }
+        }
+
+        private static boolean validate(ICCPublicKeyCertificate cert) {
+            try {
+                return cert.validate();
+            } catch (SmartCardException ex) {
+                return false;
+            }
+        }
+
+        private static boolean validate(SignedStaticApplicationData ssad) {
+            try {
+                return ssad.validate();
+            } catch (SmartCardException ex) {
+                return false;
+            }
+        }
+
+        private static void increment(Map<String, long[]> map, String key) {
+            add(map, key, 1);
+        }
+
+        private static void add(Map<String, long[]> map, String key, long value) {
+            long[] counter = map.get(key);
+            if (counter == null) {
+                counter = new long[1];
+                map.put(key, counter);
+            }
+            counter[0] += value;
+        }
+
+        private static void merge(Map<String, long[]> target, Map<String, long[]> source) {
+            for (Map.Entry<String, long[]> entry : source.entrySet()) {
+                add(target, entry.getKey(), entry.getValue()[0]);
+            }
+        }
+
+        void merge(Statistics other) {
+            numCaptures += other.numCaptures;
+            numFailedCaptures += other.numFailedCaptures;
+            numApplications += other.numApplications;
+            merge(aids, other.aids);
+            merge(odaMethods, other.odaMethods);
+            merge(cvmRules, other.cvmRules);
+            merge(issuerKeyLengths, other.issuerKeyLengths);
+            merge(iccKeyLengths, other.iccKeyLengths);
+            merge(certificates, other.certificates);
+            merge(expiryYears, other.expiryYears);
+        }
+
+        @Override
+        public String toString() {
+            StringWriter sw = new StringWriter();
+            dump(new PrintWriter(sw), 0);
+            return sw.toString();
+        }
+
+        public void dump(PrintWriter pw, int indent) {
+            String indentStr = Util.getSpaces(indent + Log.INDENT_SIZE);
+            pw.println(Util.getSpaces(indent) + "Capture Statistics:");
+            pw.println(indentStr + "Captures analyzed: " + numCaptures);
+            pw.println(indentStr + "Captures failed: " + numFailedCaptures);
+            pw.println(indentStr + "Applications: " + numApplications);
+            dumpMap(pw, indent + Log.INDENT_SIZE, "AIDs", aids);
+            dumpMap(pw, indent + Log.INDENT_SIZE, "Offline Data Authentication", odaMethods);
+            dumpMap(pw, indent + Log.INDENT_SIZE, "CVM Rules", cvmRules);
+            dumpMap(pw, indent + Log.INDENT_SIZE, "Certificates", certificates);
+            dumpMap(pw, indent + Log.INDENT_SIZE, "Issuer Public Key Length (bits)", issuerKeyLengths);
+            dumpMap(pw, indent + Log.INDENT_SIZE, "ICC Public Key Length (bits)", iccKeyLengths);
+            dumpMap(pw, indent + Log.INDENT_SIZE, "Expiration Year", expiryYears);
+            pw.flush();
+        }
+
+        private static void dumpMap(PrintWriter pw, int indent, String title, Map<String, long[]> map) {
+            pw.println(Util.getSpaces(indent) + title + ":");
+            String indentStr = Util.getSpaces(indent + Log.INDENT_SIZE);
+            for (Map.Entry<String, long[]> entry : map.entrySet()) {
+                pw.println(indentStr + entry.getKey() + ": " + entry.getValue()[0]);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: CaptureAnalyzer <directory|capture.xml|archive.zip> ...");
+            return;
+        }
+        List<File> inputs = new ArrayList<File>();
+        for (String arg : args) {
+            inputs.add(new File(arg));
+        }
+        long start = System.currentTimeMillis();
+        Statistics stats = new CaptureAnalyzer().analyze(inputs);
+        System.out.println(stats);
+        System.out.println("Time: " + (System.currentTimeMillis() - start) + "ms");
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import sasc.iso7816.AID;
+import sasc.iso7816.BERTLV;
+import sasc.iso7816.Tag;
+import sasc.iso7816.TLVException;
+import sasc.util.Util;
+
+/**
+ * Compact, immutable representation of the data of an EMV application,
+ * for holding a large number of parsed cards in memory.
+ *
+ * All primitive data objects (from the FCI, the GPO response, the records and GET DATA)
+ * are kept in one byte array, in their original BER-TLV encoding, and are indexed
+ * by tag in a sorted int array. Values are decoded when a getter is called.
+ * A card with ~40 data objects takes about 1 KB, instead of one object per value.
+ *
+ * toEMVApplication() inflates the data to a full EMVApplication (using the same parsing
+ * as when reading the card), so the existing model can be used as a view when needed.
+ *
+ * @author sasc
+ */
+public final class CompactEMVApplication {
+
+    //Index entry: packed tag, TLV offset, value offset, value length
+    private static final int STRIDE = 4;
+
+    //Tags set in the FCI Proprietary Template ('A5') and the FCI Issuer Discretionary Data ('BF0C')
+    private static final int[] FCI_PROPRIETARY_TAGS = {0x50, 0x87, 0x5F2D, 0x9F11, 0x9F12, 0x9F38};
+    private static final int[] FCI_DISCRETIONARY_TAGS = {0x42, 0x5F50, 0x5F56, 0x9F4D};
+
+    private final byte[] data;
+    private final int[] index;
+
+    private CompactEMVApplication(byte[] data, int[] index) {
+        this.data = data;
+        this.index = index;
+    }
+
+    /**
+     * Collects the data objects of an application. If a tag occurs more than once,
+     * the first occurrence is kept
+     */
+    public static class Builder {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final TreeMap<Integer, int[]> entries = new TreeMap<Integer, int[]>();
+
+        /**
+         * Adds all primitive data objects in the response data (templates are traversed).
+         * A Response Message Template Format 1 ('80') is split into AIP ('82') and AFL ('94')
+         *
+         * @param responseData the data of a SELECT, GPO, READ RECORD or GET DATA response (without SW)
+         * @throws TLVException if the data is not valid BER-TLV
+         */
+        public Builder add(byte[] responseData) {
+            add(responseData, 0, responseData.length);
+            return this;
+        }
+
+        private void add(byte[] buf, int offset, int end) {
+            while (offset < end) {
+                if (buf[offset] == 0x00 || buf[offset] == (byte) 0xFF) {
+                    offset++; //Padding between data objects (EMV Book 3, Annex B)
+                    continue;
+                }
+                int tlvOffset = offset;
+                boolean constructed = (buf[offset] & 0x20) != 0;
+                int tag = buf[offset++] & 0xFF;
+                if ((tag & 0x1F) == 0x1F) {
+                    int b;
+                    do {
+                        if (offset >= end || tag > 0xFFFFFF) {
+                            throw new TLVException("Invalid tag at offset " + tlvOffset);
+                        }
+                        b = buf[offset++] & 0xFF;
+                        tag = (tag << 8) | b;
+                    } while ((b & 0x80) != 0);
+                }
+                if (offset >= end) {
+                    throw new TLVException("Missing length at offset " + tlvOffset);
+                }
+                int length = buf[offset++] & 0xFF;
+                if (length > 0x80) {
+                    int numBytes = length & 0x7F;
+                    if (numBytes > 3 || offset + numBytes > end) {
+                        throw new TLVException("Invalid length at offset " + tlvOffset);
+                    }
+                    length = 0;
+                    for (int i = 0; i < numBytes; i++) {
+                        length = (length << 8) | (buf[offset++] & 0xFF);
+                    }
+                } else if (length == 0x80) {
+                    throw new TLVException("Indefinite length not supported");
+                }
+                if (offset + length > end) {
+                    throw new TLVException("Value out of bounds at offset " + tlvOffset + ": length=" + length);
+                }
+                if (constructed) {
+                    add(buf, offset, offset + length);
+                } else if (tag == 0x80 && length >= 2) {
+                    addEntry(0x82, new byte[]{(byte) 0x82, 0x02}, buf, offset, 2);
+                    addEntry(0x94, concat(new byte[]{(byte) 0x94}, BERTLV.encodeLength(length - 2)), buf, offset + 2, length - 2);
+                } else {
+                    addEntry(tag, Arrays.copyOfRange(buf, tlvOffset, offset), buf, offset, length);
+                }
+                offset += length;
+            }
+        }
+
+        private void addEntry(int tag, byte[] header, byte[] buf, int valueOffset, int length) {
+            if (entries.containsKey(tag)) {
+                return;
+            }
+            int tlvOffset = out.size();
+            out.write(header, 0, header.length);
+            entries.put(tag, new int[]{tlvOffset, out.size(), length});
+            out.write(buf, valueOffset, length);
+        }
+
+        public CompactEMVApplication build() {
+            int[] index = new int[entries.size() * STRIDE];
+            int i = 0;
+            for (Map.Entry<Integer, int[]> entry : entries.entrySet()) {
+                index[i++] = entry.getKey();
+                index[i++] = entry.getValue()[0];
+                index[i++] = entry.getValue()[1];
+                index[i++] = entry.getValue()[2];
+            }
+            return new CompactEMVApplication(out.toByteArray(), index);
+        }
+    }
+
+    /**
+     * @return the tag bytes packed big endian in an int (eg '9F36' = 0x9F36)
+     */
+    public static int packTag(byte[] tagBytes) {
+        if (tagBytes.length < 1 || tagBytes.length > 4) {
+            throw new IllegalArgumentException("Invalid tag length: " + tagBytes.length);
+        }
+        int tag = 0;
+        for (byte b : tagBytes) {
+            tag = (tag << 8) | (b & 0xFF);
+        }
+        return tag;
+    }
+
+    /**
+     * @return the number of data objects
+     */
+    public int size() {
+        return index.length / STRIDE;
+    }
+
+    /**
+     * @return the approximate number of bytes used by the data and the index
+     */
+    public int getSizeInBytes() {
+        return data.length + index.length * 4;
+    }
+
+    public boolean contains(Tag tag) {
+        return find(packTag(tag.getTagBytes())) >= 0;
+    }
+
+    /**
+     * @return a copy of the value, or null if the data object is not present
+     */
+    public byte[] getValue(Tag tag) {
+        return getValue(packTag(tag.getTagBytes()));
+    }
+
+    public byte[] getValue(int packedTag) {
+        int i = find(packedTag);
+        if (i < 0) {
+            return null;
+        }
+        return Arrays.copyOfRange(data, index[i + 2], index[i + 2] + index[i + 3]);
+    }
+
+    /**
+     * @return the packed tags of all data objects, in ascending order
+     */
+    public int[] getTags() {
+        int[] tags = new int[size()];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = index[i * STRIDE];
+        }
+        return tags;
+    }
+
+    public AID getAID() {
+        byte[] value = getValue(EMVTags.DEDICATED_FILE_NAME);
+        if (value == null) {
+            value = getValue(EMVTags.AID_CARD);
+        }
+        return value != null ? new AID(value) : null;
+    }
+
+    public String getLabel() {
+        return getText(EMVTags.APPLICATION_LABEL);
+    }
+
+    public String getPreferredName() {
+        return getText(EMVTags.APP_PREFERRED_NAME);
+    }
+
+    public String getCardholderName() {
+        return getText(EMVTags.CARDHOLDER_NAME);
+    }
+
+    public PAN getPAN() {
+        byte[] value = getValue(EMVTags.PAN);
+        return value != null ? new PAN(value) : null;
+    }
+
+    /**
+     * @return the PAN Sequence Number, or -1 if not present
+     */
+    public int getPANSequenceNumber() {
+        int i = find(packTag(EMVTags.PAN_SEQUENCE_NUMBER.getTagBytes()));
+        if (i < 0 || index[i + 3] < 1) {
+            return -1;
+        }
+        return Util.binaryCodedDecimalToInt(data[index[i + 2]]);
+    }
+
+    public Date getExpirationDate() {
+        byte[] value = getValue(EMVTags.APP_EXPIRATION_DATE);
+        return value != null ? EMVApplication.toDate(value) : null;
+    }
+
+    public Date getEffectiveDate() {
+        byte[] value = getValue(EMVTags.APP_EFFECTIVE_DATE);
+        return value != null ? EMVApplication.toDate(value) : null;
+    }
+
+    public ServiceCode getServiceCode() {
+        byte[] value = getValue(EMVTags.SERVICE_CODE);
+        return value != null ? new ServiceCode(Util.binaryHexCodedDecimalToInt(Util.byteArrayToHexString(value))) : null;
+    }
+
+    public Track2EquivalentData getTrack2EquivalentData() {
+        byte[] value = getValue(EMVTags.TRACK_2_EQV_DATA);
+        return value != null ? new Track2EquivalentData(value) : null;
+    }
+
+    public LanguagePreference getLanguagePreference() {
+        byte[] value = getValue(EMVTags.LANGUAGE_PREFERENCE);
+        return value != null ? new LanguagePreference(value) : null;
+    }
+
+    public ApplicationInterchangeProfile getApplicationInterchangeProfile() {
+        byte[] value = getValue(EMVTags.APPLICATION_INTERCHANGE_PROFILE);
+        return value != null && value.length == 2 ? new ApplicationInterchangeProfile(value[0], value[1]) : null;
+    }
+
+    /**
+     * @return the ATC, or -1 if not present
+     */
+    public int getATC() {
+        return getInt(EMVTags.APP_TRANSACTION_COUNTER);
+    }
+
+    /**
+     * @return the Last Online ATC Register, or -1 if not present
+     */
+    public int getLastOnlineATC() {
+        return getInt(EMVTags.LAST_ONLINE_ATC_REGISTER);
+    }
+
+    /**
+     * @return the PIN Try Counter, or -1 if not present
+     */
+    public int getPINTryCounter() {
+        return getInt(EMVTags.PIN_TRY_COUNTER);
+    }
+
+    /**
+     * @return the Application Currency Code, or -1 if not present
+     */
+    public int getApplicationCurrencyCode() {
+        return getNumeric(EMVTags.APPLICATION_CURRENCY_CODE);
+    }
+
+    /**
+     * @return the Issuer Country Code, or -1 if not present
+     */
+    public int getIssuerCountryCode() {
+        return getNumeric(EMVTags.ISSUER_COUNTRY_CODE);
+    }
+
+    /**
+     * Creates a full EMVApplication from the data objects, using the same parsing as
+     * when the card is read (FCI, GPO response, records and GET DATA)
+     */
+    public EMVApplication toEMVApplication() {
+        EMVApplication app = new EMVApplication();
+
+        ByteArrayOutputStream proprietary = new ByteArrayOutputStream();
+        ByteArrayOutputStream discretionary = new ByteArrayOutputStream();
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        for (int i = 0; i < index.length; i += STRIDE) {
+            int tag = index[i];
+            if (tag == 0x84 || tag == 0x4F) {
+                continue;
+            }
+            if (contains(FCI_PROPRIETARY_TAGS, tag)) {
+                writeTLV(proprietary, i);
+            } else if (contains(FCI_DISCRETIONARY_TAGS, tag)) {
+                writeTLV(discretionary, i);
+            } else if (tag == 0x82) {
+                byte[] aip = getValue(tag);
+                if (aip.length == 2) {
+                    app.setApplicationInterchangeProfile(new ApplicationInterchangeProfile(aip[0], aip[1]));
+                }
+            } else if (tag == 0x94) {
+                app.setApplicationFileLocator(new ApplicationFileLocator(getValue(tag)));
+            } else if (tag == 0x9F36) {
+                app.setATC(getInt(EMVTags.APP_TRANSACTION_COUNTER));
+            } else if (tag == 0x9F13) {
+                app.setLastOnlineATC(getInt(EMVTags.LAST_ONLINE_ATC_REGISTER));
+            } else if (tag == 0x9F17) {
+                app.setPINTryCounter(getInt(EMVTags.PIN_TRY_COUNTER));
+            } else {
+                writeTLV(record, i);
+            }
+        }
+
+        AID aid = getAID();
+        if (aid != null || proprietary.size() > 0 || discretionary.size() > 0) {
+            ByteArrayOutputStream fci = new ByteArrayOutputStream();
+            if (aid != null) {
+                writeTemplate(fci, new byte[]{(byte) 0x84}, aid.getAIDBytes());
+            }
+            if (discretionary.size() > 0) {
+                writeTemplate(proprietary, new byte[]{(byte) 0xBF, 0x0C}, discretionary.toByteArray());
+            }
+            if (proprietary.size() > 0) {
+                writeTemplate(fci, new byte[]{(byte) 0xA5}, proprietary.toByteArray());
+            }
+            ByteArrayOutputStream fciTemplate = new ByteArrayOutputStream();
+            writeTemplate(fciTemplate, new byte[]{0x6F}, fci.toByteArray());
+            EMVUtil.parseFCIADF(fciTemplate.toByteArray(), app);
+        }
+        if (record.size() > 0) {
+            ByteArrayOutputStream recordTemplate = new ByteArrayOutputStream();
+            writeTemplate(recordTemplate, new byte[]{0x70}, record.toByteArray());
+            EMVUtil.parseAppRecord(recordTemplate.toByteArray(), app);
+        }
+        return app;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactEMVApplication[" + size() + " data objects, " + getSizeInBytes() + " bytes]";
+    }
+
+    private int find(int packedTag) {
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midTag = index[mid * STRIDE];
+            if (midTag < packedTag) {
+                low = mid + 1;
+            } else if (midTag > packedTag) {
+                high = mid - 1;
+            } else {
+                return mid * STRIDE;
+            }
+        }
+        return -1;
+    }
+
+    private String getText(Tag tag) {
+        byte[] value = getValue(tag);
+        return value != null ? Util.getSafePrintChars(value) : null;
+    }
+
+    private int getInt(Tag tag) {
+        byte[] value = getValue(tag);
+        return value != null ? Util.byteArrayToInt(value) : -1;
+    }
+
+    private int getNumeric(Tag tag) {
+        byte[] value = getValue(tag);
+        return value != null ? Util.binaryHexCodedDecimalToInt(Util.byteArrayToHexString(value)) : -1;
+    }
+
+    private void writeTLV(ByteArrayOutputStream out, int i) {
+        int tlvOffset = index[i + 1];
+        out.write(data, tlvOffset, index[i + 2] + index[i + 3] - tlvOffset);
+    }
+
+    private static void writeTemplate(ByteArrayOutputStream out, byte[] tagBytes, byte[] value) {
+        out.write(tagBytes, 0, tagBytes.length);
+        byte[] length = BERTLV.encodeLength(value.length);
+        out.write(length, 0, length.length);
+        out.write(value, 0, value.length);
+    }
+
+    private static boolean contains(int[] tags, int tag) {
+        for (int t : tags) {
+            if (t == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
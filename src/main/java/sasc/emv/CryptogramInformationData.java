@@ -15,6 +15,9 @@
  */
 package sasc.emv;
 
+import sasc.iso7816.BERTLV;
+import sasc.iso7816.TLVUtil;
+
 /**
  * Cryptogram Information Data
  * Indicates the type of cryptogram and the actions to be performed by the terminal
@@ -33,6 +36,39 @@ public class CryptogramInformationData {
         this.cidByte = cid;
     }
     
+    /**
+     * TC = the card approved the transaction offline
+     */
+    public boolean isTransactionCertificate() {
+        return (cidByte & 0xC0) == 0x40;
+    }
+
+    /**
+     * Parses the CID from a GENERATE AC response (Format 1 or Format 2)
+     *
+     * @return the CID, or null if not present
+     */
+    public static CryptogramInformationData fromGenerateACResponse(byte[] data) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        for (BERTLV tlv : TLVUtil.parseList(data)) {
+            if (tlv.getTag().equals(EMVTags.RESPONSE_MESSAGE_TEMPLATE_1)) {
+                //CID, ATC, AC, [IAD] without tags and lengths
+                byte[] value = tlv.getValueBytes();
+                return value.length > 0 ? new CryptogramInformationData(value[0]) : null;
+            }
+            if (tlv.getTag().equals(EMVTags.RESPONSE_MESSAGE_TEMPLATE_2)) {
+                for (BERTLV child : tlv.getChildren()) {
+                    if (child.getTag().equals(EMVTags.CRYPTOGRAM_INFORMATION_DATA) && child.getValueBytes().length == 1) {
+                        return new CryptogramInformationData(child.getValueBytes()[0]);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
     public String getTEXT(){
         switch(cidByte & 0xC0) {
             case 0x00:
@@ -81,10 +81,12 @@ public class DOL {
 
     private Type type;
     private List<TagAndLength> tagAndLengthList = new ArrayList<TagAndLength>();
+    private byte[] data;
 
     public DOL(Type type, byte[] data){
         //Parse tags and lengths
         this.type = type;
+        this.data = Util.copyByteArray(data);
         this.tagAndLengthList = TLVUtil.parseTagAndLength(data);
     }
 
@@ -92,6 +94,14 @@ public class DOL {
         return Collections.unmodifiableList(tagAndLengthList);
     }
 
+    /**
+     * Returns the plan compiled for this DOL, (re)compiling it if the profile has changed.
+     * Plans are shared between DOLs with the same encoding (eg cards of the same kind)
+     */
+    public DOLPlan getPlan(TerminalProfile profile){
+        return DOLPlan.forDOL(data, profile);
+    }
+
     @Override
     public String toString(){
         StringWriter sw = new StringWriter();
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import sasc.iso7816.Tag;
+import sasc.iso7816.TLVUtil;
+import sasc.iso7816.TagAndLength;
+import sasc.util.ByteArrayWrapper;
+import sasc.util.Log;
+import sasc.util.UnpredictableNumberGenerator;
+import sasc.util.Util;
+
+/**
+ * A DOL compiled against a TerminalProfile.
+ *
+ * The source of each data element is resolved once, when the plan is compiled.
+ * Building the DOL response is then only a matter of copying values into a
+ * pre-sized byte array. Only the elements that depend on the card or on the
+ * transaction (country/currency code, unpredictable number, TVR, date) are
+ * resolved when the response is built.
+ *
+ * @author sasc
+ */
+public class DOLPlan {
+
+    //The response is zero filled, so SOURCE_ZERO elements need no copying
+    private static final byte SOURCE_ZERO = 0;
+    private static final byte SOURCE_STATIC = 1;
+    private static final byte SOURCE_COUNTRY_CODE = 2;
+    private static final byte SOURCE_CURRENCY_CODE = 3;
+    private static final byte SOURCE_UNPREDICTABLE_NUMBER = 4;
+    private static final byte SOURCE_TVR = 5;
+    private static final byte SOURCE_TRANSACTION_DATE = 6;
+
+    //Cards of the same kind send the same DOLs, so only a handful of distinct DOLs are seen
+    private static final int MAX_CACHED_PLANS = 256;
+    private static final ConcurrentMap<ByteArrayWrapper, DOLPlan> cache = new ConcurrentHashMap<ByteArrayWrapper, DOLPlan>();
+
+    private final TerminalProfile profile;
+    private final int profileVersion;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final byte[] sources;
+    private final byte[][] staticValues;
+    private final int length;
+
+    private DOLPlan(TerminalProfile profile, List<TagAndLength> tagAndLengthList) {
+        int numElements = tagAndLengthList.size();
+        this.profile = profile;
+        this.profileVersion = profile.getVersion();
+        this.offsets = new int[numElements];
+        this.lengths = new int[numElements];
+        this.sources = new byte[numElements];
+        this.staticValues = new byte[numElements][];
+        int offset = 0;
+        for (int i = 0; i < numElements; i++) {
+            TagAndLength tal = tagAndLengthList.get(i);
+            offsets[i] = offset;
+            lengths[i] = tal.getLength();
+            resolve(i, tal);
+            offset += tal.getLength();
+        }
+        this.length = offset;
+    }
+
+    public static DOLPlan compile(DOL dol, TerminalProfile profile) {
+        return compile(dol.getTagAndLengthList(), profile);
+    }
+
+    public static DOLPlan compile(List<TagAndLength> tagAndLengthList, TerminalProfile profile) {
+        if (profile == null) {
+            throw new IllegalArgumentException("Param profile cannot be null");
+        }
+        return new DOLPlan(profile, tagAndLengthList);
+    }
+
+    /**
+     * Returns the plan for the encoded DOL (tags and lengths), from the cache if it
+     * is still valid for the profile. Otherwise the DOL is compiled, and cached
+     */
+    public static DOLPlan forDOL(byte[] dol, TerminalProfile profile) {
+        ByteArrayWrapper key = ByteArrayWrapper.wrapperAround(dol);
+        DOLPlan plan = cache.get(key);
+        if (plan == null || !plan.isValidFor(profile)) {
+            plan = compile(TLVUtil.parseTagAndLength(dol), profile);
+            if (cache.size() >= MAX_CACHED_PLANS) {
+                cache.clear();
+            }
+            cache.put(ByteArrayWrapper.copyOf(dol), plan);
+        }
+        return plan;
+    }
+
+    /**
+     * @return false if the profile has changed (or is another profile) since this plan was compiled
+     */
+    public boolean isValidFor(TerminalProfile profile) {
+        return this.profile == profile && profileVersion == profile.getVersion();
+    }
+
+    /**
+     * @return the length of the DOL response
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Builds the DOL response
+     *
+     * @param app the application used to find the country and currency code (may be null)
+     */
+    public byte[] build(EMVApplication app) {
+        byte[] response = new byte[length];
+        for (int i = 0; i < sources.length; i++) {
+            switch (sources[i]) {
+                case SOURCE_ZERO:
+                    break;
+                case SOURCE_STATIC:
+                    copy(staticValues[i], response, i);
+                    break;
+                case SOURCE_COUNTRY_CODE:
+                    copy(EMVTerminal.findCountryCode(app), response, i);
+                    break;
+                case SOURCE_CURRENCY_CODE:
+                    copy(EMVTerminal.findCurrencyCode(app), response, i);
+                    break;
+                case SOURCE_UNPREDICTABLE_NUMBER:
+                    UnpredictableNumberGenerator.nextBytes(response, offsets[i], lengths[i]);
+                    break;
+                case SOURCE_TVR:
+                    copy(EMVTerminal.getTerminalVerificationResults().toByteArray(), response, i);
+                    break;
+                case SOURCE_TRANSACTION_DATE:
+                    copy(Util.getCurrentDateAsNumericEncodedByteArray(), response, i);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown source: " + sources[i]);
+            }
+        }
+        return response;
+    }
+
+    private void copy(byte[] value, byte[] response, int index) {
+        System.arraycopy(value, 0, response, offsets[index], Math.min(value.length, lengths[index]));
+    }
+
+    /**
+     * The order of the lookups is:
+     * runtime value, value derived from the card (country/currency code), default value, generated value
+     */
+    private void resolve(int index, TagAndLength tal) {
+        Tag tag = tal.getTag();
+        int len = tal.getLength();
+        int packedTag = TerminalProfile.packTag(tag.getTagBytes());
+
+        byte[] value = packedTag != -1 ? profile.getRuntimeValue(packedTag) : null;
+        if (value != null && value.length == len) {
+            setStatic(index, value);
+            return;
+        }
+
+        if (tag.equals(EMVTags.TERMINAL_COUNTRY_CODE) && len == 2) {
+            sources[index] = SOURCE_COUNTRY_CODE;
+            return;
+        } else if (tag.equals(EMVTags.TRANSACTION_CURRENCY_CODE) && len == 2) {
+            sources[index] = SOURCE_CURRENCY_CODE;
+            return;
+        }
+
+        value = packedTag != -1 ? profile.getDefaultValue(packedTag) : null;
+        if (value != null && value.length == len) {
+            setStatic(index, value);
+            return;
+        }
+
+        if (tag.equals(EMVTags.UNPREDICTABLE_NUMBER)) {
+            sources[index] = SOURCE_UNPREDICTABLE_NUMBER;
+        } else if (tag.equals(EMVTags.TERMINAL_TRANSACTION_QUALIFIERS) && len == 4) {
+            //This seems only to be used in contactless mode. Construct accordingly
+            TerminalTransactionQualifiers ttq = new TerminalTransactionQualifiers();
+            ttq.setContactlessEMVmodeSupported(true);
+            ttq.setReaderIsOfflineOnly(true);
+            setStatic(index, ttq.getBytes());
+        } else if (tag.equals(EMVTags.TERMINAL_VERIFICATION_RESULTS) && len == 5) {
+            sources[index] = SOURCE_TVR;
+        } else if (tag.equals(EMVTags.TRANSACTION_DATE) && len == 3) {
+            sources[index] = SOURCE_TRANSACTION_DATE;
+        } else if (tag.equals(EMVTags.TRANSACTION_TYPE) && len == 1) {
+            //transactionTypes = {     0:  "Payment",     1:  "Withdrawal", }
+            sources[index] = SOURCE_ZERO;
+        } else {
+            Log.debug("Terminal Resident Data not found for " + tal);
+            sources[index] = SOURCE_ZERO;
+        }
+    }
+
+    private void setStatic(int index, byte[] value) {
+        sources[index] = SOURCE_STATIC;
+        staticValues[index] = value;
+    }
+}
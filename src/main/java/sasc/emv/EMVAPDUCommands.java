@@ -17,6 +17,7 @@ package sasc.emv;
 
 import sasc.iso7816.SmartCardException;
 import java.util.Arrays;
+import sasc.iso7816.APDUCommandBuilder;
 import sasc.iso7816.Iso7816Commands;
 import sasc.util.Util;
 
@@ -50,66 +51,110 @@ import sasc.util.Util;
  */
 public class EMVAPDUCommands {
 
+    private static final byte EMV_CLA = (byte) 0x80;
+    private static final byte INS_GET_PROCESSING_OPTIONS = (byte) 0xA8;
+    private static final byte[] PSE_NAME = Util.fromHexString("31 50 41 59 2E 53 59 53 2E 44 44 46 30 31"); //1PAY.SYS.DDF01
+    private static final byte[] PPSE_NAME = Util.fromHexString("32 50 41 59 2E 53 59 53 2E 44 44 46 30 31"); //2PAY.SYS.DDF01
+
     public static byte[] selectPSE() {
-        return selectByDFName(Util.fromHexString("31 50 41 59 2E 53 59 53 2E 44 44 46 30 31")); //1PAY.SYS.DDF01
+        return selectByDFName(PSE_NAME);
     }
 
     public static byte[] selectPPSE() {
-        return selectByDFName(Util.fromHexString("32 50 41 59 2E 53 59 53 2E 44 44 46 30 31")); //2PAY.SYS.DDF01
+        return selectByDFName(PPSE_NAME);
     }
 
     public static byte[] selectByDFName(byte[] fileBytes) {
         return Iso7816Commands.selectByDFName(fileBytes, true, (byte)0x00);
     }
 
+    /**
+     * Writes the command into a caller-owned buffer
+     *
+     * @return the length of the command
+     */
+    public static int selectByDFName(byte[] fileBytes, byte[] buffer, int offset) {
+        return Iso7816Commands.selectByDFName(fileBytes, true, buffer, offset);
+    }
+
     public static byte[] selectByDFNameNextOccurrence(byte[] fileBytes) {
         return Iso7816Commands.selectByDFNameNextOccurrence(fileBytes, true, (byte)0x00);
     }
 
+    /**
+     * Writes the command into a caller-owned buffer
+     *
+     * @return the length of the command
+     */
+    public static int selectByDFNameNextOccurrence(byte[] fileBytes, byte[] buffer, int offset) {
+        return Iso7816Commands.selectByDFNameNextOccurrence(fileBytes, true, buffer, offset);
+    }
+
     public static byte[] readRecord(int recordNum, int sfi) {
         return Iso7816Commands.readRecord(recordNum, sfi);
     }
 
+    /**
+     * Writes the command into a caller-owned buffer
+     *
+     * @return the length of the command
+     */
+    public static int readRecord(int recordNum, int sfi, byte[] buffer, int offset) {
+        return Iso7816Commands.readRecord(recordNum, sfi, buffer, offset);
+    }
+
     /*
      *
      * Case 4s C-APDU
      */
     public static byte[] getProcessingOpts(DOL pdol, EMVApplication app) {
-        String command;
+        byte[] pdolResponseData;
         if (pdol != null && pdol.getTagAndLengthList().size() > 0) {
-            byte[] pdolResponseData = EMVTerminal.constructDOLResponse(pdol, app);
-            command = "80 A8 00 00";
-            command += " " + Util.int2Hex(pdolResponseData.length + 2) + " 83 " + Util.int2Hex(pdolResponseData.length);
-            command += " " + Util.prettyPrintHexNoWrap(pdolResponseData);
-            command += " 00"; // Le
+            pdolResponseData = EMVTerminal.constructDOLResponse(pdol, app);
         } else {
-            command = "80 A8 00 00 02 83 00 00"; //Last 00 is Le
+            pdolResponseData = new byte[0];
         }
-        return Util.fromHexString(command);
+        //Command Template (tag 83) containing the PDOL related data
+        byte[] data = new byte[2 + pdolResponseData.length];
+        data[0] = (byte) 0x83;
+        data[1] = (byte) pdolResponseData.length;
+        System.arraycopy(pdolResponseData, 0, data, 2, pdolResponseData.length);
+        return APDUCommandBuilder.build(EMV_CLA, INS_GET_PROCESSING_OPTIONS, (byte) 0x00, (byte) 0x00, data, APDUCommandBuilder.MAX_SHORT_NE); //Le = 00
     }
 
     public static byte[] getApplicationTransactionCounter() {
-        return Util.fromHexString("80 CA 9F 36 00");
+        return getData((byte) 0x9F, (byte) 0x36);
     }
 
     public static byte[] getLastOnlineATCRegister() {
-        return Util.fromHexString("80 CA 9F 13 00");
+        return getData((byte) 0x9F, (byte) 0x13);
     }
 
     public static byte[] getPINTryConter() {
-        return Util.fromHexString("80 CA 9F 17 00");
+        return getData((byte) 0x9F, (byte) 0x17);
     }
 
     /*
      * Case 2 C-APDU
      */
     public static byte[] getLogFormat() {
-        return Util.fromHexString("80 CA 9F 4F 00");
+        return getData((byte) 0x9F, (byte) 0x4F);
     }
 
     public static byte[] getData(byte p1, byte p2){
-		return Util.fromHexString("80 CA "+Util.byte2Hex(p1) + " " + Util.byte2Hex(p2) + " 00");
-	}
+        byte[] cmd = new byte[5];
+        getData(p1, p2, cmd, 0);
+        return cmd;
+    }
+
+    /**
+     * Writes the command into a caller-owned buffer
+     *
+     * @return the length of the command
+     */
+    public static int getData(byte p1, byte p2, byte[] buffer, int offset){
+        return Iso7816Commands.getData(EMV_CLA, p1, p2, (byte) 0x00, buffer, offset);
+    }
 
     public static byte[] internalAuthenticate(byte[] authenticationRelatedData) {
         return Iso7816Commands.internalAuthenticate(authenticationRelatedData);
@@ -152,7 +197,7 @@ public class EMVAPDUCommands {
      * @return String the APDU command GET CHALLENGE
      */
     public static byte[] getChallenge() {
-        return Util.fromHexString("00 84 00 00 00");
+        return new byte[]{0x00, (byte) 0x84, 0x00, 0x00, 0x00};
     }
 
     /**
@@ -427,16 +427,7 @@ public class EMVApplication implements Application {
     }
 
     public void setExpirationDate(byte[] dateBytes) {
-        if (dateBytes.length != 3) {
-            throw new SmartCardException("Byte array length must be 3. Length=" + dateBytes.length);
-        }
-        int YY = Util.binaryCodedDecimalToInt(dateBytes[0]);
-        int MM = Util.binaryCodedDecimalToInt(dateBytes[1]);
-        int DD = Util.binaryCodedDecimalToInt(dateBytes[2]);
-        Calendar cal = Calendar.getInstance();
-        cal.set(2000 + YY, MM - 1, DD, 0, 0, 0);
-        cal.set(Calendar.MILLISECOND, 0);
-        this.applicationExpirationDate = cal.getTime();
+        this.applicationExpirationDate = toDate(dateBytes);
     }
 
     public Date getExpirationDate() {
@@ -447,6 +438,13 @@ public class EMVApplication implements Application {
     }
 
     public void setEffectiveDate(byte[] dateBytes) {
+        this.applicationEffectiveDate = toDate(dateBytes);
+    }
+
+    /**
+     * @param dateBytes YYMMDD (BCD)
+     */
+    static Date toDate(byte[] dateBytes) {
         if (dateBytes.length != 3) {
             throw new SmartCardException("Byte array length must be 3. Length=" + dateBytes.length);
         }
@@ -456,7 +454,7 @@ public class EMVApplication implements Application {
         Calendar cal = Calendar.getInstance();
         cal.set(2000 + YY, MM - 1, DD, 0, 0, 0);
         cal.set(Calendar.MILLISECOND, 0);
-        this.applicationEffectiveDate = cal.getTime();
+        return cal.getTime();
     }
 
     public Date getEffectiveDate() {
@@ -581,6 +579,18 @@ public class EMVApplication implements Application {
         issuerActionCodeOnline = data;
     }
 
+    public byte[] getIssuerActionCodeDefault() {
+        return issuerActionCodeDefault;
+    }
+
+    public byte[] getIssuerActionCodeDenial() {
+        return issuerActionCodeDenial;
+    }
+
+    public byte[] getIssuerActionCodeOnline() {
+        return issuerActionCodeOnline;
+    }
+
     public TransactionStatusInformation getTransactionStatusInformation() {
         return transactionStatusInformation;
     }
@@ -19,21 +19,25 @@ import sasc.smartcard.common.SessionProcessingEnv;
 import sasc.smartcard.common.SmartCard;
 import sasc.util.Log;
 import sasc.iso7816.SmartCardException;
-import sasc.iso7816.BERTLV;
 import sasc.iso7816.AID;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import javax.security.auth.callback.PasswordCallback;
 import sasc.smartcard.common.CardScanner;
 import sasc.iso7816.ShortFileIdentifier;
 import sasc.iso7816.TLVException;
-import sasc.iso7816.TLVUtil;
+import sasc.iso7816.APDUCommandBuilder;
+import sasc.iso7816.GetDataPlan;
+import sasc.iso7816.TLVResponse;
+import sasc.iso7816.TagAndLength;
 import sasc.terminal.CardResponse;
 import sasc.terminal.TerminalException;
 import sasc.terminal.CardConnection;
+import sasc.util.UnpredictableNumberGenerator;
 import sasc.util.Util;
 
 /**
@@ -46,6 +50,71 @@ public class EMVSession {
     private SmartCard card = null;
     private CardConnection terminal;
     private boolean contextInitialized = false;
+    private int terminalActionAnalysisResult = -1;
+
+    private static final GetDataPlan<EMVApplication> ATC_PLAN = new GetDataPlan<EMVApplication>()
+            .add("Send GET DATA command to find the Application Transaction Counter (ATC)", EMVAPDUCommands.getApplicationTransactionCounter(), true,
+                    new GetDataPlan.Handler<EMVApplication>() {
+                        @Override
+                        public void onData(EMVApplication app, TLVResponse response) {
+                            byte[] value = response.getFirstTLV().getValueBytes();
+                            app.setATC(Util.byteToInt(value[0], value[1]));
+                        }
+                    })
+            .add("Send GET DATA command to find the Last Online ATC Register", EMVAPDUCommands.getLastOnlineATCRegister(), true,
+                    new GetDataPlan.Handler<EMVApplication>() {
+                        @Override
+                        public void onData(EMVApplication app, TLVResponse response) {
+                            byte[] value = response.getFirstTLV().getValueBytes();
+                            app.setLastOnlineATC(Util.byteToInt(value[0], value[1]));
+                        }
+                    });
+
+    private static final GetDataPlan<EMVApplication> PIN_TRY_COUNTER_PLAN = new GetDataPlan<EMVApplication>()
+            .add("Send GET DATA command to find the PIN Try Counter", EMVAPDUCommands.getPINTryConter(), true,
+                    new GetDataPlan.Handler<EMVApplication>() {
+                        @Override
+                        public void onData(EMVApplication app, TLVResponse response) {
+                            app.setPINTryCounter(response.getFirstTLV().getValueBytes()[0]);
+                        }
+
+                        @Override
+                        public void onError(EMVApplication app, TLVResponse response) {
+                            app.setPINTryCounter(-2); //The app does not support the command
+                        }
+
+                        @Override
+                        public void onAbsent(EMVApplication app) {
+                            app.setPINTryCounter(-2);
+                        }
+                    });
+
+    private static final GetDataPlan<EMVApplication> LOG_FORMAT_PLAN = new GetDataPlan<EMVApplication>()
+            .add("Send GET DATA command to find the Log Format", EMVAPDUCommands.getLogFormat(), true,
+                    new GetDataPlan.Handler<EMVApplication>() {
+                        @Override
+                        public void onData(EMVApplication app, TLVResponse response) {
+                            app.setLogFormat(new LogFormat(response.getFirstTLV().getValueBytes()));
+                        }
+                    });
+
+    private static final GetDataPlan<EMVApplication> LOG_ENTRY_PLAN = new GetDataPlan<EMVApplication>()
+            .add("Send GET DATA command to find the Log Entry SFI", EMVAPDUCommands.getData((byte) 0x9f, (byte) 0x4d), true,
+                    new GetDataPlan.Handler<EMVApplication>() {
+                        @Override
+                        public void onData(EMVApplication app, TLVResponse response) {
+                            app.setLogEntry(new LogEntry(response.getData()[0], response.getData()[1]));
+                        }
+                    });
+    //Reused for the commands sent in loops (READ RECORD)
+    private final byte[] commandBuffer = new byte[APDUCommandBuilder.getLength(APDUCommandBuilder.MAX_SHORT_LC, APDUCommandBuilder.MAX_SHORT_NE)];
+
+    /**
+     * @return the GET DATA tags known to be absent on cards of this profile (ATR and application)
+     */
+    private Set<Integer> getAbsentTags(EMVApplication app) {
+        return GetDataPlan.getAbsentTags(card.getATR().getBytes(), app.getAID());
+    }
 
     public static EMVSession startSession(SmartCard card, CardConnection terminal) {
         if (card == null || terminal == null) {
@@ -100,7 +169,7 @@ public class EMVSession {
 
         command = EMVAPDUCommands.selectPSE();
 
-        CardResponse selectPSEdirResponse = EMVUtil.sendCmd(terminal, command);
+        TLVResponse selectPSEdirResponse = EMVUtil.sendCmd(terminal, command);
 
         //Example result from the command above:
 
@@ -122,7 +191,7 @@ public class EMVSession {
             //PSE is available
 
             try{
-                DDF pseDDF = EMVUtil.parseFCIDDF(selectPSEdirResponse.getData(), card);
+                DDF pseDDF = EMVUtil.parseFCIDDF(selectPSEdirResponse, card);
                 card.setType(SmartCard.Type.CONTACTED);
                 getCard().setPSE(pseDDF);
                 if(pseDDF.getSFI() != null) {
@@ -141,7 +210,7 @@ public class EMVSession {
 
             command = EMVAPDUCommands.selectPPSE();
 
-            CardResponse selectPPSEdirResponse = EMVUtil.sendCmd(terminal, command);
+            TLVResponse selectPPSEdirResponse = EMVUtil.sendCmd(terminal, command);
 
             SW1 = (byte) selectPPSEdirResponse.getSW1();
             SW2 = (byte) selectPPSEdirResponse.getSW2();
@@ -149,7 +218,7 @@ public class EMVSession {
             if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
                 //PPSE is available
                 try{
-                    DDF ppseDDF = EMVUtil.parseFCIDDF(selectPPSEdirResponse.getData(), card);
+                    DDF ppseDDF = EMVUtil.parseFCIDDF(selectPPSEdirResponse, card);
                     card.setType(SmartCard.Type.CONTACTLESS);
                     getCard().setPSE(ppseDDF);
                     if (ppseDDF.getSFI() != null) {
@@ -195,9 +264,9 @@ public class EMVSession {
 
                 Log.commandHeader("Send READ RECORD to read all records in SFI " + sfi);
 
-                command = EMVAPDUCommands.readRecord((int) recordNum, sfi);
+                int commandLength = EMVAPDUCommands.readRecord((int) recordNum, sfi, commandBuffer, 0);
 
-                CardResponse readRecordResponse = EMVUtil.sendCmd(terminal, command);
+                TLVResponse readRecordResponse = EMVUtil.sendCmd(terminal, commandBuffer, 0, commandLength);
 
                 //Example Response from the command above:
 
@@ -217,7 +286,7 @@ public class EMVSession {
                 SW2 = (byte) readRecordResponse.getSW2();
 
                 if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-                    EMVUtil.parsePSERecord(readRecordResponse.getData(), card);
+                    EMVUtil.parsePSERecord(readRecordResponse, card);
                 }
 
                 recordNum++;
@@ -250,7 +319,7 @@ public class EMVSession {
         Log.commandHeader("Select application by AID");
         command = EMVAPDUCommands.selectByDFName(aid.getAIDBytes());
 
-        CardResponse selectAppResponse = EMVUtil.sendCmd(terminal, command);
+        TLVResponse selectAppResponse = EMVUtil.sendCmd(terminal, command);
 
         if (selectAppResponse.getSW() == SW.SELECTED_FILE_INVALIDATED.getSW()) {
             //App blocked
@@ -259,7 +328,7 @@ public class EMVSession {
             //throw new SmartCardException("EMVApplication " + Util.byteArrayToHexString(aid.getAIDBytes()) + " blocked");
         }
 
-        EMVUtil.parseFCIADF(selectAppResponse.getData(), app);
+        EMVUtil.parseFCIADF(selectAppResponse, app);
 
         //Example Response from previous command:
         //      6f 37
@@ -314,6 +383,7 @@ public class EMVSession {
         // and the Terminal Verification Results (TVR) to 0
         EMVTerminal.resetTVR();
         app.getTransactionStatusInformation().reset();
+        terminalActionAnalysisResult = -1;
 
         byte[] command;
         int SW1;
@@ -330,7 +400,7 @@ public class EMVSession {
 
         command = EMVAPDUCommands.getProcessingOpts(pdol, app);
 
-        CardResponse getProcessingOptsResponse = EMVUtil.sendCmd(terminal, command);
+        TLVResponse getProcessingOptsResponse = EMVUtil.sendCmd(terminal, command);
 
         SW1 = (byte) getProcessingOptsResponse.getSW1();
         SW2 = (byte) getProcessingOptsResponse.getSW2();
@@ -351,7 +421,7 @@ public class EMVSession {
             Log.info("Application did not accept the PDOL returned by the terminal!");
         }else  if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
             //The format of the response message is given in EMV 4.2 book 3, section 6.5.8. 
-            EMVUtil.parseProcessingOpts(getProcessingOptsResponse.getData(), app);
+            EMVUtil.parseProcessingOpts(getProcessingOptsResponse, app);
             
             if(app.getApplicationInterchangeProfile() == null || app.getApplicationFileLocator() == null){
                 throw new SmartCardException("GPO response did not contain AIP and AFL");
@@ -367,16 +437,16 @@ public class EMVSession {
                 for (int recordNum = startRecordNumber; recordNum <= endRecordNumber; recordNum++) {
                     Log.commandHeader("Send READ RECORD to read SFI " + aef.getSFI().getValue() + " record " + recordNum);
 
-                    command = EMVAPDUCommands.readRecord(recordNum, aef.getSFI().getValue());
+                    int commandLength = EMVAPDUCommands.readRecord(recordNum, aef.getSFI().getValue(), commandBuffer, 0);
 
-                    CardResponse readAppDataResponse = EMVUtil.sendCmd(terminal, command);
+                    TLVResponse readAppDataResponse = EMVUtil.sendCmd(terminal, commandBuffer, 0, commandLength);
 
                     SW1 = (byte) readAppDataResponse.getSW1();
                     SW2 = (byte) readAppDataResponse.getSW2();
 
                     if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
 
-                        EMVUtil.parseAppRecord(readAppDataResponse.getData(), app);
+                        EMVUtil.parseAppRecord(readAppDataResponse, app);
                         boolean isInvolvedInOfflineDataAuthentication = (recordNum - startRecordNumber + 1) <= aef.getNumRecordsInvolvedInOfflineDataAuthentication();
                         Record record = new Record(readAppDataResponse.getData(), recordNum, isInvolvedInOfflineDataAuthentication);
                         aef.setRecord(recordNum, record);
@@ -857,6 +927,8 @@ public class EMVSession {
         //  10.6.3 Velocity Checking
         
         try {
+            checkTerminalExceptionFile(app);
+            
             checkFloorLimits(app);
         
             checkForRandomTransactionSelection(app);
@@ -876,6 +948,29 @@ public class EMVSession {
 
     }
     
+    /**
+     * 10.6 Terminal Risk Management
+     * If the terminal has an exception file, and the Application PAN (and 
+     * Application PAN Sequence Number) is listed, the terminal shall set the 
+     * "Card appears on terminal exception file" bit in the TVR to 1
+     * 
+     * @param app 
+     */
+    private void checkTerminalExceptionFile(EMVApplication app) {
+        TerminalExceptionFile exceptionFile = EMVTerminal.getExceptionFile();
+        if(exceptionFile == null) {
+            return;
+        }
+        PAN pan = getPAN(app);
+        if(pan == null) {
+            return;
+        }
+        if(exceptionFile.contains(pan, app.getPANSequenceNumber())) {
+            Log.debug("Card appears on terminal exception file");
+            EMVTerminal.getTerminalVerificationResults().setCardAppearsOnTerminalExceptionFile(true);
+        }
+    }
+    
     /**
      * 10.6.1 Floor Limits
      * To prevent split sales, the terminal may have a transaction log of approved 
@@ -901,39 +996,26 @@ public class EMVSession {
             checkForTransactionLogRecords();
         }
         
-        TransactionLog transactionLog = app.getTransactionLog();
-        
-        boolean panFound = false;
-        if(transactionLog != null && !transactionLog.isEmpty()) {
-            List<TransactionLog.Record> logRecords = transactionLog.getRecords();
-            for(int i = logRecords.size()-1; i >= 0; i--) {
-                TransactionLog.Record logRecord = logRecords.get(i);
-                //TODO 
-//                if(logRecord.getPAN().equals(app.getPAN()) {
-//                    panFound = true;
-//                    //add the Amount, Authorised for the current transaction to 
-//                    //the amount stored in the log for that PAN to determine if 
-//                    //the sum exceeds the Terminal Floor Limit. 
-//                    if(sum >= terminalFloorLimit) {
-//                        EMVTerminal.getTerminalVerificationResults().setTransactionExceedsFloorLimit(true);
-//                    }
-//                    
-//                    break;
-//                }
-                
-            }
-        } 
-        if(!panFound){
-            //If the terminal does not have a transaction log available or if there 
-            //is no log entry with the same PAN, the Amount, Authorised is compared 
-            //to the appropriate floor limit. If the amount authorised is equal to 
-            //or greater than the floor limit, the terminal sets the 
-            //"Transaction exceeds floor limit" bit to 1 in the TVR
-
-            //TODO
-//            if(transactionAmount > floorLimit) {
-//                EMVTerminal.getTerminalVerificationResults().setTransactionExceedsFloorLimit(true);
-//            }
+        long floorLimit = EMVTerminal.getTerminalFloorLimit();
+        if(floorLimit == -1) {
+            Log.debug("No Terminal Floor Limit configured. Skipping floor limit check");
+            return;
+        }
+        
+        byte[] amountAuthorised = EMVTerminal.getTerminalResidentData(new TagAndLength(EMVTags.AMOUNT_AUTHORISED_NUMERIC, 6), app);
+        long sum = Util.binaryCodedDecimalToLong(amountAuthorised);
+        
+        //If the terminal does not have a transaction log available or if there 
+        //is no log entry with the same PAN, the Amount, Authorised is compared 
+        //to the appropriate floor limit
+        TerminalTransactionStore transactionStore = EMVTerminal.getTransactionStore();
+        PAN pan = getPAN(app);
+        if(transactionStore != null && pan != null) {
+            sum += transactionStore.getTotal(pan);
+        }
+        
+        if(sum >= floorLimit) {
+            EMVTerminal.getTerminalVerificationResults().setTransactionExceedsFloorLimit(true);
         }
         
     }
@@ -1036,7 +1118,27 @@ public class EMVSession {
      * @throws TerminalException 
      */
     private void performTerminalActionAnalysis(EMVApplication app) throws TerminalException {
-        //TODO
+        TerminalActionAnalysis taa = TerminalActionAnalysis.create(app);
+        long tvr = EMVTerminal.getTerminalVerificationResults().getValue();
+        byte decision = taa.decide(tvr, EMVTerminal.hasOnlineCapability());
+        
+        //CDA is requested if both the card and the terminal support it (and the decision is not AAC)
+        boolean cda = decision != TerminalActionAnalysis.AAC
+                && app.getApplicationInterchangeProfile().isCDASupported()
+                && EMVTerminal.isCDASupported(app);
+        
+        terminalActionAnalysisResult = TerminalActionAnalysis.getReferenceControlParameter(decision, cda) & 0xff;
+        Log.debug("Terminal Action Analysis: " + TerminalActionAnalysis.getDecisionName(decision) 
+                + " (TVR=" + Util.prettyPrintHexNoWrap(EMVTerminal.getTerminalVerificationResults().toByteArray())
+                + ", GENERATE AC P1=" + Util.byte2Hex((byte) terminalActionAnalysisResult) + ")");
+    }
+    
+    /**
+     * @return the GENERATE AC reference control parameter (P1) decided by 
+     * Terminal Action Analysis (10.7), or -1 if it has not been performed
+     */
+    public int getTerminalActionAnalysisResult() {
+        return terminalActionAnalysisResult;
     }
     
     /**
@@ -1049,35 +1151,7 @@ public class EMVSession {
     }
     
     private void readATCData(EMVApplication app) throws TerminalException {
-
-        byte[] command;
-        int SW1;
-        int SW2;
-
-        Log.commandHeader("Send GET DATA command to find the Application Transaction Counter (ATC)");
-        command = EMVAPDUCommands.getApplicationTransactionCounter();
-        CardResponse getDataATCResponse = EMVUtil.sendCmd(terminal, command);
-
-        SW1 = (byte) getDataATCResponse.getSW1();
-        SW2 = (byte) getDataATCResponse.getSW2();
-
-        if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-            BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(getDataATCResponse.getData()));
-            app.setATC(Util.byteToInt(tlv.getValueBytes()[0], tlv.getValueBytes()[1]));
-        }
-
-        Log.commandHeader("Send GET DATA command to find the Last Online ATC Register");
-        command = EMVAPDUCommands.getLastOnlineATCRegister();
-        CardResponse getDataLastOnlineATCRegisterResponse = EMVUtil.sendCmd(terminal, command);
-
-        SW1 = (byte) getDataLastOnlineATCRegisterResponse.getSW1();
-        SW2 = (byte) getDataLastOnlineATCRegisterResponse.getSW2();
-
-        if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-            BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(getDataLastOnlineATCRegisterResponse.getData()));
-            app.setLastOnlineATC(Util.byteToInt(tlv.getValueBytes()[0],
-                    tlv.getValueBytes()[1]));
-        }
+        ATC_PLAN.execute(terminal, app, getAbsentTags(app));
     }
 
     /**
@@ -1178,8 +1252,8 @@ public class EMVSession {
                     EMVTerminal.getTerminalVerificationResults().setPinTryLimitExceeded(true);
                     app.setPINTryCounter(0);
                     return false;
-                } else if (verifyResponse.getSW1() == (byte) 0x63 && (verifyResponse.getSW2() & (byte)0xF0) == (byte) 0xC0) {
-                    int numRetriesLeft = (verifyResponse.getSW2() & 0x0F);
+                } else if (SWDescriptor.get(verifyResponse.getSW()).getCategory() == SWDescriptor.Category.RETRY_COUNTER) {
+                    int numRetriesLeft = SWDescriptor.get(verifyResponse.getSW()).getRetryCount();
                     Log.info("Wrong PIN. Retries left: "+numRetriesLeft);
                     app.setPINTryCounter(numRetriesLeft);
                 } else {
@@ -1200,23 +1274,7 @@ public class EMVSession {
 
         verifyAppInitialized(app);
 
-        byte[] command;
-        int SW1;
-        int SW2;
-
-        Log.commandHeader("Send GET DATA command to find the PIN Try Counter");
-        command = EMVAPDUCommands.getPINTryConter();
-        CardResponse getDataPINTryCounterResponse = EMVUtil.sendCmd(terminal, command);
-
-        SW1 = (byte) getDataPINTryCounterResponse.getSW1();
-        SW2 = (byte) getDataPINTryCounterResponse.getSW2();
-
-        if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-            BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(getDataPINTryCounterResponse.getData()));
-            app.setPINTryCounter(tlv.getValueBytes()[0]);
-        } else {
-            app.setPINTryCounter(-2);
-        }
+        PIN_TRY_COUNTER_PLAN.execute(terminal, app, getAbsentTags(app));
     }
     
     private void verifyAppInitialized(EMVApplication app) {
@@ -1366,13 +1424,13 @@ public class EMVSession {
         Log.commandHeader("Send GENERATE APPLICATION CRYPTOGRAM command");
 
         ByteArrayOutputStream buf = new ByteArrayOutputStream();
-        byte[] authorizedAmount = Util.fromHexString("00 00 00 00 00 01");
+        byte[] authorizedAmount = EMVTerminal.getTerminalResidentData(new TagAndLength(EMVTags.AMOUNT_AUTHORISED_NUMERIC, 6), app);
         byte[] secondaryAmount = Util.fromHexString("00 00 00 00 00 00");
         byte[] tvr = Util.fromHexString("00 00 00 00 00");
         byte[] transactionCurrencyCode = Util.fromHexString("09 78");
         byte[] transactionDate = Util.fromHexString("09 07 30");
         byte[] transactionType = Util.fromHexString("21");
-        byte[] terminalUnpredictableNumber = Util.generateRandomBytes(4);
+        byte[] terminalUnpredictableNumber = UnpredictableNumberGenerator.nextUnpredictableNumber();
         //iccDynamicNumber
         byte[] dataAuthCode = app.getSignedStaticApplicationData().getDataAuthenticationCode();
 
@@ -1386,23 +1444,47 @@ public class EMVSession {
         buf.write(iccDynamicNumber, 0, iccDynamicNumber.length);
         buf.write(dataAuthCode, 0, dataAuthCode.length);
 
-        //0x40 = TC
-        //0x80 = ARQC
-        command = EMVAPDUCommands.generateAC((byte) 0x40, buf.toByteArray());
+        //The cryptogram type (AAC, TC or ARQC) and the CDA request are decided by Terminal Action Analysis
+        if (terminalActionAnalysisResult == -1) {
+            performTerminalActionAnalysis(app);
+        }
+        command = EMVAPDUCommands.generateAC((byte) terminalActionAnalysisResult, buf.toByteArray());
         CardResponse generateACResponse = EMVUtil.sendCmd(terminal, command);
         //'9000' indicates a successful execution of the command.
 
         if (generateACResponse.getSW() != SW.SUCCESS.getSW()) {
             throw new SmartCardException("Unexpected response: " + Util.short2Hex(generateACResponse.getSW()));
         } else {
-            //TODO
-            Log.info("TODO GenerateAC success");
-
             //80 response message template 1 contatenated values
             //77 BER-TLV encoded
+            CryptogramInformationData cid = CryptogramInformationData.fromGenerateACResponse(generateACResponse.getData());
+            if (cid != null && cid.isTransactionCertificate()) {
+                //Approved offline. Log it for split sales detection (floor limit checking)
+                recordApprovedTransaction(app, Util.binaryCodedDecimalToLong(authorizedAmount));
+            }
         }
     }
 
+    private void recordApprovedTransaction(EMVApplication app, long amount) throws TerminalException {
+        TerminalTransactionStore transactionStore = EMVTerminal.getTransactionStore();
+        PAN pan = getPAN(app);
+        if (transactionStore == null || pan == null) {
+            return;
+        }
+        try {
+            transactionStore.record(pan, app.getPANSequenceNumber(), amount, new Date());
+        } catch (IOException ex) {
+            throw new TerminalException(ex);
+        }
+    }
+
+    private static PAN getPAN(EMVApplication app) {
+        if (app.getPAN() == null && app.getTrack2EquivalentData() != null) {
+            return app.getTrack2EquivalentData().getPAN();
+        }
+        return app.getPAN();
+    }
+
     /**
      * This is an optional command that can be issued (when?)
      * 
@@ -1420,42 +1502,20 @@ public class EMVSession {
         
         app.setTransactionLogProcessed();
         
-        byte[] command;
-        int SW1;
-        int SW2;
-        
         //If the Log Entry data element is present in the FCI Issuer Discretionary Data,
         //then get the Log Format (and proceed to read the log records...)
-        Log.commandHeader("Send GET DATA command to find the Log Format");
-        command = EMVAPDUCommands.getLogFormat();
-        CardResponse getDataLogFormatResponse = EMVUtil.sendCmd(terminal, command);
-
-        SW1 = (byte) getDataLogFormatResponse.getSW1();
-        SW2 = (byte) getDataLogFormatResponse.getSW2();
-
-        if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-            BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(getDataLogFormatResponse.getData()));
-            app.setLogFormat(new LogFormat(tlv.getValueBytes()));
+        LOG_FORMAT_PLAN.execute(terminal, app, getAbsentTags(app));
 
+        if (app.getLogFormat() != null) {
             //Log Entry data element should be located in the FCI Issuer Discretionary Data
             //If it is not, then the app does not support transaction logging.
             //But we try to read the Log Entry with GET DATA if not present in FCI
+            if (app.getLogEntry() == null) {
+                LOG_ENTRY_PLAN.execute(terminal, app, getAbsentTags(app));
+            }
             if (app.getLogEntry() != null) {
                 readTransactionLog(app);
-            } else {
-				Log.commandHeader("Send GET DATA command to find the Log Entry SFI");
-				command = EMVAPDUCommands.getData((byte)0x9f, (byte)0x4d);
-				CardResponse getDataLogEntryResponse = EMVUtil.sendCmd(terminal, command);
-
-				SW1 = (byte) getDataLogEntryResponse.getSW1();
-				SW2 = (byte) getDataLogEntryResponse.getSW2();
-
-        		if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-					app.setLogEntry(new LogEntry(getDataLogEntryResponse.getData()[0], getDataLogEntryResponse.getData()[1]));
-					readTransactionLog(app);
-				}
-			}
-
+            }
         }
     }
     
@@ -1518,7 +1578,7 @@ public class EMVSession {
 
                 command = EMVAPDUCommands.readRecord(recordNum, sfi);
 
-                CardResponse readRecordsResponse = EMVUtil.sendCmd(terminal, command);
+                TLVResponse readRecordsResponse = EMVUtil.sendCmd(terminal, command);
 
                 SW1 = (byte) readRecordsResponse.getSW1();
                 SW2 = (byte) readRecordsResponse.getSW2();
@@ -1527,7 +1587,7 @@ public class EMVSession {
 //                if (SW1 != (byte) 0x6a && (SW2 != (byte) 0x83 || SW2 != (byte) 0x82)) { //This is used to see if we can get any other responses
                     System.out.println("***** BRUTE FORCE FOUND SOMETHING ***** SFI=" + Util.byte2Hex((byte) sfi) + " File=" + recordNum + " SW=" + Util.short2Hex(readRecordsResponse.getSW()));
                     System.out.println(Util.prettyPrintHex(readRecordsResponse.getData()));
-                    EMVUtil.parseAppRecord(readRecordsResponse.getData(), app);
+                    EMVUtil.parseAppRecord(readRecordsResponse, app);
                     numRecordsFound++;
                 }
             }
@@ -15,7 +15,6 @@
  */
 package sasc.emv;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Arrays;
@@ -33,6 +32,7 @@ import sasc.iso7816.TagImpl;
 import sasc.iso7816.TagValueType;
 import sasc.util.ISO4217_Numeric;
 import sasc.util.Log;
+import sasc.util.UnpredictableNumberGenerator;
 import sasc.util.Util;
 
 /**
@@ -48,11 +48,14 @@ public class EMVTerminal {
     private final static Properties runtimeTerminalProperties = new Properties();
     private final static TerminalVerificationResults terminalVerificationResults = new TerminalVerificationResults();
     private final static CVMResults cvmResults = new CVMResults();
+    private final static TerminalProfile terminalProfile;
     
     private static CallbackHandler pinCallbackHandler;
     
     private static boolean doVerifyPinIfRequired = false;
     private static boolean isOnline = true;
+    private static TerminalExceptionFile exceptionFile = null;
+    private static TerminalTransactionStore transactionStore = null;
     
     static {
         
@@ -83,6 +86,7 @@ public class EMVTerminal {
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
+        terminalProfile = TerminalProfile.fromProperties(defaultTerminalProperties, runtimeTerminalProperties);
 
     }
 
@@ -104,57 +108,14 @@ public class EMVTerminal {
 //         9c 01 -- Transaction Type
 //         9f 37 04 -- Unpredictable Number
     public static byte[] getTerminalResidentData(TagAndLength tal, EMVApplication app) {
-        //Check if the value is specified in the runtime properties file
-        String propertyValueStr = runtimeTerminalProperties.getProperty(Util.byteArrayToHexString(tal.getTag().getTagBytes()).toLowerCase());
-
-        if(propertyValueStr != null) {
-            byte[] propertyValue = Util.fromHexString(propertyValueStr);
-
-            if (propertyValue.length == tal.getLength()) {
-                return propertyValue;
-            }
-        }
-        
-        if (tal.getTag().equals(EMVTags.TERMINAL_COUNTRY_CODE) && tal.getLength() == 2) {
-            return findCountryCode(app);
-        } else if (tal.getTag().equals(EMVTags.TRANSACTION_CURRENCY_CODE) && tal.getLength() == 2) {
-            return findCurrencyCode(app);
-        }
-        
-        //Now check for default values
-        propertyValueStr = defaultTerminalProperties.getProperty(Util.byteArrayToHexString(tal.getTag().getTagBytes()).toLowerCase());
-
-        if(propertyValueStr != null) {
-            byte[] propertyValue = Util.fromHexString(propertyValueStr);
-
-            if (propertyValue.length == tal.getLength()) {
-                return propertyValue;
-            }
-        }
-
-        if (tal.getTag().equals(EMVTags.UNPREDICTABLE_NUMBER)) {
-            return Util.generateRandomBytes(tal.getLength());
-        } else if (tal.getTag().equals(EMVTags.TERMINAL_TRANSACTION_QUALIFIERS) && tal.getLength() == 4) {
-            //This seems only to be used in contactless mode. Construct accordingly
-            TerminalTransactionQualifiers ttq = new TerminalTransactionQualifiers();
-            ttq.setContactlessEMVmodeSupported(true);
-            ttq.setReaderIsOfflineOnly(true);
-            return ttq.getBytes();
-        } else if (tal.getTag().equals(EMVTags.TERMINAL_VERIFICATION_RESULTS) && tal.getLength() == 5) {
-            //All bits set to '0'
-            return terminalVerificationResults.toByteArray();
-        } else if (tal.getTag().equals(EMVTags.TRANSACTION_DATE) && tal.getLength() == 3) {
-            return Util.getCurrentDateAsNumericEncodedByteArray();
-        } else if (tal.getTag().equals(EMVTags.TRANSACTION_TYPE) && tal.getLength() == 1) {
-            //transactionTypes = {     0:  "Payment",     1:  "Withdrawal", } 
-            //http://www.codeproject.com/Articles/100084/Introduction-to-ISO-8583
-            return new byte[]{0x00};
-        } else {
-            Log.debug("Terminal Resident Data not found for " + tal);
-        }
-        byte[] defaultResponse = new byte[tal.getLength()];
-        Arrays.fill(defaultResponse, (byte) 0x00);
-        return defaultResponse;
+        return DOLPlan.forDOL(tal.getBytes(), terminalProfile).build(app);
+    }
+    
+    /**
+     * The terminal resident data, pre-decoded from the terminal properties
+     */
+    public static TerminalProfile getTerminalProfile() {
+        return terminalProfile;
     }
 
     public static TerminalVerificationResults getTerminalVerificationResults() {
@@ -181,6 +142,7 @@ public class EMVTerminal {
     
     public static void setProperty(Tag tag, byte[] value){
         runtimeTerminalProperties.setProperty(Util.byteArrayToHexString(tag.getTagBytes()).toLowerCase(Locale.US), Util.byteArrayToHexString(value));
+        terminalProfile.setRuntimeValue(tag, value);
     }
     
     public static boolean isCDASupported(EMVApplication app) {
@@ -216,6 +178,14 @@ public class EMVTerminal {
     	return (t[2] & 0x80) == 0x80;
     }
     
+    /**
+     * Terminal Type (9F35) digit 2: 1, 2, 4 and 5 are online capable, 3 and 6 are offline only
+     */
+    public static boolean hasOnlineCapability() {
+        int environment = getTerminalType() % 10;
+        return environment != 3 && environment != 6;
+    }
+
     public static boolean isATM() {
         return false;
     }
@@ -372,6 +342,48 @@ public class EMVTerminal {
         isOnline = value;
     }
     
+    /**
+     * The exception file (hot list) checked during terminal risk management.
+     * null if the terminal does not have an exception file
+     */
+    public static TerminalExceptionFile getExceptionFile() {
+        return exceptionFile;
+    }
+    
+    public static void setExceptionFile(TerminalExceptionFile file) {
+        exceptionFile = file;
+    }
+    
+    /**
+     * The log of approved transactions used for split sales detection 
+     * during floor limit checking. null if the terminal does not keep a log
+     */
+    public static TerminalTransactionStore getTransactionStore() {
+        return transactionStore;
+    }
+    
+    public static void setTransactionStore(TerminalTransactionStore store) {
+        transactionStore = store;
+    }
+    
+    private static final int TERMINAL_FLOOR_LIMIT_TAG = TerminalProfile.packTag(EMVTags.TERMINAL_FLOOR_LIMIT.getTagBytes());
+
+    /**
+     * Terminal Floor Limit (tag '9F1B', binary)
+     * 
+     * @return the floor limit, or -1 if no floor limit is configured
+     */
+    public static long getTerminalFloorLimit() {
+        byte[] floorLimit = terminalProfile.getRuntimeValue(TERMINAL_FLOOR_LIMIT_TAG);
+        if(floorLimit == null) {
+            floorLimit = terminalProfile.getDefaultValue(TERMINAL_FLOOR_LIMIT_TAG);
+        }
+        if(floorLimit == null) {
+            return -1;
+        }
+        return Util.byteArrayToLong(floorLimit, 0, floorLimit.length);
+    }
+    
     public static boolean isCVMConditionSatisfied(CVRule rule) {
         if(rule.getConditionAlways()) {
             return true;
@@ -495,19 +507,14 @@ public class EMVTerminal {
     }
 
     public static byte[] constructDOLResponse(DOL dol, EMVApplication app) {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        for (TagAndLength tagAndLength : dol.getTagAndLengthList()) {
-            byte[] data = getTerminalResidentData(tagAndLength, app);
-            stream.write(data, 0, data.length);
-        }
-        return stream.toByteArray();
+        return dol.getPlan(terminalProfile).build(app);
     }
 
     //The ICC may contain the DDOL, but there shall be a default DDOL in the terminal, 
     //specified by the payment system, for use in case the DDOL is not present in the ICC.
     public static byte[] getDefaultDDOLResponse(EMVApplication app) {
         //It is mandatory that the DDOL contains the Unpredictable Number generated by the terminal (tag '9F37', 4 bytes binary).
-        byte[] unpredictableNumber = Util.generateRandomBytes(4);
+        byte[] unpredictableNumber = UnpredictableNumberGenerator.nextUnpredictableNumber();
         
         //TODO add other DDOL data specified by the payment system
         //if(app.getAID().equals(SOMEAID))
@@ -27,10 +27,13 @@ import sasc.iso7816.AID;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import sasc.emv.system.visa.VISATags;
+import sasc.iso7816.APDUCommandBuilder;
 import sasc.iso7816.ATR;
 import sasc.iso7816.TLVException;
+import sasc.iso7816.TLVResponse;
 import sasc.iso7816.TLVUtil;
 import sasc.terminal.CardResponse;
 import sasc.terminal.TerminalException;
@@ -53,27 +56,53 @@ public class EMVUtil {
      * @throws TerminalException
      */
     //TODO remove this and replace with CLS/INS bit indication (response formatted in a TLV structure)
-    public static CardResponse sendCmdNoParse(CardConnection terminal, byte[] cmd) throws TerminalException {
+    public static TLVResponse sendCmdNoParse(CardConnection terminal, byte[] cmd) throws TerminalException {
         return sendCmdInternal(terminal, cmd, false);
     }
 
-    public static CardResponse sendCmd(CardConnection terminal, byte[] cmd) throws TerminalException {
+    public static TLVResponse sendCmd(CardConnection terminal, byte[] cmd) throws TerminalException {
         return sendCmdInternal(terminal, cmd, true);
     }
-    public static CardResponse sendCmdNoParse(CardConnection terminal, String cmd) throws TerminalException {
+    public static TLVResponse sendCmdNoParse(CardConnection terminal, String cmd) throws TerminalException {
         return sendCmdInternal(terminal, Util.fromHexString(cmd), false);
     }
 
-    public static CardResponse sendCmd(CardConnection terminal, String cmd) throws TerminalException {
+    public static TLVResponse sendCmd(CardConnection terminal, String cmd) throws TerminalException {
         return sendCmdInternal(terminal, Util.fromHexString(cmd), true);
     }
 
-    //TODO move this to generic ISO7816 routine?
-    private static CardResponse sendCmdInternal(CardConnection terminal, byte[] cmd, boolean doParseTLVData) throws TerminalException {
+    /**
+     * Sends the command in buffer[offset..offset+length-1]. The buffer can be reused when the method returns.
+     * If the command has no Le field, it is copied and Le is added
+     */
+    public static TLVResponse sendCmd(CardConnection terminal, byte[] buffer, int offset, int length) throws TerminalException {
+        return sendCmdInternal(terminal, buffer, offset, length, true);
+    }
+
+    public static TLVResponse sendCmdNoParse(CardConnection terminal, byte[] buffer, int offset, int length) throws TerminalException {
+        return sendCmdInternal(terminal, buffer, offset, length, false);
+    }
+
+    private static TLVResponse sendCmdInternal(CardConnection terminal, byte[] cmd, boolean doParseTLVData) throws TerminalException {
         byte[] cmdBytes = checkAndAddLeIfMissing(cmd);
-        Log.command(Util.prettyPrintHex(cmdBytes));
+        return sendCmdInternal(terminal, cmdBytes, 0, cmdBytes.length, doParseTLVData);
+    }
+
+    //TODO move this to generic ISO7816 routine?
+    private static TLVResponse sendCmdInternal(CardConnection terminal, byte[] buffer, int offset, int length, boolean doParseTLVData) throws TerminalException {
+        boolean wellFormed = isWellFormed(buffer, offset, length);
+        if (!wellFormed || APDUCommandBuilder.getNe(buffer, offset, length) == 0) {
+            //No Le (or not a recognised ISO 7816-4 case). Copy and add Le
+            buffer = checkAndAddLeIfMissing(Arrays.copyOfRange(buffer, offset, offset + length));
+            offset = 0;
+            length = buffer.length;
+        }
+        if (Log.isEnabled(Log.Level.COMMAND)) {
+            Log.command(Util.prettyPrintHex(buffer, offset, length));
+        }
         long startTime = System.nanoTime();
-        CardResponse response = terminal.transmit(cmdBytes);
+        CardResponse response = terminal.transmit(buffer, offset, length);
+        byte[] cmdBytes;
 
         //handle procedure bytes here, and not in the lower level TerminalProvider Implementations.
         //That way we can process procedure bytes from any Provider (if they are not handled at that level)
@@ -83,9 +112,15 @@ public class EMVUtil {
         byte[] data = response.getData(); //Copy
         Log.debug("Received data+SW1+SW2: " + Util.byteArrayToHexString(data) + " " + Util.byte2Hex(sw1) + " " + Util.byte2Hex((byte) sw2));
         Log.debug("data.length: 0x"+Util.int2Hex(data.length) + " ("+data.length+")");
-        if (sw1 == (byte) 0x6c) { //"Wrong length" (resend last command with correct length)
+        if (SWDescriptor.get(sw1, sw2).getCategory() == SWDescriptor.Category.EXACT_LENGTH) { //"Wrong length" (resend last command with correct length)
             //Re-issue command with correct length
-            cmdBytes[4] = sw2;
+            cmdBytes = Arrays.copyOfRange(buffer, offset, offset + length);
+            if (wellFormed) {
+                cmdBytes = APDUCommandBuilder.withNe(cmdBytes, sw2 == 0x00 ? APDUCommandBuilder.MAX_SHORT_NE : Util.byteToInt(sw2));
+            } else {
+                //Proprietary command. The last byte is taken to be a short Le
+                cmdBytes[cmdBytes.length - 1] = sw2;
+            }
             Log.procedureByte("Received procedure byte SW1=0x6c. Re-issuing command with correct length (" + Util.byte2Hex(sw2)+"): "+ Util.byteArrayToHexString(cmdBytes));
             response = terminal.transmit(cmdBytes);
             sw1 = (byte) response.getSW1();
@@ -95,38 +130,51 @@ public class EMVUtil {
         }
 
         //Note some non-EMV cards (and terminal software) seem to re-issue the last command with length=SW2 when getting SW1=61
-        while (sw1 == (byte) 0x61) { //Procedure byte: send GET RESPONSE to receive more data
+        ByteArrayOutputStream chainedData = null;
+        while (SWDescriptor.get(sw1, sw2).getCategory() == SWDescriptor.Category.RESPONSE_BYTES_AVAILABLE) { //Procedure byte: send GET RESPONSE to receive more data
+            if (chainedData == null) {
+                //Grows by doubling, so the chain is not copied on every GET RESPONSE
+                chainedData = new ByteArrayOutputStream(Math.max(data.length, 256) * 2);
+                chainedData.write(data, 0, data.length);
+            }
             boolean emvMode = true;
             if(emvMode){
                 //this command is EMV specific, since EMV locks CLA to 0x00 only (Book 1, 9.3.1.3). ISO7816-4 specifies CLS in GET RESPONSE in "section 5.4.1 Class byte" to be 0x0X
                 cmdBytes = new byte[]{(byte) 0x00, (byte) 0xC0, (byte) 0x00, (byte) 0x00, (byte) sw2};
             }else{
-                cmdBytes = new byte[]{cmdBytes[0], (byte) 0xC0, (byte) 0x00, (byte) 0x00, (byte) sw2};
+                cmdBytes = new byte[]{buffer[offset], (byte) 0xC0, (byte) 0x00, (byte) 0x00, (byte) sw2};
             }
             Log.procedureByte("Received procedure byte SW1=0x61. Sending GET RESPONSE command: " + Util.byteArrayToHexString(cmdBytes));
             response = terminal.transmit(cmdBytes);
             byte[] newData = response.getData();
-            byte[] tmpData = new byte[data.length + newData.length];
-            System.arraycopy(data, 0, tmpData, 0, data.length);
-            System.arraycopy(newData, 0, tmpData, data.length, newData.length);
+            chainedData.write(newData, 0, newData.length);
             sw1 = (byte) response.getSW1();
             sw2 = (byte) response.getSW2();
             Log.procedureByte("Received newData+SW1+SW2: " + Util.byteArrayToHexString(newData) + " " + Util.byte2Hex(sw1) + " " + Util.byte2Hex(sw2));
-            data = tmpData;
         }
-
+        if (chainedData != null) {
+            data = chainedData.toByteArray();
+        }
 
         long endTime = System.nanoTime();
-        printResponse(response, doParseTLVData);
+        //The TLV data is decoded once, and shared by printResponse and the parse methods
+        TLVResponse tlvResponse = new TLVResponse(data, sw1, sw2);
+        printResponse(tlvResponse, doParseTLVData);
         Log.debug("Time: " + Util.getFormattedNanoTime(endTime - startTime));
-        return response;
+        return tlvResponse;
     }
 
     public static void printResponse(CardResponse response, boolean doParseTLVData) {
-        printResponse(response.getData(), response.getSW1(), response.getSW2(), response.getSW(), doParseTLVData);
+        printResponse(response instanceof TLVResponse ? (TLVResponse) response : new TLVResponse(response), doParseTLVData);
     }
 
-    //TODO support extended length
+    /**
+     * Adds Le ('00') if the command has no Le field.
+     *
+     * Commands that are not one of the ISO 7816-4 cases (eg proprietary commands
+     * with Lc='00') are not rejected. Byte 5 is then taken to be a short Lc, and the command
+     * is assumed to have Le if it is one byte longer than Lc indicates
+     */
     public static byte[] checkAndAddLeIfMissing(byte[] cmd) {
         if(cmd == null) {
             throw new IllegalArgumentException("Cmd cannot be null");
@@ -141,6 +189,14 @@ public class EMVUtil {
             cmdWithLe[4] = 0x00;
             return cmdWithLe;
         }
+        if(cmd.length > 5 && cmd[4] == 0x00 && isWellFormed(cmd, 0, cmd.length)) {
+            //Extended length (B1 is never 00 in a short case 3 or 4 APDU)
+            if(APDUCommandBuilder.getNe(cmd) == 0) {
+                //Add Le
+                return APDUCommandBuilder.withNe(cmd, APDUCommandBuilder.MAX_EXTENDED_NE);
+            }
+            return cmd;
+        }
         if(cmd.length > 5){
             int lc = Util.byteToInt(cmd[4]);
             if(lc < cmd.length-6 //Lc is less than payload(with Le) length
@@ -161,6 +217,15 @@ public class EMVUtil {
         return cmd;
     }
 
+    private static boolean isWellFormed(byte[] buffer, int offset, int length) {
+        try {
+            APDUCommandBuilder.getNe(buffer, offset, length);
+            return true;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
     public static void printResponse(byte[] dataAndSw, boolean doParseTLVData){
         byte[] tmp = new byte[dataAndSw.length-2];
         System.arraycopy(dataAndSw, 0, tmp, 0, tmp.length);
@@ -171,10 +236,21 @@ public class EMVUtil {
     }
 
     public static void printResponse(byte[] data, byte sw1, byte sw2, short sw, boolean doParseTLVData) {
+        printResponse(new TLVResponse(data, sw1, sw2), doParseTLVData);
+    }
+
+    public static void printResponse(TLVResponse response, boolean doParseTLVData) {
+        if (!Log.isEnabled(Log.Level.INFO)) {
+            return;
+        }
+        byte[] data = response.getData();
+        byte sw1 = response.getSW1();
+        byte sw2 = response.getSW2();
+        short sw = response.getSW();
         Log.info("response hex    :\n" + Util.prettyPrintHex(data));
 
         String swDescription = "";
-        String tmp = SW.getSWDescription(sw);
+        String tmp = SWDescriptor.get(sw).getDescription();
         if (tmp != null && tmp.trim().length() > 0) {
             swDescription = " (" + tmp + ")";
         }
@@ -182,7 +258,7 @@ public class EMVUtil {
         Log.info("response ascii  : " + Util.getSafePrintChars(data));
         if (doParseTLVData) {
             try{
-                Log.info("response parsed :\n" + TLVUtil.prettyPrintAPDUResponse(data));
+                Log.info("response parsed :\n" + TLVUtil.prettyPrintAPDUResponse(response.getTLVList(), 0));
             }catch(TLVException ex){
                 Log.debug(ex.getMessage()); //Util.getStackTrace(ex)
             }
@@ -201,24 +277,23 @@ public class EMVUtil {
     //Visa AID kernel 3
     //Other 0
     public static DDF parseFCIDDF(byte[] data, SmartCard card) {
+        return parseFCIDDF(new TLVResponse(data), card);
+    }
+
+    public static DDF parseFCIDDF(TLVResponse response, SmartCard card) {
 
         DDF ddf = new DDF();
 
-        BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(data));
+        BERTLV tlv = response.getFirstTLV();
 
         if (tlv.getTag().equals(EMVTags.FCI_TEMPLATE)) {
-            ByteArrayInputStream templateStream = tlv.getValueStream();
-
-            while (templateStream.available() >= 2) {
-                tlv = TLVUtil.getNextTLV(templateStream);
+            for (BERTLV templateTLV : getChildren(tlv)) {
+                tlv = templateTLV;
                 if (tlv.getTag().equals(EMVTags.DEDICATED_FILE_NAME)) {
                     ddf.setName(tlv.getValueBytes());
                 } else if (tlv.getTag().equals(EMVTags.FCI_PROPRIETARY_TEMPLATE)) {
-                    ByteArrayInputStream bis2 = new ByteArrayInputStream(tlv.getValueBytes());
-                    int totalLen = bis2.available();
-                    int templateLen = tlv.getLength();
-                    while (bis2.available() > (totalLen - templateLen)) {
-                        tlv = TLVUtil.getNextTLV(bis2);
+                    for (BERTLV proprietaryTLV : getChildren(tlv)) {
+                        tlv = proprietaryTLV;
 
                         if (tlv.getTag().equals(EMVTags.SFI)) {
                             ShortFileIdentifier sfi = new ShortFileIdentifier(Util.byteArrayToInt(tlv.getValueBytes()));
@@ -234,19 +309,13 @@ public class EMVUtil {
 						    String label = Util.getSafePrintChars(tlv.getValueBytes());
                             //ddf.setApplicationLabel(label);
                         } else if (tlv.getTag().equals(EMVTags.FCI_ISSUER_DISCRETIONARY_DATA)) { //PPSE
-                            ByteArrayInputStream discrStream = new ByteArrayInputStream(tlv.getValueBytes());
-                            int total3Len = discrStream.available();
-                            int template3Len = tlv.getLength();
-                            while (discrStream.available() > (total3Len - template3Len)) {
-                                tlv = TLVUtil.getNextTLV(discrStream);
+                            for (BERTLV discretionaryTLV : getChildren(tlv)) {
+                                tlv = discretionaryTLV;
 
                                 if (tlv.getTag().equals(EMVTags.APPLICATION_TEMPLATE)) {
-                                    ByteArrayInputStream appTemplateStream = new ByteArrayInputStream(tlv.getValueBytes());
-                                    int appTemplateTotalLen = appTemplateStream.available();
-                                    int template4Len = tlv.getLength();
                                     EMVApplication app = new EMVApplication();
-                                    while (appTemplateStream.available() > (appTemplateTotalLen - template4Len)) {
-                                        tlv = TLVUtil.getNextTLV(appTemplateStream);
+                                    for (BERTLV appTemplateTLV : getChildren(tlv)) {
+                                        tlv = appTemplateTLV;
 
                                         if (tlv.getTag().equals(EMVTags.AID_CARD)) {
                                             app.setAID(new AID(tlv.getValueBytes()));
@@ -291,22 +360,18 @@ public class EMVUtil {
     }
 
     public static void parsePSERecord(byte[] data, SmartCard card) {
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
+        parsePSERecord(new TLVResponse(data), card);
+    }
 
-        while (bis.available() >= 2) {
-            BERTLV tlv = TLVUtil.getNextTLV(bis);
+    public static void parsePSERecord(TLVResponse response, SmartCard card) {
+        for (BERTLV tlv : getTLVList(response)) {
             if (tlv.getTag().equals(EMVTags.RECORD_TEMPLATE)) {
-                ByteArrayInputStream valueBytesBis = new ByteArrayInputStream(tlv.getValueBytes());
-                while (valueBytesBis.available() >= 2) {
-                    tlv = TLVUtil.getNextTLV(valueBytesBis);
+                for (BERTLV recordTLV : getChildren(tlv)) {
+                    tlv = recordTLV;
                     if (tlv.getTag().equals(EMVTags.APPLICATION_TEMPLATE)) { //Application Template
-                        ByteArrayInputStream bis2 = new ByteArrayInputStream(tlv.getValueBytes());
-                        int totalLen = bis2.available();
-                        int templateLen = tlv.getLength();
                         EMVApplication app = new EMVApplication();
-                        while (bis2.available() > (totalLen - templateLen)) {
-
-                            tlv = TLVUtil.getNextTLV(bis2);
+                        for (BERTLV appTemplateTLV : getChildren(tlv)) {
+                            tlv = appTemplateTLV;
 
                             if (tlv.getTag().equals(EMVTags.AID_CARD)) {
                                 app.setAID(new AID(tlv.getValueBytes()));
@@ -351,27 +416,31 @@ public class EMVUtil {
 
     public static void parseFCIADF(byte[] data, EMVApplication app) {
 
-        if(data == null || data.length < 2){
+        if(data == null){
             return;
         }
 
-        BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(data));
+        parseFCIADF(new TLVResponse(data), app);
+    }
 
-        if (tlv.getTag().equals(EMVTags.FCI_TEMPLATE)) {
-            ByteArrayInputStream templateStream = tlv.getValueStream();
-            while (templateStream.available() >= 2) {
+    public static void parseFCIADF(TLVResponse response, EMVApplication app) {
+        byte[] data = response.getData();
 
+        if(data.length < 2){
+            return;
+        }
 
-                tlv = TLVUtil.getNextTLV(templateStream);
+        BERTLV tlv = response.getFirstTLV();
+
+        if (tlv.getTag().equals(EMVTags.FCI_TEMPLATE)) {
+            for (BERTLV templateTLV : getChildren(tlv)) {
+                tlv = templateTLV;
                 if (tlv.getTag().equals(EMVTags.DEDICATED_FILE_NAME)) {
                     app.setAID(new AID(tlv.getValueBytes()));
                     Log.debug("ADDED AID to app. AID after set: "+Util.prettyPrintHexNoWrap(app.getAID().getAIDBytes()) + " - AID in FCI: " + Util.prettyPrintHexNoWrap(tlv.getValueBytes()));
                 } else if (tlv.getTag().equals(EMVTags.FCI_PROPRIETARY_TEMPLATE)) { //Proprietary Information Template
-                    ByteArrayInputStream bis2 = tlv.getValueStream();
-                    int totalLen = bis2.available();
-                    int templateLen = tlv.getLength();
-                    while (bis2.available() > (totalLen - templateLen)) {
-                        tlv = TLVUtil.getNextTLV(bis2);
+                    for (BERTLV proprietaryTLV : getChildren(tlv)) {
+                        tlv = proprietaryTLV;
 
                         if (tlv.getTag().equals(EMVTags.APPLICATION_LABEL)) {
                             app.setLabel(Util.getSafePrintChars(tlv.getValueBytes()));
@@ -391,11 +460,8 @@ public class EMVUtil {
                             ApplicationPriorityIndicator api = new ApplicationPriorityIndicator(tlv.getValueBytes()[0]);
                             app.setApplicationPriorityIndicator(api);
                         } else if (tlv.getTag().equals(EMVTags.FCI_ISSUER_DISCRETIONARY_DATA)) { // File Control Information (FCI) Issuer Discretionary Data
-                            ByteArrayInputStream bis3 = tlv.getValueStream();
-                            int totalLenFCIDiscretionary = bis3.available();
-                            int tlvLen = tlv.getLength();
-                            while (bis3.available() > (totalLenFCIDiscretionary - tlvLen)) {
-                                tlv = TLVUtil.getNextTLV(bis3);
+                            for (BERTLV discretionaryTLV : getChildren(tlv)) {
+                                tlv = discretionaryTLV;
                                 if (tlv.getTag().equals(EMVTags.LOG_ENTRY)) {
                                     app.setLogEntry(new LogEntry(tlv.getValueBytes()[0], tlv.getValueBytes()[1]));
 							    } else if (tlv.getTag().equals(VISATags.VISA_LOG_ENTRY)) { //TODO add this to VISAApp
@@ -435,12 +501,16 @@ public class EMVUtil {
     }
 
     public static void parseProcessingOpts(byte[] data, EMVApplication app) {
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
+        parseProcessingOpts(new TLVResponse(data), app);
+    }
 
-        if (bis.available() < 2) {
+    public static void parseProcessingOpts(TLVResponse response, EMVApplication app) {
+        byte[] data = response.getData();
+
+        if (data.length < 2) {
             throw new SmartCardException("Error parsing Processing Options. Invalid TLV Length. Data: " + Util.byteArrayToHexString(data));
         }
-        BERTLV tlv = TLVUtil.getNextTLV(bis);
+        BERTLV tlv = response.getFirstTLV();
 
         ByteArrayInputStream valueBytesBis = tlv.getValueStream();
 
@@ -464,8 +534,8 @@ public class EMVUtil {
             app.setApplicationFileLocator(afl);
         } else if (tlv.getTag().equals(EMVTags.RESPONSE_MESSAGE_TEMPLATE_2)) {
             //AIP (& AFL) WITH delimiters (that is, including, including tag and length) and possibly other BER TLV tags (that might be proprietary)
-            while (valueBytesBis.available() >= 2) {
-                tlv = TLVUtil.getNextTLV(valueBytesBis);
+            for (BERTLV templateTLV : getChildren(tlv)) {
+                tlv = templateTLV;
 
 //   Example:
 //                77 4e -- Response Message Template Format 2
@@ -505,21 +575,23 @@ public class EMVUtil {
     }
 
     public static void parseAppRecord(byte[] data, EMVApplication app) {
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
+        parseAppRecord(new TLVResponse(data), app);
+    }
 
-        if (bis.available() < 2) {
+    public static void parseAppRecord(TLVResponse response, EMVApplication app) {
+        byte[] data = response.getData();
+
+        if (data.length < 2) {
             throw new SmartCardException("Error parsing Application Record. Data: " + Util.byteArrayToHexString(data));
         }
-        BERTLV tlv = TLVUtil.getNextTLV(bis);
+        BERTLV tlv = response.getFirstTLV();
 
         if (!tlv.getTag().equals(EMVTags.RECORD_TEMPLATE)) {
             throw new SmartCardException("Error parsing Application Record: No Response Template found. Data=" + Util.byteArrayToHexString(tlv.getValueBytes()));
         }
 
-        bis = new ByteArrayInputStream(tlv.getValueBytes());
-
-        while (bis.available() >= 2) {
-            tlv = TLVUtil.getNextTLV(bis);
+        for (BERTLV recordTLV : getChildren(tlv)) {
+            tlv = recordTLV;
             if (tlv.getTag().equals(EMVTags.CARDHOLDER_NAME)) {
                 app.setCardholderName(Util.getSafePrintChars(tlv.getValueBytes()));
             } else if (tlv.getTag().equals(EMVTags.TRACK1_DISCRETIONARY_DATA)) {
@@ -581,40 +653,13 @@ public class EMVUtil {
                 StaticDataAuthenticationTagList staticDataAuthTagList = new StaticDataAuthenticationTagList(tlv.getValueBytes());
                 app.setStaticDataAuthenticationTagList(staticDataAuthTagList);
             } else if (tlv.getTag().equals(EMVTags.CA_PUBLIC_KEY_INDEX_CARD)) {
-                IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
-                if (issuerCert == null) {
-                    CA ca = CA.getCA(app.getAID());
-
-                    if (ca == null) {
-                        //ca == null is permitted (we might not have the CA public keys for every exotic CA)
-                        Log.info("No CA configured for AID: " + app.getAID().toString());
-//                        throw new SmartCardException("No CA configured for AID: "+app.getAID().toString());
-                    }
-                    issuerCert = new IssuerPublicKeyCertificate(ca);
-                    app.setIssuerPublicKeyCertificate(issuerCert);
-                }
-                issuerCert.setCAPublicKeyIndex(Util.byteArrayToInt(tlv.getValueBytes()));
+                getIssuerPublicKeyCertificate(app).setCAPublicKeyIndex(Util.byteArrayToInt(tlv.getValueBytes()));
             } else if (tlv.getTag().equals(EMVTags.ISSUER_PUBLIC_KEY_CERT)) {
-                IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
-                if (issuerCert == null) {
-                    issuerCert = new IssuerPublicKeyCertificate(CA.getCA(app.getAID()));
-                    app.setIssuerPublicKeyCertificate(issuerCert);
-                }
-                issuerCert.setSignedBytes(tlv.getValueBytes());
+                getIssuerPublicKeyCertificate(app).setSignedBytes(tlv.getValueBytes());
             } else if (tlv.getTag().equals(EMVTags.ISSUER_PUBLIC_KEY_EXP)) {
-                IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
-                if (issuerCert == null) {
-                    issuerCert = new IssuerPublicKeyCertificate(CA.getCA(app.getAID()));
-                    app.setIssuerPublicKeyCertificate(issuerCert);
-                }
-                issuerCert.getIssuerPublicKey().setExponent(tlv.getValueBytes());
+                getIssuerPublicKeyCertificate(app).getIssuerPublicKey().setExponent(tlv.getValueBytes());
             } else if (tlv.getTag().equals(EMVTags.ISSUER_PUBLIC_KEY_REMAINDER)) {
-                IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
-                if (issuerCert == null) {
-                    issuerCert = new IssuerPublicKeyCertificate(CA.getCA(app.getAID()));
-                    app.setIssuerPublicKeyCertificate(issuerCert);
-                }
-                issuerCert.getIssuerPublicKey().setRemainder(tlv.getValueBytes());
+                getIssuerPublicKeyCertificate(app).getIssuerPublicKey().setRemainder(tlv.getValueBytes());
             } else if (tlv.getTag().equals(EMVTags.SIGNED_STATIC_APP_DATA)) {
                 SignedStaticApplicationData ssad = app.getSignedStaticApplicationData();
                 if (ssad == null) {
@@ -680,6 +725,56 @@ public class EMVUtil {
         }
     }
 
+    /**
+     * @return the Issuer Public Key Certificate of the application (created when the first data object of it is found)
+     */
+    private static IssuerPublicKeyCertificate getIssuerPublicKeyCertificate(EMVApplication app) {
+        IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
+        if (issuerCert == null) {
+            byte[] rid = app.getAID().getRIDBytes();
+            if (CA.getCA(rid) == null) {
+                //Permitted (we might not have the CA public keys for every exotic CA)
+                Log.info("No CA configured for AID: " + app.getAID().toString());
+            }
+            issuerCert = new IssuerPublicKeyCertificate(rid);
+            app.setIssuerPublicKeyCertificate(issuerCert);
+        }
+        return issuerCert;
+    }
+
+    /**
+     * Returns the cached top level TLV objects of the response.
+     * If the response data has a trailing byte that is not BER-TLV, it is ignored
+     */
+    private static List<BERTLV> getTLVList(TLVResponse response) {
+        try {
+            return response.getTLVList();
+        } catch (TLVException ex) {
+            return parseIgnoringTrailingByte(response.getData());
+        }
+    }
+
+    /**
+     * Returns the cached children of a template.
+     * If the value has a trailing byte that is not BER-TLV, it is ignored
+     */
+    private static List<BERTLV> getChildren(BERTLV template) {
+        try {
+            return template.getChildren();
+        } catch (TLVException ex) {
+            return parseIgnoringTrailingByte(template.getValueBytes());
+        }
+    }
+
+    private static List<BERTLV> parseIgnoringTrailingByte(byte[] data) {
+        ByteArrayInputStream stream = new ByteArrayInputStream(data);
+        List<BERTLV> tlvList = new ArrayList<BERTLV>();
+        while (stream.available() >= 2) {
+            tlvList.add(TLVUtil.getNextTLV(stream));
+        }
+        return tlvList;
+    }
+
     public static void processInternalAuthResponse(byte[] data, byte[] authenticationRelatedData, EMVApplication app) {
         ByteArrayInputStream bis = new ByteArrayInputStream(data);
 
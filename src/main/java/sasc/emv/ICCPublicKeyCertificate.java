@@ -269,7 +269,7 @@ public class ICCPublicKeyCertificate {
 
 
 
-        IssuerPublicKeyCertificate issuerPKCert = new IssuerPublicKeyCertificate(CA.getCA(Util.fromHexString("A0 00 00 00 03")));
+        IssuerPublicKeyCertificate issuerPKCert = new IssuerPublicKeyCertificate(Util.fromHexString("A0 00 00 00 03"));
 
         issuerPKCert.setSignedBytes(Util.fromHexString(" SIGNED BYTES HERE "));
 
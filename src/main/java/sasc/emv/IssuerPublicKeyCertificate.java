@@ -35,7 +35,7 @@ public class IssuerPublicKeyCertificate {
     private int caPublicKeyIndex = -1;
     private boolean isValid = false;
     private byte[] signedBytes;
-    private CA ca;
+    private byte[] rid;
     private int issuerIdentifier = -1;
     private byte certFormat;
     private byte[] certExpirationDate = new byte[2];
@@ -45,12 +45,23 @@ public class IssuerPublicKeyCertificate {
     private byte[] hash = new byte[20];
     private boolean validationPerformed = false;
 
-    public IssuerPublicKeyCertificate(CA ca) {
-        //ca == null is permitted
-        this.ca = ca;
+    /**
+     * @param rid the RID of the application. The CA Public Key is looked up by RID and CA Public Key Index when validating
+     */
+    public IssuerPublicKeyCertificate(byte[] rid) {
+        this.rid = rid;
         issuerPublicKey = new IssuerPublicKey();
     }
 
+    /**
+     * @param ca the CA of the application (null is permitted: the certificate cannot be validated)
+     * @deprecated use IssuerPublicKeyCertificate(byte[] rid)
+     */
+    @Deprecated
+    public IssuerPublicKeyCertificate(CA ca) {
+        this(ca != null ? ca.getRID() : null);
+    }
+
     public void setCAPublicKeyIndex(int index) {
         this.caPublicKeyIndex = index;
     }
@@ -70,11 +81,7 @@ public class IssuerPublicKeyCertificate {
             return isValid();
         }
         validationPerformed = true;
-        if(this.ca == null){
-            isValid = false;
-            return isValid();
-        }
-        CAPublicKey caPublicKey = ca.getPublicKey(caPublicKeyIndex);
+        CAPublicKey caPublicKey = CA.getPublicKey(rid, caPublicKeyIndex);
 
         if (caPublicKey == null) {
             isValid = false;
@@ -82,7 +89,7 @@ public class IssuerPublicKeyCertificate {
 //            throw new SmartCardException("No suitable CA Public Key found");
         }
         //Decipher data using RSA
-        byte[] recoveredBytes = Util.performRSA(signedBytes, caPublicKey.getExponent(), caPublicKey.getModulus());
+        byte[] recoveredBytes = caPublicKey.performRSA(signedBytes);
 
         Log.debug("IssuerPKCert recoveredBytes="+Util.prettyPrintHex(recoveredBytes));
 
@@ -216,7 +223,7 @@ public class IssuerPublicKeyCertificate {
 
             issuerPublicKey.dump(pw, indent + Log.INDENT_SIZE);
         } else {
-            if(this.ca == null){
+            if(CA.getCA(rid) == null){
                 pw.println(indentStr + "NO CA CONFIGURED FOR THIS RID. UNABLE TO VALIDATE CERTIFICATE");
             }else{
                 pw.println(indentStr + "CERTIFICATE NOT VALID");
@@ -230,8 +237,7 @@ public class IssuerPublicKeyCertificate {
         byte[] chksum = CA.calculateCAPublicKeyCheckSum(rid, Util.intToByteArray(149), mod, new byte[]{0x03});
         System.out.println(Util.prettyPrintHexNoWrap(chksum));
         CA.initFromFile("/certificationauthorities_test.xml");
-        CA ca = CA.getCA(rid);
-        IssuerPublicKeyCertificate cert = new IssuerPublicKeyCertificate(ca);
+        IssuerPublicKeyCertificate cert = new IssuerPublicKeyCertificate(rid);
         cert.setCAPublicKeyIndex(149);
         String signedBytesStr = "8b 39 01 f6 25 30 48 a8 b2 cb 08 97 4a 42 45 d9" +
                                 "0e 1f 0c 4a 2a 69 bc a4 69 61 5a 71 db 21 ee 7b" +
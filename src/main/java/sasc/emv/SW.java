@@ -33,6 +33,7 @@ public enum SW {
     AUTHENTICATION_FAILED("6300", "State of non-volatile memory changed; authentication failed"), //63CX: Wrong PIN. X=num retries left
     LENGTH_FIELD_INCORRECT("6700", "Length field (P3) incorrect"), //(Lc and/or Le)
     NO_INFORMATION_GIVEN("6800", "No information given"),
+    COMMAND_INCOMPATIBLE_WITH_FILE_STRUCTURE("6981", "Command incompatible with file structure"),
     COMMAND_NOT_ALLOWED_SECURITY_STATUS_NOT_SATISFIED("6982", "Command not allowed; security status not satisfied"),
     COMMAND_NOT_ALLOWED_AUTHENTICATION_METHOD_BLOCKED("6983", "Command not allowed; authentication method blocked"),
     COMMAND_NOT_ALLOWED_REFERENCE_DATA_INVALIDATED("6984", "Command not allowed; referenced data invalidated"),
@@ -101,27 +102,22 @@ public enum SW {
     }
     
     public static String getSWDescription(byte sw1, byte sw2) {
-        return getSWDescription(Util.byte2Hex(sw1)+Util.byte2Hex(sw2));
+        return SWDescriptor.get(sw1, sw2).getDescription();
     }
     
     public static String getSWDescription(String swStr) {
-        for (SW sw : SW.values()) {
-            if (sw.getSWCodeAsString().equalsIgnoreCase(swStr)) {
-                return sw.getDescription();
-            }
+        if (swStr == null || swStr.length() != 4) {
+            return "";
+        }
+        try {
+            return getSWDescription((short) Integer.parseInt(swStr, 16));
+        } catch (NumberFormatException ex) {
+            return "";
         }
-
-        return "";
     }
 
     public static String getSWDescription(short sw1sw2) {
-        for (SW sw : SW.values()) {
-            if (sw.getSW() == sw1sw2) {
-                return sw.getDescription();
-            }
-        }
-
-        return "";
+        return SWDescriptor.get(sw1sw2).getDescription();
     }
     
     public static void main(String[] args){
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+/**
+ * Classification and description of a Status Word (SW1 SW2)
+ *
+ * Lookup is a two-level table index (SW1, then SW2). The table is built once.
+ * Descriptors are shared between status words with the same meaning (eg all '6CXX'),
+ * and rows are shared between SW1 values with the same meaning, so the table is small.
+ *
+ * The specific status words in SW take precedence over the generic ISO 7816-4 ranges.
+ *
+ * @author sasc
+ */
+public final class SWDescriptor {
+
+    public static enum Category {
+        SUCCESS,
+        /**
+         * '61XX' SW2 encodes the number of response bytes still available (GET RESPONSE)
+         */
+        RESPONSE_BYTES_AVAILABLE,
+        /**
+         * '62XX' and '63XX' (except '63CX')
+         */
+        WARNING,
+        /**
+         * '63CX' X encodes a counter (eg PIN tries left)
+         */
+        RETRY_COUNTER,
+        /**
+         * '6700'
+         */
+        WRONG_LENGTH,
+        /**
+         * '6CXX' SW2 encodes the exact length (re-issue the command with Le=SW2)
+         */
+        EXACT_LENGTH,
+        ERROR,
+        /**
+         * '9XXX' (except '9000')
+         */
+        PROPRIETARY,
+        /**
+         * '60XX', and anything not '6XXX' or '9XXX' (ISO 7816-3)
+         */
+        INVALID
+    }
+
+    private static final SWDescriptor[][] TABLE = new SWDescriptor[256][];
+
+    static {
+        SWDescriptor invalid = new SWDescriptor(Category.INVALID, "", -1, null);
+        SWDescriptor[] invalidRow = row(invalid);
+        for (int sw1 = 0; sw1 < 256; sw1++) {
+            TABLE[sw1] = invalidRow;
+        }
+
+        TABLE[0x61] = row(new SWDescriptor(Category.RESPONSE_BYTES_AVAILABLE, "Response bytes still available", -1, null));
+        TABLE[0x62] = row(new SWDescriptor(Category.WARNING, "State of non-volatile memory unchanged", -1, null));
+        TABLE[0x62][0x82] = new SWDescriptor(Category.WARNING, "End of file or record reached before reading Ne bytes", -1, null);
+        TABLE[0x63] = row(new SWDescriptor(Category.WARNING, "State of non-volatile memory changed", -1, null));
+        for (int x = 0; x < 16; x++) {
+            TABLE[0x63][0xC0 | x] = new SWDescriptor(Category.RETRY_COUNTER, "State of non-volatile memory changed; counter: " + x, x, null);
+        }
+        TABLE[0x64] = row(new SWDescriptor(Category.ERROR, "Execution error; state of non-volatile memory unchanged", -1, null));
+        TABLE[0x65] = row(new SWDescriptor(Category.ERROR, "Execution error; state of non-volatile memory changed", -1, null));
+        TABLE[0x66] = row(new SWDescriptor(Category.ERROR, "Security-related issue", -1, null));
+        TABLE[0x67] = row(new SWDescriptor(Category.ERROR, "Wrong length", -1, null));
+        TABLE[0x68] = row(new SWDescriptor(Category.ERROR, "Functions in CLA not supported", -1, null));
+        TABLE[0x69] = row(new SWDescriptor(Category.ERROR, "Command not allowed", -1, null));
+        TABLE[0x6A] = row(new SWDescriptor(Category.ERROR, "Wrong parameters P1-P2", -1, null));
+        TABLE[0x6B] = row(new SWDescriptor(Category.ERROR, "Wrong parameters P1-P2", -1, null));
+        TABLE[0x6C] = row(new SWDescriptor(Category.EXACT_LENGTH, "Wrong Le field; SW2 encodes the exact number of available data bytes", -1, null));
+        TABLE[0x6D] = row(new SWDescriptor(Category.ERROR, "Instruction code not supported or invalid", -1, null));
+        TABLE[0x6E] = row(new SWDescriptor(Category.ERROR, "Class not supported", -1, null));
+        TABLE[0x6F] = row(new SWDescriptor(Category.ERROR, "No precise diagnosis", -1, null));
+        SWDescriptor[] proprietaryRow = row(new SWDescriptor(Category.PROPRIETARY, "", -1, null));
+        for (int sw1 = 0x90; sw1 <= 0x9F; sw1++) {
+            TABLE[sw1] = proprietaryRow;
+        }
+        TABLE[0x90] = row(TABLE[0x90][0]);
+
+        for (SW sw : SW.values()) {
+            int sw1 = sw.getSW1() & 0xFF;
+            int sw2 = sw.getSW2() & 0xFF;
+            SWDescriptor generic = TABLE[sw1][sw2];
+            Category category = generic.category;
+            if (sw == SW.SUCCESS) {
+                category = Category.SUCCESS;
+            } else if (sw == SW.LENGTH_FIELD_INCORRECT) {
+                category = Category.WRONG_LENGTH;
+            }
+            TABLE[sw1][sw2] = new SWDescriptor(category, sw.getDescription(), generic.retryCount, sw);
+        }
+    }
+
+    private final Category category;
+    private final String description;
+    private final int retryCount;
+    private final SW sw;
+
+    private SWDescriptor(Category category, String description, int retryCount, SW sw) {
+        this.category = category;
+        this.description = description;
+        this.retryCount = retryCount;
+        this.sw = sw;
+    }
+
+    private static SWDescriptor[] row(SWDescriptor descriptor) {
+        SWDescriptor[] row = new SWDescriptor[256];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = descriptor;
+        }
+        return row;
+    }
+
+    public static SWDescriptor get(short sw1sw2) {
+        return TABLE[(sw1sw2 >>> 8) & 0xFF][sw1sw2 & 0xFF];
+    }
+
+    /**
+     * Only the low 8 bits of sw1 and sw2 are used, so sign extended bytes can be passed
+     */
+    public static SWDescriptor get(int sw1, int sw2) {
+        return TABLE[sw1 & 0xFF][sw2 & 0xFF];
+    }
+
+    public Category getCategory() {
+        return category;
+    }
+
+    /**
+     * @return the description, or an empty String if the meaning is proprietary/unknown
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return the counter X in '63CX', or -1
+     */
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * @return the SW constant for this status word, or null if not one of the SW constants
+     */
+    public SW getSW() {
+        return sw;
+    }
+
+    public boolean isSuccess() {
+        return category == Category.SUCCESS;
+    }
+
+    @Override
+    public String toString() {
+        return category + (description.isEmpty() ? "" : ": " + description);
+    }
+}
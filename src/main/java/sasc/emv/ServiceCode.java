@@ -44,6 +44,10 @@ public class ServiceCode {
         this(String.valueOf(serviceCode).toCharArray());
     }
 
+    public String getServiceCodeAsString() {
+        return new String(serviceCode);
+    }
+
     @Override
     public String toString() {
         StringWriter sw = new StringWriter();
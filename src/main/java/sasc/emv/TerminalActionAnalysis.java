@@ -0,0 +1,138 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import sasc.emv.system.mastercard.MCTags;
+
+/**
+ * Terminal Action Analysis (EMV 4.2 Book 3, section 10.7)
+ *
+ * The Issuer Action Codes (IAC) and Terminal Action Codes (TAC) are packed
+ * into longs, using the same bit layout as TerminalVerificationResults.getValue(),
+ * so each decision is a single AND against the combined (IAC | TAC) mask.
+ * An instance is immutable, and can be reused for every transaction with the same
+ * card application and terminal configuration.
+ *
+ * The result is the reference control parameter (P1) of the first GENERATE AC command.
+ *
+ * @author sasc
+ */
+public class TerminalActionAnalysis {
+
+    //GENERATE AC reference control parameter (P1), bits 8-7
+    public static final byte AAC = (byte) 0x00;
+    public static final byte TC = (byte) 0x40;
+    public static final byte ARQC = (byte) 0x80;
+    //Bit 5: CDA signature requested
+    public static final byte CDA_SIGNATURE_REQUESTED = (byte) 0x10;
+
+    private static final long ALL_BITS = 0xFFFFFFFFFFL;
+
+    private final long denial;
+    private final long online;
+    private final long dfault;
+
+    /**
+     * The action codes are the 5 byte values. A missing (null) IAC is handled as specified
+     * in section 10.7: IAC-Denial defaults to all bits 0, IAC-Online and IAC-Default
+     * to all bits 1. A missing TAC defaults to all bits 0.
+     */
+    public TerminalActionAnalysis(byte[] iacDenial, byte[] iacOnline, byte[] iacDefault,
+            byte[] tacDenial, byte[] tacOnline, byte[] tacDefault) {
+        this(pack(iacDenial, 0), pack(iacOnline, ALL_BITS), pack(iacDefault, ALL_BITS),
+                pack(tacDenial, 0), pack(tacOnline, 0), pack(tacDefault, 0));
+    }
+
+    public TerminalActionAnalysis(long iacDenial, long iacOnline, long iacDefault,
+            long tacDenial, long tacOnline, long tacDefault) {
+        this.denial = iacDenial | tacDenial;
+        this.online = iacOnline | tacOnline;
+        this.dfault = iacDefault | tacDefault;
+    }
+
+    /**
+     * Creates the analysis using the IACs read from the card and the TACs
+     * configured in the terminal properties (keys df8121, df8122 and df8120)
+     */
+    public static TerminalActionAnalysis create(EMVApplication app) {
+        return new TerminalActionAnalysis(
+                app.getIssuerActionCodeDenial(),
+                app.getIssuerActionCodeOnline(),
+                app.getIssuerActionCodeDefault(),
+                EMVTerminal.getTerminalActionCode(MCTags.TERMINAL_ACTION_CODE_DENIAL, app),
+                EMVTerminal.getTerminalActionCode(MCTags.TERMINAL_ACTION_CODE_ONLINE, app),
+                EMVTerminal.getTerminalActionCode(MCTags.TERMINAL_ACTION_CODE_DEFAULT, app));
+    }
+
+    /**
+     * Makes the first decision for the transaction:
+     * - decline offline (AAC) if a TVR bit is set in IAC-Denial or TAC-Denial
+     * - for an online capable terminal: go online (ARQC) if a TVR bit is set in IAC-Online
+     *   or TAC-Online, else approve offline (TC)
+     * - for an offline only terminal: decline (AAC) if a TVR bit is set in IAC-Default
+     *   or TAC-Default, else approve offline (TC)
+     *
+     * @param tvr the packed TVR (see TerminalVerificationResults.getValue())
+     * @param onlineCapable true if the terminal has online capability
+     * @return the cryptogram type to request in the first GENERATE AC (AAC, TC or ARQC)
+     */
+    public byte decide(long tvr, boolean onlineCapable) {
+        if ((tvr & denial) != 0) {
+            return AAC;
+        }
+        if (onlineCapable) {
+            return (tvr & online) != 0 ? ARQC : TC;
+        }
+        return (tvr & dfault) != 0 ? AAC : TC;
+    }
+
+    /**
+     * The decision for a transaction that should have gone online (ARQC),
+     * when the terminal is unable to go online (IAC-Default and TAC-Default)
+     *
+     * @return AAC or TC
+     */
+    public byte decideUnableToGoOnline(long tvr) {
+        return (tvr & dfault) != 0 ? AAC : TC;
+    }
+
+    /**
+     * @return the GENERATE AC P1 byte for the decision, with the CDA bit set if requested
+     */
+    public static byte getReferenceControlParameter(byte decision, boolean cdaRequested) {
+        return (byte) (cdaRequested ? decision | CDA_SIGNATURE_REQUESTED : decision);
+    }
+
+    public static String getDecisionName(byte decision) {
+        switch (decision & 0xC0) {
+            case 0x00:
+                return "AAC";
+            case 0x40:
+                return "TC";
+            case 0x80:
+                return "ARQC";
+            default:
+                return "RFU";
+        }
+    }
+
+    private static long pack(byte[] actionCode, long defaultValue) {
+        if (actionCode == null || actionCode.length != 5) {
+            return defaultValue;
+        }
+        return TerminalVerificationResults.pack(actionCode);
+    }
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import sasc.util.Util;
+
+/**
+ * Terminal Exception File (hot card list)
+ *
+ * EMV Book 3, 10.6: The terminal may check the Application PAN (and optionally
+ * the Application PAN Sequence Number) against an exception file. If a match is
+ * found, the terminal shall set the 'Card appears on terminal exception file'
+ * bit in the TVR to 1.
+ *
+ * The base file is a sorted array of fixed size entries which is memory mapped
+ * and binary searched. A Bloom filter built when the file is opened answers
+ * most negative lookups without touching the mapped file.
+ * Added/removed entries are appended to a delta file (&lt;file&gt;.delta) that
+ * is replayed on open, so the base file does not have to be rebuilt for every
+ * update. compact() merges the deltas into a new base file, in place, so the
+ * instance registered with EMVTerminal stays valid.
+ *
+ * Lookups read an immutable snapshot (base mapping, Bloom filter, sorted deltas)
+ * without locking. add/remove/compact are synchronized and publish a new snapshot.
+ *
+ * Base file layout:
+ * 'T' 'E' 'F' version(1) entryCount(4) entries...
+ * Entry: PAN (10 bytes, compressed numeric padded with 'F') + PAN Sequence Number (1 byte, 'FF' = any)
+ *
+ * @author sasc
+ */
+public class TerminalExceptionFile {
+
+    public static final int ANY_PAN_SEQUENCE_NUMBER = 0xFF;
+
+    private static final byte[] MAGIC = {'T', 'E', 'F'};
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int PAN_LENGTH = 10;
+    private static final int ENTRY_LENGTH = PAN_LENGTH + 1;
+    private static final byte DELTA_ADD = 'A';
+    private static final byte DELTA_REMOVE = 'R';
+    private static final int BLOOM_BITS_PER_ENTRY = 10;
+    private static final int BLOOM_NUM_HASHES = 7;
+
+    private static final Comparator<byte[]> ENTRY_COMPARATOR = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            for (int i = 0; i < ENTRY_LENGTH; i++) {
+                int x = a[i] & 0xFF;
+                int y = b[i] & 0xFF;
+                if (x != y) {
+                    return x - y;
+                }
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * What lookups read: the mapped base file, its Bloom filter, and the deltas as sorted arrays.
+     * A snapshot is never modified. Updates publish a new one, so contains(..) takes no lock
+     */
+    private static final class Snapshot {
+
+        final MappedByteBuffer base;
+        final int baseEntryCount;
+        final long[] bloom;
+        final int bloomNumBits;
+        final byte[][] added;
+        final byte[][] removed;
+
+        Snapshot(MappedByteBuffer base, int baseEntryCount, long[] bloom, int bloomNumBits, byte[][] added, byte[][] removed) {
+            this.base = base;
+            this.baseEntryCount = baseEntryCount;
+            this.bloom = bloom;
+            this.bloomNumBits = bloomNumBits;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        Snapshot withDeltas(TreeSet<byte[]> added, TreeSet<byte[]> removed) {
+            return new Snapshot(base, baseEntryCount, bloom, bloomNumBits, toArray(added), toArray(removed));
+        }
+    }
+
+    //Per thread lookup buffers, so contains(..) does not allocate
+    private static final ThreadLocal<byte[][]> LOOKUP_BUFFERS = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[2][ENTRY_LENGTH];
+        }
+    };
+
+    private final File file;
+    private volatile Snapshot snapshot;
+    //Writer state (guarded by this)
+    private final TreeSet<byte[]> added = new TreeSet<byte[]>(ENTRY_COMPARATOR);
+    private final TreeSet<byte[]> removed = new TreeSet<byte[]>(ENTRY_COMPARATOR);
+    private DataOutputStream deltaStream = null;
+
+    private TerminalExceptionFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Maps the base file, and builds its Bloom filter
+     */
+    private static Snapshot mapBase(File file) throws IOException {
+        MappedByteBuffer base;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Exception file too large: " + size);
+            }
+            base = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            raf.close(); //The mapping stays valid after the channel is closed
+        }
+        if (base.limit() < HEADER_LENGTH || base.get(0) != MAGIC[0] || base.get(1) != MAGIC[1] || base.get(2) != MAGIC[2]) {
+            throw new IOException("Not a terminal exception file: " + file);
+        }
+        if (base.get(3) != VERSION) {
+            throw new IOException("Unsupported exception file version: " + base.get(3));
+        }
+        int baseEntryCount = base.getInt(4);
+        if (baseEntryCount < 0 || HEADER_LENGTH + (long) baseEntryCount * ENTRY_LENGTH != base.limit()) {
+            throw new IOException("Corrupt exception file. Entry count=" + baseEntryCount + ", file length=" + base.limit());
+        }
+
+        //The filter only covers the base file (the added entries are searched directly)
+        int bloomNumBits = (int) Math.min(Math.max(64, (long) baseEntryCount * BLOOM_BITS_PER_ENTRY), Integer.MAX_VALUE - 63);
+        long[] bloom = new long[(bloomNumBits + 63) / 64];
+        byte[] entry = new byte[ENTRY_LENGTH];
+        for (int i = 0; i < baseEntryCount; i++) {
+            readBaseEntry(base, i, entry);
+            addToBloomFilter(bloom, bloomNumBits, entry);
+        }
+        return new Snapshot(base, baseEntryCount, bloom, bloomNumBits, new byte[0][], new byte[0][]);
+    }
+
+    /**
+     * Opens an existing exception file, and replays the delta file (if present)
+     */
+    public static TerminalExceptionFile open(File file) throws IOException {
+        Util.recoverReplacedFile(file);
+        TerminalExceptionFile tef = new TerminalExceptionFile(file);
+        synchronized (tef) {
+            tef.replayDeltas();
+            tef.snapshot = mapBase(file).withDeltas(tef.added, tef.removed);
+        }
+        return tef;
+    }
+
+    /**
+     * A truncated last record (eg power loss while appending) is cut off the delta file,
+     * so the next record is appended at a record boundary
+     */
+    private void replayDeltas() throws IOException {
+        File deltaFile = getDeltaFile(file);
+        if (!deltaFile.exists()) {
+            return;
+        }
+        long validLength = 0;
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(deltaFile)));
+        try {
+            byte[] entry = new byte[ENTRY_LENGTH];
+            while (true) {
+                int op;
+                try {
+                    op = dis.readByte();
+                    dis.readFully(entry);
+                } catch (EOFException eof) {
+                    break;
+                }
+                if (op == DELTA_ADD) {
+                    removed.remove(entry);
+                    added.add(entry.clone());
+                } else if (op == DELTA_REMOVE) {
+                    added.remove(entry);
+                    removed.add(entry.clone());
+                } else {
+                    throw new IOException("Corrupt delta file: " + deltaFile);
+                }
+                validLength += 1 + ENTRY_LENGTH;
+            }
+        } finally {
+            dis.close();
+        }
+        if (validLength < deltaFile.length()) {
+            RandomAccessFile raf = new RandomAccessFile(deltaFile, "rw");
+            try {
+                raf.getChannel().truncate(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Creates a new base file containing the given entries (see encodeEntry(..)),
+     * and deletes any existing delta file.
+     * An existing base file is only replaced once the new one is complete (see Util.replaceFile)
+     */
+    public static void create(File file, Collection<byte[]> entries) throws IOException {
+        List<byte[]> sorted = new ArrayList<byte[]>(entries.size());
+        for (byte[] entry : entries) {
+            if (entry.length != ENTRY_LENGTH) {
+                throw new IllegalArgumentException("Invalid entry length: " + entry.length);
+            }
+            sorted.add(entry);
+        }
+        Collections.sort(sorted, ENTRY_COMPARATOR);
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            int count = 0;
+            for (int i = 0; i < sorted.size(); i++) {
+                if (i == 0 || ENTRY_COMPARATOR.compare(sorted.get(i - 1), sorted.get(i)) != 0) {
+                    count++;
+                }
+            }
+            dos.write(MAGIC);
+            dos.writeByte(VERSION);
+            dos.writeInt(count);
+            for (int i = 0; i < sorted.size(); i++) {
+                if (i == 0 || ENTRY_COMPARATOR.compare(sorted.get(i - 1), sorted.get(i)) != 0) {
+                    dos.write(sorted.get(i));
+                }
+            }
+        } finally {
+            dos.close();
+        }
+        Util.replaceFile(tmpFile, file);
+        //The new base file already contains the deltas (compact) or replaces them (create)
+        File deltaFile = getDeltaFile(file);
+        if (deltaFile.exists() && !deltaFile.delete()) {
+            throw new IOException("Unable to delete " + deltaFile);
+        }
+    }
+
+    /**
+     * @param pan the PAN digits
+     * @param panSequenceNumber 0-99, or ANY_PAN_SEQUENCE_NUMBER to match all cards with this PAN
+     * @return an 11 byte exception file entry
+     */
+    public static byte[] encodeEntry(String pan, int panSequenceNumber) {
+        byte[] entry = new byte[ENTRY_LENGTH];
+        encodeEntry(pan, panSequenceNumber, entry);
+        return entry;
+    }
+
+    private static void encodeEntry(String pan, int panSequenceNumber, byte[] entry) {
+        if (pan == null || pan.length() < 1 || pan.length() > 19) {
+            throw new IllegalArgumentException("Invalid PAN length: " + (pan == null ? "null" : pan.length()));
+        }
+        if ((panSequenceNumber < 0 || panSequenceNumber > 99) && panSequenceNumber != ANY_PAN_SEQUENCE_NUMBER) {
+            throw new IllegalArgumentException("Invalid PAN Sequence Number: " + panSequenceNumber);
+        }
+        for (int i = 0; i < PAN_LENGTH; i++) {
+            entry[i] = 0;
+        }
+        for (int i = 0; i < PAN_LENGTH * 2; i++) {
+            int nibble;
+            if (i < pan.length()) {
+                char c = pan.charAt(i);
+                if (c < '0' || c > '9') {
+                    throw new IllegalArgumentException("Invalid PAN digit: " + c);
+                }
+                nibble = c - '0';
+            } else {
+                nibble = 0x0F;
+            }
+            entry[i / 2] |= (i % 2 == 0) ? nibble << 4 : nibble;
+        }
+        entry[PAN_LENGTH] = (byte) panSequenceNumber;
+    }
+
+    /**
+     * Checks if the card appears on the exception file.
+     * An entry matches if the PAN is equal and the entry has the same PAN Sequence Number
+     * or matches any PAN Sequence Number.
+     *
+     * @param panSequenceNumber the PSN of the card, or -1 if the card does not have one (matches all entries for the PAN)
+     */
+    public boolean contains(PAN pan, int panSequenceNumber) {
+        return contains(pan.getPanAsString(), panSequenceNumber);
+    }
+
+    /**
+     * Takes no lock and does not allocate (it reads the current snapshot)
+     */
+    public boolean contains(String pan, int panSequenceNumber) {
+        Snapshot s = snapshot;
+        byte[][] buffers = LOOKUP_BUFFERS.get();
+        byte[] key = buffers[0];
+        encodeEntry(pan, panSequenceNumber == -1 ? ANY_PAN_SEQUENCE_NUMBER : panSequenceNumber, key);
+        if (panSequenceNumber == -1) {
+            return containsAnyForPAN(s, key, buffers[1]);
+        }
+        if (isPresent(s, key)) {
+            return true;
+        }
+        key[PAN_LENGTH] = (byte) ANY_PAN_SEQUENCE_NUMBER;
+        return isPresent(s, key);
+    }
+
+    public synchronized void add(byte[] entry) throws IOException {
+        checkEntry(entry);
+        appendDelta(DELTA_ADD, entry);
+        removed.remove(entry);
+        added.add(entry.clone());
+        snapshot = snapshot.withDeltas(added, removed);
+    }
+
+    public synchronized void remove(byte[] entry) throws IOException {
+        checkEntry(entry);
+        appendDelta(DELTA_REMOVE, entry);
+        added.remove(entry);
+        removed.add(entry.clone());
+        snapshot = snapshot.withDeltas(added, removed);
+    }
+
+    /**
+     * @return the number of entries (base file + deltas)
+     */
+    public synchronized int size() {
+        Snapshot s = snapshot;
+        int count = s.baseEntryCount + added.size();
+        for (byte[] entry : added) {
+            if (findInBase(s, entry) >= 0) {
+                count--;
+            }
+        }
+        for (byte[] entry : removed) {
+            if (findInBase(s, entry) >= 0) {
+                count--;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes a new base file with all deltas applied, and maps it in place of the old one.
+     * Lookups running concurrently keep using the old mapping
+     */
+    public synchronized void compact() throws IOException {
+        Snapshot s = snapshot;
+        List<byte[]> entries = new ArrayList<byte[]>(s.baseEntryCount + added.size());
+        byte[] entry = new byte[ENTRY_LENGTH];
+        for (int i = 0; i < s.baseEntryCount; i++) {
+            readBaseEntry(s.base, i, entry);
+            if (!removed.contains(entry)) {
+                entries.add(entry.clone());
+            }
+        }
+        entries.addAll(added);
+        close();
+        create(file, entries);
+        added.clear();
+        removed.clear();
+        snapshot = mapBase(file);
+    }
+
+    public synchronized void close() throws IOException {
+        if (deltaStream != null) {
+            deltaStream.close();
+            deltaStream = null;
+        }
+    }
+
+    private static boolean containsAnyForPAN(Snapshot s, byte[] key, byte[] entry) {
+        //key has PSN 'FF', the highest value: search from PSN '00'
+        key[PAN_LENGTH] = 0;
+        int index = Arrays.binarySearch(s.added, key, ENTRY_COMPARATOR);
+        int pos = index >= 0 ? index : -(index + 1);
+        if (pos < s.added.length && samePAN(s.added[pos], key)) {
+            return true;
+        }
+        if (!mightContainPAN(s, key)) {
+            return false;
+        }
+        index = findInBase(s, key);
+        for (pos = index >= 0 ? index : -(index + 1); pos < s.baseEntryCount; pos++) {
+            readBaseEntry(s.base, pos, entry);
+            if (!samePAN(entry, key)) {
+                break;
+            }
+            if (Arrays.binarySearch(s.removed, entry, ENTRY_COMPARATOR) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPresent(Snapshot s, byte[] key) {
+        if (Arrays.binarySearch(s.added, key, ENTRY_COMPARATOR) >= 0) {
+            return true;
+        }
+        if (!mightContainPAN(s, key) || Arrays.binarySearch(s.removed, key, ENTRY_COMPARATOR) >= 0) {
+            return false;
+        }
+        return findInBase(s, key) >= 0;
+    }
+
+    private static boolean samePAN(byte[] a, byte[] b) {
+        for (int i = 0; i < PAN_LENGTH; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[][] toArray(TreeSet<byte[]> entries) {
+        //The TreeSet iterates in ENTRY_COMPARATOR order, so the array is sorted
+        return entries.toArray(new byte[entries.size()][]);
+    }
+
+    /**
+     * Binary search in the mapped base file
+     * @return the index of the entry, or (-(insertion point) - 1) if not found
+     */
+    private static int findInBase(Snapshot s, byte[] key) {
+        int low = 0;
+        int high = s.baseEntryCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareBaseEntry(s.base, mid, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    //Absolute gets only: the buffer position is never changed, so it can be read concurrently
+    private static int compareBaseEntry(MappedByteBuffer base, int index, byte[] key) {
+        int offset = HEADER_LENGTH + index * ENTRY_LENGTH;
+        for (int i = 0; i < ENTRY_LENGTH; i++) {
+            int a = base.get(offset + i) & 0xFF;
+            int b = key[i] & 0xFF;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+
+    private static void readBaseEntry(MappedByteBuffer base, int index, byte[] entry) {
+        int offset = HEADER_LENGTH + index * ENTRY_LENGTH;
+        for (int i = 0; i < ENTRY_LENGTH; i++) {
+            entry[i] = base.get(offset + i);
+        }
+    }
+
+    private static void checkEntry(byte[] entry) {
+        if (entry == null || entry.length != ENTRY_LENGTH) {
+            throw new IllegalArgumentException("Invalid entry. Use encodeEntry(..) to create entries");
+        }
+    }
+
+    private void appendDelta(byte op, byte[] entry) throws IOException {
+        if (deltaStream == null) {
+            deltaStream = new DataOutputStream(new FileOutputStream(getDeltaFile(file), true));
+        }
+        byte[] record = new byte[1 + ENTRY_LENGTH];
+        record[0] = op;
+        System.arraycopy(entry, 0, record, 1, ENTRY_LENGTH);
+        deltaStream.write(record);
+        deltaStream.flush();
+    }
+
+    private static File getDeltaFile(File file) {
+        return new File(file.getPath() + ".delta");
+    }
+
+    //Bloom filter over the PAN (the PSN is not part of the key)
+
+    private static void addToBloomFilter(long[] bloom, int bloomNumBits, byte[] entry) {
+        long hash = hashPAN(entry);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < BLOOM_NUM_HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bloomNumBits;
+            bloom[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private static boolean mightContainPAN(Snapshot s, byte[] entry) {
+        long hash = hashPAN(entry);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < BLOOM_NUM_HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % s.bloomNumBits;
+            if ((s.bloom[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //64 bit FNV-1a followed by a finalizer mix
+    private static long hashPAN(byte[] entry) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < PAN_LENGTH; i++) {
+            h ^= entry[i] & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.util.Properties;
+import sasc.iso7816.Tag;
+import sasc.util.Util;
+
+/**
+ * Terminal resident data values, decoded once from the terminal properties.
+ *
+ * Values are keyed by packed tag (see packTag(..)). Runtime values override
+ * the default values (and the values derived from the card, eg Terminal Country Code).
+ * The version is incremented on every change, so that compiled DOLPlans
+ * can detect that they must be recompiled.
+ *
+ * @author sasc
+ */
+public class TerminalProfile {
+
+    private final TagValueMap defaultValues = new TagValueMap();
+    private final TagValueMap runtimeValues = new TagValueMap();
+    private volatile int version = 0;
+
+    public TerminalProfile() {
+    }
+
+    /**
+     * @param defaults tag (hex) to value (hex)
+     * @param runtime tag (hex) to value (hex)
+     */
+    public static TerminalProfile fromProperties(Properties defaults, Properties runtime) {
+        TerminalProfile profile = new TerminalProfile();
+        for (String key : defaults.stringPropertyNames()) {
+            profile.put(profile.defaultValues, Util.fromHexString(key), Util.fromHexString(defaults.getProperty(key)));
+        }
+        for (String key : runtime.stringPropertyNames()) {
+            profile.put(profile.runtimeValues, Util.fromHexString(key), Util.fromHexString(runtime.getProperty(key)));
+        }
+        return profile;
+    }
+
+    /**
+     * Packs 1-3 tag bytes, and the number of tag bytes, into an int
+     *
+     * @return the packed tag, or -1 if the tag is longer than 3 bytes
+     */
+    public static int packTag(byte[] tagBytes) {
+        if (tagBytes == null || tagBytes.length == 0) {
+            throw new IllegalArgumentException("Tag bytes cannot be empty");
+        }
+        if (tagBytes.length > 3) {
+            return -1;
+        }
+        int packed = tagBytes.length << 24;
+        for (int i = 0; i < tagBytes.length; i++) {
+            packed |= (tagBytes[i] & 0xFF) << (8 * (tagBytes.length - i - 1));
+        }
+        return packed;
+    }
+
+    public void setDefaultValue(Tag tag, byte[] value) {
+        put(defaultValues, tag.getTagBytes(), value.clone());
+    }
+
+    public void setRuntimeValue(Tag tag, byte[] value) {
+        put(runtimeValues, tag.getTagBytes(), value.clone());
+    }
+
+    /**
+     * The returned array is shared, and must not be modified
+     */
+    synchronized byte[] getDefaultValue(int packedTag) {
+        return defaultValues.get(packedTag);
+    }
+
+    /**
+     * The returned array is shared, and must not be modified
+     */
+    synchronized byte[] getRuntimeValue(int packedTag) {
+        return runtimeValues.get(packedTag);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    private synchronized void put(TagValueMap values, byte[] tagBytes, byte[] value) {
+        int packedTag = packTag(tagBytes);
+        if (packedTag == -1) {
+            throw new IllegalArgumentException("Tag cannot be longer than 3 bytes: " + Util.byteArrayToHexString(tagBytes));
+        }
+        values.put(packedTag, value);
+        version++;
+    }
+
+    /**
+     * Open addressing map from packed tag to value, so lookups do not box the key.
+     * Packed tags are never 0 (the tag length is in the high byte), so 0 marks an empty slot
+     */
+    private static final class TagValueMap {
+
+        private int[] keys = new int[64];
+        private byte[][] values = new byte[64][];
+        private int size = 0;
+
+        byte[] get(int packedTag) {
+            int mask = keys.length - 1;
+            for (int i = hash(packedTag) & mask; keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == packedTag) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        void put(int packedTag, byte[] value) {
+            int mask = keys.length - 1;
+            int i = hash(packedTag) & mask;
+            while (keys[i] != 0 && keys[i] != packedTag) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == 0) {
+                if (2 * (size + 1) > keys.length) {
+                    grow();
+                    put(packedTag, value);
+                    return;
+                }
+                keys[i] = packedTag;
+                size++;
+            }
+            values[i] = value;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            byte[][] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new byte[oldKeys.length * 2][];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int hash(int packedTag) {
+            int h = packedTag * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
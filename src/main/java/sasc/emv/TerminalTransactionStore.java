@@ -0,0 +1,289 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import sasc.util.ByteArrayWrapper;
+import sasc.util.Util;
+
+/**
+ * Terminal log of approved transactions, used to prevent split sales (EMV Book 3, 10.6.1)
+ *
+ * Approved transactions are appended to a file, and an in-memory index keeps
+ * the running total per PAN for the transactions within the window. Entries
+ * older than the window are expired, both from the index and (on compact) from the file.
+ *
+ * The file is replayed on open, so the totals survive restarts.
+ * Record: PAN (10 bytes, compressed numeric padded with 'F') + PAN Sequence Number (1 byte, 'FF' = not present)
+ *         + amount (8 bytes) + transaction time (8 bytes, millis since epoch)
+ *
+ * Totals are kept per PAN (the PAN Sequence Number is stored, but not used in the lookup)
+ *
+ * @author sasc
+ */
+public class TerminalTransactionStore {
+
+    private static final int PAN_LENGTH = 10;
+    private static final int RECORD_LENGTH = PAN_LENGTH + 1 + 8 + 8;
+
+    private static class Total {
+        long amount;
+        int count;
+        long lastTransactionTime;
+    }
+
+    private static class Entry {
+        final ByteArrayWrapper pan;
+        final long amount;
+        final long time;
+
+        Entry(ByteArrayWrapper pan, long amount, long time) {
+            this.pan = pan;
+            this.amount = amount;
+            this.time = time;
+        }
+    }
+
+    private static final Comparator<Entry> BY_TIME = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            return e1.time < e2.time ? -1 : (e1.time == e2.time ? 0 : 1);
+        }
+    };
+
+    private final File file;
+    private final long windowMillis;
+    private final Map<ByteArrayWrapper, Total> totals = new HashMap<ByteArrayWrapper, Total>();
+    //Entries within the window, oldest first. Transaction dates are not necessarily
+    //recorded in order (eg clock adjustments), so this is not a FIFO
+    private final PriorityQueue<Entry> window = new PriorityQueue<Entry>(64, BY_TIME);
+    private int expiredRecordsInFile = 0;
+    private DataOutputStream out;
+
+    private TerminalTransactionStore(File file, long windowMillis) {
+        this.file = file;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Opens (or creates) the store, and replays the records that are within the window
+     *
+     * @param windowMillis how long a transaction counts towards the running total of the PAN
+     */
+    public static TerminalTransactionStore open(File file, long windowMillis) throws IOException {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("windowMillis must be positive: " + windowMillis);
+        }
+        Util.recoverReplacedFile(file);
+        TerminalTransactionStore store = new TerminalTransactionStore(file, windowMillis);
+        long validLength = 0;
+        if (file.exists()) {
+            long cutoff = System.currentTimeMillis() - windowMillis;
+            byte[] record = new byte[RECORD_LENGTH];
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                while (true) {
+                    try {
+                        dis.readFully(record);
+                    } catch (EOFException eof) {
+                        break;
+                    }
+                    validLength += RECORD_LENGTH;
+                    long amount = readLong(record, PAN_LENGTH + 1);
+                    long time = readLong(record, PAN_LENGTH + 1 + 8);
+                    if (time < cutoff) {
+                        store.expiredRecordsInFile++;
+                        continue;
+                    }
+                    store.addToIndex(ByteArrayWrapper.wrapperAround(Arrays.copyOfRange(record, 0, PAN_LENGTH)), amount, time);
+                }
+            } finally {
+                dis.close();
+            }
+            if (file.length() != validLength) {
+                //Truncated last record (eg power loss while appending). Drop it so new records stay aligned
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(validLength);
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+        if (store.expiredRecordsInFile > store.window.size()) {
+            store.compact();
+        }
+        return store;
+    }
+
+    /**
+     * Records an approved transaction
+     *
+     * @param panSequenceNumber the PSN, or -1 if not present
+     * @param amount Amount, Authorised in the minor unit of the currency
+     */
+    public synchronized void record(PAN pan, int panSequenceNumber, long amount, Date transactionDate) throws IOException {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Amount cannot be negative: " + amount);
+        }
+        byte[] record = new byte[RECORD_LENGTH];
+        byte[] panAndPSN = TerminalExceptionFile.encodeEntry(pan.getPanAsString(),
+                panSequenceNumber == -1 ? TerminalExceptionFile.ANY_PAN_SEQUENCE_NUMBER : panSequenceNumber);
+        System.arraycopy(panAndPSN, 0, record, 0, panAndPSN.length);
+        long time = transactionDate.getTime();
+        writeLong(record, PAN_LENGTH + 1, amount);
+        writeLong(record, PAN_LENGTH + 1 + 8, time);
+        if (out == null) {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+        out.write(record);
+        out.flush();
+        if (time < System.currentTimeMillis() - windowMillis) {
+            //Already outside the window
+            expiredRecordsInFile++;
+            return;
+        }
+        addToIndex(ByteArrayWrapper.wrapperAround(Arrays.copyOfRange(record, 0, PAN_LENGTH)), amount, time);
+    }
+
+    /**
+     * Returns the sum of the amounts recorded for the PAN within the window, or 0 if there are none
+     */
+    public synchronized long getTotal(PAN pan) {
+        expire(System.currentTimeMillis());
+        Total total = totals.get(key(pan));
+        return total != null ? total.amount : 0;
+    }
+
+    /**
+     * Returns the time of the most recent transaction recorded for the PAN within the window, or null if there are none
+     */
+    public synchronized Date getLastTransactionDate(PAN pan) {
+        expire(System.currentTimeMillis());
+        Total total = totals.get(key(pan));
+        return total != null ? new Date(total.lastTransactionTime) : null;
+    }
+
+    /**
+     * @return the number of transactions within the window
+     */
+    public synchronized int size() {
+        expire(System.currentTimeMillis());
+        return window.size();
+    }
+
+    /**
+     * Removes the transactions older than the window from the index
+     */
+    public synchronized void expire(long now) {
+        long cutoff = now - windowMillis;
+        while (!window.isEmpty() && window.peek().time < cutoff) {
+            Entry entry = window.poll();
+            Total total = totals.get(entry.pan);
+            total.amount -= entry.amount;
+            if (--total.count == 0) {
+                totals.remove(entry.pan);
+            }
+            expiredRecordsInFile++;
+        }
+    }
+
+    /**
+     * Rewrites the file with only the transactions within the window
+     */
+    public synchronized void compact() throws IOException {
+        expire(System.currentTimeMillis());
+        close();
+        File tmpFile = new File(file.getPath() + ".tmp");
+        byte[] record = new byte[RECORD_LENGTH];
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            long cutoff = System.currentTimeMillis() - windowMillis;
+            while (true) {
+                try {
+                    dis.readFully(record);
+                } catch (EOFException eof) {
+                    break;
+                }
+                if (readLong(record, PAN_LENGTH + 1 + 8) >= cutoff) {
+                    dos.write(record);
+                }
+            }
+        } finally {
+            dis.close();
+            dos.close();
+        }
+        Util.replaceFile(tmpFile, file);
+        expiredRecordsInFile = 0;
+    }
+
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private void addToIndex(ByteArrayWrapper pan, long amount, long time) {
+        Total total = totals.get(pan);
+        if (total == null) {
+            total = new Total();
+            totals.put(pan, total);
+        }
+        total.amount += amount;
+        total.count++;
+        if (time > total.lastTransactionTime) {
+            total.lastTransactionTime = time;
+        }
+        window.add(new Entry(pan, amount, time));
+    }
+
+    private static ByteArrayWrapper key(PAN pan) {
+        byte[] entry = TerminalExceptionFile.encodeEntry(pan.getPanAsString(), TerminalExceptionFile.ANY_PAN_SEQUENCE_NUMBER);
+        return ByteArrayWrapper.wrapperAround(Arrays.copyOfRange(entry, 0, PAN_LENGTH));
+    }
+
+    private static long readLong(byte[] buf, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buf[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void writeLong(byte[] buf, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buf[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -18,7 +18,6 @@ package sasc.emv;
 import sasc.iso7816.SmartCardException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.BitSet;
 import sasc.util.Log;
 import sasc.util.Util;
 
@@ -39,7 +38,7 @@ public class TerminalVerificationResults {
     static {
         description = new String[5 * 8];
 
-        //In the BitSet bitIndex order (bit 0 = TVR byte 5 rightmost bit)
+        //In bit order (bit 0 = TVR byte 5 rightmost bit)
         description[0] = "RFU";
         description[1] = "RFU";
         description[2] = "RFU";
@@ -82,45 +81,46 @@ public class TerminalVerificationResults {
         description[39] = "Offline data authentication was not performed";
     }
     
-    private BitSet bitSet;
+    //The 5 TVR bytes, packed into the 40 rightmost bits (bit 0 = TVR byte 5 rightmost bit).
+    //This is the same layout as the packed action codes used by TerminalActionAnalysis
+    private long value = 0;
 
     public TerminalVerificationResults() {
-        this.bitSet = new BitSet(5 * 8);
     }
 
     TerminalVerificationResults(byte[] data) {
         if (data.length != 5) {
             throw new SmartCardException("TVR must be initialized with 5 bytes. Length=" + data.length);
         }
-        this.bitSet = Util.byteArray2BitSet(data);
+        this.value = pack(data);
     }
 
     public void setOfflineDataAuthenticationWasNotPerformed(boolean value) {
-        bitSet.set(getBitSetIndex(1, 8), value);
+        set(mask(1, 8), value);
     }
 
     public boolean offlineDataAuthenticationWasNotPerformed() {
-        return bitSet.get(getBitSetIndex(1, 8));
+        return (this.value & mask(1, 8)) != 0;
     }
 
     public void sdaFailed(boolean value) {
-        bitSet.set(getBitSetIndex(1, 7), value);
+        set(mask(1, 7), value);
     }
 
     public boolean sdaFailed() {
-        return bitSet.get(getBitSetIndex(1, 7));
+        return (this.value & mask(1, 7)) != 0;
     }
 
     public void setICCDataMissing(boolean value) {
-        bitSet.set(getBitSetIndex(1, 6), value);
+        set(mask(1, 6), value);
     }
 
     public boolean iccDataMissing() {
-        return bitSet.get(getBitSetIndex(1, 6));
+        return (this.value & mask(1, 6)) != 0;
     }
 
     public void setCardAppearsOnTerminalExceptionFile(boolean value) {
-        bitSet.set(getBitSetIndex(1, 5), value);
+        set(mask(1, 5), value);
     }
 
     /**
@@ -129,212 +129,244 @@ public class TerminalVerificationResults {
      * @return
      */
     public boolean cardAppearsOnTerminalExceptionFile() {
-        return bitSet.get(getBitSetIndex(1, 5));
+        return (this.value & mask(1, 5)) != 0;
     }
 
     public void setDDAFailed(boolean value) {
-        bitSet.set(getBitSetIndex(1, 4), value);
+        set(mask(1, 4), value);
     }
 
     public boolean ddaFailed() {
-        return bitSet.get(getBitSetIndex(1, 4));
+        return (this.value & mask(1, 4)) != 0;
     }
 
     public void setCDAFailed(boolean value) {
-        bitSet.set(getBitSetIndex(1, 3), value);
+        set(mask(1, 3), value);
     }
 
     public boolean cdaFailed() {
-        return bitSet.get(getBitSetIndex(1, 3));
+        return (this.value & mask(1, 3)) != 0;
     }
 
     //2 rightmost bits of the first byte are RFU
     //Second byte
     public void setICCAndTerminalHaveDifferentApplicationVersions(boolean value) {
-        bitSet.set(getBitSetIndex(2, 8), value);
+        set(mask(2, 8), value);
     }
 
     public boolean iccAndTerminalHaveDifferentApplicationVersions() {
-        return bitSet.get(getBitSetIndex(2, 8));
+        return (this.value & mask(2, 8)) != 0;
     }
 
     public void setExpiredApplication(boolean value) {
-        bitSet.set(getBitSetIndex(2, 7), value);
+        set(mask(2, 7), value);
     }
 
     public boolean expiredApplication() {
-        return bitSet.get(getBitSetIndex(2, 7));
+        return (this.value & mask(2, 7)) != 0;
     }
 
     public void setApplicationNotYetEffective(boolean value) {
-        bitSet.set(getBitSetIndex(2, 6), value);
+        set(mask(2, 6), value);
     }
 
     public boolean applicationNotYetEffective() {
-        return bitSet.get(getBitSetIndex(2, 6));
+        return (this.value & mask(2, 6)) != 0;
     }
 
     public void setRequestedServiceNotAllowedForCardProduct(boolean value) {
-        bitSet.set(getBitSetIndex(2, 5), value);
+        set(mask(2, 5), value);
     }
 
     public boolean requestedServiceNotAllowedForCardProduct() {
-        return bitSet.get(getBitSetIndex(2, 5));
+        return (this.value & mask(2, 5)) != 0;
     }
 
     public void setNewCard(boolean value) {
-        bitSet.set(getBitSetIndex(2, 4), value);
+        set(mask(2, 4), value);
     }
 
     public boolean newCard() {
-        return bitSet.get(getBitSetIndex(2, 4));
+        return (this.value & mask(2, 4)) != 0;
     }
 
     //3 rightmost bits of the second byte are RFU
     //Third byte
     public void setCardholderVerificationWasNotSuccessful(boolean value) {
-        bitSet.set(getBitSetIndex(3, 8), value);
+        set(mask(3, 8), value);
     }
 
     public boolean cardholderVerificationWasNotSuccessful() {
-        return bitSet.get(getBitSetIndex(3, 8));
+        return (this.value & mask(3, 8)) != 0;
     }
 
     public void setUnrecognisedCVM(boolean value) {
-        bitSet.set(getBitSetIndex(3, 7), value);
+        set(mask(3, 7), value);
     }
 
     public boolean unrecognisedCVM() {
-        return bitSet.get(getBitSetIndex(3, 7));
+        return (this.value & mask(3, 7)) != 0;
     }
 
     public void setPinTryLimitExceeded(boolean value) {
-        bitSet.set(getBitSetIndex(3, 6), value);
+        set(mask(3, 6), value);
     }
 
     public boolean pinTryLimitExceeded() {
-        return bitSet.get(getBitSetIndex(3, 6));
+        return (this.value & mask(3, 6)) != 0;
     }
 
     public void setPinEntryRequiredAndPINPadNotPresentOrNotWorking(boolean value) {
-        bitSet.set(getBitSetIndex(3, 5), value);
+        set(mask(3, 5), value);
     }
 
     public boolean pinEntryRequiredAndPINPadNotPresentOrNotWorking() {
-        return bitSet.get(getBitSetIndex(3, 5));
+        return (this.value & mask(3, 5)) != 0;
     }
 
     public void setPinEntryRequired_PINPadPresent_ButPINWasNotEntered(boolean value) {
-        bitSet.set(getBitSetIndex(3, 4), value);
+        set(mask(3, 4), value);
     }
 
     public boolean pinEntryRequired_PINPadPresent_ButPINWasNotEntered() {
-        return bitSet.get(getBitSetIndex(3, 4));
+        return (this.value & mask(3, 4)) != 0;
     }
 
     public void setOnlinePINEntered(boolean value) {
-        bitSet.set(getBitSetIndex(3, 3), value);
+        set(mask(3, 3), value);
     }
 
     public boolean onlinePINEntered() {
-        return bitSet.get(getBitSetIndex(3, 3));
+        return (this.value & mask(3, 3)) != 0;
     }
 
     //2 rightmost bits of the third byte are RFU
     //Fourth byte
     public void setTransactionExceedsFloorLimit(boolean value) {
-        bitSet.set(getBitSetIndex(4, 8), value);
+        set(mask(4, 8), value);
     }
 
     public boolean transactionExceedsFloorLimit() {
-        return bitSet.get(getBitSetIndex(4, 8));
+        return (this.value & mask(4, 8)) != 0;
     }
 
     public void setLowerConsecutiveOfflineLimitExceeded(boolean value) {
-        bitSet.set(getBitSetIndex(4, 7), value);
+        set(mask(4, 7), value);
     }
 
     public boolean lowerConsecutiveOfflineLimitExceeded() {
-        return bitSet.get(getBitSetIndex(4, 7));
+        return (this.value & mask(4, 7)) != 0;
     }
 
     public void setUpperConsecutiveOfflineLimitExceeded(boolean value) {
-        bitSet.set(getBitSetIndex(4, 6), value);
+        set(mask(4, 6), value);
     }
 
     public boolean upperConsecutiveOfflineLimitExceeded() {
-        return bitSet.get(getBitSetIndex(4, 6));
+        return (this.value & mask(4, 6)) != 0;
     }
 
     public void setTransactionSelectedRandomlyForOnlineProcessing(boolean value) {
-        bitSet.set(getBitSetIndex(4, 5), value);
+        set(mask(4, 5), value);
     }
 
     public boolean transactionSelectedRandomlyForOnlineProcessing() {
-        return bitSet.get(getBitSetIndex(4, 5));
+        return (this.value & mask(4, 5)) != 0;
     }
 
     public void setMerchantForcedTransactionOnline(boolean value) {
-        bitSet.set(getBitSetIndex(4, 4), value);
+        set(mask(4, 4), value);
     }
 
     public boolean merchantForcedTransactionOnline() {
-        return bitSet.get(getBitSetIndex(4, 4));
+        return (this.value & mask(4, 4)) != 0;
     }
 
     //3 rightmost bits of the fourth byte are RFU
     //Fifth byte
     public void setDefaultTDOLused(boolean value) {
-        bitSet.set(getBitSetIndex(5, 8), value);
+        set(mask(5, 8), value);
     }
 
     public boolean defaultTDOLused() {
-        return bitSet.get(getBitSetIndex(5, 8));
+        return (this.value & mask(5, 8)) != 0;
     }
 
     public void setIssuerAuthenticationFailed(boolean value) {
-        bitSet.set(getBitSetIndex(5, 7), value);
+        set(mask(5, 7), value);
     }
 
     public boolean issuerAuthenticationFailed() {
-        return bitSet.get(getBitSetIndex(5, 7));
+        return (this.value & mask(5, 7)) != 0;
     }
 
     public void setScriptProcessingFailedBeforeFinal_GENERATE_AC(boolean value) {
-        bitSet.set(getBitSetIndex(5, 6), value);
+        set(mask(5, 6), value);
     }
 
     public boolean scriptProcessingFailedBeforeFinal_GENERATE_AC() {
-        return bitSet.get(getBitSetIndex(5, 6));
+        return (this.value & mask(5, 6)) != 0;
     }
 
     public void setScriptProcessingFailedAfterFinal_GENERATE_AC(boolean value) {
-        bitSet.set(getBitSetIndex(5, 5), value);
+        set(mask(5, 5), value);
     }
 
     public boolean scriptProcessingFailedAfterFinal_GENERATE_AC() {
-        return bitSet.get(getBitSetIndex(5, 5));
+        return (this.value & mask(5, 5)) != 0;
     }
     
     public void reset() {
-        bitSet.clear();
+        value = 0;
+    }
+
+    /**
+     * @return the 5 TVR bytes packed into the 40 rightmost bits of a long
+     */
+    public long getValue() {
+        return value;
     }
 
     //4 rightmost bits of the fifth byte are RFU
     public byte[] toByteArray() {
-        return Util.resizeArray(Util.bitSet2ByteArray(bitSet), 5);
+        byte[] data = new byte[5];
+        toByteArray(data, 0);
+        return data;
     }
 
-    private int getBitSetIndex(int byteNum, int bitPos) {
-        //byteNum 1 is the leftmost byte
-        //bitNum 1 is the rightmost bit
-        if (byteNum > 8 || byteNum < 1 || bitPos > 8 || bitPos < 1) {
-            throw new IllegalArgumentException("byteNum and bitPos must be in the range 1-8. byteNum=" + byteNum + " bitPost=" + bitPos);
+    /**
+     * Writes the 5 TVR bytes into dst (eg a DOL response buffer)
+     */
+    public void toByteArray(byte[] dst, int offset) {
+        for (int i = 0; i < 5; i++) {
+            dst[offset + i] = (byte) (value >>> ((4 - i) * 8));
         }
-        return (5 - byteNum) * 8 + (bitPos - 1);
     }
 
-    //TODO checkActionCode(byte[] actionCode) ?????
+    /**
+     * Packs a 5 byte TVR (or Issuer/Terminal Action Code) into the 40 rightmost bits of a long
+     */
+    public static long pack(byte[] data) {
+        long packed = 0;
+        for (int i = 0; i < 5; i++) {
+            packed = (packed << 8) | (data[i] & 0xff);
+        }
+        return packed;
+    }
+
+    private void set(long mask, boolean bitValue) {
+        if (bitValue) {
+            value |= mask;
+        } else {
+            value &= ~mask;
+        }
+    }
+
+    private static long mask(int byteNum, int bitPos) {
+        //byteNum 1 is the leftmost byte
+        //bitNum 1 is the rightmost bit
+        return 1L << ((5 - byteNum) * 8 + (bitPos - 1));
+    }
     
     @Override
     public String toString() {
@@ -348,9 +380,9 @@ public class TerminalVerificationResults {
 
         String indentStr = Util.getSpaces(indent + Log.INDENT_SIZE);
 
-        for (int i = bitSet.size() - 1; i >= 0; i--) {
+        for (int i = description.length - 1; i >= 0; i--) {
             //print the leftmost set bit first
-            if (bitSet.get(i)) {
+            if ((value & (1L << i)) != 0) {
                 pw.println(indentStr + description[i]);
             }
         }
@@ -66,7 +66,7 @@ public class Track2EquivalentData {
     }
 
     public Date getExpirationDate() {
-        return (Date) expirationDate.clone();
+        return expirationDate != null ? (Date) expirationDate.clone() : null;
     }
 
     public ServiceCode getServiceCode() {
@@ -77,6 +77,10 @@ public class Track2EquivalentData {
         return pan;
     }
 
+    public String getDiscretionaryData() {
+        return discretionaryData;
+    }
+
     @Override
     public String toString() {
         StringWriter sw = new StringWriter();
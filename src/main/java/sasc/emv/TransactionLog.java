@@ -18,8 +18,13 @@ package sasc.emv;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import sasc.emv.TransactionLogDecoder.Column;
+import sasc.iso7816.Tag;
 import sasc.iso7816.TagAndLength;
+import sasc.util.ISO3166_1;
+import sasc.util.ISO4217_Numeric;
 import sasc.util.Log;
 import sasc.util.Util;
 
@@ -32,6 +37,7 @@ public class TransactionLog {
     private LogFormat logFormat;
     private List<Record> logRecords = new ArrayList<Record>();
     private boolean isProcessed = false;
+    private TransactionLogDecoder decoder = null;
     
     public TransactionLog(LogFormat logFormat) {
         this.logFormat = logFormat;
@@ -67,6 +73,16 @@ public class TransactionLog {
         return logRecords;
     }
 
+    /**
+     * @return the decoder for the Log Format (compiled once)
+     */
+    public TransactionLogDecoder getDecoder() {
+        if (decoder == null) {
+            decoder = new TransactionLogDecoder(logFormat);
+        }
+        return decoder;
+    }
+
     @Override
     public String toString() {
         StringWriter sw = new StringWriter();
@@ -84,7 +100,6 @@ public class TransactionLog {
         if (!logRecords.isEmpty()) {
 
             for (Record record : logRecords) {
-                //TODO format record
                 record.dump(pw, indent + Log.INDENT_SIZE*2);
             }
         } else {
@@ -101,6 +116,17 @@ public class TransactionLog {
             this.recordData = recordData;
         }
 
+        public byte[] getRawData() {
+            return Util.copyByteArray(recordData);
+        }
+
+        /**
+         * @return the record data (not a copy)
+         */
+        byte[] getData() {
+            return recordData;
+        }
+
         @Override
         public String toString() {
             StringWriter sw = new StringWriter();
@@ -108,19 +134,76 @@ public class TransactionLog {
             return sw.toString();
         }
 
+        /**
+         * Prints the data elements known to the TransactionLogDecoder decoded,
+         * and the other data elements as hex
+         */
         public void dump(PrintWriter pw, int indent) {
             pw.println(Util.getSpaces(indent) + "Record:");
             String indentStr = Util.getSpaces(indent + 3);
 
+            TransactionLogDecoder logDecoder = getDecoder();
+            EnumSet<Column> decoded = EnumSet.noneOf(Column.class);
             int offset = 0;
             for (TagAndLength tagAndLength : logFormat.getTagAndLengthList()) {
                 byte[] value = new byte[tagAndLength.getLength()];
                 System.arraycopy(recordData, offset, value, 0, value.length);
-                pw.println(indentStr + tagAndLength.getTag().getName() + ": " + Util.prettyPrintHexNoWrap(value));
+                String valueStr = null;
+                Column column = getColumn(tagAndLength.getTag());
+                //The decoder decodes the first occurrence of a data element only
+                if (column != null && decoded.add(column)) {
+                    valueStr = format(logDecoder, column, value);
+                }
+                if (valueStr == null) {
+                    valueStr = Util.prettyPrintHexNoWrap(value);
+                }
+                pw.println(indentStr + tagAndLength.getTag().getName() + ": " + valueStr);
                 offset += value.length;
             }
 
         }
+
+        /**
+         * @return the decoded value, or null if the value is not valid
+         */
+        private String format(TransactionLogDecoder logDecoder, Column column, byte[] value) {
+            if (column == Column.MERCHANT_NAME_AND_LOCATION) {
+                return logDecoder.getMerchantNameAndLocation(recordData, 0);
+            }
+            long decodedValue = logDecoder.getLong(column, recordData, 0);
+            if (decodedValue == -1) {
+                return null;
+            }
+            switch (column) {
+                case TRANSACTION_DATE:
+                    String yyyymmdd = String.format("%08d", decodedValue);
+                    return yyyymmdd.substring(0, 4) + "-" + yyyymmdd.substring(4, 6) + "-" + yyyymmdd.substring(6, 8);
+                case TRANSACTION_TIME:
+                    String hhmmss = String.format("%06d", decodedValue);
+                    return hhmmss.substring(0, 2) + ":" + hhmmss.substring(2, 4) + ":" + hhmmss.substring(4, 6);
+                case TRANSACTION_CURRENCY_CODE:
+                    ISO4217_Numeric.Currency currency = ISO4217_Numeric.getCurrencyForCode((int) decodedValue);
+                    return decodedValue + (currency != null ? " (" + currency.getCode() + ")" : "");
+                case TERMINAL_COUNTRY_CODE:
+                    String country = ISO3166_1.getCountryForCode((int) decodedValue);
+                    return decodedValue + (country != null && country.trim().length() > 0 ? " (" + country + ")" : "");
+                case TRANSACTION_TYPE:
+                    return Util.byte2Hex(value[0]) + " (" + new TransactionType(value[0]).getDescription() + ")";
+                case CRYPTOGRAM_INFORMATION_DATA:
+                    return Util.byte2Hex(value[0]) + " (" + new CryptogramInformationData(value[0]).getTEXT() + ")";
+                default:
+                    return String.valueOf(decodedValue);
+            }
+        }
+    }
+
+    private static Column getColumn(Tag tag) {
+        for (Column column : Column.values()) {
+            if (column.getTag().equals(tag)) {
+                return column;
+            }
+        }
+        return null;
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.IOException;
+import java.util.List;
+import sasc.emv.TransactionLogDecoder.Column;
+import sasc.util.StructuredWriter;
+
+/**
+ * A fixed capacity batch of decoded transaction log records, stored by column
+ * (one primitive array per data element), for bulk export of the logs of many cards.
+ *
+ * Typical use: add the logs of each card with addAll (which stops when the batch is full),
+ * export the batch, clear it, and continue from the returned index.
+ * Values that are not logged by a card are -1 (empty in CSV, null in structured output).
+ *
+ * @author sasc
+ */
+public class TransactionLogBatch {
+
+    private static final Column[] COLUMNS = TransactionLogDecoder.Column.values();
+    private static final int MERCHANT = Column.MERCHANT_NAME_AND_LOCATION.ordinal();
+
+    private final int capacity;
+    private final String[] sources;
+    private final long[][] numeric = new long[COLUMNS.length][];
+    private final String[] merchantNames;
+    private int size = 0;
+
+    public TransactionLogBatch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.sources = new String[capacity];
+        this.merchantNames = new String[capacity];
+        for (Column column : COLUMNS) {
+            if (column.ordinal() != MERCHANT) {
+                numeric[column.ordinal()] = new long[capacity];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            sources[i] = null;
+            merchantNames[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Decodes one log record into the batch
+     *
+     * @param source identifies the card (eg PAN or file name), exported with each row
+     * @return false if the batch is full
+     */
+    public boolean add(String source, TransactionLogDecoder decoder, byte[] record, int offset) {
+        if (isFull()) {
+            return false;
+        }
+        int row = size++;
+        sources[row] = source;
+        for (Column column : COLUMNS) {
+            if (column.ordinal() == MERCHANT) {
+                merchantNames[row] = decoder.getMerchantNameAndLocation(record, offset);
+            } else {
+                numeric[column.ordinal()][row] = decoder.getLong(column, record, offset);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the records of a transaction log, starting at fromIndex, until the batch is full.
+     * Each column is decoded for all the records before the next column.
+     *
+     * @param source identifies the card (eg PAN or file name), exported with each row
+     * @return the index of the first record not added (the number of records if all were added)
+     */
+    public int addAll(String source, TransactionLog log, int fromIndex) {
+        List<TransactionLog.Record> records = log.getRecords();
+        TransactionLogDecoder decoder = log.getDecoder();
+        int count = Math.min(records.size() - fromIndex, capacity - size);
+        if (count <= 0) {
+            return Math.min(fromIndex, records.size());
+        }
+        for (int i = 0; i < count; i++) {
+            sources[size + i] = source;
+        }
+        for (Column column : COLUMNS) {
+            if (column.ordinal() == MERCHANT) {
+                for (int i = 0; i < count; i++) {
+                    merchantNames[size + i] = decoder.getMerchantNameAndLocation(records.get(fromIndex + i).getData(), 0);
+                }
+            } else {
+                long[] values = numeric[column.ordinal()];
+                for (int i = 0; i < count; i++) {
+                    values[size + i] = decoder.getLong(column, records.get(fromIndex + i).getData(), 0);
+                }
+            }
+        }
+        size += count;
+        return fromIndex + count;
+    }
+
+    public String getSource(int row) {
+        checkRow(row);
+        return sources[row];
+    }
+
+    /**
+     * @return the value of a numeric column, or -1 if not logged
+     */
+    public long getLong(Column column, int row) {
+        checkRow(row);
+        if (column.ordinal() == MERCHANT) {
+            throw new IllegalArgumentException("Not a numeric column: " + column);
+        }
+        return numeric[column.ordinal()][row];
+    }
+
+    public String getMerchantNameAndLocation(int row) {
+        checkRow(row);
+        return merchantNames[row];
+    }
+
+    /**
+     * Writes the batch as CSV (RFC 4180), one line per record
+     *
+     * @param header true to write the column names first
+     */
+    public void writeCSV(Appendable out, boolean header) throws IOException {
+        if (header) {
+            out.append("source");
+            for (Column column : COLUMNS) {
+                out.append(',').append(column.name().toLowerCase());
+            }
+            out.append("\r\n");
+        }
+        for (int row = 0; row < size; row++) {
+            appendCSV(out, sources[row]);
+            for (Column column : COLUMNS) {
+                out.append(',');
+                if (column.ordinal() == MERCHANT) {
+                    appendCSV(out, merchantNames[row]);
+                } else {
+                    long value = numeric[column.ordinal()][row];
+                    if (value != -1) {
+                        out.append(Long.toString(value));
+                    }
+                }
+            }
+            out.append("\r\n");
+        }
+    }
+
+    /**
+     * Writes the batch column by column: an object with the row count,
+     * and one array per column (the names are the same as the CSV header)
+     */
+    public void write(StructuredWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("rows");
+        writer.value(size);
+        writer.name("source");
+        writer.beginArray();
+        for (int row = 0; row < size; row++) {
+            writeNullable(writer, sources[row]);
+        }
+        writer.endArray();
+        for (Column column : COLUMNS) {
+            writer.name(column.name().toLowerCase());
+            writer.beginArray();
+            if (column.ordinal() == MERCHANT) {
+                for (int row = 0; row < size; row++) {
+                    writeNullable(writer, merchantNames[row]);
+                }
+            } else {
+                long[] values = numeric[column.ordinal()];
+                for (int row = 0; row < size; row++) {
+                    if (values[row] == -1) {
+                        writer.nullValue();
+                    } else {
+                        writer.value(values[row]);
+                    }
+                }
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+    }
+
+    private static void writeNullable(StructuredWriter writer, String value) throws IOException {
+        if (value == null) {
+            writer.nullValue();
+        } else {
+            writer.value(value);
+        }
+    }
+
+    private static void appendCSV(Appendable out, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            out.append(value);
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                out.append('"');
+            }
+            out.append(c);
+        }
+        out.append('"');
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + ", size " + size);
+        }
+    }
+}
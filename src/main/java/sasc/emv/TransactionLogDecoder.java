@@ -0,0 +1,163 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.util.Arrays;
+import sasc.iso7816.Tag;
+import sasc.iso7816.TagAndLength;
+
+/**
+ * Decodes transaction log records into typed values.
+ *
+ * The Log Format is compiled once into the offset and length of each known data element,
+ * so decoding a record is a few array reads (no parsing and no allocation, except for
+ * the merchant name). Data elements not in the Log Format decode as -1 (or null).
+ *
+ * @author sasc
+ */
+public class TransactionLogDecoder {
+
+    public static enum Column {
+        AMOUNT_AUTHORISED(EMVTags.AMOUNT_AUTHORISED_NUMERIC),
+        AMOUNT_OTHER(EMVTags.AMOUNT_OTHER_NUMERIC),
+        TRANSACTION_CURRENCY_CODE(EMVTags.TRANSACTION_CURRENCY_CODE),
+        /**
+         * YYYYMMDD
+         */
+        TRANSACTION_DATE(EMVTags.TRANSACTION_DATE),
+        /**
+         * HHMMSS
+         */
+        TRANSACTION_TIME(EMVTags.TRANSACTION_TIME),
+        TRANSACTION_TYPE(EMVTags.TRANSACTION_TYPE),
+        ATC(EMVTags.APP_TRANSACTION_COUNTER),
+        TERMINAL_COUNTRY_CODE(EMVTags.TERMINAL_COUNTRY_CODE),
+        CRYPTOGRAM_INFORMATION_DATA(EMVTags.CRYPTOGRAM_INFORMATION_DATA),
+        MERCHANT_NAME_AND_LOCATION(EMVTags.MERCHANT_NAME_AND_LOCATION);
+
+        private final Tag tag;
+
+        private Column(Tag tag) {
+            this.tag = tag;
+        }
+
+        public Tag getTag() {
+            return tag;
+        }
+    }
+
+    private static final Column[] COLUMNS = Column.values();
+
+    private final int recordLength;
+    private final int[] offsets = new int[COLUMNS.length];
+    private final int[] lengths = new int[COLUMNS.length];
+
+    public TransactionLogDecoder(LogFormat logFormat) {
+        Arrays.fill(offsets, -1);
+        int offset = 0;
+        for (TagAndLength tal : logFormat.getTagAndLengthList()) {
+            for (Column column : COLUMNS) {
+                if (column.tag.equals(tal.getTag()) && offsets[column.ordinal()] == -1) {
+                    offsets[column.ordinal()] = offset;
+                    lengths[column.ordinal()] = tal.getLength();
+                }
+            }
+            offset += tal.getLength();
+        }
+        this.recordLength = offset;
+    }
+
+    public int getRecordLength() {
+        return recordLength;
+    }
+
+    /**
+     * @return true if the Log Format contains the data element
+     */
+    public boolean hasColumn(Column column) {
+        return offsets[column.ordinal()] != -1;
+    }
+
+    /**
+     * Decodes a numeric column (everything except the merchant name)
+     *
+     * @param record the log record(s)
+     * @param recordOffset the offset of the log record in the array
+     * @return the value, or -1 if the data element is not logged (or is not valid BCD)
+     */
+    public long getLong(Column column, byte[] record, int recordOffset) {
+        int offset = offsets[column.ordinal()];
+        if (offset == -1) {
+            return -1;
+        }
+        offset += recordOffset;
+        int length = lengths[column.ordinal()];
+        switch (column) {
+            case ATC:
+            case CRYPTOGRAM_INFORMATION_DATA:
+                return unsigned(record, offset, length);
+            case TRANSACTION_DATE:
+                long yymmdd = bcd(record, offset, length);
+                return yymmdd == -1 ? -1 : 20000000 + yymmdd;
+            case MERCHANT_NAME_AND_LOCATION:
+                throw new IllegalArgumentException("Not a numeric column: " + column);
+            default:
+                return bcd(record, offset, length);
+        }
+    }
+
+    /**
+     * @return the merchant name and location (trailing spaces removed), or null if not logged
+     */
+    public String getMerchantNameAndLocation(byte[] record, int recordOffset) {
+        int offset = offsets[Column.MERCHANT_NAME_AND_LOCATION.ordinal()];
+        if (offset == -1) {
+            return null;
+        }
+        offset += recordOffset;
+        int end = offset + lengths[Column.MERCHANT_NAME_AND_LOCATION.ordinal()];
+        while (end > offset && (record[end - 1] == ' ' || record[end - 1] == 0)) {
+            end--;
+        }
+        char[] chars = new char[end - offset];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (record[offset + i] & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    private static long unsigned(byte[] buf, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length && i < 8; i++) {
+            value = (value << 8) | (buf[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static long bcd(byte[] buf, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length && i < 9; i++) {
+            int b = buf[offset + i] & 0xFF;
+            int high = b >>> 4;
+            int low = b & 0x0F;
+            if (high > 9 || low > 9) {
+                return -1;
+            }
+            value = value * 100 + high * 10 + low;
+        }
+        return value;
+    }
+}
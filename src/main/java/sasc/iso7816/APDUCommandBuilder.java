@@ -15,15 +15,212 @@
  */
 package sasc.iso7816;
 
+import sasc.util.Util;
+
 /**
+ * Builds (and inspects) command APDUs, both short and extended length
+ *
+ * case 1 : |CLA|INS|P1 |P2 |                                  len = 4
+ * case 2s: |CLA|INS|P1 |P2 |LE |                              len = 5
+ * case 3s: |CLA|INS|P1 |P2 |LC |...BODY...|                   len = 6..260
+ * case 4s: |CLA|INS|P1 |P2 |LC |...BODY...|LE |               len = 7..261
+ * case 2e: |CLA|INS|P1 |P2 |00 |LE1|LE2|                      len = 7
+ * case 3e: |CLA|INS|P1 |P2 |00 |LC1|LC2|...BODY...|           len = 8..65542
+ * case 4e: |CLA|INS|P1 |P2 |00 |LC1|LC2|...BODY...|LE1|LE2|   len = 10..65544
+ *
+ * Le=00 (short) means 256 bytes, and Le=0000 (extended) means 65536 bytes
  *
  * @author sasc
  */
 public class APDUCommandBuilder {
+
+    public static final int MAX_SHORT_LC = 255;
+    public static final int MAX_SHORT_NE = 256;
+    public static final int MAX_EXTENDED_LC = 65535;
+    public static final int MAX_EXTENDED_NE = 65536;
+
     //If Lc is short, then Le is short
     //If Lc is extended, then Le is extended
     //Lc is only present if commandData.length > 0
+    /**
+     * @param commandData the command data (may be null or empty)
+     * @param maxExpectedResponseBytes Ne (0 = no Le field). Extended length is used if Ne > 256 or Nc > 255
+     */
     public static byte[] build(byte cls, byte ins, byte p1, byte p2, byte[] commandData, int maxExpectedResponseBytes){
-        return null;
+        return build(cls, ins, p1, p2, commandData, maxExpectedResponseBytes, false);
+    }
+
+    /**
+     * @return true if the APDU is case 2e, 3e or 4e
+     * @throws IllegalArgumentException if the APDU is malformed
+     */
+    public static boolean isExtendedLength(byte[] cmd){
+        return isExtendedLength(cmd, 0, cmd != null ? cmd.length : 0);
+    }
+
+    public static boolean isExtendedLength(byte[] buffer, int offset, int length){
+        getLeLength(buffer, offset, length); //Validate
+        //B1 is never 00 in a short case 3 or 4 APDU
+        return length > 5 && buffer[offset+4] == 0x00;
+    }
+
+    /**
+     * @return Nc, the number of command data bytes
+     * @throws IllegalArgumentException if the APDU is malformed
+     */
+    public static int getNc(byte[] cmd){
+        return getNc(cmd, 0, cmd != null ? cmd.length : 0);
+    }
+
+    public static int getNc(byte[] buffer, int offset, int length){
+        int headerLength = isExtendedLength(buffer, offset, length) ? 7 : 5;
+        return Math.max(0, length - getLeLength(buffer, offset, length) - headerLength);
+    }
+
+    /**
+     * @return Ne, the maximum number of response bytes expected (0 if the APDU has no Le field)
+     * @throws IllegalArgumentException if the APDU is malformed
+     */
+    public static int getNe(byte[] cmd){
+        return getNe(cmd, 0, cmd != null ? cmd.length : 0);
+    }
+
+    public static int getNe(byte[] buffer, int offset, int length){
+        int leLength = getLeLength(buffer, offset, length);
+        int end = offset + length;
+        if(leLength == 0){
+            return 0;
+        }
+        if(leLength == 1){
+            int le = Util.byteToInt(buffer[end-1]);
+            return le == 0 ? MAX_SHORT_NE : le;
+        }
+        int le = Util.byteToInt(buffer[end-2], buffer[end-1]);
+        return le == 0 ? MAX_EXTENDED_NE : le;
+    }
+
+    /**
+     * Returns a copy of the APDU, with the Le field set to encode ne (eg when re-issuing a command after SW1='6C').
+     * An extended length APDU stays extended. A short APDU is converted to extended length if ne > 256
+     *
+     * @throws IllegalArgumentException if the APDU is malformed
+     */
+    public static byte[] withNe(byte[] cmd, int ne){
+        boolean extended = isExtendedLength(cmd);
+        int nc = getNc(cmd);
+        byte[] data = new byte[nc];
+        System.arraycopy(cmd, extended ? 7 : 5, data, 0, nc);
+        return build(cmd[0], cmd[1], cmd[2], cmd[3], data, ne, extended);
+    }
+
+    /**
+     * Writes the APDU into a caller-owned buffer (no allocation)
+     *
+     * @param maxExpectedResponseBytes Ne (0 = no Le field). Extended length is used if Ne > 256 or Nc > 255
+     * @return the length of the APDU
+     * @throws IndexOutOfBoundsException if the APDU does not fit in the buffer
+     */
+    public static int build(byte cls, byte ins, byte p1, byte p2, byte[] commandData, int dataOffset, int dataLength,
+            int maxExpectedResponseBytes, byte[] buffer, int offset){
+        return build(cls, ins, p1, p2, commandData, dataOffset, dataLength, maxExpectedResponseBytes, false, buffer, offset);
+    }
+
+    /**
+     * @return the length of the APDU with Nc command data bytes and the given Ne
+     */
+    public static int getLength(int nc, int ne){
+        return getLength(nc, ne, nc > MAX_SHORT_LC || ne > MAX_SHORT_NE);
+    }
+
+    private static int getLength(int nc, int ne, boolean extended){
+        int lcLength = nc == 0 ? 0 : (extended ? 3 : 1);
+        int leLength = ne == 0 ? 0 : (extended ? (nc == 0 ? 3 : 2) : 1);
+        return 4 + lcLength + nc + leLength;
+    }
+
+    private static byte[] build(byte cls, byte ins, byte p1, byte p2, byte[] commandData, int ne, boolean forceExtended){
+        int nc = commandData != null ? commandData.length : 0;
+        boolean extended = forceExtended || nc > MAX_SHORT_LC || ne > MAX_SHORT_NE;
+        byte[] cmd = new byte[getLength(nc, ne, extended)];
+        build(cls, ins, p1, p2, commandData, 0, nc, ne, extended, cmd, 0);
+        return cmd;
+    }
+
+    private static int build(byte cls, byte ins, byte p1, byte p2, byte[] commandData, int dataOffset, int nc,
+            int ne, boolean forceExtended, byte[] cmd, int start){
+        if(nc < 0 || nc > MAX_EXTENDED_LC){
+            throw new IllegalArgumentException("Invalid command data length: " + nc);
+        }
+        if(ne < 0 || ne > MAX_EXTENDED_NE){
+            throw new IllegalArgumentException("Invalid maxExpectedResponseBytes: " + ne);
+        }
+        boolean extended = forceExtended || nc > MAX_SHORT_LC || ne > MAX_SHORT_NE;
+        int offset = start;
+        cmd[offset++] = cls;
+        cmd[offset++] = ins;
+        cmd[offset++] = p1;
+        cmd[offset++] = p2;
+        if(nc > 0){
+            if(extended){
+                cmd[offset++] = 0x00;
+                cmd[offset++] = (byte)(nc >>> 8);
+            }
+            cmd[offset++] = (byte)nc;
+            System.arraycopy(commandData, dataOffset, cmd, offset, nc);
+            offset += nc;
+        }
+        if(ne > 0){
+            if(extended){
+                if(nc == 0){
+                    cmd[offset++] = 0x00;
+                }
+                cmd[offset++] = (byte)(ne >>> 8); //65536 is encoded as 0000
+            }
+            cmd[offset++] = (byte)ne; //256 is encoded as 00
+        }
+        return offset - start;
+    }
+
+    /**
+     * @return the length of the Le field (0, 1, 2 or 3)
+     */
+    private static int getLeLength(byte[] buffer, int offset, int length){
+        if(buffer == null){
+            throw new IllegalArgumentException("Param cmd cannot be null");
+        }
+        if(length < 4){
+            throw new IllegalArgumentException("APDU must be at least 4 bytes long: " + length);
+        }
+        if(offset < 0 || offset + length > buffer.length){
+            throw new IllegalArgumentException("Invalid offset/length: " + offset + "/" + length + " (buffer length " + buffer.length + ")");
+        }
+        if(length == 4){
+            return 0; //case 1
+        }
+        if(length == 5){
+            return 1; //case 2s
+        }
+        int b1 = Util.byteToInt(buffer[offset+4]);
+        if(b1 != 0){
+            if(length == 5 + b1){
+                return 0; //case 3s
+            }
+            if(length == 5 + b1 + 1){
+                return 1; //case 4s
+            }
+        }else if(length == 7){
+            return 3; //case 2e
+        }else if(length > 7){
+            int lc = Util.byteToInt(buffer[offset+5], buffer[offset+6]);
+            if(lc != 0){
+                if(length == 7 + lc){
+                    return 0; //case 3e
+                }
+                if(length == 7 + lc + 2){
+                    return 2; //case 4e
+                }
+            }
+        }
+        throw new IllegalArgumentException("Unsupported APDU format: " + Util.prettyPrintHexNoWrap(buffer, offset, length));
     }
 }
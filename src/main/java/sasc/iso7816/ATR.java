@@ -77,6 +77,16 @@ public class ATR {
         return isoATR;
     }
     
+    /**
+     * @return the card capabilities indicated in the historical bytes (short length only if not ISO compliant)
+     */
+    public CardCapabilities getCardCapabilities(){
+        if(!isIsoCompliant()){
+            return CardCapabilities.SHORT_LENGTH_ONLY;
+        }
+        return CardCapabilities.fromHistoricalBytes(isoATR.getHistoricalBytes());
+    }
+
     public byte[] getBytes(){
         return atrBytes;
     }
@@ -17,6 +17,8 @@ package sasc.iso7816;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.List;
 import sasc.emv.EMVTags;
 import sasc.util.Util;
 
@@ -30,6 +32,7 @@ public class BERTLV {
     private byte[] rawEncodedLengthBytes;
     private byte[] valueBytes;
     private int length;
+    private List<BERTLV> children = null;
 
     /**
      *
@@ -56,9 +59,51 @@ public class BERTLV {
         this.length = valueBytes.length;
     }
     
+    /**
+     * Encodes the length in the minimal definite form
+     */
     public static byte[] encodeLength(int length){
-        //TODO
-        throw new UnsupportedOperationException("Not implemented yet");
+        byte[] encoded = new byte[getEncodedLengthSize(length)];
+        encodeLength(length, encoded, 0);
+        return encoded;
+    }
+
+    /**
+     * Encodes the length in the minimal definite form into the buffer
+     *
+     * @return the number of bytes written (1 to 5)
+     */
+    public static int encodeLength(int length, byte[] buffer, int offset){
+        int size = getEncodedLengthSize(length);
+        if (size == 1) {
+            buffer[offset] = (byte) length;
+            return 1;
+        }
+        buffer[offset] = (byte) (0x80 | (size - 1));
+        for (int i = size - 1; i > 0; i--) {
+            buffer[offset + i] = (byte) length;
+            length >>>= 8;
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of bytes needed to encode the length (1 to 5)
+     */
+    public static int getEncodedLengthSize(int length){
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative length: " + length);
+        }
+        if (length < 0x80) {
+            return 1;
+        } else if (length <= 0xFF) {
+            return 2;
+        } else if (length <= 0xFFFF) {
+            return 3;
+        } else if (length <= 0xFFFFFF) {
+            return 4;
+        }
+        return 5;
     }
 
     public byte[] getTagBytes() {
@@ -73,6 +118,28 @@ public class BERTLV {
         return valueBytes;
     }
 
+    /**
+     * The TLV objects contained in the value of a constructed data object.
+     * Parsed on first access, and cached
+     */
+    public List<BERTLV> getChildren() {
+        if (!tag.isConstructed()) {
+            throw new IllegalStateException("Not a constructed data object: " + Util.byteArrayToHexString(getTagBytes()));
+        }
+        if (children == null) {
+            //Strict mode decodes the whole subtree at once, within TLVLimits.DEFAULT
+            children = Collections.unmodifiableList(TLVUtil.parseList(valueBytes, TLVLimits.DEFAULT));
+        }
+        return children;
+    }
+
+    /**
+     * Sets the children parsed in strict mode (so getChildren does not parse them again)
+     */
+    void setChildren(List<BERTLV> children) {
+        this.children = Collections.unmodifiableList(children);
+    }
+
     public ByteArrayInputStream getValueStream() {
         return new ByteArrayInputStream(valueBytes);
     }
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import java.util.Arrays;
+import sasc.emv.EMVUtil;
+import sasc.emv.SWDescriptor;
+import sasc.terminal.CardConnection;
+import sasc.terminal.CardResponse;
+import sasc.terminal.TerminalException;
+import sasc.util.Log;
+import sasc.util.Util;
+
+/**
+ * Reads a transparent file (or the memory of a storage card) with READ BINARY,
+ * in the largest blocks the card accepts.
+ *
+ * The block size starts at the largest Ne the card supports, and is adjusted from the
+ * card's replies: a '6Cxx' reply sets the block size, and '6700' (wrong length) halves it.
+ * A short reply with '9000' only shortens the next read, since it may just be the end of
+ * the file. It becomes the block size if the card fills the shortened read as well.
+ * The block size is remembered between reads, so a reader should be reused for the same card.
+ *
+ * The file ends at the expected length (if given), on '6282' (end of file reached),
+ * on an empty reply, or on an error ('6B00' offset outside the EF, '6A82' file not found etc).
+ *
+ * @author sasc
+ */
+public class BinaryFileReader {
+
+    private static final byte INS_READ_BINARY = (byte) 0xB0;
+    private static final int MAX_ISO_OFFSET = 0x7FFF; //P1 b8 set means SFI
+    private static final int MAX_STORAGE_CARD_ADDRESS = 0xFFFF;
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    private final CardConnection terminal;
+    private final byte cls;
+    private final int bytesPerAddressUnit;
+    private final int maxAddress;
+    private int blockSize;
+
+    private BinaryFileReader(CardConnection terminal, byte cls, int bytesPerAddressUnit, int maxAddress) {
+        if (terminal == null) {
+            throw new IllegalArgumentException("Param terminal cannot be null");
+        }
+        if (bytesPerAddressUnit < 1 || bytesPerAddressUnit > APDUCommandBuilder.MAX_SHORT_NE) {
+            throw new IllegalArgumentException("Invalid bytesPerAddressUnit: " + bytesPerAddressUnit);
+        }
+        this.terminal = terminal;
+        this.cls = cls;
+        this.bytesPerAddressUnit = bytesPerAddressUnit;
+        this.maxAddress = maxAddress;
+        this.blockSize = roundToAddressUnit(APDUCommandBuilder.MAX_SHORT_NE);
+    }
+
+    /**
+     * ISO 7816-4 READ BINARY (CLA '00'), with P1P2 = byte offset
+     */
+    public static BinaryFileReader forTransparentFile(CardConnection terminal) {
+        return new BinaryFileReader(terminal, Iso7816Commands.ISO_CLA, 1, MAX_ISO_OFFSET);
+    }
+
+    /**
+     * PC/SC part 3 READ BINARY (CLA 'FF'), with P1P2 = block number (or byte address, if bytesPerBlock is 1)
+     */
+    public static BinaryFileReader forStorageCard(CardConnection terminal, int bytesPerBlock) {
+        return new BinaryFileReader(terminal, (byte) 0xFF, bytesPerBlock, MAX_STORAGE_CARD_ADDRESS);
+    }
+
+    /**
+     * Lets the reader use extended length Le, if the card supports it
+     */
+    public void setCardCapabilities(CardCapabilities capabilities) {
+        int maxNe = capabilities.getMaxResponseDataLength();
+        if (!capabilities.isExtendedLengthSupported()) {
+            maxNe = Math.min(maxNe, APDUCommandBuilder.MAX_SHORT_NE);
+        }
+        blockSize = roundToAddressUnit(maxNe);
+    }
+
+    /**
+     * Limits the block size, eg to the MLe in an NFC Forum Type 4 Tag capability container
+     */
+    public void setMaxBlockSize(int maxBlockSize) {
+        if (maxBlockSize < 1) {
+            throw new IllegalArgumentException("Invalid maxBlockSize: " + maxBlockSize);
+        }
+        blockSize = roundToAddressUnit(Math.min(blockSize, maxBlockSize));
+    }
+
+    /**
+     * @return the number of bytes requested per READ BINARY
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Reads the current file (or the card memory) from the beginning until the end
+     */
+    public byte[] read() throws TerminalException {
+        return read(-1, -1);
+    }
+
+    /**
+     * @param expectedLength the file size, if known (eg from the FCP or the NDEF capability container), or -1
+     */
+    public byte[] read(int expectedLength) throws TerminalException {
+        return read(-1, expectedLength);
+    }
+
+    /**
+     * Reads the file with the Short File Identifier (the file becomes the current EF)
+     *
+     * @param expectedLength the file size, if known, or -1
+     */
+    public byte[] readBySFI(int sfi, int expectedLength) throws TerminalException {
+        if (sfi < 1 || sfi > 30) {
+            throw new IllegalArgumentException("SFI must be in the range 1-30: " + sfi);
+        }
+        if (cls != Iso7816Commands.ISO_CLA) {
+            throw new IllegalStateException("SFI is only supported for ISO READ BINARY");
+        }
+        return read(sfi, expectedLength);
+    }
+
+    private byte[] read(int sfi, int expectedLength) throws TerminalException {
+        byte[] buffer = new byte[expectedLength > 0 ? expectedLength : INITIAL_BUFFER_SIZE];
+        int length = 0;
+        boolean useSFI = sfi != -1;
+        int shortReplyLength = -1;
+        while (expectedLength < 0 || length < expectedLength) {
+            if (length % bytesPerAddressUnit != 0) {
+                //A short reply that is not a whole number of blocks. Nothing more can be addressed
+                break;
+            }
+            int address = length / bytesPerAddressUnit;
+            if (address > (useSFI ? 0xFF : maxAddress)) {
+                break;
+            }
+            int ne = blockSize;
+            if (shortReplyLength > 0) {
+                ne = Math.min(ne, shortReplyLength);
+            }
+            if (expectedLength > 0) {
+                ne = Math.min(ne, expectedLength - length);
+            }
+            byte p1 = useSFI ? (byte) (0x80 | sfi) : (byte) (address >>> 8);
+            byte[] command = APDUCommandBuilder.build(cls, INS_READ_BINARY, p1, (byte) address, null, ne);
+            Log.commandHeader("READ BINARY (offset " + length + ", Ne " + ne + ")");
+            CardResponse response = EMVUtil.sendCmdNoParse(terminal, command);
+            byte[] data = response.getData();
+            short sw = response.getSW();
+            SWDescriptor.Category category = SWDescriptor.get(sw).getCategory();
+            if (category == SWDescriptor.Category.SUCCESS || sw == (short) 0x6282) {
+                if (length + data.length > buffer.length) {
+                    buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + data.length));
+                }
+                System.arraycopy(data, 0, buffer, length, data.length);
+                length += data.length;
+                useSFI = false; //The file is now the current EF
+                if (sw == (short) 0x6282 || data.length == 0) {
+                    break; //End of file
+                }
+                if (shortReplyLength > 0 && data.length == shortReplyLength) {
+                    //The card (or reader) returns at most this many bytes. Use it as the block size from now on
+                    blockSize = shortReplyLength;
+                }
+                shortReplyLength = -1;
+                if (data.length < ne && data.length >= bytesPerAddressUnit) {
+                    //Either the end of the file, or the most the card returns. Only the next read is shortened
+                    shortReplyLength = roundToAddressUnit(data.length);
+                }
+            } else if (category == SWDescriptor.Category.EXACT_LENGTH && ne != Util.byteToInt(response.getSW2())) {
+                //EMVUtil re-issues on '6C', but some cards reply '6C' again (eg to an extended Le)
+                int exact = Util.byteToInt(response.getSW2());
+                blockSize = roundToAddressUnit(exact == 0 ? APDUCommandBuilder.MAX_SHORT_NE : exact);
+                shortReplyLength = -1;
+            } else if (category == SWDescriptor.Category.WRONG_LENGTH && ne > bytesPerAddressUnit) {
+                blockSize = roundToAddressUnit(ne / 2);
+                shortReplyLength = -1;
+            } else {
+                //Offset outside the EF, file not found, security status not satisfied etc
+                Log.debug("READ BINARY stopped at offset " + length + ": SW=" + Util.short2Hex(sw));
+                break;
+            }
+        }
+        return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+    }
+
+    private int roundToAddressUnit(int size) {
+        return Math.max(bytesPerAddressUnit, size - (size % bytesPerAddressUnit));
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import sasc.util.Log;
+import sasc.util.Util;
+
+/**
+ * The APDU size limits of a card, as indicated in the historical bytes of the ATR
+ * and (optionally) in EF.ATR/INFO
+ *
+ * ISO 7816-4:2005 8.1.1.2.7 Card capabilities:
+ * Compact-TLV object '7X' (BER-TLV '47' in EF.ATR). Bit 7 of the third software
+ * function table byte indicates support for extended Lc and Le fields
+ *
+ * ISO 7816-4:2005 8.4 Extended length information:
+ * BER-TLV object '7F66' in EF.ATR, containing two integers ('02'):
+ * the maximum number of bytes in a command APDU and in a response APDU
+ *
+ * @author sasc
+ */
+public class CardCapabilities {
+
+    public static final CardCapabilities SHORT_LENGTH_ONLY = new CardCapabilities(false, APDUCommandBuilder.MAX_SHORT_LC, APDUCommandBuilder.MAX_SHORT_NE);
+
+    private static final int CATEGORY_COMPACT_TLV_WITH_STATUS = 0x00;
+    private static final int CATEGORY_COMPACT_TLV = 0x80;
+    private static final int COMPACT_TAG_CARD_CAPABILITIES = 0x7;
+    private static final int EXTENDED_LENGTH_BIT = 0x40;
+
+    private final boolean extendedLengthSupported;
+    private final int maxCommandDataLength;
+    private final int maxResponseDataLength;
+
+    private CardCapabilities(boolean extendedLengthSupported, int maxCommandDataLength, int maxResponseDataLength) {
+        this.extendedLengthSupported = extendedLengthSupported;
+        this.maxCommandDataLength = maxCommandDataLength;
+        this.maxResponseDataLength = maxResponseDataLength;
+    }
+
+    /**
+     * Parses the card capabilities in the historical bytes (if present)
+     */
+    public static CardCapabilities fromHistoricalBytes(byte[] historicalBytes) {
+        if (historicalBytes == null || historicalBytes.length == 0) {
+            return SHORT_LENGTH_ONLY;
+        }
+        int category = historicalBytes[0] & 0xFF;
+        int end = historicalBytes.length;
+        if (category == CATEGORY_COMPACT_TLV_WITH_STATUS) {
+            end -= 3; //Mandatory status indicator
+        } else if (category != CATEGORY_COMPACT_TLV) {
+            //Proprietary, or DIR data reference ('10')
+            return SHORT_LENGTH_ONLY;
+        }
+        int offset = 1;
+        while (offset < end) {
+            int tag = (historicalBytes[offset] & 0xF0) >>> 4;
+            int length = historicalBytes[offset] & 0x0F;
+            offset++;
+            if (offset + length > end) {
+                Log.debug("Invalid compact-TLV object in historical bytes: " + Util.prettyPrintHexNoWrap(historicalBytes));
+                break;
+            }
+            if (tag == COMPACT_TAG_CARD_CAPABILITIES) {
+                return fromCardCapabilitiesValue(historicalBytes, offset, length);
+            }
+            offset += length;
+        }
+        return SHORT_LENGTH_ONLY;
+    }
+
+    /**
+     * Returns the capabilities updated with the data objects in EF.ATR/INFO.
+     * The extended length information, if present, overrides the limits from the ATR
+     *
+     * @param efAtrContent the content of EF.ATR/INFO (FID '2F01')
+     */
+    public CardCapabilities withEFATR(byte[] efAtrContent) {
+        boolean extended = extendedLengthSupported;
+        int maxNc = maxCommandDataLength;
+        int maxNe = maxResponseDataLength;
+        boolean limitsFound = false;
+        try {
+            for (BERTLV tlv : TLVUtil.parseList(efAtrContent)) {
+                byte[] tagBytes = tlv.getTag().getTagBytes();
+                byte[] value = tlv.getValueBytes();
+                if (tagBytes.length == 1 && tagBytes[0] == (byte) 0x47) {
+                    if (fromCardCapabilitiesValue(value, 0, value.length).extendedLengthSupported) {
+                        extended = true;
+                        if (!limitsFound) {
+                            maxNc = APDUCommandBuilder.MAX_EXTENDED_LC;
+                            maxNe = APDUCommandBuilder.MAX_EXTENDED_NE;
+                        }
+                    }
+                } else if (tagBytes.length == 2 && tagBytes[0] == (byte) 0x7F && tagBytes[1] == (byte) 0x66) {
+                    int[] limits = parseExtendedLengthInformation(value);
+                    if (limits != null) {
+                        //The limits are for the complete APDU. Subtract header and length fields
+                        maxNc = Math.min(APDUCommandBuilder.MAX_EXTENDED_LC, Math.max(0, limits[0] - 4 - 3 - 2));
+                        maxNe = Math.min(APDUCommandBuilder.MAX_EXTENDED_NE, Math.max(0, limits[1] - 2));
+                        limitsFound = true;
+                        extended |= maxNc > APDUCommandBuilder.MAX_SHORT_LC || maxNe > APDUCommandBuilder.MAX_SHORT_NE;
+                    }
+                }
+            }
+        } catch (TLVException ex) {
+            Log.debug("Unable to parse EF.ATR: " + ex.getMessage());
+        }
+        return new CardCapabilities(extended, maxNc, maxNe);
+    }
+
+    public boolean isExtendedLengthSupported() {
+        return extendedLengthSupported;
+    }
+
+    /**
+     * @return the maximum Nc the card accepts
+     */
+    public int getMaxCommandDataLength() {
+        return maxCommandDataLength;
+    }
+
+    /**
+     * @return the maximum Ne the card accepts
+     */
+    public int getMaxResponseDataLength() {
+        return maxResponseDataLength;
+    }
+
+    @Override
+    public String toString() {
+        return "CardCapabilities[extendedLength=" + extendedLengthSupported
+                + ", maxNc=" + maxCommandDataLength + ", maxNe=" + maxResponseDataLength + "]";
+    }
+
+    private static CardCapabilities fromCardCapabilitiesValue(byte[] buf, int offset, int length) {
+        //Byte 3 (software function table 3) is optional
+        if (length >= 3 && (buf[offset + 2] & EXTENDED_LENGTH_BIT) != 0) {
+            return new CardCapabilities(true, APDUCommandBuilder.MAX_EXTENDED_LC, APDUCommandBuilder.MAX_EXTENDED_NE);
+        }
+        return SHORT_LENGTH_ONLY;
+    }
+
+    /**
+     * @return the maximum command and response APDU length, or null if the object is incomplete
+     */
+    private static int[] parseExtendedLengthInformation(byte[] value) {
+        int[] limits = new int[2];
+        int numLimits = 0;
+        for (BERTLV integer : TLVUtil.parseList(value)) {
+            byte[] tagBytes = integer.getTag().getTagBytes();
+            if (tagBytes.length == 1 && tagBytes[0] == 0x02 && numLimits < limits.length) {
+                limits[numLimits++] = toUnsignedInt(integer.getValueBytes());
+            }
+        }
+        if (numLimits < limits.length) {
+            Log.debug("Incomplete extended length information: " + Util.prettyPrintHexNoWrap(value));
+            return null;
+        }
+        return limits;
+    }
+
+    private static int toUnsignedInt(byte[] value) {
+        int result = 0;
+        for (int i = 0; i < value.length && i < 4; i++) {
+            result = (result << 8) | (value[i] & 0xFF);
+        }
+        return result < 0 ? Integer.MAX_VALUE : result;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import sasc.emv.EMVUtil;
+import sasc.emv.SW;
+import sasc.terminal.CardConnection;
+import sasc.terminal.TerminalException;
+import sasc.util.Log;
+import sasc.util.Util;
+
+/**
+ * A fixed list of GET DATA commands, and the handlers that decode the responses
+ * into a target object (eg the application the data objects belong to).
+ *
+ * The commands are built once, when the plan is created, so a plan is usually
+ * a static constant that is executed for every card.
+ *
+ * Data objects the card has reported as absent ('6A88' Referenced data not found,
+ * or '6A81' Function not supported) are added to the caller's set of absent tags,
+ * and are not requested again when the plan (or another plan) is executed with the same set.
+ * getAbsentTags(..) returns a set shared by all cards with the same ATR and application,
+ * so the tags are skipped for the next card of the same profile as well.
+ *
+ * @param <T> the type of object the responses are decoded into
+ *
+ * @author sasc
+ */
+public class GetDataPlan<T> {
+
+    private static final int MAX_PROFILES = 256;
+    private static final Map<String, Set<Integer>> absentTagsByProfile = new LinkedHashMap<String, Set<Integer>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Set<Integer>> eldest) {
+            return size() > MAX_PROFILES;
+        }
+    };
+
+    /**
+     * Decodes a GET DATA response. Exceptions thrown by a handler (eg a malformed value)
+     * are logged and do not stop the plan
+     */
+    public static abstract class Handler<T> {
+
+        /**
+         * Called when the card returns SW1SW2 = '9000'
+         */
+        public abstract void onData(T target, TLVResponse response);
+
+        /**
+         * Called when the card returns any other status. Does nothing by default
+         */
+        public void onError(T target, TLVResponse response) {
+        }
+
+        /**
+         * Called instead of sending the command when the data object is known to be absent
+         * (the card of the same profile returned an error before). Does nothing by default
+         */
+        public void onAbsent(T target) {
+        }
+    }
+
+    private static class Step<T> {
+        final String description;
+        final byte[] command;
+        final int tag;
+        final boolean parseTLV;
+        final Handler<T> handler;
+
+        Step(String description, byte[] command, boolean parseTLV, Handler<T> handler) {
+            this.description = description;
+            this.command = command;
+            this.tag = Util.byteToInt(command[2], command[3]);
+            this.parseTLV = parseTLV;
+            this.handler = handler;
+        }
+    }
+
+    private final List<Step<T>> steps = new ArrayList<Step<T>>();
+
+    /**
+     * Adds a GET DATA command
+     *
+     * @param description the command header logged before the command is sent
+     * @param command the complete GET DATA command (P1P2 = the tag)
+     * @param parseTLV true to pretty print the response as BER-TLV
+     */
+    public GetDataPlan<T> add(String description, byte[] command, boolean parseTLV, Handler<T> handler) {
+        if (command.length < 4) {
+            throw new IllegalArgumentException("Invalid command: " + Util.prettyPrintHexNoWrap(command));
+        }
+        steps.add(new Step<T>(description, command.clone(), parseTLV, handler));
+        return this;
+    }
+
+    public int size() {
+        return steps.size();
+    }
+
+    /**
+     * @param atr the complete ATR of the card
+     * @param aid the application the GET DATA commands are sent to
+     * @return the (thread safe) set of tags known to be absent on cards with this ATR and application
+     */
+    public static Set<Integer> getAbsentTags(byte[] atr, AID aid) {
+        String profile = Util.byteArrayToHexString(atr) + "/" + Util.byteArrayToHexString(aid.getAIDBytes());
+        synchronized (absentTagsByProfile) {
+            Set<Integer> absentTags = absentTagsByProfile.get(profile);
+            if (absentTags == null) {
+                absentTags = Collections.synchronizedSet(new HashSet<Integer>());
+                absentTagsByProfile.put(profile, absentTags);
+            }
+            return absentTags;
+        }
+    }
+
+    /**
+     * Forgets the absent tags of all card profiles
+     */
+    public static void clearAbsentTags() {
+        synchronized (absentTagsByProfile) {
+            absentTagsByProfile.clear();
+        }
+    }
+
+    /**
+     * Sends the commands in order, and decodes each response as it arrives
+     *
+     * @param absentTags tags (P1P2) known to be absent on the card. Updated with the tags
+     * the card reports as absent. May be null
+     * @return the number of commands sent
+     */
+    public int execute(CardConnection terminal, T target, Set<Integer> absentTags) throws TerminalException {
+        int sent = 0;
+        for (Step<T> step : steps) {
+            if (absentTags != null && absentTags.contains(step.tag)) {
+                Log.debug("Skipping GET DATA " + Util.short2Hex((short) step.tag) + " (known to be absent)");
+                try {
+                    step.handler.onAbsent(target);
+                } catch (RuntimeException ex) {
+                    logParseError(step, ex);
+                }
+                continue;
+            }
+            Log.commandHeader(step.description);
+            TLVResponse response = step.parseTLV ? EMVUtil.sendCmd(terminal, step.command) : EMVUtil.sendCmdNoParse(terminal, step.command);
+            sent++;
+            short sw = response.getSW();
+            if (absentTags != null && (sw == SW.REFERENCE_DATA_NOT_FOUND.getSW() || sw == SW.FUNCTION_NOT_SUPPORTED.getSW())) {
+                absentTags.add(step.tag);
+            }
+            try {
+                if (sw == SW.SUCCESS.getSW()) {
+                    step.handler.onData(target, response);
+                } else {
+                    step.handler.onError(target, response);
+                }
+            } catch (RuntimeException ex) {
+                //One malformed data object must not skip the remaining commands
+                logParseError(step, ex);
+            }
+        }
+        return sent;
+    }
+
+    private static void logParseError(Step<?> step, RuntimeException ex) {
+        Log.info("Unable to parse the response to GET DATA " + Util.short2Hex((short) step.tag) + ": " + ex.toString());
+        Log.debug(Util.getStackTrace(ex));
+    }
+}
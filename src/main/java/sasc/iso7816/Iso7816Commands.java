@@ -46,44 +46,70 @@ public class Iso7816Commands {
     }
 
     public static byte[] selectByDFName(byte[] fileBytes, boolean lePresent, byte le) {
-        if (fileBytes.length > 16) {
-            throw new IllegalArgumentException("Dedicated File name not valid (length > 16). Length = "+fileBytes.length);
-        }
         byte[] cmd = new byte[5+fileBytes.length+(lePresent?1:0)];
-        cmd[0] = ISO_CLA;
-        cmd[1] = ISO_SELECT;
+        selectByDFName(fileBytes, lePresent, cmd, 0);
+        return cmd;
+    }
+
+    /**
+     * Writes SELECT (by DF name) into the buffer
+     *
+     * @return the length of the command
+     */
+    public static int selectByDFName(byte[] fileBytes, boolean lePresent, byte[] buffer, int offset) {
         //04 - Direct selection by DF name (data field=DF name)
-        cmd[2] = 0x04;
         //TODO: when P2 = 0C : see 7816-4 spec..
-        cmd[3] = 0x00;
-        cmd[4] = (byte)fileBytes.length;
-        System.arraycopy(fileBytes, 0, cmd, 5, fileBytes.length);
-        if(lePresent) {
-            cmd[cmd.length-1] = 0x00;
+        return select((byte) 0x04, (byte) 0x00, fileBytes, lePresent, buffer, offset);
+    }
+    
+    /**
+     * SELECT EF by file identifier (P1 '00', P2 '0C' = no response data)
+     */
+    public static byte[] selectByFileIdentifier(byte[] fileIdentifier) {
+        if (fileIdentifier.length != 2) {
+            throw new IllegalArgumentException("File identifier must be 2 bytes: " + Util.byteArrayToHexString(fileIdentifier));
         }
+        byte[] cmd = new byte[7];
+        select((byte) 0x00, (byte) 0x0C, fileIdentifier, false, cmd, 0);
         return cmd;
     }
-    
+
     public static byte[] selectByDFNameNextOccurrence(byte[] fileBytes, boolean lePresent, byte le) {
-        if (fileBytes.length > 16) {
-            throw new IllegalArgumentException("Dedicated File name not valid (length > 16). Length = "+fileBytes.length);
-        }
         byte[] cmd = new byte[5+fileBytes.length+(lePresent?1:0)];
-        cmd[0] = ISO_CLA;
-        cmd[1] = ISO_SELECT;
+        selectByDFNameNextOccurrence(fileBytes, lePresent, cmd, 0);
+        return cmd;
+    }
+
+    /**
+     * Writes SELECT (by DF name, next occurrence) into the buffer
+     *
+     * @return the length of the command
+     */
+    public static int selectByDFNameNextOccurrence(byte[] fileBytes, boolean lePresent, byte[] buffer, int offset) {
         //04 - Direct selection by DF name (data field=DF name)
-        cmd[2] = 0x04;
         //02 - Next occurrence
-        cmd[3] = 0x02;
-        cmd[4] = (byte)fileBytes.length;
-        System.arraycopy(fileBytes, 0, cmd, 5, fileBytes.length);
-        if(lePresent) {
-            cmd[cmd.length-1] = 0x00;
+        return select((byte) 0x04, (byte) 0x02, fileBytes, lePresent, buffer, offset);
+    }
+
+    private static int select(byte p1, byte p2, byte[] fileBytes, boolean lePresent, byte[] buffer, int offset) {
+        if (fileBytes.length > 16) {
+            throw new IllegalArgumentException("Dedicated File name not valid (length > 16). Length = "+fileBytes.length);
         }
-        return cmd;
+        return APDUCommandBuilder.build(ISO_CLA, ISO_SELECT, p1, p2, fileBytes, 0, fileBytes.length, lePresent ? 256 : 0, buffer, offset);
     }
 
     public static byte[] readRecord(int recordNum, int sfi) {
+        byte[] cmd = new byte[5];
+        readRecord(recordNum, sfi, cmd, 0);
+        return cmd;
+    }
+
+    /**
+     * Writes READ RECORD into the buffer
+     *
+     * @return the length of the command (5)
+     */
+    public static int readRecord(int recordNum, int sfi, byte[] buffer, int offset) {
         //Valid Record numbers: 1 to 255
         //Valid SFI: 1 to 30
         //SFI=0 : Currently selected EF
@@ -101,19 +127,20 @@ public class Iso7816Commands {
         //     100 = "Record number can be found in P1" (=4)
         byte P2 = (byte) ((sfi << 3) | 4);
 
-        Log.debug("Iso7816Commands.readRecord() P1=" + P1 + " P2=" + P2);
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("Iso7816Commands.readRecord() P1=" + P1 + " P2=" + P2);
+        }
 
-        byte[] cmd = new byte[5];
         //00 = No secure messaging
-        cmd[0] = ISO_CLA;
+        buffer[offset] = ISO_CLA;
         //B2 = READ RECORD
-        cmd[1] = ISO_READ_RECORD;
+        buffer[offset+1] = ISO_READ_RECORD;
         //P1 = Record number or record identifier of the first record to be read ('00' indicates the current record)
-        cmd[2] = P1;
+        buffer[offset+2] = P1;
         //P2 = SFI + 4 (Indicates that the record number can be found in P1)
-        cmd[3] = P2;
-        cmd[4] = 0x00;
-        return cmd;
+        buffer[offset+3] = P2;
+        buffer[offset+4] = 0x00;
+        return 5;
     }
 
     public static byte[] internalAuthenticate(byte[] authenticationRelatedData) {
@@ -161,11 +188,21 @@ public class Iso7816Commands {
     
     public static byte[] getData(byte p1, byte p2, byte le) {
         byte[] cmd = new byte[5];
-        cmd[0] = ISO_CLA;
-        cmd[1] = ISO_GET_DATA;
-        cmd[2] = p1;
-        cmd[3] = p2;
-        cmd[4] = le;
+        getData(ISO_CLA, p1, p2, le, cmd, 0);
         return cmd;
     }
+
+    /**
+     * Writes GET DATA into the buffer
+     *
+     * @return the length of the command (5)
+     */
+    public static int getData(byte cls, byte p1, byte p2, byte le, byte[] buffer, int offset) {
+        buffer[offset] = cls;
+        buffer[offset+1] = ISO_GET_DATA;
+        buffer[offset+2] = p1;
+        buffer[offset+3] = p2;
+        buffer[offset+4] = le;
+        return 5;
+    }
 }
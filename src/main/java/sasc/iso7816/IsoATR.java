@@ -29,6 +29,7 @@ public class IsoATR {
     private Protocol protocol = Protocol.T_0;
     private Convention convention;
     private int numHistoricalBytes = 0;
+    private int historicalBytesOffset = 0;
 
 
     //TODO
@@ -96,6 +97,27 @@ public class IsoATR {
             }
 
             numHistoricalBytes = atrBytes[1] & 0x0F;
+
+            //Skip the interface bytes. Y(i) (high nibble of T0/TD(i)) indicates which of TA,TB,TC,TD(i+1) are present
+            int offset = 2;
+            int y = atrBytes[1] & 0xF0;
+            int i = 1;
+            while(y != 0){
+                offset += Integer.bitCount(y & 0x70); //TA(i), TB(i), TC(i)
+                if((y & 0x80) == 0){
+                    break;
+                }
+                int td = atrBytes[offset++] & 0xFF;
+                if(i == 1 && (td & 0x0F) == 1){
+                    protocol = Protocol.T_1;
+                }
+                y = td & 0xF0;
+                i++;
+            }
+            historicalBytesOffset = offset;
+            if(historicalBytesOffset + numHistoricalBytes > atrBytes.length){
+                throw new ParseException("ATR too short. Expected "+numHistoricalBytes+" historical bytes at offset "+historicalBytesOffset+": "+Util.prettyPrintHexNoWrap(atrBytes));
+            }
         }catch(RuntimeException e){ //Catch all RE
             throw new ParseException("Unable to parse ATR according to ISO", e);
         }
@@ -119,7 +141,7 @@ public class IsoATR {
 
     public byte[] getHistoricalBytes(){
         byte[] tmp = new byte[numHistoricalBytes];
-        System.arraycopy(atrBytes, atrBytes.length-numHistoricalBytes, tmp, 0, numHistoricalBytes);
+        System.arraycopy(atrBytes, historicalBytesOffset, tmp, 0, numHistoricalBytes);
         return tmp;
     }
 
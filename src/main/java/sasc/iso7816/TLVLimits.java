@@ -0,0 +1,66 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+/**
+ * Resource limits for strict TLV decoding (see TLVUtil.parseList(byte[], TLVLimits)).
+ * The limits apply to one call, over all nesting levels.
+ *
+ * @author sasc
+ */
+public final class TLVLimits {
+
+    /**
+     * Generous limits for card responses (a response APDU holds at most 65536 bytes)
+     */
+    public static final TLVLimits DEFAULT = new TLVLimits(16, 4096, 256 * 1024);
+
+    private final int maxDepth;
+    private final int maxElements;
+    private final long maxTotalBytes;
+
+    /**
+     * @param maxDepth the maximum nesting depth (1 = no constructed data objects with children)
+     * @param maxElements the maximum number of TLV objects, at all levels
+     * @param maxTotalBytes the maximum sum of the value lengths of all TLV objects
+     *        (including constructed objects, since their values are also copied)
+     */
+    public TLVLimits(int maxDepth, int maxElements, long maxTotalBytes) {
+        if (maxDepth < 1 || maxElements < 1 || maxTotalBytes < 0) {
+            throw new IllegalArgumentException("Invalid limits: maxDepth=" + maxDepth + ", maxElements=" + maxElements + ", maxTotalBytes=" + maxTotalBytes);
+        }
+        this.maxDepth = maxDepth;
+        this.maxElements = maxElements;
+        this.maxTotalBytes = maxTotalBytes;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getMaxElements() {
+        return maxElements;
+    }
+
+    public long getMaxTotalBytes() {
+        return maxTotalBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "TLVLimits[maxDepth=" + maxDepth + ", maxElements=" + maxElements + ", maxTotalBytes=" + maxTotalBytes + "]";
+    }
+}
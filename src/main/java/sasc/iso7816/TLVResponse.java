@@ -0,0 +1,117 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.List;
+import sasc.terminal.CardResponse;
+import sasc.util.Util;
+
+/**
+ * A card response with the response data decoded (at most once) into BER-TLV objects.
+ *
+ * The data is not decoded until getTLVList() is called, so the pretty printer
+ * and the decoders can share the same TLV tree. The tree is decoded in strict mode,
+ * within TLVLimits.DEFAULT, since the data comes from the card.
+ *
+ * @author sasc
+ */
+public class TLVResponse implements CardResponse {
+
+    private final byte[] data;
+    private final byte sw1;
+    private final byte sw2;
+    private List<BERTLV> tlvList = null;
+    private TLVException parseException = null;
+
+    public TLVResponse(byte[] data, byte sw1, byte sw2) {
+        if (data == null) {
+            throw new IllegalArgumentException("Param data cannot be null");
+        }
+        this.data = data;
+        this.sw1 = sw1;
+        this.sw2 = sw2;
+    }
+
+    /**
+     * Response data only (SW1SW2 is set to '9000')
+     */
+    public TLVResponse(byte[] data) {
+        this(data, (byte) 0x90, (byte) 0x00);
+    }
+
+    public TLVResponse(CardResponse response) {
+        this(response.getData(), response.getSW1(), response.getSW2());
+    }
+
+    /**
+     * @return the top level TLV objects in the response data
+     * @throws TLVException if the response data is not valid BER-TLV (the same exception is thrown on every call)
+     */
+    public List<BERTLV> getTLVList() {
+        if (tlvList == null) {
+            if (parseException != null) {
+                throw parseException;
+            }
+            try {
+                tlvList = Collections.unmodifiableList(TLVUtil.parseList(data, TLVLimits.DEFAULT));
+            } catch (TLVException ex) {
+                parseException = ex;
+                throw ex;
+            }
+        }
+        return tlvList;
+    }
+
+    /**
+     * Returns the first TLV object in the response data.
+     * Unlike getTLVList(), this does not require the data after the first object to be valid BER-TLV
+     */
+    public BERTLV getFirstTLV() {
+        if (parseException == null) {
+            try {
+                List<BERTLV> list = getTLVList();
+                if (!list.isEmpty()) {
+                    return list.get(0);
+                }
+            } catch (TLVException ex) {
+                //Fall through
+            }
+        }
+        return TLVUtil.getNextTLV(new ByteArrayInputStream(data));
+    }
+
+    @Override
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public byte getSW1() {
+        return sw1;
+    }
+
+    @Override
+    public byte getSW2() {
+        return sw2;
+    }
+
+    @Override
+    public short getSW() {
+        return Util.byte2Short(sw1, sw2);
+    }
+}
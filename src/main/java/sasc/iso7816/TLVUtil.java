@@ -18,6 +18,7 @@ package sasc.iso7816;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import sasc.emv.EMVApplication;
 import sasc.emv.EMVTags;
@@ -34,6 +35,9 @@ import sasc.util.Util;
  * @author sasc
  */
 public class TLVUtil {
+
+    //Longest tag accepted in strict mode (ISO/IEC 7816-4 tags are at most 3 bytes)
+    private static final int MAX_TAG_BYTES = 4;
     
     private static Tag searchTagById(byte[] tagIdBytes) {
         return EMVTags.getNotNull(tagIdBytes); //TODO take app (IIN or RID) into consideration
@@ -257,6 +261,108 @@ public class TLVUtil {
         return buf.toString();
     }
 
+    /**
+     * Parses all the TLV objects in data (not recursive).
+     * Throws TLVException if data contains anything but TLV objects and '00'/'FF' padding
+     */
+    public static List<BERTLV> parseList(byte[] data) {
+        ByteArrayInputStream stream = new ByteArrayInputStream(data);
+        List<BERTLV> tlvList = new ArrayList<BERTLV>();
+        while (stream.available() > 0) {
+            tlvList.add(TLVUtil.getNextTLV(stream));
+        }
+        return tlvList;
+    }
+
+    /**
+     * Parses all the TLV objects in data, including the children of constructed
+     * data objects, in strict mode:
+     * - the indefinite length form is not accepted
+     * - at most 4 tag bytes and 4 length bytes
+     * - the limits are checked before the value of a TLV object is allocated
+     *
+     * @throws TLVException if data is not valid BER-TLV, or exceeds the limits
+     */
+    public static List<BERTLV> parseList(byte[] data, TLVLimits limits) {
+        return parseStrict(data, 0, data.length, 1, limits, new long[2]);
+    }
+
+    /**
+     * @param counters the number of TLV objects and value bytes decoded so far
+     */
+    private static List<BERTLV> parseStrict(byte[] data, int offset, int end, int depth, TLVLimits limits, long[] counters) {
+        List<BERTLV> tlvList = new ArrayList<BERTLV>();
+        while (true) {
+            //Skip '00'/'FF' padding
+            while (offset < end && (data[offset] == (byte) 0x00 || data[offset] == (byte) 0xFF)) {
+                offset++;
+            }
+            if (offset == end) {
+                return tlvList;
+            }
+            if (depth > limits.getMaxDepth()) {
+                throw new TLVException("Nesting depth exceeds the maximum of " + limits.getMaxDepth());
+            }
+            if (++counters[0] > limits.getMaxElements()) {
+                throw new TLVException("Number of TLV objects exceeds the maximum of " + limits.getMaxElements());
+            }
+
+            int tagStart = offset;
+            if ((data[offset++] & 0x1F) == 0x1F) {
+                //Same rule as readTagIdBytes
+                while (true) {
+                    if (offset == end) {
+                        throw new TLVException("EOS when reading tag bytes");
+                    }
+                    if (offset - tagStart == MAX_TAG_BYTES) {
+                        throw new TLVException("Number of tag bytes must be from 1 to " + MAX_TAG_BYTES);
+                    }
+                    byte b = data[offset++];
+                    if ((b & 0x80) == 0 || (b & 0x7F) == 0) {
+                        break;
+                    }
+                }
+            }
+
+            int lengthStart = offset;
+            if (offset == end) {
+                throw new TLVException("EOS when reading length bytes");
+            }
+            int length = data[offset++] & 0xFF;
+            if (length == 0x80) {
+                throw new TLVException("Indefinite length form not accepted in strict mode");
+            }
+            if (length > 0x80) {
+                int numberOfLengthOctets = length & 0x7F;
+                if (numberOfLengthOctets > 3) {
+                    throw new TLVException("Number of length bytes must be from 1 to 4. Found " + (numberOfLengthOctets + 1));
+                }
+                if (end - offset < numberOfLengthOctets) {
+                    throw new TLVException("EOS when reading length bytes");
+                }
+                length = 0;
+                for (int i = 0; i < numberOfLengthOctets; i++) {
+                    length = (length << 8) | (data[offset++] & 0xFF);
+                }
+            }
+            if (length > end - offset) {
+                throw new TLVException("Length byte(s) indicated " + length + " value bytes, but only " + (end - offset) + " available");
+            }
+            counters[1] += length;
+            if (counters[1] > limits.getMaxTotalBytes()) {
+                throw new TLVException("Decoded value bytes exceed the maximum of " + limits.getMaxTotalBytes());
+            }
+
+            Tag tag = searchTagById(Arrays.copyOfRange(data, tagStart, lengthStart));
+            BERTLV tlv = new BERTLV(tag, length, Arrays.copyOfRange(data, lengthStart, offset), Arrays.copyOfRange(data, offset, offset + length));
+            if (tag.isConstructed()) {
+                tlv.setChildren(parseStrict(data, offset, offset + length, depth + 1, limits, counters));
+            }
+            offset += length;
+            tlvList.add(tlv);
+        }
+    }
+
     public static List<TagAndLength> parseTagAndLength(byte[] data) {
         ByteArrayInputStream stream = new ByteArrayInputStream(data);
         List<TagAndLength> tagAndLengthList = new ArrayList<TagAndLength>();
@@ -285,18 +391,28 @@ public class TLVUtil {
         return prettyPrintAPDUResponse(tmp, 0);
     }
 
+    /**
+     * Card data: parsed with TLVLimits.DEFAULT, so the recursion is bounded
+     */
     public static String prettyPrintAPDUResponse(byte[] data, int indentLength) {
-        StringBuilder buf = new StringBuilder();
+        return prettyPrintAPDUResponse(data, indentLength, TLVLimits.DEFAULT);
+    }
 
-        ByteArrayInputStream stream = new ByteArrayInputStream(data);
+    /**
+     * Parses data in strict mode (see parseList(byte[], TLVLimits)), so the recursion is bounded by the maximum depth
+     */
+    public static String prettyPrintAPDUResponse(byte[] data, int indentLength, TLVLimits limits) {
+        return prettyPrintAPDUResponse(parseList(data, limits), indentLength);
+    }
 
-        while (stream.available() > 0) {
+    public static String prettyPrintAPDUResponse(List<BERTLV> tlvList, int indentLength) {
+        StringBuilder buf = new StringBuilder();
+
+        for (BERTLV tlv : tlvList) {
             buf.append("\n");
 
             buf.append(Util.getSpaces(indentLength));
 
-            BERTLV tlv = TLVUtil.getNextTLV(stream);
-
             Log.debug(tlv.toString());
 
             byte[] tagBytes = tlv.getTagBytes();
@@ -316,7 +432,7 @@ public class TLVUtil {
             if (tag.isConstructed()) {
                 //indentLength += extraIndent; //TODO check this
                 //Recursion
-                buf.append(prettyPrintAPDUResponse(valueBytes, indentLength + extraIndent));
+                buf.append(prettyPrintAPDUResponse(tlv.getChildren(), indentLength + extraIndent));
             } else {
                 buf.append("\n");
                 if (tag.getTagValueType() == TagValueType.DOL) {
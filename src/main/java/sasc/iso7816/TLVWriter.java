@@ -0,0 +1,195 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Writes BER-TLV encoded data into a growable buffer, that can be reused (see reset()).
+ *
+ * Constructed data objects are written with begin(tag) ... end(): the length is
+ * back-patched when the template is ended, so nested templates (eg FCI 6F/A5/BF0C,
+ * or a record template 70) are built in place, without intermediate arrays.
+ * Lengths are encoded in the minimal definite form.
+ *
+ * Example (SELECT response):
+ * <pre>
+ * writer.begin(EMVTags.FCI_TEMPLATE)
+ *       .write(EMVTags.DEDICATED_FILE_NAME, aid)
+ *       .begin(EMVTags.FCI_PROPRIETARY_TEMPLATE)
+ *       .write(EMVTags.APPLICATION_LABEL, label)
+ *       .end()
+ *       .end();
+ * </pre>
+ *
+ * @author sasc
+ */
+public class TLVWriter {
+
+    private byte[] buffer;
+    private int size = 0;
+    //Positions of the (1 byte, reserved) length fields of the open templates
+    private int[] openTemplates = new int[8];
+    private int depth = 0;
+
+    public TLVWriter() {
+        this(256);
+    }
+
+    public TLVWriter(int initialCapacity) {
+        buffer = new byte[Math.max(initialCapacity, 16)];
+    }
+
+    /**
+     * Writes a primitive (or pre-encoded constructed) data object
+     */
+    public TLVWriter write(Tag tag, byte[] value) {
+        return write(tag.getTagBytes(), value, 0, value.length);
+    }
+
+    public TLVWriter write(Tag tag, byte[] value, int offset, int length) {
+        return write(tag.getTagBytes(), value, offset, length);
+    }
+
+    public TLVWriter write(byte[] tagBytes, byte[] value, int offset, int length) {
+        if (length < 0 || offset < 0 || offset + length > value.length) {
+            throw new IndexOutOfBoundsException("Invalid offset/length: " + offset + "/" + length + " (value length " + value.length + ")");
+        }
+        ensureCapacity(tagBytes.length + BERTLV.getEncodedLengthSize(length) + length);
+        System.arraycopy(tagBytes, 0, buffer, size, tagBytes.length);
+        size += tagBytes.length;
+        size += BERTLV.encodeLength(length, buffer, size);
+        System.arraycopy(value, offset, buffer, size, length);
+        size += length;
+        return this;
+    }
+
+    /**
+     * Writes a data object with a 1 byte value
+     */
+    public TLVWriter write(Tag tag, int value) {
+        byte[] tagBytes = tag.getTagBytes();
+        ensureCapacity(tagBytes.length + 2);
+        System.arraycopy(tagBytes, 0, buffer, size, tagBytes.length);
+        size += tagBytes.length;
+        buffer[size++] = 0x01;
+        buffer[size++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Writes already encoded TLV data (eg a data object read from a card)
+     */
+    public TLVWriter writeRaw(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(data, offset, buffer, size, length);
+        size += length;
+        return this;
+    }
+
+    /**
+     * Starts a constructed data object. Everything written until the matching end() is its value
+     */
+    public TLVWriter begin(Tag tag) {
+        return begin(tag.getTagBytes());
+    }
+
+    public TLVWriter begin(byte[] tagBytes) {
+        ensureCapacity(tagBytes.length + 1);
+        System.arraycopy(tagBytes, 0, buffer, size, tagBytes.length);
+        size += tagBytes.length;
+        if (depth == openTemplates.length) {
+            openTemplates = Arrays.copyOf(openTemplates, depth * 2);
+        }
+        openTemplates[depth++] = size;
+        buffer[size++] = 0x00; //Length, set by end()
+        return this;
+    }
+
+    /**
+     * Ends the last started constructed data object, and sets its length.
+     * If the length needs more than 1 byte, the value is moved within the buffer
+     */
+    public TLVWriter end() {
+        if (depth == 0) {
+            throw new IllegalStateException("No template started");
+        }
+        int lengthPos = openTemplates[--depth];
+        int valueLength = size - lengthPos - 1;
+        int extra = BERTLV.getEncodedLengthSize(valueLength) - 1;
+        if (extra > 0) {
+            ensureCapacity(extra);
+            System.arraycopy(buffer, lengthPos + 1, buffer, lengthPos + 1 + extra, valueLength);
+            size += extra;
+        }
+        BERTLV.encodeLength(valueLength, buffer, lengthPos);
+        return this;
+    }
+
+    /**
+     * @return the number of constructed data objects started, but not ended
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Clears the data (the buffer is kept, and reused)
+     */
+    public void reset() {
+        size = 0;
+        depth = 0;
+    }
+
+    /**
+     * @return the internal buffer (valid from index 0 to size()), not a copy
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public byte[] toByteArray() {
+        checkComplete();
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * Copies the data into the ByteBuffer (eg a direct buffer used for I/O)
+     *
+     * @throws java.nio.BufferOverflowException if there is insufficient space in the ByteBuffer
+     */
+    public void writeTo(ByteBuffer dst) {
+        checkComplete();
+        dst.put(buffer, 0, size);
+    }
+
+    private void checkComplete() {
+        if (depth != 0) {
+            throw new IllegalStateException(depth + " template(s) not ended");
+        }
+    }
+
+    private void ensureCapacity(int n) {
+        if (buffer.length - size < n) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + n));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.app.globalplatform;
+
+import java.util.Arrays;
+import javax.crypto.Cipher;
+
+/**
+ * AES-CMAC (NIST SP 800-38B, RFC 4493), used by SCP03 for the key derivation and the C-MAC.
+ *
+ * The subkeys are calculated once, and the input is processed as it is added,
+ * so a MAC calculation does not allocate anything.
+ *
+ * @author sasc
+ */
+final class CMAC {
+
+    static final int BLOCK_SIZE = 16;
+
+    private final Cipher aes;
+    private final byte[] k1 = new byte[BLOCK_SIZE];
+    private final byte[] k2 = new byte[BLOCK_SIZE];
+    private final byte[] state = new byte[BLOCK_SIZE];
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength = 0;
+
+    CMAC(byte[] key) {
+        aes = SecureChannelProtocol.initCipher("AES/ECB/NoPadding", Cipher.ENCRYPT_MODE, key, "AES");
+        byte[] l = new byte[BLOCK_SIZE];
+        SecureChannelProtocol.processBlock(aes, l, 0, BLOCK_SIZE);
+        doubleBlock(l, k1);
+        doubleBlock(k1, k2);
+    }
+
+    /**
+     * Multiplication by x in GF(2^128)
+     */
+    private static void doubleBlock(byte[] src, byte[] dst) {
+        boolean carry = (src[0] & 0x80) != 0;
+        for (int i = 0; i < BLOCK_SIZE - 1; i++) {
+            dst[i] = (byte) ((src[i] << 1) | ((src[i + 1] & 0xFF) >>> 7));
+        }
+        dst[BLOCK_SIZE - 1] = (byte) (src[BLOCK_SIZE - 1] << 1);
+        if (carry) {
+            dst[BLOCK_SIZE - 1] ^= (byte) 0x87;
+        }
+    }
+
+    void update(int b) {
+        //A full block is only processed when more input follows (the last block is processed by doFinal)
+        if (blockLength == BLOCK_SIZE) {
+            SecureChannelProtocol.xor(state, 0, block, 0, BLOCK_SIZE);
+            SecureChannelProtocol.processBlock(aes, state, 0, BLOCK_SIZE);
+            blockLength = 0;
+        }
+        block[blockLength++] = (byte) b;
+    }
+
+    void update(byte[] buf, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            update(buf[i]);
+        }
+    }
+
+    /**
+     * Writes the 16 byte MAC to out[outOffset..], and resets the state for the next message
+     */
+    void doFinal(byte[] out, int outOffset) {
+        if (blockLength == BLOCK_SIZE) {
+            SecureChannelProtocol.xor(block, 0, k1, 0, BLOCK_SIZE);
+        } else {
+            SecureChannelProtocol.pad(block, 0, blockLength, BLOCK_SIZE);
+            SecureChannelProtocol.xor(block, 0, k2, 0, BLOCK_SIZE);
+        }
+        SecureChannelProtocol.xor(state, 0, block, 0, BLOCK_SIZE);
+        SecureChannelProtocol.processBlock(aes, state, 0, BLOCK_SIZE);
+        System.arraycopy(state, 0, out, outOffset, BLOCK_SIZE);
+        Arrays.fill(state, (byte) 0x00);
+        blockLength = 0;
+    }
+}
@@ -40,4 +40,14 @@ public class GPTags {
     public static final Tag APPLICATION_PRODUCTION_LIFECYCLE_DATA  = new TagImpl("9f6e", TagValueType.BINARY, "Application production life cycle data", "");
     public static final Tag MAXIMUM_LENGTH_COMMAND_DATA_FIELD      = new TagImpl("9f65", TagValueType.BINARY, "Max length of data field in command message", "");
     public static final Tag CPLC                                   = new TagImpl("9f7f", TagValueType.BINARY, "Card Production Life Cycle Data", "");
+
+    //GET STATUS response data (P2 = '02')
+    public static final Tag GP_REGISTRY_RELATED_DATA               = new TagImpl("e3",   TagValueType.BINARY, "GlobalPlatform Registry related data", "");
+    public static final Tag REGISTRY_AID                           = new TagImpl("4f",   TagValueType.BINARY, "AID", "");
+    public static final Tag LIFE_CYCLE_STATE                       = new TagImpl("9f70", TagValueType.BINARY, "Life Cycle State", "");
+    public static final Tag PRIVILEGES                             = new TagImpl("c5",   TagValueType.BINARY, "Privileges", "");
+    public static final Tag EXECUTABLE_LOAD_FILE_AID               = new TagImpl("c4",   TagValueType.BINARY, "Application's Executable Load File AID", "");
+    public static final Tag EXECUTABLE_LOAD_FILE_VERSION_NUMBER    = new TagImpl("ce",   TagValueType.BINARY, "Executable Load File Version Number", "");
+    public static final Tag EXECUTABLE_MODULE_AID                  = new TagImpl("84",   TagValueType.BINARY, "Executable Module AID", "");
+    public static final Tag ASSOCIATED_SECURITY_DOMAIN_AID         = new TagImpl("cc",   TagValueType.BINARY, "Associated Security Domain's AID", "");
 }
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.app.globalplatform;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import sasc.emv.EMVUtil;
+import sasc.emv.SW;
+import sasc.iso7816.AID;
+import sasc.iso7816.APDUCommandBuilder;
+import sasc.iso7816.BERTLV;
+import sasc.iso7816.SmartCardException;
+import sasc.iso7816.TLVResponse;
+import sasc.iso7816.TLVUtil;
+import sasc.terminal.CardConnection;
+import sasc.terminal.TerminalException;
+import sasc.util.Util;
+
+/**
+ * Enumerates the GlobalPlatform card content registry with GET STATUS
+ * (GP Card Spec v2.2 section 11.4).
+ *
+ * The registry is read one response page at a time: the next page
+ * (GET STATUS 'get next occurrence') is only requested when all the entries of
+ * the current page have been returned, and each entry is decoded when next() is called.
+ * Only the current page is held in memory, whatever the size of the registry.
+ *
+ * GET STATUS usually requires an open secure channel, else the card returns
+ * '6982' (Security status not satisfied).
+ *
+ * Card errors are thrown as SmartCardException (the cause is the TerminalException, if any).
+ *
+ * @author sasc
+ */
+public class GetStatusIterator implements Iterator<RegistryEntry> {
+
+    public static final byte INS_GET_STATUS = (byte) 0xF2;
+
+    private static final byte GP_CLA = (byte) 0x80;
+    //P2: response data structure
+    private static final byte P2_LEGACY_FORMAT = 0x00;
+    private static final byte P2_TLV_FORMAT = 0x02;
+    //P2 bit 1: get next occurrence(s)
+    private static final byte P2_NEXT_OCCURRENCE = 0x01;
+    private static final short SW_MORE_DATA_AVAILABLE = 0x6310;
+    //Search criteria: all AIDs
+    private static final byte[] SEARCH_ALL = {0x4F, 0x00};
+
+    private final CardConnection terminal;
+    private final RegistryEntry.Kind kind;
+    private final boolean tlvFormat;
+    private final byte[] firstCommand;
+    private final byte[] nextCommand;
+
+    private ByteArrayInputStream page = null;
+    private boolean morePages = true;
+    private int pageCount = 0;
+    private RegistryEntry next = null;
+
+    /**
+     * @param tlvFormat true to request the TLV coded response (P2 = '02', GP 2.2),
+     * false for the legacy format (P2 = '00', supported by GP 2.0.1/2.1.1 cards)
+     */
+    public GetStatusIterator(CardConnection terminal, RegistryEntry.Kind kind, boolean tlvFormat) {
+        this.terminal = terminal;
+        this.kind = kind;
+        this.tlvFormat = tlvFormat;
+        byte p2 = tlvFormat ? P2_TLV_FORMAT : P2_LEGACY_FORMAT;
+        this.firstCommand = APDUCommandBuilder.build(GP_CLA, INS_GET_STATUS, kind.getP1(), p2, SEARCH_ALL, APDUCommandBuilder.MAX_SHORT_NE);
+        this.nextCommand = APDUCommandBuilder.build(GP_CLA, INS_GET_STATUS, kind.getP1(), (byte) (p2 | P2_NEXT_OCCURRENCE), SEARCH_ALL, APDUCommandBuilder.MAX_SHORT_NE);
+    }
+
+    /**
+     * For use in a for-each loop. Each call to iterator() starts a new enumeration
+     */
+    public static Iterable<RegistryEntry> registry(final CardConnection terminal, final RegistryEntry.Kind kind, final boolean tlvFormat) {
+        return new Iterable<RegistryEntry>() {
+            @Override
+            public Iterator<RegistryEntry> iterator() {
+                return new GetStatusIterator(terminal, kind, tlvFormat);
+            }
+        };
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            if (page != null && page.available() > 0) {
+                next = tlvFormat ? decodeTLVEntry() : decodeLegacyEntry();
+            } else if (morePages) {
+                readPage();
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public RegistryEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        RegistryEntry entry = next;
+        next = null;
+        return entry;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("The card registry cannot be modified with GET STATUS");
+    }
+
+    /**
+     * @return the number of GET STATUS responses read so far
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    private void readPage() {
+        TLVResponse response;
+        try {
+            response = EMVUtil.sendCmdNoParse(terminal, pageCount == 0 ? firstCommand : nextCommand);
+        } catch (TerminalException ex) {
+            throw new SmartCardException("GET STATUS failed", ex);
+        }
+        pageCount++;
+        short sw = response.getSW();
+        if (sw == SW.SUCCESS.getSW()) {
+            morePages = false;
+        } else if (sw == SW_MORE_DATA_AVAILABLE) {
+            if (response.getData().length == 0) {
+                throw new SmartCardException("GET STATUS: '6310' (more data available) without data");
+            }
+            morePages = true;
+        } else if (sw == SW.REFERENCE_DATA_NOT_FOUND.getSW()) {
+            //No entries
+            morePages = false;
+        } else {
+            throw new SmartCardException("GET STATUS failed. SW=" + Util.short2Hex(sw));
+        }
+        page = new ByteArrayInputStream(response.getData());
+    }
+
+    /**
+     * Returns the next entry, or null if the next TLV object is not a registry entry (it is skipped)
+     */
+    private RegistryEntry decodeTLVEntry() {
+        BERTLV tlv = TLVUtil.getNextTLV(page);
+        if (tlv == null || !tlv.getTag().equals(GPTags.GP_REGISTRY_RELATED_DATA)) {
+            return null;
+        }
+        byte[] aid = null;
+        int lifeCycleState = 0;
+        byte[] privileges = null;
+        RegistryEntry entry = null;
+        AID elfAID = null;
+        AID sdAID = null;
+        byte[] versionNumber = null;
+        List<AID> modules = new ArrayList<AID>();
+        try {
+            for (BERTLV child : tlv.getChildren()) {
+                if (child.getTag().equals(GPTags.REGISTRY_AID)) {
+                    aid = child.getValueBytes();
+                } else if (child.getTag().equals(GPTags.LIFE_CYCLE_STATE)) {
+                    lifeCycleState = child.getValueBytes()[0] & 0xFF;
+                } else if (child.getTag().equals(GPTags.PRIVILEGES)) {
+                    privileges = child.getValueBytes();
+                } else if (child.getTag().equals(GPTags.EXECUTABLE_LOAD_FILE_AID)) {
+                    elfAID = new AID(child.getValueBytes());
+                } else if (child.getTag().equals(GPTags.ASSOCIATED_SECURITY_DOMAIN_AID)) {
+                    sdAID = new AID(child.getValueBytes());
+                } else if (child.getTag().equals(GPTags.EXECUTABLE_LOAD_FILE_VERSION_NUMBER)) {
+                    versionNumber = child.getValueBytes();
+                } else if (child.getTag().equals(GPTags.EXECUTABLE_MODULE_AID)) {
+                    modules.add(new AID(child.getValueBytes()));
+                }
+            }
+            if (aid == null) {
+                throw new SmartCardException("GET STATUS: registry entry without AID: " + Util.prettyPrintHexNoWrap(tlv.toBERTLVByteArray()));
+            }
+            entry = new RegistryEntry(kind, new AID(aid), lifeCycleState, privileges);
+        } catch (IllegalArgumentException ex) {
+            throw new SmartCardException("GET STATUS: invalid registry entry: " + Util.prettyPrintHexNoWrap(tlv.toBERTLVByteArray()), ex);
+        }
+        entry.setExecutableLoadFileAID(elfAID);
+        entry.setAssociatedSecurityDomainAID(sdAID);
+        entry.setVersionNumber(versionNumber);
+        for (AID module : modules) {
+            entry.addModuleAID(module);
+        }
+        return entry;
+    }
+
+    /**
+     * Legacy format: AID length, AID, Life Cycle State, Privileges (1 byte)
+     * [, number of modules, (module AID length, module AID)*] for load files and modules
+     */
+    private RegistryEntry decodeLegacyEntry() {
+        byte[] aid = readLV();
+        int lifeCycleState = readByte();
+        byte[] privileges = new byte[]{(byte) readByte()};
+        try {
+            if (kind == RegistryEntry.Kind.EXECUTABLE_LOAD_FILE || kind == RegistryEntry.Kind.EXECUTABLE_LOAD_FILE_AND_MODULES) {
+                //Privileges are not used for load files
+                RegistryEntry entry = new RegistryEntry(kind, new AID(aid), lifeCycleState, null);
+                if (kind == RegistryEntry.Kind.EXECUTABLE_LOAD_FILE_AND_MODULES) {
+                    int numModules = readByte();
+                    for (int i = 0; i < numModules; i++) {
+                        entry.addModuleAID(new AID(readLV()));
+                    }
+                }
+                return entry;
+            }
+            return new RegistryEntry(kind, new AID(aid), lifeCycleState, privileges);
+        } catch (IllegalArgumentException ex) {
+            throw new SmartCardException("GET STATUS: invalid registry entry", ex);
+        }
+    }
+
+    private int readByte() {
+        int b = page.read();
+        if (b == -1) {
+            throw new SmartCardException("GET STATUS: truncated registry entry");
+        }
+        return b;
+    }
+
+    private byte[] readLV() {
+        byte[] value = new byte[readByte()];
+        if (page.read(value, 0, value.length) != value.length) {
+            throw new SmartCardException("GET STATUS: truncated registry entry");
+        }
+        return value;
+    }
+}
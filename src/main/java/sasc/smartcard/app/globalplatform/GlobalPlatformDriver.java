@@ -18,7 +18,9 @@ package sasc.smartcard.app.globalplatform;
 import java.util.concurrent.atomic.AtomicBoolean;
 import sasc.emv.EMVUtil;
 import sasc.iso7816.AID;
+import sasc.iso7816.GetDataPlan;
 import sasc.iso7816.Iso7816Commands;
+import sasc.iso7816.TLVResponse;
 import sasc.lookup.ATR_DB;
 import sasc.terminal.CardConnection;
 import sasc.terminal.CardResponse;
@@ -40,6 +42,68 @@ public class GlobalPlatformDriver implements ApplicationHandler {
     private static final byte[] GPSD_AID = Util.fromHexString("A000000003 000000");
     private static final byte[] GPSD211_AID = Util.fromHexString("A000000151 0000");
 
+    private static final GetDataPlan<ISDApplication> GET_DATA_PLAN = new GetDataPlan<ISDApplication>()
+            .add("Get Data CPLC (Card Production Life Cycle Data) History File Identifiers", getData(0x9F, 0x7F), false, //Not TLV encoded
+                    new GetDataPlan.Handler<ISDApplication>() {
+                        @Override
+                        public void onData(ISDApplication isdApp, TLVResponse response) {
+                            CPLC cplc = CPLC.parse(response.getData());
+                            isdApp.setCPLC(cplc);
+                            if (cplc != null) {
+                                Log.info(cplc.toString());
+                            }
+                        }
+                    })
+            .add("Get Data (Issuer Identification Number)", getData(0x00, 0x42), false,
+                    new GetDataPlan.Handler<ISDApplication>() {
+                        @Override
+                        public void onData(ISDApplication isdApp, TLVResponse response) {
+                            isdApp.setIssuerIdentificationNumber(response.getData());
+                        }
+                    })
+            .add("Get Data (Card Image Number)", getData(0x00, 0x45), false,
+                    new GetDataPlan.Handler<ISDApplication>() {
+                        @Override
+                        public void onData(ISDApplication isdApp, TLVResponse response) {
+                            isdApp.setCardImageNumber(response.getData());
+                        }
+                    })
+            .add("Get Data (Pre-Issuance Data / Serial Number Registers) for Credentsys-J OS", getData(0x00, 0x46), true,
+                    new GetDataPlan.Handler<ISDApplication>() {
+                        @Override
+                        public void onData(ISDApplication isdApp, TLVResponse response) {
+                            isdApp.setCredentsysJ_preIssuanceData(response.getData());
+                        }
+                    })
+            .add("Get Data (Card Data)", getData(0x00, 0x66), true,
+                    new GetDataPlan.Handler<ISDApplication>() {
+                        @Override
+                        public void onData(ISDApplication isdApp, TLVResponse response) {
+                            isdApp.setCardRecognitionData(CardRecognitionData.parse(response.getData()));
+                        }
+                    })
+            .add("Get Data (Key Information Template)", getData(0x00, 0xE0), true,
+                    new GetDataPlan.Handler<ISDApplication>() {
+                        @Override
+                        public void onData(ISDApplication isdApp, TLVResponse response) {
+                            isdApp.setKeyInformationTemplate(KeyInformationTemplate.parse(response.getData()));
+                        }
+                    })
+            .add("Get Data (Sequence Counter of the default Key Version Number)", getData(0x00, 0xC1), false,
+                    new GetDataPlan.Handler<ISDApplication>() {
+                        @Override
+                        public void onData(ISDApplication isdApp, TLVResponse response) {
+                            isdApp.setSequenceCounterOfTheDefaultKeyVersionNumber(response.getData());
+                        }
+                    })
+            .add("Get Data (Confirmation Counter)", getData(0x00, 0xC2), false,
+                    new GetDataPlan.Handler<ISDApplication>() {
+                        @Override
+                        public void onData(ISDApplication isdApp, TLVResponse response) {
+                            isdApp.setConfirmationCounter(response.getData());
+                        }
+                    });
+
     @Override
     public boolean process(AID aid, SmartCard card, CardConnection terminal) throws TerminalException {
 
@@ -72,134 +136,15 @@ public class GlobalPlatformDriver implements ApplicationHandler {
             }
         }
 
-        Log.commandHeader("Get Data CPLC (Card Production Life Cycle Data) History File Identifiers");
-        command = Util.fromHexString("00 CA 9F 7F 00");
-
-        response = EMVUtil.sendCmdNoParse(terminal, command); //Not TLV encoded
-
-        SW1 = (byte) response.getSW1();
-        SW2 = (byte) response.getSW2();
-
-        if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-            try {
-                CPLC cplc = CPLC.parse(response.getData());
-                isdApp.setCPLC(cplc);
-                if (cplc != null) {
-                    Log.info(cplc.toString());
-                }
-            } catch (RuntimeException ex) {
-                Log.debug(Util.getStackTrace(ex));
-            }
-        }
-
-
-        Log.commandHeader("Get Data (Issuer Identification Number)");
-        command = Util.fromHexString("00 CA 00 42 00");
-        response = EMVUtil.sendCmdNoParse(terminal, command);
-        SW1 = (byte) response.getSW1();
-        SW2 = (byte) response.getSW2();
-        data = response.getData();
-        if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-            try {
-                isdApp.setIssuerIdentificationNumber(response.getData());
-            } catch (RuntimeException ex) {
-                Log.debug(Util.getStackTrace(ex));
-            }
-        }
-
-
-        Log.commandHeader("Get Data (Card Image Number)");
-        command = Util.fromHexString("00 CA 00 45 00");
-        response = EMVUtil.sendCmdNoParse(terminal, command);
-        SW1 = (byte) response.getSW1();
-        SW2 = (byte) response.getSW2();
-        data = response.getData();
-        if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-            try {
-                isdApp.setCardImageNumber(response.getData());
-            } catch (RuntimeException ex) {
-                Log.debug(Util.getStackTrace(ex));
-            }
-        }
-
-
-        Log.commandHeader("Get Data (Pre-Issuance Data / Serial Number Registers) for Credentsys-J OS");
-        command = Util.fromHexString("00 CA 00 46 00");
-        response = EMVUtil.sendCmd(terminal, command);
-        SW1 = (byte) response.getSW1();
-        SW2 = (byte) response.getSW2();
-        data = response.getData();
-        if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-            try {
-                isdApp.setCredentsysJ_preIssuanceData(response.getData());
-            } catch (RuntimeException ex) {
-                Log.debug(Util.getStackTrace(ex));
-            }
-        }
-
-
-        Log.commandHeader("Get Data (Card Data)");
-        command = Util.fromHexString("00 CA 00 66 00");
-        response = EMVUtil.sendCmd(terminal, command);
-
-        SW1 = (byte) response.getSW1();
-        SW2 = (byte) response.getSW2();
-
-        if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-            try {
-                CardRecognitionData cardRecognitionData = CardRecognitionData.parse(response.getData());
-                isdApp.setCardRecognitionData(cardRecognitionData);
-            } catch (RuntimeException ex) {
-                Log.debug(Util.getStackTrace(ex));
-            }
-        }
-
-        Log.commandHeader("Get Data (Key Information Template)");
-        command = Util.fromHexString("00 CA 00 E0 00");
-        response = EMVUtil.sendCmd(terminal, command);
-        SW1 = (byte) response.getSW1();
-        SW2 = (byte) response.getSW2();
-        data = response.getData();
-        if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-            try {
-                KeyInformationTemplate keyInfo = KeyInformationTemplate.parse(data);
-                    isdApp.setKeyInformationTemplate(keyInfo);
-            } catch (RuntimeException ex) {
-                Log.debug(Util.getStackTrace(ex));
-            }
-        }
-
-        Log.commandHeader("Get Data (Sequence Counter of the default Key Version Number)");
-        command = Util.fromHexString("00 CA 00 C1 00");
-        response = EMVUtil.sendCmdNoParse(terminal, command);
-        SW1 = (byte) response.getSW1();
-        SW2 = (byte) response.getSW2();
-        data = response.getData();
-        if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-            try {
-                isdApp.setSequenceCounterOfTheDefaultKeyVersionNumber(response.getData());
-            } catch (RuntimeException ex) {
-                Log.debug(Util.getStackTrace(ex));
-            }
-        }
-
-        Log.commandHeader("Get Data (Confirmation Counter)");
-        command = Util.fromHexString("00 CA 00 C2 00");
-        response = EMVUtil.sendCmdNoParse(terminal, command);
-        SW1 = (byte) response.getSW1();
-        SW2 = (byte) response.getSW2();
-        data = response.getData();
-        if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-            try {
-                isdApp.setConfirmationCounter(response.getData());
-            } catch (RuntimeException ex) {
-                Log.debug(Util.getStackTrace(ex));
-            }
-        }
+        GET_DATA_PLAN.execute(terminal, isdApp, GetDataPlan.getAbsentTags(card.getATR().getBytes(), aid));
 
         return false; //Handle non-exclusively
     }
 
+    private static byte[] getData(int p1, int p2) {
+        return Iso7816Commands.getData((byte) p1, (byte) p2, (byte) 0x00);
+    }
+
     //SELECT:
     //00 A4 04 00 00
     //    6F File Control Information (FCI) Template
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.app.globalplatform;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import sasc.emv.SW;
+import sasc.iso7816.TLVResponse;
+import sasc.iso7816.TLVWriter;
+import sasc.terminal.CardConnection;
+import sasc.terminal.CardResponse;
+import sasc.terminal.Terminal;
+import sasc.terminal.TerminalException;
+import sasc.util.Log;
+import sasc.util.Util;
+
+/**
+ * Emulates the Issuer Security Domain of a GlobalPlatform card with known (eg test) keys,
+ * so that secure channels and authenticated card management can be tested and benchmarked
+ * without a card.
+ *
+ * Supported commands: SELECT (selects the ISD, and closes the secure channel),
+ * INITIALIZE UPDATE, EXTERNAL AUTHENTICATE, GET STATUS (TLV format, paged with '6310')
+ * and DELETE (by AID). GET STATUS and DELETE require an authenticated secure channel.
+ * A wrong C-MAC is answered with '6982', and closes the secure channel.
+ *
+ * @author sasc
+ */
+public class GlobalPlatformEmulator implements CardConnection {
+
+    private static final byte[] ATR = Util.fromHexString("3B 8A 80 01 00 31 C1 73 C8 40 00 00 90 00 90");
+    private static final byte[] KEY_DIVERSIFICATION_DATA = Util.fromHexString("00 00 11 22 33 44 55 66 77 88");
+    //The response of one GET STATUS page must fit in 256 bytes
+    private static final int MAX_PAGE_SIZE = 8;
+
+    private final SecureChannelKeys keys;
+    private final int scpVersion;
+    private final int scp02ImplementationOption;
+    private final List<RegistryEntry> registry = new ArrayList<RegistryEntry>();
+    private final SecureRandom random = new SecureRandom();
+    private final byte[] unwrapped = new byte[5 + SecureChannelProtocol.MAX_LC + 1];
+    private final TLVWriter writer = new TLVWriter(256);
+
+    private int pageSize = MAX_PAGE_SIZE;
+    private int sequenceCounter = 0;
+    private SecureChannelProtocol session = null;
+    private boolean authenticated = false;
+    private int nextOccurrence = 0;
+
+    public GlobalPlatformEmulator(SecureChannelKeys keys, int scpVersion) {
+        this(keys, scpVersion, SCP02.DEFAULT_IMPLEMENTATION_OPTION);
+    }
+
+    /**
+     * @param scpVersion 2 or 3
+     */
+    public GlobalPlatformEmulator(SecureChannelKeys keys, int scpVersion, int scp02ImplementationOption) {
+        if (scpVersion != 2 && scpVersion != 3) {
+            throw new IllegalArgumentException("Secure Channel Protocol not supported: " + scpVersion);
+        }
+        this.keys = keys;
+        this.scpVersion = scpVersion;
+        this.scp02ImplementationOption = scp02ImplementationOption;
+    }
+
+    public void addRegistryEntry(RegistryEntry entry) {
+        registry.add(entry);
+    }
+
+    public List<RegistryEntry> getRegistry() {
+        return Collections.unmodifiableList(registry);
+    }
+
+    /**
+     * @param pageSize the max number of entries in a GET STATUS response (1-8)
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("Invalid page size: " + pageSize);
+        }
+        this.pageSize = pageSize;
+    }
+
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    private void closeSession() {
+        session = null;
+        authenticated = false;
+    }
+
+    @Override
+    public CardResponse transmit(byte[] cmd) throws TerminalException {
+        return transmit(cmd, 0, cmd.length);
+    }
+
+    @Override
+    public CardResponse transmit(byte[] buffer, int offset, int length) throws TerminalException {
+        if (length < 4) {
+            return createResponse(null, SW.LENGTH_FIELD_INCORRECT);
+        }
+        boolean secured = false;
+        if ((buffer[offset] & SecureChannelProtocol.SECURE_MESSAGING_CLA_BIT) != 0) {
+            int unwrappedLength = session != null ? session.unwrap(buffer, offset, length, unwrapped, 0) : -1;
+            if (unwrappedLength < 0) {
+                Log.debug("GlobalPlatformEmulator: C-MAC verification failed");
+                closeSession();
+                return createResponse(null, SW.COMMAND_NOT_ALLOWED_SECURITY_STATUS_NOT_SATISFIED);
+            }
+            buffer = unwrapped;
+            offset = 0;
+            length = unwrappedLength;
+            secured = true;
+        }
+        byte[] data = length > 5 ? Arrays.copyOfRange(buffer, offset + 5, offset + 5 + (buffer[offset + 4] & 0xFF)) : new byte[0];
+        int p1 = buffer[offset + 2] & 0xFF;
+        int p2 = buffer[offset + 3] & 0xFF;
+        switch (buffer[offset + 1]) {
+            case (byte) 0xA4: //SELECT
+                closeSession();
+                return createResponse(null, SW.SUCCESS);
+            case SecureChannel.INS_INITIALIZE_UPDATE:
+                return initializeUpdate(p1, data);
+            case SecureChannel.INS_EXTERNAL_AUTHENTICATE:
+                return externalAuthenticate(secured, p1, data);
+            case GetStatusIterator.INS_GET_STATUS:
+                if (!authenticated || !secured) {
+                    return createResponse(null, SW.COMMAND_NOT_ALLOWED_SECURITY_STATUS_NOT_SATISFIED);
+                }
+                return getStatus(p1, p2);
+            case (byte) 0xE4: //DELETE
+                if (!authenticated || !secured) {
+                    return createResponse(null, SW.COMMAND_NOT_ALLOWED_SECURITY_STATUS_NOT_SATISFIED);
+                }
+                return delete(data);
+            default:
+                return createResponse(null, SW.INSTRUCTION_CODE_NOT_SUPPORTED_OR_INVALID);
+        }
+    }
+
+    private CardResponse initializeUpdate(int keyVersion, byte[] hostChallenge) {
+        closeSession();
+        if (hostChallenge.length != 8) {
+            return createResponse(null, SW.LENGTH_FIELD_INCORRECT);
+        }
+        if (keyVersion != 0 && keyVersion != keys.getKeyVersion()) {
+            return createResponse(null, SW.REFERENCE_DATA_NOT_FOUND);
+        }
+        byte[] response;
+        if (scpVersion == 2) {
+            sequenceCounter++;
+            byte[] sequenceCounterAndCardChallenge = new byte[8];
+            sequenceCounterAndCardChallenge[0] = (byte) (sequenceCounter >>> 8);
+            sequenceCounterAndCardChallenge[1] = (byte) sequenceCounter;
+            byte[] challenge = new byte[6];
+            random.nextBytes(challenge);
+            System.arraycopy(challenge, 0, sequenceCounterAndCardChallenge, 2, 6);
+            session = new SCP02(keys, hostChallenge, sequenceCounterAndCardChallenge, scp02ImplementationOption);
+            response = new byte[28];
+            System.arraycopy(sequenceCounterAndCardChallenge, 0, response, 12, 8);
+            System.arraycopy(session.calculateCardCryptogram(), 0, response, 20, 8);
+        } else {
+            byte[] cardChallenge = new byte[8];
+            random.nextBytes(cardChallenge);
+            session = new SCP03(keys, hostChallenge, cardChallenge, 0x00);
+            response = new byte[29];
+            response[12] = 0x00; //"i"
+            System.arraycopy(cardChallenge, 0, response, 13, 8);
+            System.arraycopy(session.calculateCardCryptogram(), 0, response, 21, 8);
+        }
+        System.arraycopy(KEY_DIVERSIFICATION_DATA, 0, response, 0, 10);
+        response[10] = (byte) (keys.getKeyVersion() != 0 ? keys.getKeyVersion() : 0x01);
+        response[11] = (byte) scpVersion;
+        return createResponse(response, SW.SUCCESS);
+    }
+
+    private CardResponse externalAuthenticate(boolean secured, int securityLevel, byte[] hostCryptogram) {
+        if (session == null || authenticated || !secured) {
+            closeSession();
+            return createResponse(null, SW.COMMAND_NOT_ALLOWED_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        if (!Arrays.equals(hostCryptogram, session.calculateHostCryptogram())) {
+            closeSession();
+            return createResponse(null, SW.AUTHENTICATION_FAILED);
+        }
+        try {
+            session.setSecurityLevel(securityLevel);
+        } catch (IllegalArgumentException ex) {
+            closeSession();
+            return createResponse(null, SW.INCORRECT_PARAMETERS_P1_P2);
+        }
+        authenticated = true;
+        return createResponse(null, SW.SUCCESS);
+    }
+
+    private CardResponse getStatus(int p1, int p2) {
+        RegistryEntry.Kind kind = null;
+        for (RegistryEntry.Kind k : RegistryEntry.Kind.values()) {
+            if ((k.getP1() & 0xFF) == p1) {
+                kind = k;
+                break;
+            }
+        }
+        //Only the TLV format
+        if (kind == null || (p2 & 0xFE) != 0x02) {
+            return createResponse(null, SW.INCORRECT_PARAMETERS_P1_P2);
+        }
+        if ((p2 & 0x01) == 0) {
+            nextOccurrence = 0;
+        }
+        List<RegistryEntry> matching = new ArrayList<RegistryEntry>();
+        for (RegistryEntry entry : registry) {
+            if (entry.getKind() == kind) {
+                matching.add(entry);
+            }
+        }
+        if (matching.isEmpty()) {
+            return createResponse(null, SW.REFERENCE_DATA_NOT_FOUND);
+        }
+        writer.reset();
+        int end = Math.min(nextOccurrence + pageSize, matching.size());
+        for (int i = nextOccurrence; i < end; i++) {
+            RegistryEntry entry = matching.get(i);
+            writer.begin(GPTags.GP_REGISTRY_RELATED_DATA)
+                    .write(GPTags.REGISTRY_AID, entry.getAID().getAIDBytes())
+                    .write(GPTags.LIFE_CYCLE_STATE, entry.getLifeCycleState());
+            if (entry.getPrivileges() != null) {
+                writer.write(GPTags.PRIVILEGES, entry.getPrivileges());
+            }
+            writer.end();
+        }
+        nextOccurrence = end;
+        if (end < matching.size()) {
+            return createResponse(writer.toByteArray(), (byte) 0x63, (byte) 0x10);
+        }
+        return createResponse(writer.toByteArray(), SW.SUCCESS);
+    }
+
+    private CardResponse delete(byte[] data) {
+        if (data.length < 2 || data[0] != 0x4F || (data[1] & 0xFF) != data.length - 2) {
+            return createResponse(null, SW.INCORRECT_PARAMS_IN_DATA_FIELD);
+        }
+        byte[] aid = Arrays.copyOfRange(data, 2, data.length);
+        for (int i = 0; i < registry.size(); i++) {
+            if (Arrays.equals(aid, registry.get(i).getAID().getAIDBytes())) {
+                registry.remove(i);
+                //Delete confirmation: no token
+                return createResponse(new byte[]{0x00}, SW.SUCCESS);
+            }
+        }
+        return createResponse(null, SW.REFERENCE_DATA_NOT_FOUND);
+    }
+
+    private CardResponse createResponse(byte[] data, SW sw) {
+        return createResponse(data, sw.getSW1(), sw.getSW2());
+    }
+
+    private CardResponse createResponse(byte[] data, byte sw1, byte sw2) {
+        return new TLVResponse(data != null ? data : new byte[0], sw1, sw2);
+    }
+
+    @Override
+    public byte[] transmitControlCommand(int controlCode, byte[] data) throws TerminalException {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    @Override
+    public byte[] getATR() {
+        return ATR.clone();
+    }
+
+    @Override
+    public Terminal getTerminal() {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    @Override
+    public String getConnectionInfo() {
+        return "GlobalPlatform Card Emulator (SCP0" + scpVersion + ")";
+    }
+
+    @Override
+    public String getProtocol() {
+        return "T=1";
+    }
+
+    @Override
+    public void resetCard() throws TerminalException {
+        closeSession();
+    }
+
+    @Override
+    public boolean disconnect(boolean attemptReset) throws TerminalException {
+        closeSession();
+        return true;
+    }
+}
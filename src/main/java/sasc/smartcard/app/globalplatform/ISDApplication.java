@@ -81,6 +81,13 @@ public class ISDApplication implements Application {
         this.cplc = cplc;
     }
 
+    /**
+     * @return the Card Production Life Cycle data, or null if not read
+     */
+    public CPLC getCPLC() {
+        return cplc;
+    }
+
     @Override
     public AID getAID() {
         return aid;
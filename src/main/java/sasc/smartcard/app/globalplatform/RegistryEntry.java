@@ -0,0 +1,208 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.app.globalplatform;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import sasc.iso7816.AID;
+import sasc.util.Log;
+import sasc.util.Util;
+
+/**
+ * An entry in the GlobalPlatform card content registry, as returned by GET STATUS
+ * (GP Card Spec v2.2 section 11.4)
+ *
+ * @author sasc
+ */
+public class RegistryEntry {
+
+    /**
+     * The GET STATUS P1 subset
+     */
+    public static enum Kind {
+        ISSUER_SECURITY_DOMAIN(0x80, "Issuer Security Domain"),
+        APPLICATION(0x40, "Application or Security Domain"),
+        EXECUTABLE_LOAD_FILE(0x20, "Executable Load File"),
+        EXECUTABLE_LOAD_FILE_AND_MODULES(0x10, "Executable Load File and Modules");
+
+        private final int p1;
+        private final String description;
+
+        private Kind(int p1, String description) {
+            this.p1 = p1;
+            this.description = description;
+        }
+
+        public byte getP1() {
+            return (byte) p1;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private final Kind kind;
+    private final AID aid;
+    private final int lifeCycleState;
+    private final byte[] privileges;
+    private AID executableLoadFileAID = null;
+    private AID associatedSecurityDomainAID = null;
+    private byte[] versionNumber = null;
+    private List<AID> moduleAIDs = Collections.emptyList();
+
+    public RegistryEntry(Kind kind, AID aid, int lifeCycleState, byte[] privileges) {
+        this.kind = kind;
+        this.aid = aid;
+        this.lifeCycleState = lifeCycleState;
+        this.privileges = privileges;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public AID getAID() {
+        return aid;
+    }
+
+    public int getLifeCycleState() {
+        return lifeCycleState;
+    }
+
+    /**
+     * @return the privileges (1 or 3 bytes), or null for load files
+     */
+    public byte[] getPrivileges() {
+        return privileges;
+    }
+
+    public boolean isSecurityDomain() {
+        return privileges != null && privileges.length > 0 && (privileges[0] & 0x80) != 0;
+    }
+
+    public AID getExecutableLoadFileAID() {
+        return executableLoadFileAID;
+    }
+
+    void setExecutableLoadFileAID(AID executableLoadFileAID) {
+        this.executableLoadFileAID = executableLoadFileAID;
+    }
+
+    public AID getAssociatedSecurityDomainAID() {
+        return associatedSecurityDomainAID;
+    }
+
+    void setAssociatedSecurityDomainAID(AID associatedSecurityDomainAID) {
+        this.associatedSecurityDomainAID = associatedSecurityDomainAID;
+    }
+
+    public byte[] getVersionNumber() {
+        return versionNumber;
+    }
+
+    void setVersionNumber(byte[] versionNumber) {
+        this.versionNumber = versionNumber;
+    }
+
+    /**
+     * @return the Executable Module AIDs (Kind.EXECUTABLE_LOAD_FILE_AND_MODULES only)
+     */
+    public List<AID> getModuleAIDs() {
+        return moduleAIDs;
+    }
+
+    void addModuleAID(AID moduleAID) {
+        if (moduleAIDs.isEmpty()) {
+            moduleAIDs = new ArrayList<AID>();
+        }
+        moduleAIDs.add(moduleAID);
+    }
+
+    public static String getLifeCycleStateDescription(Kind kind, int state) {
+        switch (kind) {
+            case ISSUER_SECURITY_DOMAIN:
+                switch (state) {
+                    case 0x01:
+                        return "OP_READY";
+                    case 0x07:
+                        return "INITIALIZED";
+                    case 0x0F:
+                        return "SECURED";
+                    case 0x7F:
+                        return "CARD_LOCKED";
+                    case 0xFF:
+                        return "TERMINATED";
+                }
+                break;
+            case APPLICATION:
+                if ((state & 0x83) == 0x83) {
+                    return "LOCKED";
+                }
+                switch (state) {
+                    case 0x03:
+                        return "INSTALLED";
+                    case 0x07:
+                        return "SELECTABLE";
+                    case 0x0F:
+                        return "PERSONALIZED";
+                }
+                if ((state & 0x07) == 0x07) {
+                    return "SELECTABLE (application specific state)";
+                }
+                break;
+            default:
+                if (state == 0x01) {
+                    return "LOADED";
+                }
+        }
+        return "Unknown";
+    }
+
+    @Override
+    public String toString() {
+        StringWriter sw = new StringWriter();
+        dump(new PrintWriter(sw), 0);
+        return sw.toString();
+    }
+
+    public void dump(PrintWriter pw, int indent) {
+        pw.println(Util.getSpaces(indent) + kind.getDescription());
+
+        String indentStr = Util.getSpaces(indent + Log.INDENT_SIZE);
+
+        pw.println(indentStr + "AID: " + Util.prettyPrintHexNoWrap(aid.getAIDBytes()));
+        pw.println(indentStr + "Life Cycle State: 0x" + Util.byte2Hex((byte) lifeCycleState) + " (" + getLifeCycleStateDescription(kind, lifeCycleState) + ")");
+        if (privileges != null) {
+            pw.println(indentStr + "Privileges: " + Util.prettyPrintHexNoWrap(privileges));
+        }
+        if (executableLoadFileAID != null) {
+            pw.println(indentStr + "Executable Load File AID: " + Util.prettyPrintHexNoWrap(executableLoadFileAID.getAIDBytes()));
+        }
+        if (versionNumber != null) {
+            pw.println(indentStr + "Version Number: " + Util.prettyPrintHexNoWrap(versionNumber));
+        }
+        if (associatedSecurityDomainAID != null) {
+            pw.println(indentStr + "Associated Security Domain AID: " + Util.prettyPrintHexNoWrap(associatedSecurityDomainAID.getAIDBytes()));
+        }
+        for (AID moduleAID : moduleAIDs) {
+            pw.println(indentStr + "Executable Module AID: " + Util.prettyPrintHexNoWrap(moduleAID.getAIDBytes()));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.app.globalplatform;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import sasc.terminal.CardConnection;
+
+/**
+ * Caches complete card content registry listings (see GetStatusIterator) per card.
+ *
+ * A card is identified by the Card Unique Identifier derived from its CPLC data
+ * (IC Fabricator, IC Type, IC Batch Identifier and IC Serial Number).
+ * The snapshot of a card must be invalidated when its content is changed
+ * (load, install or delete), since the cache has no other way to detect it.
+ *
+ * The cache holds at most maxCards cards (least recently used are evicted).
+ *
+ * @author sasc
+ */
+public class RegistrySnapshotCache {
+
+    private final int maxCards;
+    private final LinkedHashMap<String, EnumMap<RegistryEntry.Kind, List<RegistryEntry>>> snapshots;
+
+    public RegistrySnapshotCache(int maxCards) {
+        if (maxCards < 1) {
+            throw new IllegalArgumentException("maxCards must be > 0: " + maxCards);
+        }
+        this.maxCards = maxCards;
+        this.snapshots = new LinkedHashMap<String, EnumMap<RegistryEntry.Kind, List<RegistryEntry>>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, EnumMap<RegistryEntry.Kind, List<RegistryEntry>>> eldest) {
+                return size() > RegistrySnapshotCache.this.maxCards;
+            }
+        };
+    }
+
+    /**
+     * @return the cached (unmodifiable) list of entries, or null if the card/kind is not cached
+     */
+    public synchronized List<RegistryEntry> get(CPLC cplc, RegistryEntry.Kind kind) {
+        EnumMap<RegistryEntry.Kind, List<RegistryEntry>> snapshot = snapshots.get(cplc.createCardUniqueIdentifier());
+        return snapshot != null ? snapshot.get(kind) : null;
+    }
+
+    public synchronized void put(CPLC cplc, RegistryEntry.Kind kind, List<RegistryEntry> entries) {
+        String cuid = cplc.createCardUniqueIdentifier();
+        EnumMap<RegistryEntry.Kind, List<RegistryEntry>> snapshot = snapshots.get(cuid);
+        if (snapshot == null) {
+            snapshot = new EnumMap<RegistryEntry.Kind, List<RegistryEntry>>(RegistryEntry.Kind.class);
+            snapshots.put(cuid, snapshot);
+        }
+        snapshot.put(kind, Collections.unmodifiableList(new ArrayList<RegistryEntry>(entries)));
+    }
+
+    /**
+     * Returns the cached entries, or reads them from the card (and caches them).
+     * If cplc is null (the card has no CPLC data) the entries are read, but not cached
+     *
+     * @throws sasc.iso7816.SmartCardException if GET STATUS fails
+     */
+    public List<RegistryEntry> getOrRead(CPLC cplc, CardConnection terminal, RegistryEntry.Kind kind, boolean tlvFormat) {
+        if (cplc != null) {
+            List<RegistryEntry> cached = get(cplc, kind);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        List<RegistryEntry> entries = new ArrayList<RegistryEntry>();
+        GetStatusIterator iterator = new GetStatusIterator(terminal, kind, tlvFormat);
+        while (iterator.hasNext()) {
+            entries.add(iterator.next());
+        }
+        if (cplc == null) {
+            return Collections.unmodifiableList(entries);
+        }
+        put(cplc, kind, entries);
+        return get(cplc, kind);
+    }
+
+    /**
+     * Removes the snapshots of the card (call this after changing the card content)
+     */
+    public synchronized void invalidate(CPLC cplc) {
+        snapshots.remove(cplc.createCardUniqueIdentifier());
+    }
+
+    public synchronized int size() {
+        return snapshots.size();
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.app.globalplatform;
+
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import sasc.iso7816.SmartCardException;
+
+/**
+ * Secure Channel Protocol '02' (GP Card Spec v2.2 Appendix E)
+ *
+ * Supported: 3 Secure Channel keys, C-MAC on the modified APDU with ICV encryption
+ * (i = '15' or '55'), and C-DECRYPTION.
+ *
+ * Session keys: 3DES-CBC (zero IV) of derivation constant | sequence counter | '00'*12.
+ * C-MAC: ISO 9797-1 MAC Algorithm 3 (the "retail MAC") with S-MAC. The ICV is zero for
+ * EXTERNAL AUTHENTICATE, then the previous C-MAC, encrypted with the first half of S-MAC.
+ * C-DECRYPTION: 3DES-CBC (zero IV) with S-ENC of the padded data. The C-MAC is calculated on the plain data.
+ *
+ * @author sasc
+ */
+public class SCP02 extends SecureChannelProtocol {
+
+    public static final int DEFAULT_IMPLEMENTATION_OPTION = 0x15;
+
+    //"i" parameter bits
+    private static final int OPTION_UNMODIFIED_APDU = 0x02;
+    private static final int OPTION_ICV_MAC_OVER_AID = 0x08;
+    private static final int OPTION_ICV_ENCRYPTION = 0x10;
+
+    private static final int BLOCK_SIZE = 8;
+    private static final byte[] DERIVATION_C_MAC = {0x01, 0x01};
+    private static final byte[] DERIVATION_S_ENC = {0x01, (byte) 0x82};
+
+    private final int implementationOption;
+    private final byte[] hostChallenge;
+    private final byte[] sequenceCounterAndCardChallenge;
+
+    private final Cipher sEncEncrypt;
+    private final Cipher sEncDecrypt;
+    //Single DES with the first half of S-MAC (all blocks but the last, and ICV encryption)
+    private final Cipher sMacSingle;
+    //3DES with S-MAC (last block)
+    private final Cipher sMacTriple;
+
+    private boolean firstCommand = true;
+    private final byte[] lastMac = new byte[MAC_LENGTH];
+    private final byte[] macState = new byte[BLOCK_SIZE];
+    private final byte[] macBlock = new byte[BLOCK_SIZE];
+    private int macBlockLength;
+
+    /**
+     * @param sequenceCounterAndCardChallenge the sequence counter (2 bytes) and card challenge (6 bytes)
+     * from the INITIALIZE UPDATE response
+     * @param implementationOption the "i" parameter
+     */
+    public SCP02(SecureChannelKeys keys, byte[] hostChallenge, byte[] sequenceCounterAndCardChallenge, int implementationOption) {
+        if (keys.getKeyLength() != 16) {
+            throw new IllegalArgumentException("SCP02 requires 16 byte keys");
+        }
+        if (hostChallenge.length != 8 || sequenceCounterAndCardChallenge.length != 8) {
+            throw new IllegalArgumentException("The host challenge and the sequence counter+card challenge must be 8 bytes");
+        }
+        if ((implementationOption & (OPTION_UNMODIFIED_APDU | OPTION_ICV_MAC_OVER_AID)) != 0) {
+            throw new IllegalArgumentException("SCP02 implementation option not supported: i=" + Integer.toHexString(implementationOption));
+        }
+        this.implementationOption = implementationOption;
+        this.hostChallenge = hostChallenge.clone();
+        this.sequenceCounterAndCardChallenge = sequenceCounterAndCardChallenge.clone();
+
+        byte[] sEnc = tripleDESKey(deriveSessionKey(keys.getEncKey(), DERIVATION_S_ENC));
+        byte[] sMac = deriveSessionKey(keys.getMacKey(), DERIVATION_C_MAC);
+        sEncEncrypt = initCipher("DESede/ECB/NoPadding", Cipher.ENCRYPT_MODE, sEnc, "DESede");
+        sEncDecrypt = initCipher("DESede/ECB/NoPadding", Cipher.DECRYPT_MODE, sEnc, "DESede");
+        sMacSingle = initCipher("DES/ECB/NoPadding", Cipher.ENCRYPT_MODE, Arrays.copyOf(sMac, 8), "DES");
+        sMacTriple = initCipher("DESede/ECB/NoPadding", Cipher.ENCRYPT_MODE, tripleDESKey(sMac), "DESede");
+    }
+
+    @Override
+    public int getVersion() {
+        return 2;
+    }
+
+    public int getImplementationOption() {
+        return implementationOption;
+    }
+
+    /**
+     * K1 | K2 -> K1 | K2 | K1
+     */
+    private static byte[] tripleDESKey(byte[] key) {
+        byte[] key24 = Arrays.copyOf(key, 24);
+        System.arraycopy(key, 0, key24, 16, 8);
+        return key24;
+    }
+
+    private byte[] deriveSessionKey(byte[] staticKey, byte[] constant) {
+        byte[] derivationData = new byte[16];
+        derivationData[0] = constant[0];
+        derivationData[1] = constant[1];
+        //Sequence counter
+        derivationData[2] = sequenceCounterAndCardChallenge[0];
+        derivationData[3] = sequenceCounterAndCardChallenge[1];
+        Cipher cipher = initCipher("DESede/ECB/NoPadding", Cipher.ENCRYPT_MODE, tripleDESKey(staticKey), "DESede");
+        encryptCBC(cipher, null, derivationData, 0, derivationData.length, BLOCK_SIZE);
+        return derivationData;
+    }
+
+    /**
+     * Full 3DES MAC (ISO 9797-1 MAC Algorithm 1 with 3DES) with S-ENC of first | second
+     */
+    private byte[] calculateCryptogram(byte[] first, byte[] second) {
+        byte[] data = new byte[24];
+        System.arraycopy(first, 0, data, 0, 8);
+        System.arraycopy(second, 0, data, 8, 8);
+        pad(data, 0, 16, BLOCK_SIZE);
+        encryptCBC(sEncEncrypt, null, data, 0, data.length, BLOCK_SIZE);
+        return Arrays.copyOfRange(data, 16, 24);
+    }
+
+    @Override
+    public byte[] calculateCardCryptogram() {
+        return calculateCryptogram(hostChallenge, sequenceCounterAndCardChallenge);
+    }
+
+    @Override
+    public byte[] calculateHostCryptogram() {
+        return calculateCryptogram(sequenceCounterAndCardChallenge, hostChallenge);
+    }
+
+    @Override
+    public boolean verifyCardCryptogram(byte[] initializeUpdateResponse) {
+        return initializeUpdateResponse.length >= 28
+                && equals(calculateCardCryptogram(), 0, initializeUpdateResponse, 20, 8);
+    }
+
+    @Override
+    public int wrap(byte[] apdu, int offset, int length, byte[] out, int outOffset) {
+        parse(apdu, offset, length);
+        boolean encrypt = isCommandEncryption() && dataLength > 0;
+        int wrappedDataLength = encrypt ? (dataLength / BLOCK_SIZE + 1) * BLOCK_SIZE : dataLength;
+        if (wrappedDataLength + MAC_LENGTH > MAX_LC) {
+            //Checked before the MAC is calculated, so that the MAC chaining is not broken
+            throw new SmartCardException("Command data too long for secure messaging: " + dataLength);
+        }
+        int smCla = cla | SECURE_MESSAGING_CLA_BIT;
+        calculateMac(smCla, apdu, offset, apdu, dataOffset, dataLength);
+
+        int lcOffset = writeHeader(apdu, offset, smCla, out, outOffset);
+        int pos = lcOffset + 1;
+        System.arraycopy(apdu, dataOffset, out, pos, dataLength);
+        if (encrypt) {
+            pad(out, pos, dataLength, BLOCK_SIZE);
+            encryptCBC(sEncEncrypt, null, out, pos, wrappedDataLength, BLOCK_SIZE);
+        }
+        out[lcOffset] = (byte) (wrappedDataLength + MAC_LENGTH);
+        pos += wrappedDataLength;
+        System.arraycopy(lastMac, 0, out, pos, MAC_LENGTH);
+        pos += MAC_LENGTH;
+        if (le >= 0) {
+            out[pos++] = (byte) le;
+        }
+        return pos - outOffset;
+    }
+
+    @Override
+    public int unwrap(byte[] apdu, int offset, int length, byte[] out, int outOffset) {
+        parse(apdu, offset, length);
+        if ((cla & SECURE_MESSAGING_CLA_BIT) == 0 || dataLength < MAC_LENGTH) {
+            return -1;
+        }
+        int wrappedDataLength = dataLength - MAC_LENGTH;
+        int lcOffset = writeHeader(apdu, offset, cla & ~SECURE_MESSAGING_CLA_BIT, out, outOffset);
+        int pos = lcOffset + 1;
+        System.arraycopy(apdu, dataOffset, out, pos, wrappedDataLength);
+        int plainLength = wrappedDataLength;
+        if (wrappedDataLength > 0 && isCommandEncryption()) {
+            if (wrappedDataLength % BLOCK_SIZE != 0) {
+                return -1;
+            }
+            decryptCBC(sEncDecrypt, null, out, pos, wrappedDataLength, BLOCK_SIZE);
+            plainLength = unpad(out, pos, wrappedDataLength, BLOCK_SIZE);
+            if (plainLength < 0) {
+                return -1;
+            }
+        }
+        calculateMac(cla, apdu, offset, out, pos, plainLength);
+        if (!equals(lastMac, 0, apdu, dataOffset + wrappedDataLength, MAC_LENGTH)) {
+            return -1;
+        }
+        int end = lcOffset;
+        if (plainLength > 0) {
+            out[lcOffset] = (byte) plainLength;
+            end = pos + plainLength;
+        }
+        if (le >= 0) {
+            out[end++] = (byte) le;
+        }
+        return end - outOffset;
+    }
+
+    /**
+     * C-MAC of the modified APDU: header (with the secure messaging CLA), Lc including the C-MAC, and the plain data.
+     * The result is in lastMac
+     */
+    private void calculateMac(int smCla, byte[] header, int headerOffset, byte[] data, int offset, int length) {
+        if (firstCommand) {
+            Arrays.fill(macState, (byte) 0x00);
+            firstCommand = false;
+        } else {
+            System.arraycopy(lastMac, 0, macState, 0, MAC_LENGTH);
+            if ((implementationOption & OPTION_ICV_ENCRYPTION) != 0) {
+                processBlock(sMacSingle, macState, 0, BLOCK_SIZE);
+            }
+        }
+        macBlockLength = 0;
+        updateMac(smCla);
+        updateMac(header[headerOffset + 1]);
+        updateMac(header[headerOffset + 2]);
+        updateMac(header[headerOffset + 3]);
+        updateMac(length + MAC_LENGTH);
+        for (int i = offset; i < offset + length; i++) {
+            updateMac(data[i]);
+        }
+        //The padded last block is always incomplete here, so it is never processed by updateMac
+        pad(macBlock, 0, macBlockLength, BLOCK_SIZE);
+        xor(macState, 0, macBlock, 0, BLOCK_SIZE);
+        processBlock(sMacTriple, macState, 0, BLOCK_SIZE);
+        System.arraycopy(macState, 0, lastMac, 0, MAC_LENGTH);
+    }
+
+    private void updateMac(int b) {
+        macBlock[macBlockLength++] = (byte) b;
+        if (macBlockLength == BLOCK_SIZE) {
+            xor(macState, 0, macBlock, 0, BLOCK_SIZE);
+            processBlock(sMacSingle, macState, 0, BLOCK_SIZE);
+            macBlockLength = 0;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.app.globalplatform;
+
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import sasc.iso7816.SmartCardException;
+
+/**
+ * Secure Channel Protocol '03' (GP Card Spec v2.2 Amendment D)
+ *
+ * Session keys and cryptograms: the NIST SP 800-108 KDF in counter mode with AES-CMAC,
+ * with the host challenge and the card challenge as context.
+ * C-MAC: AES-CMAC with S-MAC of the MAC chaining value (the full previous C-MAC, zero for
+ * EXTERNAL AUTHENTICATE) and the command, truncated to 8 bytes.
+ * C-DECRYPTION: AES-CBC with S-ENC of the padded data. The ICV is the encryption counter
+ * encrypted with S-ENC. The C-MAC is calculated on the encrypted data.
+ *
+ * R-MAC and R-ENCRYPTION are not supported.
+ *
+ * @author sasc
+ */
+public class SCP03 extends SecureChannelProtocol {
+
+    //Derivation constants (Amendment D section 4.1.5)
+    private static final int DERIVATION_CARD_CRYPTOGRAM = 0x00;
+    private static final int DERIVATION_HOST_CRYPTOGRAM = 0x01;
+    private static final int DERIVATION_S_ENC = 0x04;
+    private static final int DERIVATION_S_MAC = 0x06;
+
+    private static final int BLOCK_SIZE = CMAC.BLOCK_SIZE;
+
+    private final int implementationOption;
+    //host challenge | card challenge
+    private final byte[] context;
+
+    private final CMAC sMac;
+    private final Cipher sEncEncrypt;
+    private final Cipher sEncDecrypt;
+
+    private final byte[] macChainingValue = new byte[BLOCK_SIZE];
+    private final byte[] icv = new byte[BLOCK_SIZE];
+    private long encryptionCounter = 0;
+
+    /**
+     * @param implementationOption the "i" parameter (from the INITIALIZE UPDATE response)
+     */
+    public SCP03(SecureChannelKeys keys, byte[] hostChallenge, byte[] cardChallenge, int implementationOption) {
+        if (hostChallenge.length != 8 || cardChallenge.length != 8) {
+            throw new IllegalArgumentException("The host and card challenges must be 8 bytes");
+        }
+        this.implementationOption = implementationOption;
+        this.context = new byte[16];
+        System.arraycopy(hostChallenge, 0, context, 0, 8);
+        System.arraycopy(cardChallenge, 0, context, 8, 8);
+
+        int keyBits = keys.getKeyLength() * 8;
+        byte[] sEnc = deriveData(new CMAC(keys.getEncKey()), DERIVATION_S_ENC, keyBits);
+        sMac = new CMAC(deriveData(new CMAC(keys.getMacKey()), DERIVATION_S_MAC, keyBits));
+        sEncEncrypt = initCipher("AES/ECB/NoPadding", Cipher.ENCRYPT_MODE, sEnc, "AES");
+        sEncDecrypt = initCipher("AES/ECB/NoPadding", Cipher.DECRYPT_MODE, sEnc, "AES");
+    }
+
+    @Override
+    public int getVersion() {
+        return 3;
+    }
+
+    public int getImplementationOption() {
+        return implementationOption;
+    }
+
+    /**
+     * KDF in counter mode. The derivation data of each iteration is:
+     * label ('00'*11 | derivation constant) | '00' | L (2 bytes, in bits) | i | context
+     */
+    private byte[] deriveData(CMAC prf, int derivationConstant, int lengthBits) {
+        int iterations = (lengthBits + BLOCK_SIZE * 8 - 1) / (BLOCK_SIZE * 8);
+        byte[] derived = new byte[iterations * BLOCK_SIZE];
+        for (int i = 1; i <= iterations; i++) {
+            for (int j = 0; j < 11; j++) {
+                prf.update(0x00);
+            }
+            prf.update(derivationConstant);
+            prf.update(0x00);
+            prf.update(lengthBits >> 8);
+            prf.update(lengthBits);
+            prf.update(i);
+            prf.update(context, 0, context.length);
+            prf.doFinal(derived, (i - 1) * BLOCK_SIZE);
+        }
+        return Arrays.copyOf(derived, lengthBits / 8);
+    }
+
+    @Override
+    public byte[] calculateCardCryptogram() {
+        return deriveData(sMac, DERIVATION_CARD_CRYPTOGRAM, 64);
+    }
+
+    @Override
+    public byte[] calculateHostCryptogram() {
+        return deriveData(sMac, DERIVATION_HOST_CRYPTOGRAM, 64);
+    }
+
+    @Override
+    public boolean verifyCardCryptogram(byte[] initializeUpdateResponse) {
+        return initializeUpdateResponse.length >= 29
+                && equals(calculateCardCryptogram(), 0, initializeUpdateResponse, 21, 8);
+    }
+
+    @Override
+    public int wrap(byte[] apdu, int offset, int length, byte[] out, int outOffset) {
+        parse(apdu, offset, length);
+        boolean encrypt = isCommandEncryption();
+        int wrappedDataLength = encrypt && dataLength > 0 ? (dataLength / BLOCK_SIZE + 1) * BLOCK_SIZE : dataLength;
+        if (wrappedDataLength + MAC_LENGTH > MAX_LC) {
+            throw new SmartCardException("Command data too long for secure messaging: " + dataLength);
+        }
+        int lcOffset = writeHeader(apdu, offset, cla | SECURE_MESSAGING_CLA_BIT, out, outOffset);
+        int pos = lcOffset + 1;
+        System.arraycopy(apdu, dataOffset, out, pos, dataLength);
+        if (encrypt) {
+            //The counter is incremented for every command, with or without data
+            encryptionCounter++;
+            if (dataLength > 0) {
+                pad(out, pos, dataLength, BLOCK_SIZE);
+                calculateICV();
+                encryptCBC(sEncEncrypt, icv, out, pos, wrappedDataLength, BLOCK_SIZE);
+            }
+        }
+        out[lcOffset] = (byte) (wrappedDataLength + MAC_LENGTH);
+        calculateMac(out, outOffset, 5 + wrappedDataLength);
+        pos += wrappedDataLength;
+        System.arraycopy(macChainingValue, 0, out, pos, MAC_LENGTH);
+        pos += MAC_LENGTH;
+        if (le >= 0) {
+            out[pos++] = (byte) le;
+        }
+        return pos - outOffset;
+    }
+
+    @Override
+    public int unwrap(byte[] apdu, int offset, int length, byte[] out, int outOffset) {
+        parse(apdu, offset, length);
+        if ((cla & SECURE_MESSAGING_CLA_BIT) == 0 || dataLength < MAC_LENGTH) {
+            return -1;
+        }
+        int wrappedDataLength = dataLength - MAC_LENGTH;
+        calculateMac(apdu, offset, 5 + wrappedDataLength);
+        if (!equals(macChainingValue, 0, apdu, dataOffset + wrappedDataLength, MAC_LENGTH)) {
+            return -1;
+        }
+        int lcOffset = writeHeader(apdu, offset, cla & ~SECURE_MESSAGING_CLA_BIT, out, outOffset);
+        int pos = lcOffset + 1;
+        System.arraycopy(apdu, dataOffset, out, pos, wrappedDataLength);
+        int plainLength = wrappedDataLength;
+        if (isCommandEncryption()) {
+            encryptionCounter++;
+            if (wrappedDataLength > 0) {
+                if (wrappedDataLength % BLOCK_SIZE != 0) {
+                    return -1;
+                }
+                calculateICV();
+                decryptCBC(sEncDecrypt, icv, out, pos, wrappedDataLength, BLOCK_SIZE);
+                plainLength = unpad(out, pos, wrappedDataLength, BLOCK_SIZE);
+                if (plainLength < 0) {
+                    return -1;
+                }
+            }
+        }
+        int end = lcOffset;
+        if (plainLength > 0) {
+            out[lcOffset] = (byte) plainLength;
+            end = pos + plainLength;
+        }
+        if (le >= 0) {
+            out[end++] = (byte) le;
+        }
+        return end - outOffset;
+    }
+
+    /**
+     * Updates the MAC chaining value with the C-MAC of the header and data in buf[offset..offset+length-1]
+     */
+    private void calculateMac(byte[] buf, int offset, int length) {
+        sMac.update(macChainingValue, 0, BLOCK_SIZE);
+        sMac.update(buf, offset, length);
+        sMac.doFinal(macChainingValue, 0);
+    }
+
+    private void calculateICV() {
+        Arrays.fill(icv, (byte) 0x00);
+        for (int i = 0; i < 8; i++) {
+            icv[BLOCK_SIZE - 1 - i] = (byte) (encryptionCounter >>> (8 * i));
+        }
+        processBlock(sEncEncrypt, icv, 0, BLOCK_SIZE);
+    }
+}
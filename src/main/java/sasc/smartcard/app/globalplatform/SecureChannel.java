@@ -0,0 +1,173 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.app.globalplatform;
+
+import java.security.SecureRandom;
+import sasc.emv.EMVUtil;
+import sasc.emv.SW;
+import sasc.iso7816.APDUCommandBuilder;
+import sasc.iso7816.SmartCardException;
+import sasc.iso7816.TLVResponse;
+import sasc.terminal.CardConnection;
+import sasc.terminal.CardResponse;
+import sasc.terminal.Terminal;
+import sasc.terminal.TerminalException;
+import sasc.util.Log;
+import sasc.util.Util;
+
+/**
+ * A Secure Channel (SCP02 or SCP03) to the currently selected Security Domain.
+ *
+ * This is a CardConnection decorator: every command sent through it is wrapped
+ * (C-MAC, and C-DECRYPTION if requested) before it is passed to the underlying connection,
+ * so the existing code (eg GetStatusIterator, EMVUtil.sendCmd) works unchanged over the secure channel.
+ * GET RESPONSE is passed through unwrapped.
+ *
+ * The session keys are derived once, by open(). Each command is wrapped into a buffer
+ * owned by the channel.
+ *
+ * Usage:
+ *   SecureChannel channel = SecureChannel.open(terminal, keys, SecureChannelProtocol.SECURITY_LEVEL_C_MAC);
+ *   for (RegistryEntry entry : GetStatusIterator.registry(channel, RegistryEntry.Kind.APPLICATION, true)) {...}
+ *
+ * @author sasc
+ */
+public class SecureChannel implements CardConnection {
+
+    public static final byte INS_INITIALIZE_UPDATE = (byte) 0x50;
+    public static final byte INS_EXTERNAL_AUTHENTICATE = (byte) 0x82;
+
+    private static final byte GP_CLA = (byte) 0x80;
+    private static final byte INS_GET_RESPONSE = (byte) 0xC0;
+    //CLA INS P1 P2 Lc Data(255) Le
+    private static final int MAX_WRAPPED_LENGTH = 5 + SecureChannelProtocol.MAX_LC + 1;
+    //The host challenge must not be predictable (the session keys are derived from it)
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final CardConnection connection;
+    private final SecureChannelProtocol protocol;
+    private final byte[] wrapped = new byte[MAX_WRAPPED_LENGTH];
+
+    private SecureChannel(CardConnection connection, SecureChannelProtocol protocol) {
+        this.connection = connection;
+        this.protocol = protocol;
+    }
+
+    /**
+     * Opens a secure channel with the default SCP02 implementation option (if the card uses SCP02)
+     */
+    public static SecureChannel open(CardConnection connection, SecureChannelKeys keys, int securityLevel) throws TerminalException {
+        return open(connection, keys, securityLevel, SCP02.DEFAULT_IMPLEMENTATION_OPTION);
+    }
+
+    /**
+     * Authenticates the card and the host (INITIALIZE UPDATE and EXTERNAL AUTHENTICATE).
+     * The Security Domain must already be selected.
+     *
+     * @param securityLevel SecureChannelProtocol.SECURITY_LEVEL_C_MAC or SECURITY_LEVEL_C_DECRYPTION_AND_C_MAC
+     * @throws SmartCardException if the card rejects a command, or the card cryptogram is wrong (wrong keys)
+     */
+    public static SecureChannel open(CardConnection connection, SecureChannelKeys keys, int securityLevel, int scp02ImplementationOption) throws TerminalException {
+        byte[] hostChallenge = new byte[8];
+        RANDOM.nextBytes(hostChallenge);
+
+        Log.commandHeader("Send INITIALIZE UPDATE command");
+        byte[] command = APDUCommandBuilder.build(GP_CLA, INS_INITIALIZE_UPDATE, (byte) keys.getKeyVersion(), (byte) 0x00, hostChallenge, APDUCommandBuilder.MAX_SHORT_NE);
+        TLVResponse response = EMVUtil.sendCmdNoParse(connection, command);
+        if (response.getSW() != SW.SUCCESS.getSW()) {
+            throw new SmartCardException("INITIALIZE UPDATE failed. SW=" + Util.short2Hex(response.getSW()));
+        }
+        byte[] data = response.getData();
+        SecureChannelProtocol protocol = SecureChannelProtocol.create(keys, hostChallenge, data, scp02ImplementationOption);
+        if (!protocol.verifyCardCryptogram(data)) {
+            throw new SmartCardException("Card cryptogram verification failed (wrong keys?)");
+        }
+        Log.debug("SCP0" + protocol.getVersion() + ": card cryptogram verified");
+
+        Log.commandHeader("Send EXTERNAL AUTHENTICATE command");
+        command = APDUCommandBuilder.build(GP_CLA, INS_EXTERNAL_AUTHENTICATE, (byte) securityLevel, (byte) 0x00, protocol.calculateHostCryptogram(), 0);
+        byte[] wrappedCommand = new byte[MAX_WRAPPED_LENGTH];
+        int length = protocol.wrap(command, 0, command.length, wrappedCommand, 0);
+        //Sent as is: EXTERNAL AUTHENTICATE has no Le
+        if (Log.isEnabled(Log.Level.COMMAND)) {
+            Log.command(Util.prettyPrintHex(wrappedCommand, 0, length));
+        }
+        CardResponse authResponse = connection.transmit(wrappedCommand, 0, length);
+        EMVUtil.printResponse(authResponse, false);
+        if (authResponse.getSW() != SW.SUCCESS.getSW()) {
+            throw new SmartCardException("EXTERNAL AUTHENTICATE failed. SW=" + Util.short2Hex(authResponse.getSW()));
+        }
+        protocol.setSecurityLevel(securityLevel);
+        return new SecureChannel(connection, protocol);
+    }
+
+    public SecureChannelProtocol getSecureChannelProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public CardResponse transmit(byte[] cmd) throws TerminalException {
+        return transmit(cmd, 0, cmd.length);
+    }
+
+    @Override
+    public CardResponse transmit(byte[] buffer, int offset, int length) throws TerminalException {
+        if (length >= 2 && buffer[offset] == 0x00 && buffer[offset + 1] == INS_GET_RESPONSE) {
+            return connection.transmit(buffer, offset, length);
+        }
+        int wrappedLength = protocol.wrap(buffer, offset, length, wrapped, 0);
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("Wrapped command: " + Util.prettyPrintHexNoWrap(wrapped, 0, wrappedLength));
+        }
+        return connection.transmit(wrapped, 0, wrappedLength);
+    }
+
+    @Override
+    public byte[] transmitControlCommand(int controlCode, byte[] data) throws TerminalException {
+        return connection.transmitControlCommand(controlCode, data);
+    }
+
+    @Override
+    public byte[] getATR() {
+        return connection.getATR();
+    }
+
+    @Override
+    public Terminal getTerminal() {
+        return connection.getTerminal();
+    }
+
+    @Override
+    public String getConnectionInfo() {
+        return connection.getConnectionInfo() + " (SCP0" + protocol.getVersion() + ")";
+    }
+
+    @Override
+    public String getProtocol() {
+        return connection.getProtocol();
+    }
+
+    @Override
+    public void resetCard() throws TerminalException {
+        //A reset closes the secure channel on the card
+        connection.resetCard();
+    }
+
+    @Override
+    public boolean disconnect(boolean attemptReset) throws TerminalException {
+        return connection.disconnect(attemptReset);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.app.globalplatform;
+
+import sasc.util.Util;
+
+/**
+ * The static Secure Channel keys of a Security Domain (key-ENC, key-MAC and key-DEK)
+ * and their Key Version Number (GP Card Spec v2.2 section 10.1).
+ *
+ * SCP02 uses 16 byte (2 key 3DES) keys. SCP03 uses AES-128, AES-192 or AES-256 keys.
+ *
+ * @author sasc
+ */
+public class SecureChannelKeys {
+
+    /**
+     * The well known GlobalPlatform test key '404142..4F', used by most development cards
+     */
+    private static final byte[] TEST_KEY = Util.fromHexString("40 41 42 43 44 45 46 47 48 49 4A 4B 4C 4D 4E 4F");
+
+    private final int keyVersion;
+    private final byte[] encKey;
+    private final byte[] macKey;
+    private final byte[] dekKey;
+
+    /**
+     * @param keyVersion the Key Version Number (1-127), or 0 to let the card use the first available key set
+     */
+    public SecureChannelKeys(int keyVersion, byte[] encKey, byte[] macKey, byte[] dekKey) {
+        if (keyVersion < 0 || keyVersion > 0x7F) {
+            throw new IllegalArgumentException("Invalid Key Version Number: " + keyVersion);
+        }
+        checkKeyLength(encKey);
+        if (macKey.length != encKey.length || dekKey.length != encKey.length) {
+            throw new IllegalArgumentException("The keys must have the same length");
+        }
+        this.keyVersion = keyVersion;
+        this.encKey = encKey.clone();
+        this.macKey = macKey.clone();
+        this.dekKey = dekKey.clone();
+    }
+
+    /**
+     * @return the test key set ('404142..4F' for all keys), Key Version Number 0
+     */
+    public static SecureChannelKeys testKeys() {
+        return new SecureChannelKeys(0, TEST_KEY, TEST_KEY, TEST_KEY);
+    }
+
+    private static void checkKeyLength(byte[] key) {
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new IllegalArgumentException("Invalid key length: " + key.length);
+        }
+    }
+
+    public int getKeyVersion() {
+        return keyVersion;
+    }
+
+    public int getKeyLength() {
+        return encKey.length;
+    }
+
+    //The keys are not copied; only the protocol implementations in this package use them
+    byte[] getEncKey() {
+        return encKey;
+    }
+
+    byte[] getMacKey() {
+        return macKey;
+    }
+
+    byte[] getDekKey() {
+        return dekKey;
+    }
+
+    @Override
+    public String toString() {
+        //Never print the key values
+        return "SecureChannelKeys[keyVersion=" + keyVersion + ", keyLength=" + encKey.length + "]";
+    }
+}
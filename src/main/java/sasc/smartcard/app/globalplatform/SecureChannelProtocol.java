@@ -0,0 +1,273 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.app.globalplatform;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import sasc.iso7816.SmartCardException;
+
+/**
+ * The cryptographic state of one Secure Channel session (SCP02 or SCP03).
+ *
+ * The session keys are derived once, when the session is created, and the
+ * Cipher instances are initialized once with them. After that, wrapping or
+ * unwrapping a command only uses the buffers held by the session:
+ * no keys are derived, no Cipher is created or re-initialized, and nothing is allocated.
+ *
+ * The same class is used on the card side (unwrap), eg by GlobalPlatformEmulator.
+ *
+ * A session is not thread safe (the MAC chaining is sequential anyway).
+ *
+ * @author sasc
+ */
+public abstract class SecureChannelProtocol {
+
+    //Security Level (EXTERNAL AUTHENTICATE P1). R-MAC and R-ENCRYPTION are not supported
+    public static final int SECURITY_LEVEL_C_MAC = 0x01;
+    public static final int SECURITY_LEVEL_C_DECRYPTION_AND_C_MAC = 0x03;
+
+    static final int SECURE_MESSAGING_CLA_BIT = 0x04;
+    static final int MAC_LENGTH = 8;
+    static final int MAX_LC = 255;
+
+    //EXTERNAL AUTHENTICATE is only C-MAC'ed
+    private int securityLevel = SECURITY_LEVEL_C_MAC;
+
+    //The fields of the last parsed command (see parse)
+    int cla;
+    int dataOffset;
+    int dataLength;
+    int le;
+
+    /**
+     * Creates the host side session from the INITIALIZE UPDATE response.
+     * The protocol (SCP02 or SCP03) is the one indicated in the Key Information of the response.
+     *
+     * @param scp02ImplementationOption the SCP02 "i" parameter (the card does not return it).
+     * Not used for SCP03
+     * @throws SmartCardException if the response is invalid, or the protocol is not supported
+     */
+    public static SecureChannelProtocol create(SecureChannelKeys keys, byte[] hostChallenge, byte[] initializeUpdateResponse, int scp02ImplementationOption) {
+        byte[] response = initializeUpdateResponse;
+        if (response.length < 28) {
+            throw new SmartCardException("Invalid INITIALIZE UPDATE response length: " + response.length);
+        }
+        int scp = response[11] & 0xFF;
+        switch (scp) {
+            case 0x02:
+                return new SCP02(keys, hostChallenge, Arrays.copyOfRange(response, 12, 20), scp02ImplementationOption);
+            case 0x03:
+                if (response.length != 29 && response.length != 32) {
+                    throw new SmartCardException("Invalid SCP03 INITIALIZE UPDATE response length: " + response.length);
+                }
+                return new SCP03(keys, hostChallenge, Arrays.copyOfRange(response, 13, 21), response[12] & 0xFF);
+            default:
+                throw new SmartCardException("Secure Channel Protocol not supported: " + scp);
+        }
+    }
+
+    /**
+     * @return 2 or 3
+     */
+    public abstract int getVersion();
+
+    public abstract byte[] calculateCardCryptogram();
+
+    public abstract byte[] calculateHostCryptogram();
+
+    /**
+     * Verifies the card cryptogram in the INITIALIZE UPDATE response (authenticates the card)
+     */
+    public abstract boolean verifyCardCryptogram(byte[] initializeUpdateResponse);
+
+    /**
+     * Applies the secure messaging of the current security level to the (short) command apdu[offset..offset+length-1].
+     * The wrapped command is written to out[outOffset..], which must have room for 261 bytes.
+     *
+     * @return the length of the wrapped command
+     * @throws SmartCardException if the command is not a short APDU, or is too long once wrapped
+     */
+    public abstract int wrap(byte[] apdu, int offset, int length, byte[] out, int outOffset);
+
+    /**
+     * Verifies (and decrypts) a wrapped command. This is the card side of wrap.
+     * The unwrapped command (with CLA bit 3 cleared) is written to out[outOffset..]
+     *
+     * @return the length of the unwrapped command, or -1 if the C-MAC or the padding is wrong
+     */
+    public abstract int unwrap(byte[] apdu, int offset, int length, byte[] out, int outOffset);
+
+    public int getSecurityLevel() {
+        return securityLevel;
+    }
+
+    /**
+     * Sets the security level requested in EXTERNAL AUTHENTICATE, once it has succeeded
+     */
+    public void setSecurityLevel(int securityLevel) {
+        if (securityLevel != SECURITY_LEVEL_C_MAC && securityLevel != SECURITY_LEVEL_C_DECRYPTION_AND_C_MAC) {
+            throw new IllegalArgumentException("Security Level not supported: 0x" + Integer.toHexString(securityLevel));
+        }
+        this.securityLevel = securityLevel;
+    }
+
+    boolean isCommandEncryption() {
+        return securityLevel == SECURITY_LEVEL_C_DECRYPTION_AND_C_MAC;
+    }
+
+    /**
+     * Parses a short command APDU (ISO 7816-4 cases 1-4) into cla, dataOffset, dataLength and le
+     * (le is -1 if absent)
+     */
+    void parse(byte[] apdu, int offset, int length) {
+        if (length < 4) {
+            throw new SmartCardException("Invalid command APDU length: " + length);
+        }
+        cla = apdu[offset] & 0xFF;
+        //Case 1 has no Lc: the (empty) data is at the end of the command
+        dataOffset = offset + Math.min(length, 5);
+        dataLength = 0;
+        le = -1;
+        if (length == 5) {
+            le = apdu[offset + 4] & 0xFF;
+        } else if (length > 5) {
+            int lc = apdu[offset + 4] & 0xFF;
+            if (lc == 0 || (length != 5 + lc && length != 6 + lc)) {
+                throw new SmartCardException("Secure messaging is only supported for short APDUs (length " + length + ")");
+            }
+            dataLength = lc;
+            if (length == 6 + lc) {
+                le = apdu[offset + length - 1] & 0xFF;
+            }
+        }
+    }
+
+    /**
+     * Writes the header of the wrapped command (CLA with the secure messaging bit set), without Lc
+     *
+     * @return the offset of Lc
+     */
+    static int writeHeader(byte[] apdu, int offset, int cla, byte[] out, int outOffset) {
+        out[outOffset] = (byte) cla;
+        out[outOffset + 1] = apdu[offset + 1];
+        out[outOffset + 2] = apdu[offset + 2];
+        out[outOffset + 3] = apdu[offset + 3];
+        return outOffset + 4;
+    }
+
+    /**
+     * ISO 9797-1 padding method 2: appends '80' and zeros up to a multiple of blockSize
+     * (a full block is added if the length is already a multiple)
+     *
+     * @return the padded length
+     */
+    static int pad(byte[] buf, int offset, int length, int blockSize) {
+        int padded = (length / blockSize + 1) * blockSize;
+        buf[offset + length] = (byte) 0x80;
+        Arrays.fill(buf, offset + length + 1, offset + padded, (byte) 0x00);
+        return padded;
+    }
+
+    /**
+     * @return the length without the ISO 9797-1 method 2 padding, or -1 if the padding is invalid
+     */
+    static int unpad(byte[] buf, int offset, int length, int blockSize) {
+        for (int i = offset + length - 1; i >= offset && i >= offset + length - blockSize; i--) {
+            if (buf[i] == (byte) 0x80) {
+                return i - offset;
+            }
+            if (buf[i] != 0x00) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    static void xor(byte[] dst, int dstOffset, byte[] src, int srcOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] ^= src[srcOffset + i];
+        }
+    }
+
+    /**
+     * Constant time comparison (does not reveal the position of the first wrong byte)
+     */
+    static boolean equals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        int diff = 0;
+        for (int i = 0; i < length; i++) {
+            diff |= a[aOffset + i] ^ b[bOffset + i];
+        }
+        return diff == 0;
+    }
+
+    /**
+     * @param algorithm eg "DESede/ECB/NoPadding"
+     */
+    static Cipher initCipher(String algorithm, int mode, byte[] key, String keyAlgorithm) {
+        try {
+            Cipher cipher = Cipher.getInstance(algorithm);
+            cipher.init(mode, new SecretKeySpec(key, keyAlgorithm));
+            return cipher;
+        } catch (GeneralSecurityException ex) {
+            throw new SmartCardException("Unable to initialize " + algorithm, ex);
+        }
+    }
+
+    /**
+     * Encrypts or decrypts one block in place with an ECB cipher.
+     * CBC is done by the callers, so that the ciphers never need to be re-initialized with a new IV
+     */
+    static void processBlock(Cipher ecb, byte[] buf, int offset, int blockSize) {
+        try {
+            ecb.doFinal(buf, offset, blockSize, buf, offset);
+        } catch (GeneralSecurityException ex) {
+            throw new SmartCardException("Block cipher failed", ex);
+        }
+    }
+
+    /**
+     * CBC encryption in place, with a zero IV if iv is null
+     */
+    static void encryptCBC(Cipher ecb, byte[] iv, byte[] buf, int offset, int length, int blockSize) {
+        for (int pos = offset; pos < offset + length; pos += blockSize) {
+            if (pos == offset) {
+                if (iv != null) {
+                    xor(buf, pos, iv, 0, blockSize);
+                }
+            } else {
+                xor(buf, pos, buf, pos - blockSize, blockSize);
+            }
+            processBlock(ecb, buf, pos, blockSize);
+        }
+    }
+
+    /**
+     * CBC decryption in place, with a zero IV if iv is null.
+     * The blocks are processed from the last, so that the previous (cipher) block is still available
+     */
+    static void decryptCBC(Cipher ecbDecrypt, byte[] iv, byte[] buf, int offset, int length, int blockSize) {
+        for (int pos = offset + length - blockSize; pos >= offset; pos -= blockSize) {
+            processBlock(ecbDecrypt, buf, pos, blockSize);
+            if (pos > offset) {
+                xor(buf, pos, buf, pos - blockSize, blockSize);
+            } else if (iv != null) {
+                xor(buf, pos, iv, 0, blockSize);
+            }
+        }
+    }
+}
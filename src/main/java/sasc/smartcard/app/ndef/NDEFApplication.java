@@ -24,7 +24,7 @@ import sasc.util.Log;
 import sasc.util.Util;
 
 /**
- * TODO
+ * NFC Forum Type 4 Tag NDEF application
  * 
  * @author sasc
  */
@@ -32,6 +32,14 @@ public class NDEFApplication implements Application {
     
     private AID aid;
     private SmartCard card;
+    private int mappingVersion = -1;
+    private int maxReadLength = -1;
+    private int maxWriteLength = -1;
+    private byte[] ndefFileId = null;
+    private int maxNdefFileSize = -1;
+    private int readAccess = -1;
+    private int writeAccess = -1;
+    private byte[] ndefMessage = null;
     
     public NDEFApplication(AID aid, SmartCard card) {
         this.aid = aid;
@@ -47,6 +55,62 @@ public class NDEFApplication implements Application {
     public SmartCard getCard() {
         return card;
     }
+
+    /**
+     * Parses the capability container (CC file 'E103')
+     *
+     * @return false if the CC is too short, or does not contain an NDEF File Control TLV
+     */
+    boolean parseCapabilityContainer(byte[] cc) {
+        if (cc.length < 15) {
+            return false;
+        }
+        mappingVersion = Util.byteToInt(cc[2]);
+        maxReadLength = Util.byteToInt(cc[3], cc[4]);
+        maxWriteLength = Util.byteToInt(cc[5], cc[6]);
+        //The NDEF File Control TLV is mandatory, and comes first
+        if (cc[7] != 0x04 || cc[8] != 0x06) {
+            return false;
+        }
+        ndefFileId = new byte[]{cc[9], cc[10]};
+        maxNdefFileSize = Util.byteToInt(cc[11], cc[12]);
+        readAccess = Util.byteToInt(cc[13]);
+        writeAccess = Util.byteToInt(cc[14]);
+        return true;
+    }
+
+    /**
+     * @return the MLe, or -1 if the CC has not been read
+     */
+    public int getMaxReadLength() {
+        return maxReadLength;
+    }
+
+    public byte[] getNdefFileId() {
+        return ndefFileId;
+    }
+
+    /**
+     * @return the size of the NDEF file (including the 2 byte NLEN field), or -1 if the CC has not been read
+     */
+    public int getMaxNdefFileSize() {
+        return maxNdefFileSize;
+    }
+
+    public boolean isReadAccessGranted() {
+        return readAccess == 0x00;
+    }
+
+    void setNdefMessage(byte[] ndefMessage) {
+        this.ndefMessage = ndefMessage;
+    }
+
+    /**
+     * @return the NDEF message (without the NLEN field), or null if it has not been read
+     */
+    public byte[] getNdefMessage() {
+        return ndefMessage;
+    }
     
     @Override
     public String toString() {
@@ -64,6 +128,19 @@ public class NDEFApplication implements Application {
         if (aid != null) {
             aid.dump(pw, indent + Log.INDENT_SIZE);
         }
+        if (ndefFileId != null) {
+            pw.println(indentStr + "Mapping Version: " + (mappingVersion >>> 4) + "." + (mappingVersion & 0x0F));
+            pw.println(indentStr + "Max Read Length (MLe): " + maxReadLength);
+            pw.println(indentStr + "Max Write Length (MLc): " + maxWriteLength);
+            pw.println(indentStr + "NDEF File Identifier: " + Util.prettyPrintHexNoWrap(ndefFileId));
+            pw.println(indentStr + "Max NDEF File Size: " + maxNdefFileSize);
+            pw.println(indentStr + "Read Access: " + Util.byte2Hex((byte) readAccess) + (readAccess == 0x00 ? " (Granted)" : ""));
+            pw.println(indentStr + "Write Access: " + Util.byte2Hex((byte) writeAccess)
+                    + (writeAccess == 0x00 ? " (Granted)" : (writeAccess == 0xFF ? " (Read only)" : "")));
+        }
+        if (ndefMessage != null) {
+            pw.println(indentStr + "NDEF Message (" + ndefMessage.length + " bytes): " + Util.prettyPrintHexNoWrap(ndefMessage));
+        }
     }
 }
 
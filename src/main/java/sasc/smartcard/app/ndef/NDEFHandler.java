@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.app.ndef;
+
+import java.util.Arrays;
+import sasc.emv.EMVUtil;
+import sasc.emv.SW;
+import sasc.iso7816.AID;
+import sasc.iso7816.BinaryFileReader;
+import sasc.iso7816.Iso7816Commands;
+import sasc.smartcard.common.ApplicationHandler;
+import sasc.smartcard.common.SmartCard;
+import sasc.terminal.CardConnection;
+import sasc.terminal.CardResponse;
+import sasc.terminal.TerminalException;
+import sasc.util.Log;
+import sasc.util.Util;
+
+/**
+ * Reads the capability container and the NDEF message of an NFC Forum Type 4 Tag
+ * (see the notes in NDEFApplication)
+ *
+ * @author sasc
+ */
+public class NDEFHandler implements ApplicationHandler {
+
+    public static final String NDEF_AID = "D2 76 00 00 85 01 01";
+    //Mapping version 1.0 (and Mifare DESFire)
+    public static final String NDEF_AID_V1 = "D2 76 00 00 85 01 00";
+
+    private static final byte[] CC_FILE_ID = new byte[]{(byte) 0xE1, (byte) 0x03};
+    private static final int CC_MIN_LENGTH = 15;
+    private static final int NLEN_LENGTH = 2;
+
+    @Override
+    public boolean process(AID aid, SmartCard card, CardConnection terminal) throws TerminalException {
+        Log.commandHeader("Select NDEF Tag Application");
+        CardResponse response = EMVUtil.sendCmdNoParse(terminal, Iso7816Commands.selectByDFName(aid.getAIDBytes(), true, (byte) 0x00));
+        if (response.getSW() != SW.SUCCESS.getSW()) {
+            return false;
+        }
+        NDEFApplication app = new NDEFApplication(aid, card);
+        card.addApplication(app);
+
+        Log.commandHeader("Select Capability Container");
+        response = EMVUtil.sendCmdNoParse(terminal, Iso7816Commands.selectByFileIdentifier(CC_FILE_ID));
+        if (response.getSW() != SW.SUCCESS.getSW()) {
+            return true;
+        }
+        BinaryFileReader reader = BinaryFileReader.forTransparentFile(terminal);
+        reader.setCardCapabilities(card.getCardCapabilities());
+        byte[] cc = reader.read(CC_MIN_LENGTH);
+        if (cc.length >= 2 && Util.byteToInt(cc[0], cc[1]) > cc.length) {
+            //Optional TLV blocks follow the NDEF File Control TLV
+            cc = reader.read(Util.byteToInt(cc[0], cc[1]));
+        }
+        if (!app.parseCapabilityContainer(cc)) {
+            Log.debug("Invalid capability container: " + Util.prettyPrintHexNoWrap(cc));
+            return true;
+        }
+        if (!app.isReadAccessGranted()) {
+            return true;
+        }
+
+        Log.commandHeader("Select NDEF File");
+        response = EMVUtil.sendCmdNoParse(terminal, Iso7816Commands.selectByFileIdentifier(app.getNdefFileId()));
+        if (response.getSW() != SW.SUCCESS.getSW()) {
+            return true;
+        }
+        //The tag returns at most MLe bytes per READ BINARY
+        if (app.getMaxReadLength() > 0) {
+            reader.setMaxBlockSize(app.getMaxReadLength());
+        }
+        byte[] nlen = reader.read(NLEN_LENGTH);
+        if (nlen.length != NLEN_LENGTH) {
+            return true;
+        }
+        int fileLength = Math.min(NLEN_LENGTH + Util.byteToInt(nlen[0], nlen[1]), app.getMaxNdefFileSize());
+        byte[] ndefFile = reader.read(fileLength);
+        app.setNdefMessage(Arrays.copyOfRange(ndefFile, Math.min(NLEN_LENGTH, ndefFile.length), ndefFile.length));
+        return true;
+    }
+}
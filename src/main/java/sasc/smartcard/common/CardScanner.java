@@ -16,6 +16,8 @@
 package sasc.smartcard.common;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
@@ -26,8 +28,12 @@ import sasc.emv.EMVAPDUCommands;
 import sasc.emv.EMVApplication;
 import sasc.emv.EMVUtil;
 import sasc.emv.SW;
+import sasc.emv.SWDescriptor;
 import sasc.iso7816.AID;
+import sasc.iso7816.APDUCommandBuilder;
 import sasc.iso7816.BERTLV;
+import sasc.iso7816.BinaryFileReader;
+import sasc.iso7816.CardCapabilities;
 import sasc.iso7816.Iso7816Commands;
 import sasc.iso7816.MasterFile;
 import sasc.iso7816.RID;
@@ -38,6 +44,7 @@ import sasc.lookup.RID_DB;
 import sasc.smartcard.app.globalplatform.GlobalPlatformDriver;
 import sasc.smartcard.app.globalplatform.SecurityDomainFCI;
 import sasc.smartcard.app.jcop.JCOPApplication;
+import sasc.smartcard.app.ndef.NDEFHandler;
 import sasc.smartcard.app.usim.USIMHandler;
 import sasc.smartcard.pcsc.PCSC;
 import sasc.smartcard.pcsc.StorageCardHandler;
@@ -57,6 +64,18 @@ public class CardScanner {
     private SmartCard smartCard;
     private CardConnection terminal;
     private SessionProcessingEnv sessionEnv;
+    //Reused for the commands sent in loops (AID probing)
+    private final byte[] commandBuffer = new byte[APDUCommandBuilder.getLength(APDUCommandBuilder.MAX_SHORT_LC, APDUCommandBuilder.MAX_SHORT_NE)];
+    private AID isdAid = null;
+    //Identifies this card in the negative probe cache (read once, when the cache is used)
+    private Long cardIdentity = null;
+    private GlobalPlatformDriver gpDriver;
+    private ScanReport scanReport = null;
+    private long scanDeadline = Long.MAX_VALUE;
+    private long stageDeadline = Long.MAX_VALUE;
+    //Set when the running stage stopped early because it was out of time
+    private boolean stageTimedOut = false;
+    private volatile boolean cancelled = false;
 
     public CardScanner(SmartCard smartCard, CardConnection terminal, SessionProcessingEnv sessionEnv) {
         this.smartCard = smartCard;
@@ -72,41 +91,14 @@ public class CardScanner {
 
         byte[] atr = terminal.getATR();
 
-        int SW1;
-        int SW2;
-        byte[] command;
-        CardResponse response;
-
-        if(sessionEnv.getDiscoverTerminalFeatures()){
-            //PC/SC Part 10. Supplement: IFDs with Feature Capabilities
-            //v2.02.02
-            //Section 2.3.1 GET_FEATURE_REQUEST by Pseudo-APDU
-
-            Log.commandHeader("PC/SC GET FEATURE REQUEST");
-            command = Util.fromHexString("FF C2 01 00 00 00");
-
-            response = EMVUtil.sendCmd(terminal, command);
+        ScanProfile profile = sessionEnv.getScanProfile();
+        scanReport = new ScanReport(profile.getName());
+        scanDeadline = deadline(System.currentTimeMillis(), profile.getTotalBudgetMillis());
+        List<ScanProfile.Stage> stages = new ArrayList<ScanProfile.Stage>(profile.getStages());
 
-            SW1 = (byte) response.getSW1();
-            SW2 = (byte) response.getSW2();
-
-            if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-
-            }
-
-            //Try using control command
-            try{
-                Log.commandHeader("Transmit Control Command to discover the terminal features");
-                byte[] ccResponse = terminal.transmitControlCommand(PCSC.CM_IOCTL_GET_FEATURE_REQUEST, new byte[0]);
-                if(ccResponse != null){
-					Log.info("GET FEATURE REQUEST controlCommandResponse: "+Util.prettyPrintHexNoWrap(ccResponse));
-                    //TODO parse response
-                    //Ex
-                    //12 04 42 33 00 12   13 04 42 00 00 01
-                }
-            }catch(Exception e){
-                Log.debug(e.toString());
-            }
+        //The terminal features describe the reader, not the card
+        if(stages.remove(ScanProfile.Stage.TERMINAL_FEATURES)) {
+            runStage(ScanProfile.Stage.TERMINAL_FEATURES, profile);
         }
 
         //Register ATR handlers
@@ -124,6 +116,9 @@ public class CardScanner {
         for(AtrHandler atrHandler : Registry.getInstance().getHandlersForAtr(atr)) {
             if(atrHandler.process(smartCard, terminal)) { //Returns true if handle exclusively
             	smartCard.setAllKnownAidsProbed();
+                for(ScanProfile.Stage stage : stages) {
+                    scanReport.record(stage, ScanReport.Outcome.NOT_APPLICABLE, 0);
+                }
                 return;
             }
         }
@@ -131,14 +126,145 @@ public class CardScanner {
         //Register AID handers
         Yubikey yk = new Yubikey();
         Registry.getInstance().registerAidHandler(yk, Yubikey.NEO_AID);
-        GlobalPlatformDriver gpDriver = new GlobalPlatformDriver();
+        gpDriver = new GlobalPlatformDriver();
         for(KnownAIDList.KnownAID gpAID : KnownAIDList.getAIDsByType("GP")) {
             Registry.getInstance().registerAidHandler(gpDriver, gpAID.getAID());
         }
         //USIM
         USIMHandler usimHandler = new USIMHandler();
         Registry.getInstance().registerAidHandler(usimHandler, "A0 00 00 00 87"); //3G RID
+        //NFC Forum Type 4 Tag
+        NDEFHandler ndefHandler = new NDEFHandler();
+        Registry.getInstance().registerAidHandler(ndefHandler, NDEFHandler.NDEF_AID);
+        Registry.getInstance().registerAidHandler(ndefHandler, NDEFHandler.NDEF_AID_V1);
+
+        for(ScanProfile.Stage stage : stages) {
+            runStage(stage, profile);
+        }
+    }
+
+    /**
+     * Stops the scan (between commands). May be called from another thread
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return what was done in the last scan, or null if start() has not been called
+     */
+    public ScanReport getScanReport() {
+        return scanReport;
+    }
+
+    private void runStage(ScanProfile.Stage stage, ScanProfile profile) throws TerminalException {
+        long now = System.currentTimeMillis();
+        if(cancelled) {
+            Log.debug("Scan cancelled. Skipping stage " + stage);
+            scanReport.record(stage, ScanReport.Outcome.CANCELLED, 0);
+            return;
+        }
+        if(now >= scanDeadline) {
+            Log.debug("Scan budget used up. Skipping stage " + stage);
+            scanReport.record(stage, ScanReport.Outcome.SKIPPED, 0);
+            return;
+        }
+        stageDeadline = Math.min(scanDeadline, deadline(now, profile.getBudgetMillis(stage)));
+        stageTimedOut = false;
+        try {
+            switch(stage) {
+                case TERMINAL_FEATURES:
+                    discoverTerminalFeatures();
+                    break;
+                case SELECT_ISD:
+                    selectISD();
+                    break;
+                case MASTER_FILE:
+                    readMasterFile();
+                    break;
+                case KNOWN_AIDS:
+                    probeAllKnownAIDs();
+                    break;
+                case ALL_RIDS:
+                    selectAllRIDs();
+                    break;
+                case AID_HANDLERS:
+                    processAIDs();
+                    break;
+            }
+        } finally {
+            ScanReport.Outcome outcome = ScanReport.Outcome.COMPLETED;
+            if(cancelled) {
+                outcome = ScanReport.Outcome.CANCELLED;
+            } else if(stageTimedOut) {
+                outcome = ScanReport.Outcome.TIMED_OUT;
+            } else if(System.currentTimeMillis() > stageDeadline) {
+                outcome = ScanReport.Outcome.COMPLETED_LATE;
+            }
+            scanReport.record(stage, outcome, System.currentTimeMillis() - now);
+            stageDeadline = Long.MAX_VALUE;
+        }
+    }
+
+    private static long deadline(long now, long budgetMillis) {
+        return budgetMillis >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + budgetMillis;
+    }
+
+    /**
+     * @return true if the running stage should stop (cancelled, or out of time)
+     */
+    private boolean isStageInterrupted() {
+        if(cancelled) {
+            return true;
+        }
+        if(System.currentTimeMillis() > stageDeadline) {
+            stageTimedOut = true;
+        }
+        return stageTimedOut;
+    }
+
+    private void discoverTerminalFeatures() throws TerminalException {
+        int SW1;
+        int SW2;
+        byte[] command;
+        CardResponse response;
+
+        //PC/SC Part 10. Supplement: IFDs with Feature Capabilities
+        //v2.02.02
+        //Section 2.3.1 GET_FEATURE_REQUEST by Pseudo-APDU
+
+        Log.commandHeader("PC/SC GET FEATURE REQUEST");
+        command = Util.fromHexString("FF C2 01 00 00 00");
+
+        response = EMVUtil.sendCmd(terminal, command);
+
+        SW1 = (byte) response.getSW1();
+        SW2 = (byte) response.getSW2();
+
+        if (SWDescriptor.get(SW1, SW2).isSuccess()) {
+
+        }
 
+        //Try using control command
+        try{
+            Log.commandHeader("Transmit Control Command to discover the terminal features");
+            byte[] ccResponse = terminal.transmitControlCommand(PCSC.CM_IOCTL_GET_FEATURE_REQUEST, new byte[0]);
+            if(ccResponse != null){
+					Log.info("GET FEATURE REQUEST controlCommandResponse: "+Util.prettyPrintHexNoWrap(ccResponse));
+                //TODO parse response
+                //Ex
+                //12 04 42 33 00 12   13 04 42 00 00 01
+            }
+        }catch(Exception e){
+            Log.debug(e.toString());
+        }
+    }
+
+    private void selectISD() throws TerminalException {
+        int SW1;
+        int SW2;
+        byte[] command;
+        CardResponse response;
 
         //Try to GET DATA from the default selected application?
 
@@ -162,218 +288,269 @@ public class CardScanner {
         SW1 = (byte) response.getSW1();
         SW2 = (byte) response.getSW2();
 
-        if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
+        if (SWDescriptor.get(SW1, SW2).isSuccess()) {
             try{
                 SecurityDomainFCI fci = SecurityDomainFCI.parse(response.getData());
-                AID isdAid = fci.getSecurityManagerAid();
-                if(isdAid != null) {
-                    smartCard.addAID(isdAid);
-                    Registry.getInstance().registerAidHandler(gpDriver, isdAid);
+                AID aid = fci.getSecurityManagerAid();
+                if(aid != null) {
+                    isdAid = aid;
+                    smartCard.addAID(aid);
+                    Registry.getInstance().registerAidHandler(gpDriver, aid);
                 }
             } catch(TLVException ex) {
                 Log.info(ex.getMessage());
                 Log.debug(Util.getStackTrace(ex));
             }
         }
+    }
+
+    private void readMasterFile() throws TerminalException {
+        int SW1;
+        int SW2;
+        byte[] command;
+        CardResponse response;
 
         //Master file is not present on all cards
-        if (sessionEnv.getReadMasterFile()) {
-            //TODO implement MF data parsing (according to 7816-4:2005)
-            Log.commandHeader("SELECT FILE Master File (if available)");
+        //TODO implement MF data parsing (according to 7816-4:2005)
+        Log.commandHeader("SELECT FILE Master File (if available)");
+
+        command = Iso7816Commands.selectMasterFile();
+
+        CardResponse selectMFResponse = EMVUtil.sendCmd(terminal, command);
+
+        SW1 = (byte) selectMFResponse.getSW1();
+        SW2 = (byte) selectMFResponse.getSW2();
+
+        if (SWDescriptor.get(SW1, SW2).isSuccess()) {
+            //Example response TODO
+            //6f 09
+            //      84 07 //DF Name
+            //            f0 00 00 00 01 3f 00
+            //
+            //Another example
+            //6f 20
+            //      81 02
+            //            00 00
+            //      82 01
+            //            38 //0 - 1 1 1 0 0 0 = DF
+            //      83 02
+            //            3f 00
+            //      84 06
+            //            00 00 00 00 00 00
+            //      85 01
+            //            00
+            //      8c 08
+            //            1f a1 a1 a1 a1 a1 88 a1
+
+            //3rd example (ATR: 3b 88 80 01 43 44 31 69 a9 00 00 00 ff)
+            //6f 20
+            //      81 02
+            //            00 1a //Number of data bytes in the file
+            //      82 01
+            //            38 //38=DF
+            //      83 02
+            //            3f 00
+            //      84 06
+            //            00 00 00 00 00 00
+            //      85 01
+            //            00
+            //      8c 08
+            //            1f a1 a1 a1 a1 a1 88 a1
+
+            //4th example (EMV card w/3 AIDs. 2xVISA ! + 1xBRADESCO)
+            //6f 0b
+            //      84 09
+            //            46 2e 4d 41 45 53 54 52 4f (=MAESTRO)
+
+
+            //5th example (MASTERCARD :
+            //                       CL        3b 8e 80 01 13 78 80 80 02 46 49 4f 4d 4b 5f 30 30 31 4e
+            //                       CONTACT   3b ef 00 00 81 31 fe 45 46 49 4f 4d 4b 5f 30 30 31 20 30 31 30 41 00 9c
+            //(same response for: 00 a4 00 00 02 3f 00 00)
+            //
+            //6f 20
+            //      81 02 00 1a
+            //      82 01 38
+            //      83 02 3f 00
+            //      84 06 00 00 00 00 00 00
+            //      85 01 00
+            //      8c 08 1f a1 a1 a1 a1 a1 88 a1
+
+
+            //6th example (IBM JC testcard from book)
+            //Note: Tag 0x63 does not seem to match structure of 'Wrapper' TAG according to 7816-4:2005
+            //
+            //ATR: 3b ef 00 ff 81 31 66 45 49 42 4d 20 4d 46 43 34 30 30 32 30 38 33 31 a1
+            //
+            //00 a4 00 00 02 3f 00 00
+            //
+            //63 0c
+            //      1e b4 3f 00 00 00 ff 33 ff 01 01 10
+            //90 00 (Success)
+            //
+            //
+            ////EF.DIR
+            //00 a4 00 00 02 2f 00
+            //
+            //63 0d
+            //      00 78 2f 00 01 00 03 ff ff 03 02 01 28
+            //90 00 (Success)
+            //
+            //------------------------------------------------
+            //[Step 4] Send READ RECORD to read all records in SFI 0
+            //------------------------------------------------
+            //00 b2 01 04 00
+            //
+            //61 26
+            //      4f 09
+            //            d2 76 00 00 22 00 00 00 60
+            //      50 10
+            //            P  K  C  S  #  1  1     T  o  k  e  n
+            //            50 4b 43 53 23 31 31 20 74 6f 6b 65 6e 20 20 20
+            //      52 07
+            //            a4 a4 00 00 02 c1 10 // command to perform?
+            //
+            //90 00 (Success)
+            //
+            //------------------------------------------------
+            //[Step 5] Send READ RECORD to read all records in SFI 0
+            //------------------------------------------------
+            //00 b2 02 04 00
+            //
+            //61 21
+            //      4f 09
+            //            d2 76 00 00 22 00 00 00 01
+            //      50 0b
+            //            S  C  T     L  O  Y  A  L  T  Y
+            //            53 43 54 20 4c 4f 59 41 4c 54 59
+            //      52 07
+            //            a4 a4 00 00 02 10 00
+            //
+            //      00 00 00 00 00
+            //
+            //90 00 (Success)
+            //
+            //------------------------------------------------
+            //[Step 6] Send READ RECORD to read all records in SFI 0
+            //------------------------------------------------
+            //00 b2 03 04 00
+            //
+            //61 21
+            //      4f 09
+            //            d2 76 00 00 22 00 00 00 02
+            //      50 0d
+            //            B  U  S  I  N  E  S  S     C  A  R  D
+            //            42 55 53 49 4e 45 53 53 20 43 41 52 44
+            //      52 07
+            //            a4 a4 00 00 02 10 00
+            //
+            //      00 00 00
+            //
+            //90 00 (Success)
+            //
+            //------------------------------------------------
+            //[Step 7] Send READ RECORD to read all records in SFI 0
+            //------------------------------------------------
+            //00 b2 04 04 00
+            //
+            //94 04
+
+
+            MasterFile mf = new MasterFile(selectMFResponse.getData());
+            getCard().setMasterFile(mf);
+        }
+//            else {
 
-            command = Iso7816Commands.selectMasterFile();
+        Log.commandHeader("SELECT FILE Master File by identifier (if available)");
 
-            CardResponse selectMFResponse = EMVUtil.sendCmd(terminal, command);
+        command = Iso7816Commands.selectMasterFileByIdentifier();
 
-            SW1 = (byte) selectMFResponse.getSW1();
-            SW2 = (byte) selectMFResponse.getSW2();
+        CardResponse selectMFByIdResponse = EMVUtil.sendCmd(terminal, command);
 
-            if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-                //Example response TODO
-                //6f 09
-                //      84 07 //DF Name
-                //            f0 00 00 00 01 3f 00
-                //
-                //Another example
-                //6f 20
-                //      81 02
-                //            00 00
-                //      82 01
-                //            38 //0 - 1 1 1 0 0 0 = DF
-                //      83 02
-                //            3f 00
-                //      84 06
-                //            00 00 00 00 00 00
-                //      85 01
-                //            00
-                //      8c 08
-                //            1f a1 a1 a1 a1 a1 88 a1
-
-                //3rd example (ATR: 3b 88 80 01 43 44 31 69 a9 00 00 00 ff)
-                //6f 20
-                //      81 02
-                //            00 1a //Number of data bytes in the file
-                //      82 01
-                //            38 //38=DF
-                //      83 02
-                //            3f 00
-                //      84 06
-                //            00 00 00 00 00 00
-                //      85 01
-                //            00
-                //      8c 08
-                //            1f a1 a1 a1 a1 a1 88 a1
-
-                //4th example (EMV card w/3 AIDs. 2xVISA ! + 1xBRADESCO)
-                //6f 0b
-                //      84 09
-                //            46 2e 4d 41 45 53 54 52 4f (=MAESTRO)
-
-
-                //5th example (MASTERCARD :
-                //                       CL        3b 8e 80 01 13 78 80 80 02 46 49 4f 4d 4b 5f 30 30 31 4e
-                //                       CONTACT   3b ef 00 00 81 31 fe 45 46 49 4f 4d 4b 5f 30 30 31 20 30 31 30 41 00 9c
-                //(same response for: 00 a4 00 00 02 3f 00 00)
-                //
-                //6f 20
-                //      81 02 00 1a
-                //      82 01 38
-                //      83 02 3f 00
-                //      84 06 00 00 00 00 00 00
-                //      85 01 00
-                //      8c 08 1f a1 a1 a1 a1 a1 88 a1
+        SW1 = (byte) selectMFByIdResponse.getSW1();
+        SW2 = (byte) selectMFByIdResponse.getSW2();
 
+        if (SWDescriptor.get(SW1, SW2).isSuccess()) {
+            //Example response (ATR: 3b 95 95 40 ff d0 00 54 01 32)
+            //6f 17
+            //      82 01
+            //            38
+            //      84 06
+            //            a0 00 00 00 18 00
+            //      8a 01
+            //            05
+            MasterFile mf = new MasterFile(selectMFByIdResponse.getData());
+            getCard().setMasterFile(mf);
+        }
+//            }
 
-                //6th example (IBM JC testcard from book)
-                //Note: Tag 0x63 does not seem to match structure of 'Wrapper' TAG according to 7816-4:2005
-                //
-                //ATR: 3b ef 00 ff 81 31 66 45 49 42 4d 20 4d 46 43 34 30 30 32 30 38 33 31 a1
-                //
-                //00 a4 00 00 02 3f 00 00
-                //
-                //63 0c
-                //      1e b4 3f 00 00 00 ff 33 ff 01 01 10
-                //90 00 (Success)
-                //
-                //
-                ////EF.DIR
-                //00 a4 00 00 02 2f 00
-                //
-                //63 0d
-                //      00 78 2f 00 01 00 03 ff ff 03 02 01 28
-                //90 00 (Success)
-                //
-                //------------------------------------------------
-                //[Step 4] Send READ RECORD to read all records in SFI 0
-                //------------------------------------------------
-                //00 b2 01 04 00
-                //
-                //61 26
-                //      4f 09
-                //            d2 76 00 00 22 00 00 00 60
-                //      50 10
-                //            P  K  C  S  #  1  1     T  o  k  e  n
-                //            50 4b 43 53 23 31 31 20 74 6f 6b 65 6e 20 20 20
-                //      52 07
-                //            a4 a4 00 00 02 c1 10 // command to perform?
-                //
-                //90 00 (Success)
-                //
-                //------------------------------------------------
-                //[Step 5] Send READ RECORD to read all records in SFI 0
-                //------------------------------------------------
-                //00 b2 02 04 00
-                //
-                //61 21
-                //      4f 09
-                //            d2 76 00 00 22 00 00 00 01
-                //      50 0b
-                //            S  C  T     L  O  Y  A  L  T  Y
-                //            53 43 54 20 4c 4f 59 41 4c 54 59
-                //      52 07
-                //            a4 a4 00 00 02 10 00
-                //
-                //      00 00 00 00 00
-                //
-                //90 00 (Success)
-                //
-                //------------------------------------------------
-                //[Step 6] Send READ RECORD to read all records in SFI 0
-                //------------------------------------------------
-                //00 b2 03 04 00
-                //
-                //61 21
-                //      4f 09
-                //            d2 76 00 00 22 00 00 00 02
-                //      50 0d
-                //            B  U  S  I  N  E  S  S     C  A  R  D
-                //            42 55 53 49 4e 45 53 53 20 43 41 52 44
-                //      52 07
-                //            a4 a4 00 00 02 10 00
-                //
-                //      00 00 00
-                //
-                //90 00 (Success)
-                //
-                //------------------------------------------------
-                //[Step 7] Send READ RECORD to read all records in SFI 0
-                //------------------------------------------------
-                //00 b2 04 04 00
-                //
-                //94 04
+        //OK, master file is available. Try to read some known files
+        if (getCard().getMasterFile() != null) {
 
+            //ATR file (path='3F002F01'). contains a set of BER-TLV data objects
+            //When the card provides indications in several places,
+            //the indication valid for a given EF is the closest one to that
+            //EF within the path from the MF to that EF.
 
-                MasterFile mf = new MasterFile(selectMFResponse.getData());
-                getCard().setMasterFile(mf);
-            }
-//            else {
+            Log.commandHeader("SELECT FILE EF.ATR (if available)");
 
-            Log.commandHeader("SELECT FILE Master File by identifier (if available)");
+            command = Util.fromHexString("00 A4 02 00 02 2F 01 00");
+//                command = "00 A4 08 0C 02 2F 01 00";
 
-            command = Iso7816Commands.selectMasterFileByIdentifier();
+//                CardResponse selectMFResponse2     = EMVUtil.sendCmd(terminal, "00 A4 01 00 02 3F 00");
+            CardResponse selectATRFileResponse = EMVUtil.sendCmd(terminal, command);
 
-            CardResponse selectMFByIdResponse = EMVUtil.sendCmd(terminal, command);
+            SW1 = (byte) selectATRFileResponse.getSW1();
+            SW2 = (byte) selectATRFileResponse.getSW2();
 
-            SW1 = (byte) selectMFByIdResponse.getSW1();
-            SW2 = (byte) selectMFByIdResponse.getSW2();
+            if (SWDescriptor.get(SW1, SW2).isSuccess()) {
 
-            if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-                //Example response (ATR: 3b 95 95 40 ff d0 00 54 01 32)
-                //6f 17
-                //      82 01
-                //            38
-                //      84 06
-                //            a0 00 00 00 18 00
-                //      8a 01
-                //            05
-                MasterFile mf = new MasterFile(selectMFByIdResponse.getData());
-                getCard().setMasterFile(mf);
-            }
-//            }
+                BinaryFileReader reader = BinaryFileReader.forTransparentFile(terminal);
+                reader.setCardCapabilities(getCard().getCardCapabilities());
+                byte[] efAtrContent = reader.read();
+                if (efAtrContent.length > 0) {
+                    //EF.ATR/INFO may hold the extended length information (used when reading binary files)
+                    CardCapabilities capabilities = getCard().getATR().getCardCapabilities().withEFATR(efAtrContent);
+                    getCard().setCardCapabilities(capabilities);
+                    Log.debug("Card capabilities: " + capabilities);
+                }
+
+                int sfi = 0; //TODO what sfi to read? from historical bytes?
+
+                byte recordNum = 1;
+                do {
+
+                    Log.commandHeader("Send READ RECORD to read all records in SFI " + sfi);
+
+                    command = EMVAPDUCommands.readRecord((int) recordNum, sfi);
+
+                    CardResponse readRecordResponse = EMVUtil.sendCmd(terminal, command);
 
-            //OK, master file is available. Try to read some known files
-            if (getCard().getMasterFile() != null) {
+                    SW1 = (byte) readRecordResponse.getSW1();
+                    SW2 = (byte) readRecordResponse.getSW2();
 
-                //ATR file (path='3F002F01'). contains a set of BER-TLV data objects
-                //When the card provides indications in several places,
-                //the indication valid for a given EF is the closest one to that
-                //EF within the path from the MF to that EF.
+                    if (SWDescriptor.get(SW1, SW2).isSuccess()) {
+                        BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(readRecordResponse.getData()));
+                        getCard().getMasterFile().addUnhandledRecord(tlv);
+                    }
+
+                    recordNum++;
 
+                } while (SWDescriptor.get(SW1, SW2).isSuccess()); //while SW1SW2 != 6a83
+
+            } else {
                 Log.commandHeader("SELECT FILE EF.ATR (if available)");
 
-                command = Util.fromHexString("00 A4 02 00 02 2F 01 00");
-//                command = "00 A4 08 0C 02 2F 01 00";
+                command = Util.fromHexString("00 A4 00 00 04 3F 00 2F 01 00");
 
-//                CardResponse selectMFResponse2     = EMVUtil.sendCmd(terminal, "00 A4 01 00 02 3F 00");
-                CardResponse selectATRFileResponse = EMVUtil.sendCmd(terminal, command);
+                CardResponse selectATRFileAbsPathResponse = EMVUtil.sendCmd(terminal, command);
 
-                SW1 = (byte) selectATRFileResponse.getSW1();
-                SW2 = (byte) selectATRFileResponse.getSW2();
+                SW1 = (byte) selectATRFileAbsPathResponse.getSW1();
+                SW2 = (byte) selectATRFileAbsPathResponse.getSW2();
 
-                if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
+                if (SWDescriptor.get(SW1, SW2).isSuccess()) {
+                    //Do the select ATR File command ever return any data?
 
-                    //TODO
-                    CardResponse readBinaryResponse = EMVUtil.sendCmd(terminal, "00 B0 00 00 00");
 
                     int sfi = 0; //TODO what sfi to read? from historical bytes?
 
@@ -389,93 +566,122 @@ public class CardScanner {
                         SW1 = (byte) readRecordResponse.getSW1();
                         SW2 = (byte) readRecordResponse.getSW2();
 
-                        if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
+                        if (SWDescriptor.get(SW1, SW2).isSuccess()) {
                             BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(readRecordResponse.getData()));
                             getCard().getMasterFile().addUnhandledRecord(tlv);
                         }
 
                         recordNum++;
 
-                    } while (SW1 == (byte) 0x90 && SW2 == (byte) 0x00); //while SW1SW2 != 6a83
+                    } while (SWDescriptor.get(SW1, SW2).isSuccess()); //while SW1SW2 != 6a83
 
-                } else {
-                    Log.commandHeader("SELECT FILE EF.ATR (if available)");
+                }
 
-                    command = Util.fromHexString("00 A4 00 00 04 3F 00 2F 01 00");
+            }
 
-                    CardResponse selectATRFileAbsPathResponse = EMVUtil.sendCmd(terminal, command);
 
-                    SW1 = (byte) selectATRFileAbsPathResponse.getSW1();
-                    SW2 = (byte) selectATRFileAbsPathResponse.getSW2();
+            //EF.DIR
+            //DIR file (path='3F002F00'). contains a set of BER-TLV data objects
+            Log.commandHeader("SELECT FILE EF.DIR (if available)");
 
-                    if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-                        //Do the select ATR File command ever return any data?
+            command = Util.fromHexString("00 A4 02 00 02 2F 00 00");
+      //      command = "00 A4 08 0C 02 2F 00 00";
 
+            CardResponse selectMFResponse2     = EMVUtil.sendCmd(terminal, "00 A4 01 00 02 3F 00");
+            CardResponse selectDIRFileResponse = EMVUtil.sendCmd(terminal, command);
 
-                        int sfi = 0; //TODO what sfi to read? from historical bytes?
+            SW1 = (byte) selectDIRFileResponse.getSW1();
+            SW2 = (byte) selectDIRFileResponse.getSW2();
 
-                        byte recordNum = 1;
-                        do {
+            if (SWDescriptor.get(SW1, SW2).isSuccess()) {
+                //Example response (ATR: 3b 95 95 40 ff d0 00 54 01 32)
+                //6f 12
+                //      82 01
+                //            01
+                //      83 02
+                //            2f 00
+                //      80 02
+                //            00 3e
+                //      8a 01
+                //            05
 
-                            Log.commandHeader("Send READ RECORD to read all records in SFI " + sfi);
 
-                            command = EMVAPDUCommands.readRecord((int) recordNum, sfi);
+                int sfi = 0; //TODO what sfi to read? from historical bytes??
 
-                            CardResponse readRecordResponse = EMVUtil.sendCmd(terminal, command);
+                //Example from card with empty response to select (9000)
+                //00B2010400
+                //  61154F07A0000000045555500A415044554C6F67676572
+                //00B2020400
+                //  61114F07A00000000460005006436972727573
+                //00B2030400
+                //  -> 6A83
 
-                            SW1 = (byte) readRecordResponse.getSW1();
-                            SW2 = (byte) readRecordResponse.getSW2();
+                byte recordNum = 1;
+                do {
 
-                            if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-                                BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(readRecordResponse.getData()));
-                                getCard().getMasterFile().addUnhandledRecord(tlv);
-                            }
+                    Log.commandHeader("Send READ RECORD to read all records in SFI " + sfi);
 
-                            recordNum++;
+                    command = EMVAPDUCommands.readRecord((int) recordNum, sfi);
 
-                        } while (SW1 == (byte) 0x90 && SW2 == (byte) 0x00); //while SW1SW2 != 6a83
+                    CardResponse readRecordResponse = EMVUtil.sendCmd(terminal, command);
 
+                    SW1 = (byte) readRecordResponse.getSW1();
+                    SW2 = (byte) readRecordResponse.getSW2();
+
+                    if (SWDescriptor.get(SW1, SW2).isSuccess()) {
+                        BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(readRecordResponse.getData()));
+                        getCard().getMasterFile().addUnhandledRecord(tlv);
                     }
 
+                    recordNum++;
+
+                } while (SWDescriptor.get(SW1, SW2).isSuccess()); //while SW1SW2 != 6a83
+
+                if (recordNum == 2 && SWDescriptor.get(SW1, SW2).getSW() == SW.COMMAND_INCOMPATIBLE_WITH_FILE_STRUCTURE) {
+                    //EF.DIR is a transparent file on this card
+                    BinaryFileReader reader = BinaryFileReader.forTransparentFile(terminal);
+                    reader.setCardCapabilities(getCard().getCardCapabilities());
+                    byte[] efDirContent = reader.read();
+                    try {
+                        for (BERTLV tlv : TLVUtil.parseList(efDirContent)) {
+                            getCard().getMasterFile().addUnhandledRecord(tlv);
+                        }
+                    } catch (TLVException ex) {
+                        Log.debug("Unable to parse EF.DIR: " + ex.getMessage());
+                    }
                 }
 
+                //Issue READ RECORDs
+                //-> 00 b2 01 04 02
+                //
+                //<- 61 13 (re-read with length 13)
+                //
+                //   90 00
+                //
+                //   READ RECORD
+                //-> 00 b2 01 04 15
+                //
+                //#02
+                //-> 00 b2 02 04 02
+                //...
+
+
 
+            } else {
                 //EF.DIR
                 //DIR file (path='3F002F00'). contains a set of BER-TLV data objects
                 Log.commandHeader("SELECT FILE EF.DIR (if available)");
 
-                command = Util.fromHexString("00 A4 02 00 02 2F 00 00");
-          //      command = "00 A4 08 0C 02 2F 00 00";
+                command = Util.fromHexString("00 A4 00 00 04 3F 00 2F 00 00");
 
-                CardResponse selectMFResponse2     = EMVUtil.sendCmd(terminal, "00 A4 01 00 02 3F 00");
-                CardResponse selectDIRFileResponse = EMVUtil.sendCmd(terminal, command);
-
-                SW1 = (byte) selectDIRFileResponse.getSW1();
-                SW2 = (byte) selectDIRFileResponse.getSW2();
-
-                if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-                    //Example response (ATR: 3b 95 95 40 ff d0 00 54 01 32)
-                    //6f 12
-                    //      82 01
-                    //            01
-                    //      83 02
-                    //            2f 00
-                    //      80 02
-                    //            00 3e
-                    //      8a 01
-                    //            05
+                CardResponse selectDIRFileAbsPathResponse = EMVUtil.sendCmd(terminal, command);
 
+                SW1 = (byte) selectDIRFileAbsPathResponse.getSW1();
+                SW2 = (byte) selectDIRFileAbsPathResponse.getSW2();
 
+                if (SWDescriptor.get(SW1, SW2).isSuccess()) {
                     int sfi = 0; //TODO what sfi to read? from historical bytes??
 
-                    //Example from card with empty response to select (9000)
-                    //00B2010400
-                    //  61154F07A0000000045555500A415044554C6F67676572
-                    //00B2020400
-                    //  61114F07A00000000460005006436972727573
-                    //00B2030400
-                    //  -> 6A83
-
                     byte recordNum = 1;
                     do {
 
@@ -488,105 +694,69 @@ public class CardScanner {
                         SW1 = (byte) readRecordResponse.getSW1();
                         SW2 = (byte) readRecordResponse.getSW2();
 
-                        if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
+                        if (SWDescriptor.get(SW1, SW2).isSuccess()) {
                             BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(readRecordResponse.getData()));
                             getCard().getMasterFile().addUnhandledRecord(tlv);
                         }
 
                         recordNum++;
 
-                    } while (SW1 == (byte) 0x90 && SW2 == (byte) 0x00); //while SW1SW2 != 6a83
-
-                    //Issue READ RECORDs
-                    //-> 00 b2 01 04 02
-                    //
-                    //<- 61 13 (re-read with length 13)
-                    //
-                    //   90 00
-                    //
-                    //   READ RECORD
-                    //-> 00 b2 01 04 15
-                    //
-                    //#02
-                    //-> 00 b2 02 04 02
-                    //...
-
-
-
-                } else {
-                    //EF.DIR
-                    //DIR file (path='3F002F00'). contains a set of BER-TLV data objects
-                    Log.commandHeader("SELECT FILE EF.DIR (if available)");
-
-                    command = Util.fromHexString("00 A4 00 00 04 3F 00 2F 00 00");
-
-                    CardResponse selectDIRFileAbsPathResponse = EMVUtil.sendCmd(terminal, command);
-
-                    SW1 = (byte) selectDIRFileAbsPathResponse.getSW1();
-                    SW2 = (byte) selectDIRFileAbsPathResponse.getSW2();
-
-                    if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-                        int sfi = 0; //TODO what sfi to read? from historical bytes??
-
-                        byte recordNum = 1;
-                        do {
-
-                            Log.commandHeader("Send READ RECORD to read all records in SFI " + sfi);
-
-                            command = EMVAPDUCommands.readRecord((int) recordNum, sfi);
-
-                            CardResponse readRecordResponse = EMVUtil.sendCmd(terminal, command);
-
-                            SW1 = (byte) readRecordResponse.getSW1();
-                            SW2 = (byte) readRecordResponse.getSW2();
-
-                            if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-                                BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(readRecordResponse.getData()));
-                                getCard().getMasterFile().addUnhandledRecord(tlv);
-                            }
-
-                            recordNum++;
-
-                        } while (SW1 == (byte) 0x90 && SW2 == (byte) 0x00); //while SW1SW2 != 6a83
-                    }
+                    } while (SWDescriptor.get(SW1, SW2).isSuccess()); //while SW1SW2 != 6a83
                 }
-
-                // When the physical interface does not allow a card to answer to reset, e.g., a universal serial bus or an
-                // access by radio frequency, a GET DATA command (see 7.4.2) may retrieve historical bytes (tag '5F52').
             }
 
+            // When the physical interface does not allow a card to answer to reset, e.g., a universal serial bus or an
+            // access by radio frequency, a GET DATA command (see 7.4.2) may retrieve historical bytes (tag '5F52').
         }
 
-        //Try to select all known AIDs
-        if(sessionEnv.getProbeAllKnownAIDs()){
-            probeAllKnownAIDs();
-        }
+    }
+
+    private void selectAllRIDs() throws TerminalException {
+        int SW1;
+        int SW2;
+        byte[] command;
+        CardResponse response;
 
         //Still nothing found?
         //Select by 5 byte RID
-        if(smartCard.getAllAIDs().isEmpty() && sessionEnv.getSelectAllRIDs()) {
-            Map<String, RID> ridMap = RID_DB.getAll();
-            for(String ridString : ridMap.keySet()) {
-                RID rid = ridMap.get(ridString);
+        if(!smartCard.getAllAIDs().isEmpty()) {
+            return;
+        }
+        String probeProfile = getProbeProfile();
+        Map<String, RID> ridMap = RID_DB.getAll();
+        for(String ridString : ridMap.keySet()) {
+            if(isStageInterrupted()) {
+                break;
+            }
+            RID rid = ridMap.get(ridString);
 
-                Log.commandHeader("Send SELECT RID " + rid.getApplicant() + " ("+rid.getCountry()+")");
+            if(isKnownAbsent(probeProfile, rid.getRIDBytes())) {
+                continue;
+            }
 
-                command = Iso7816Commands.selectByDFName(rid.getRIDBytes(), true, (byte)0);
+            Log.commandHeader("Send SELECT RID " + rid.getApplicant() + " ("+rid.getCountry()+")");
 
-                response = EMVUtil.sendCmdNoParse(terminal, command);
+            command = Iso7816Commands.selectByDFName(rid.getRIDBytes(), true, (byte)0);
 
-                SW1 = (byte) response.getSW1();
-                SW2 = (byte) response.getSW2();
+            response = EMVUtil.sendCmdNoParse(terminal, command);
 
-                if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-                    smartCard.addAID(new AID(rid.getRIDBytes()));
-                }
+            SW1 = (byte) response.getSW1();
+            SW2 = (byte) response.getSW2();
+
+            if (SWDescriptor.get(SW1, SW2).isSuccess()) {
+                smartCard.addAID(new AID(rid.getRIDBytes()));
             }
+            recordProbeResult(probeProfile, rid.getRIDBytes(), response);
         }
+        saveProbeCache();
+    }
 
-
+    private void processAIDs() {
         //Process the AIDs that was found
         for(AID aid : smartCard.getAllAIDs()) {
+            if(isStageInterrupted()) {
+                break;
+            }
             List<ApplicationHandler> aidHandlers = Registry.getInstance().getHandlersForAid(aid);
             if(aidHandlers != null) {
                 try{
@@ -604,19 +774,28 @@ public class CardScanner {
 
             }
         }
-
     }
 
     public void probeAllKnownAIDs() throws TerminalException {
 
-        smartCard.setAllKnownAidsProbed();
-
         byte[] command;
 
         Collection<KnownAIDList.KnownAID> terminalCandidateList = KnownAIDList.getAIDs();
 
+        String probeProfile = getProbeProfile();
+
         for (KnownAIDList.KnownAID terminalAIDCandidate : terminalCandidateList) {
 
+            if(isStageInterrupted()) {
+                Log.debug("Stopped probing known AIDs (scan cancelled or out of time)");
+                saveProbeCache();
+                return;
+            }
+
+            if(isKnownAbsent(probeProfile, terminalAIDCandidate.getAID().getAIDBytes())) {
+                continue;
+            }
+
             //ICC support for the selection of a DF file using only a
             //partial DF name is not mandatory. However, if the ICC does
             //support partial name selection, it shall comply with the following:
@@ -634,8 +813,10 @@ public class CardScanner {
 
 
             Log.commandHeader("Direct selection of Application to generate candidate list - "+terminalAIDCandidate.getName());
-            command = EMVAPDUCommands.selectByDFName(terminalAIDCandidate.getAID().getAIDBytes());
-            CardResponse selectAppResponse = EMVUtil.sendCmd(terminal, command);
+            int commandLength = EMVAPDUCommands.selectByDFName(terminalAIDCandidate.getAID().getAIDBytes(), commandBuffer, 0);
+            CardResponse selectAppResponse = EMVUtil.sendCmd(terminal, commandBuffer, 0, commandLength);
+
+            recordProbeResult(probeProfile, terminalAIDCandidate.getAID().getAIDBytes(), selectAppResponse);
 
             //TODO merge data if AID already found (to prevent PARTIAL AID being listed as app in EMV card dump)
 
@@ -681,8 +862,8 @@ public class CardScanner {
 
                     boolean hasNextOccurrence = true;
                     while (hasNextOccurrence) {
-                        command = EMVAPDUCommands.selectByDFNameNextOccurrence(terminalAIDCandidate.getAID().getAIDBytes());
-                        selectAppResponse = EMVUtil.sendCmd(terminal, command);
+                        commandLength = EMVAPDUCommands.selectByDFNameNextOccurrence(terminalAIDCandidate.getAID().getAIDBytes(), commandBuffer, 0);
+                        selectAppResponse = EMVUtil.sendCmd(terminal, commandBuffer, 0, commandLength);
 
                         //Workaround: Some cards seem to misbehave.
                         //Abort if current response == previous response
@@ -738,5 +919,80 @@ public class CardScanner {
                 }
             }
         }
+        smartCard.setAllKnownAidsProbed();
+        saveProbeCache();
+    }
+
+    /**
+     * @return the card profile fingerprint for the negative probe cache, or null if no cache is used
+     */
+    private String getProbeProfile() {
+        if(sessionEnv.getNegativeProbeCache() == null) {
+            return null;
+        }
+        //The CPLC is read by the GP handler after probing, so it is not part of the profile here
+        return NegativeProbeCache.fingerprint(terminal.getATR(), smartCard.getPSE() != null, isdAid, null);
+    }
+
+    /**
+     * Only distinct cards count as confirmations in the negative probe cache.
+     * The card is identified by the ATR and the contactless UID or the CPLC (if the card returns either)
+     */
+    private long getCardIdentity() throws TerminalException {
+        if(cardIdentity != null) {
+            return cardIdentity;
+        }
+        byte[] uniqueData = null;
+
+        Log.commandHeader("PC/SC GET DATA (UID)");
+        CardResponse response = EMVUtil.sendCmdNoParse(terminal, Util.fromHexString("FF CA 00 00 00"));
+        if(response.getSW() == SW.SUCCESS.getSW() && response.getData().length > 0) {
+            uniqueData = response.getData();
+        } else {
+            Log.commandHeader("GET DATA (CPLC)");
+            response = EMVUtil.sendCmdNoParse(terminal, Util.fromHexString("80 CA 9F 7F 00"));
+            if(response.getSW() == SW.SUCCESS.getSW() && response.getData().length > 0) {
+                uniqueData = response.getData();
+            }
+        }
+        if(uniqueData == null) {
+            Log.debug("No unique card data. All cards with this ATR count as one card in the negative probe cache");
+        }
+        cardIdentity = NegativeProbeCache.cardIdentity(terminal.getATR(), uniqueData);
+        return cardIdentity;
+    }
+
+    private boolean isKnownAbsent(String probeProfile, byte[] aid) {
+        if(probeProfile == null || sessionEnv.getProbeEverything()) {
+            return false;
+        }
+        if(sessionEnv.getNegativeProbeCache().isKnownAbsent(probeProfile, aid)) {
+            Log.debug("Skipping SELECT "+Util.prettyPrintHexNoWrap(aid)+" (known to be absent on this card profile)");
+            return true;
+        }
+        return false;
+    }
+
+    private void recordProbeResult(String probeProfile, byte[] aid, CardResponse response) throws TerminalException {
+        if(probeProfile == null) {
+            return;
+        }
+        byte[] data = response.getData();
+        if(response.getSW() == SW.FILE_OR_APPLICATION_NOT_FOUND.getSW() && (data == null || data.length == 0)) {
+            sessionEnv.getNegativeProbeCache().recordAbsent(probeProfile, getCardIdentity(), aid);
+        } else {
+            sessionEnv.getNegativeProbeCache().recordPresent(probeProfile, aid);
+        }
+    }
+
+    private void saveProbeCache() {
+        if(sessionEnv.getNegativeProbeCache() == null) {
+            return;
+        }
+        try {
+            sessionEnv.getNegativeProbeCache().save();
+        } catch(IOException ex) {
+            Log.info("Unable to save the negative probe cache: " + ex.getMessage());
+        }
     }
 }
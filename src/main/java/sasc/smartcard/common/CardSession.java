@@ -34,6 +34,8 @@ public class CardSession {
     private SmartCard card;
     private CardConnection terminal;
     private SessionProcessingEnv sessionEnv;
+    private volatile CardScanner scanner = null;
+    private volatile boolean cancelled = false;
     
     private CardSession(CardConnection terminal, SessionProcessingEnv sessionEnv){
         this.terminal = terminal;
@@ -85,9 +87,31 @@ public class CardSession {
             //NO-OP
         }
 
-        CardScanner scanner = new CardScanner(card, terminal, sessionEnv);
+        scanner = new CardScanner(card, terminal, sessionEnv);
+        if (cancelled) {
+            scanner.cancel();
+        }
         scanner.start();
 
         return card;
     }
+
+    /**
+     * Stops scanning the card (between commands). May be called from another thread
+     */
+    public void cancel() {
+        cancelled = true;
+        CardScanner current = scanner;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    /**
+     * @return the stages run and skipped when scanning the card, or null if the card is not initialized
+     */
+    public ScanReport getScanReport() {
+        CardScanner current = scanner;
+        return current != null ? current.getScanReport() : null;
+    }
 }
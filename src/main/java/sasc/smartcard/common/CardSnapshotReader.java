@@ -0,0 +1,355 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import sasc.util.Util;
+
+/**
+ * Reads a file written by CardSnapshotWriter.
+ *
+ * The file is memory mapped (in windows, so files larger than 2 GB can be read),
+ * and the snapshots are iterated without being deserialized: the iterator returns
+ * the same Snapshot view for every element, positioned on the current snapshot,
+ * and values are read from the mapped file when an accessor is called.
+ * A truncated last snapshot (eg if the writer was interrupted) is ignored.
+ *
+ * @author sasc
+ */
+public class CardSnapshotReader implements Iterable<CardSnapshotReader.Snapshot>, Closeable {
+
+    public static final int FLAG_AIP_PRESENT = 0x01;
+    public static final int FLAG_ISSUER_CERT_VALID = 0x02;
+    public static final int FLAG_ICC_CERT_VALID = 0x04;
+    public static final int FLAG_SSAD_VALID = 0x08;
+    public static final int FLAG_SDAD_VALID = 0x10;
+
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    //Offsets of the fixed size fields in an EMV app, after aid, label and pan
+    private static final int APP_PSN = 0;
+    private static final int APP_EXPIRATION_DATE = 1;
+    private static final int APP_ATC = 5;
+    private static final int APP_LAST_ONLINE_ATC = 9;
+    private static final int APP_PIN_TRY_COUNTER = 13;
+    private static final int APP_AIP = 17;
+    private static final int APP_FLAGS = 19;
+    private static final int APP_RECORD_COUNT = 21;
+    private static final int APP_RECORDS = 23;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window = null;
+    private long windowStart = 0;
+
+    private CardSnapshotReader(File f) throws IOException {
+        file = new RandomAccessFile(f, "r");
+        channel = file.getChannel();
+        size = channel.size();
+        if (size < CardSnapshotWriter.HEADER_LENGTH) {
+            close();
+            throw new IOException("Not a card snapshot file: " + f);
+        }
+        ByteBuffer header = map(0, CardSnapshotWriter.HEADER_LENGTH);
+        for (int i = 0; i < CardSnapshotWriter.MAGIC.length; i++) {
+            if (header.get(i) != CardSnapshotWriter.MAGIC[i]) {
+                close();
+                throw new IOException("Not a card snapshot file: " + f);
+            }
+        }
+        if (header.get(3) != CardSnapshotWriter.VERSION) {
+            close();
+            throw new IOException("Unsupported card snapshot version: " + header.get(3));
+        }
+    }
+
+    public static CardSnapshotReader open(File file) throws IOException {
+        return new CardSnapshotReader(file);
+    }
+
+    /**
+     * The Snapshot returned by next() is reused (only valid until the next call to next())
+     */
+    @Override
+    public Iterator<Snapshot> iterator() {
+        return new Iterator<Snapshot>() {
+            private final Snapshot snapshot = new Snapshot();
+            private long position = CardSnapshotWriter.HEADER_LENGTH;
+            private long nextPosition = -1;
+
+            @Override
+            public boolean hasNext() {
+                if (nextPosition == -1) {
+                    nextPosition = findNext(position);
+                }
+                return nextPosition != position;
+            }
+
+            @Override
+            public Snapshot next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                snapshot.position(position + 4, (int) (nextPosition - position - 4));
+                position = nextPosition;
+                nextPosition = -1;
+                return snapshot;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Read only");
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        file.close();
+    }
+
+    /**
+     * @return the position after the snapshot at the position (or the position itself, at the end of the file)
+     */
+    private long findNext(long position) {
+        if (position + 4 > size) {
+            return position;
+        }
+        int length = map(position, 4).getInt((int) (position - windowStart));
+        if (length < 0 || position + 4 + length > size) {
+            return position; //Truncated
+        }
+        return position + 4 + length;
+    }
+
+    /**
+     * Makes sure the range is in the mapped window
+     * @return the window
+     */
+    private ByteBuffer map(long position, int length) {
+        if (window == null || position < windowStart || position + length > windowStart + window.limit()) {
+            long mapSize = Math.min(Math.max(WINDOW_SIZE, length), size - position);
+            try {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, mapSize);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            windowStart = position;
+        }
+        return window;
+    }
+
+    /**
+     * View of the snapshot at the current position of the iterator
+     */
+    public class Snapshot {
+
+        private ByteBuffer buf;
+        private int base;
+        private int[] appOffsets = new int[4];
+        private int appCount;
+        private int isdOffset;
+
+        private void position(long position, int length) {
+            buf = map(position, length);
+            base = (int) (position - windowStart);
+            int offset = base + 8;
+            offset += 1 + (buf.get(offset) & 0xFF); //ATR
+            appCount = buf.get(offset++) & 0xFF;
+            if (appOffsets.length < appCount) {
+                appOffsets = new int[appCount];
+            }
+            for (int i = 0; i < appCount; i++) {
+                appOffsets[i] = offset + 4;
+                offset += 4 + buf.getInt(offset);
+            }
+            isdOffset = offset;
+        }
+
+        public long getTimestamp() {
+            return buf.getLong(base);
+        }
+
+        public byte[] getATR() {
+            return getBytes1(base + 8);
+        }
+
+        public int getEMVApplicationCount() {
+            return appCount;
+        }
+
+        public byte[] getAID(int app) {
+            return getBytes1(appOffsets[app]);
+        }
+
+        public String getLabel(int app) {
+            return toString(getBytes1(skip(appOffsets[app], 1)));
+        }
+
+        /**
+         * @return the PAN digits, or null if the application has no PAN
+         */
+        public String getPAN(int app) {
+            byte[] pan = getBytes1(skip(appOffsets[app], 2));
+            return pan.length > 0 ? toString(pan) : null;
+        }
+
+        /**
+         * @return the PAN Sequence Number, or -1 if not present
+         */
+        public int getPANSequenceNumber(int app) {
+            int psn = buf.get(fixed(app) + APP_PSN) & 0xFF;
+            return psn == 0xFF ? -1 : psn;
+        }
+
+        /**
+         * @return the expiration date as YYYYMMDD, or -1 if not present
+         */
+        public int getExpirationDate(int app) {
+            return buf.getInt(fixed(app) + APP_EXPIRATION_DATE);
+        }
+
+        public int getATC(int app) {
+            return buf.getInt(fixed(app) + APP_ATC);
+        }
+
+        public int getLastOnlineATC(int app) {
+            return buf.getInt(fixed(app) + APP_LAST_ONLINE_ATC);
+        }
+
+        public int getPINTryCounter(int app) {
+            return buf.getInt(fixed(app) + APP_PIN_TRY_COUNTER);
+        }
+
+        /**
+         * @return the 2 byte AIP, or null if not present
+         */
+        public byte[] getAIP(int app) {
+            if (!hasFlag(app, FLAG_AIP_PRESENT)) {
+                return null;
+            }
+            int offset = fixed(app) + APP_AIP;
+            return new byte[]{buf.get(offset), buf.get(offset + 1)};
+        }
+
+        /**
+         * @param flag one of the FLAG_* constants
+         */
+        public boolean hasFlag(int app, int flag) {
+            return (buf.getShort(fixed(app) + APP_FLAGS) & flag) != 0;
+        }
+
+        public int getRecordCount(int app) {
+            return buf.getShort(fixed(app) + APP_RECORD_COUNT) & 0xFFFF;
+        }
+
+        public int getRecordSFI(int app, int record) {
+            return buf.get(record(app, record)) & 0xFF;
+        }
+
+        public int getRecordNumber(int app, int record) {
+            return buf.get(record(app, record) + 1) & 0xFF;
+        }
+
+        /**
+         * @return a read only view of the raw record (no copy)
+         */
+        public ByteBuffer getRecord(int app, int record) {
+            int offset = record(app, record);
+            int length = buf.getShort(offset + 2) & 0xFFFF;
+            ByteBuffer view = buf.duplicate();
+            view.limit(offset + 4 + length);
+            view.position(offset + 4);
+            return view.slice().asReadOnlyBuffer();
+        }
+
+        public int getSecurityDomainCount() {
+            return buf.get(isdOffset) & 0xFF;
+        }
+
+        public byte[] getSecurityDomainAID(int isd) {
+            return getBytes1(isd(isd));
+        }
+
+        /**
+         * @return the CUID (from the CPLC), or null if the CPLC was not read
+         */
+        public String getCardUniqueIdentifier(int isd) {
+            byte[] cuid = getBytes1(skip(isd(isd), 1));
+            return cuid.length > 0 ? toString(cuid) : null;
+        }
+
+        private int fixed(int app) {
+            return skip(appOffsets[app], 3);
+        }
+
+        private int record(int app, int record) {
+            if (record < 0 || record >= getRecordCount(app)) {
+                throw new IndexOutOfBoundsException("Record " + record);
+            }
+            int offset = fixed(app) + APP_RECORDS;
+            for (int i = 0; i < record; i++) {
+                offset += 4 + (buf.getShort(offset + 2) & 0xFFFF);
+            }
+            return offset;
+        }
+
+        private int isd(int isd) {
+            if (isd < 0 || isd >= getSecurityDomainCount()) {
+                throw new IndexOutOfBoundsException("Security Domain " + isd);
+            }
+            return skip(isdOffset + 1, isd * 2);
+        }
+
+        /**
+         * Skips length prefixed (1 byte) values
+         */
+        private int skip(int offset, int count) {
+            for (int i = 0; i < count; i++) {
+                offset += 1 + (buf.get(offset) & 0xFF);
+            }
+            return offset;
+        }
+
+        private byte[] getBytes1(int offset) {
+            byte[] value = new byte[buf.get(offset) & 0xFF];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = buf.get(offset + 1 + i);
+            }
+            return value;
+        }
+
+        private String toString(byte[] value) {
+            return new String(value, CardSnapshotWriter.CHARSET);
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot[ATR=" + Util.prettyPrintHexNoWrap(getATR()) + ", EMV apps=" + appCount
+                    + ", Security Domains=" + getSecurityDomainCount() + "]";
+        }
+    }
+}
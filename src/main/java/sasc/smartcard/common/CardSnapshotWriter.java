@@ -0,0 +1,213 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import sasc.emv.ApplicationElementaryFile;
+import sasc.emv.EMVApplication;
+import sasc.emv.Record;
+import sasc.iso7816.AID;
+import sasc.iso7816.Application;
+import sasc.smartcard.app.globalplatform.CPLC;
+import sasc.smartcard.app.globalplatform.ISDApplication;
+
+/**
+ * Writes parsed SmartCard snapshots in a compact binary format (see CardSnapshotReader),
+ * through an NIO channel.
+ *
+ * Each snapshot holds the ATR, and for each EMV application the raw records read
+ * (as returned by the card), the most used derived fields and the results of the
+ * offline data authentication. For each Security Domain, the AID and the CUID from the CPLC.
+ *
+ * File layout (big endian):
+ * 'C' 'S' 'N' version(1) snapshots...
+ * Snapshot: length(4) timestamp(8) atrLength(1) atr emvAppCount(1) emvApps... isdCount(1) isds...
+ * EMV app: length(4) aidLength(1) aid labelLength(1) label panLength(1) pan(ASCII digits)
+ *          panSequenceNumber(1, 'FF' = none) expirationDate(4, YYYYMMDD or -1) atc(4) lastOnlineATC(4)
+ *          pinTryCounter(4) aip(2) flags(2) recordCount(2) records...
+ * Record: sfi(1) recordNumber(1) length(2) raw record (incl tag '70')
+ * ISD: aidLength(1) aid cuidLength(1) cuid(ASCII hex)
+ *
+ * @author sasc
+ */
+public class CardSnapshotWriter implements Closeable {
+
+    static final byte[] MAGIC = {'C', 'S', 'N'};
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 4;
+    static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+    private final WritableByteChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(8192);
+    private final Calendar calendar = Calendar.getInstance();
+
+    /**
+     * Writes the file header to the channel
+     */
+    public CardSnapshotWriter(WritableByteChannel channel) throws IOException {
+        this.channel = channel;
+        buffer.put(MAGIC).put((byte) VERSION);
+        flush();
+    }
+
+    /**
+     * Creates (or replaces) a snapshot file
+     */
+    public static CardSnapshotWriter create(File file) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            return new CardSnapshotWriter(fos.getChannel());
+        } catch (IOException ex) {
+            fos.close();
+            throw ex;
+        }
+    }
+
+    public void write(SmartCard card) throws IOException {
+        buffer.clear();
+        buffer.putInt(0); //Length, set below
+        buffer.putLong(System.currentTimeMillis());
+        putBytes1(card.getATR() != null ? card.getATR().getBytes() : null);
+
+        List<EMVApplication> emvApps = new ArrayList<EMVApplication>(card.getEmvApplications());
+        buffer.put((byte) Math.min(emvApps.size(), 255));
+        for (int i = 0; i < emvApps.size() && i < 255; i++) {
+            putEMVApplication(emvApps.get(i));
+        }
+
+        List<ISDApplication> isds = new ArrayList<ISDApplication>();
+        for (Application app : card.getOtherApplications()) {
+            if (app instanceof ISDApplication) {
+                isds.add((ISDApplication) app);
+            }
+        }
+        ensureCapacity(1);
+        buffer.put((byte) Math.min(isds.size(), 255));
+        for (int i = 0; i < isds.size() && i < 255; i++) {
+            ISDApplication isd = isds.get(i);
+            putBytes1(isd.getAID() != null ? isd.getAID().getAIDBytes() : null);
+            CPLC cplc = isd.getCPLC();
+            putBytes1(cplc != null ? cplc.createCardUniqueIdentifier().getBytes(CHARSET) : null);
+        }
+        buffer.putInt(0, buffer.position() - 4);
+        flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void putEMVApplication(EMVApplication app) {
+        ensureCapacity(4);
+        int start = buffer.position();
+        buffer.putInt(0); //Length, set below
+        AID aid = app.getAID();
+        putBytes1(aid != null ? aid.getAIDBytes() : null);
+        putBytes1(app.getLabel() != null ? app.getLabel().getBytes(CHARSET) : null);
+        putBytes1(app.getPAN() != null ? app.getPAN().getPanAsString().getBytes(CHARSET) : null);
+        ensureCapacity(25);
+        buffer.put((byte) app.getPANSequenceNumber());
+        buffer.putInt(toYYYYMMDD(app.getExpirationDate()));
+        buffer.putInt(app.getATC());
+        buffer.putInt(app.getLastOnlineATC());
+        buffer.putInt(app.getPINTryCounter());
+        int flags = 0;
+        if (app.getApplicationInterchangeProfile() != null) {
+            buffer.put(app.getApplicationInterchangeProfile().getBytes());
+            flags |= CardSnapshotReader.FLAG_AIP_PRESENT;
+        } else {
+            buffer.putShort((short) 0);
+        }
+        if (app.getIssuerPublicKeyCertificate() != null && app.getIssuerPublicKeyCertificate().isValid()) {
+            flags |= CardSnapshotReader.FLAG_ISSUER_CERT_VALID;
+        }
+        if (app.getICCPublicKeyCertificate() != null && app.getICCPublicKeyCertificate().isValid()) {
+            flags |= CardSnapshotReader.FLAG_ICC_CERT_VALID;
+        }
+        if (app.getSignedStaticApplicationData() != null && app.getSignedStaticApplicationData().isValid()) {
+            flags |= CardSnapshotReader.FLAG_SSAD_VALID;
+        }
+        if (app.getSignedDynamicApplicationData() != null && app.getSignedDynamicApplicationData().isValid()) {
+            flags |= CardSnapshotReader.FLAG_SDAD_VALID;
+        }
+        buffer.putShort((short) flags);
+
+        int countPosition = buffer.position();
+        buffer.putShort((short) 0);
+        int count = 0;
+        for (ApplicationElementaryFile aef : app.getApplicationFileLocator().getApplicationElementaryFiles()) {
+            for (Record record : aef.getRecords()) {
+                byte[] raw = record.getRawData();
+                if (raw == null || raw.length > 0xFFFF || count == 0xFFFF) {
+                    continue;
+                }
+                ensureCapacity(4 + raw.length);
+                buffer.put((byte) aef.getSFI().getValue());
+                buffer.put((byte) record.getRecordNumber());
+                buffer.putShort((short) raw.length);
+                buffer.put(raw);
+                count++;
+            }
+        }
+        buffer.putShort(countPosition, (short) count);
+        buffer.putInt(start, buffer.position() - start - 4);
+    }
+
+    private int toYYYYMMDD(Date date) {
+        if (date == null) {
+            return -1;
+        }
+        calendar.setTime(date);
+        return calendar.get(Calendar.YEAR) * 10000 + (calendar.get(Calendar.MONTH) + 1) * 100 + calendar.get(Calendar.DAY_OF_MONTH);
+    }
+
+    private void putBytes1(byte[] value) {
+        int length = value != null ? Math.min(value.length, 255) : 0;
+        ensureCapacity(1 + length);
+        buffer.put((byte) length);
+        if (length > 0) {
+            buffer.put(value, 0, length);
+        }
+    }
+
+    private void ensureCapacity(int n) {
+        if (buffer.remaining() < n) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + n));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
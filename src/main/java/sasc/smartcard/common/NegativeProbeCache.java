@@ -0,0 +1,385 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import sasc.iso7816.AID;
+import sasc.util.Log;
+import sasc.util.Util;
+
+/**
+ * Remembers which AIDs/RIDs were proven absent ('6A82' File or application not found)
+ * on cards of the same profile, so the SELECTs can be skipped for the next card.
+ *
+ * A card profile is identified by a fingerprint of the ATR (including the historical bytes),
+ * the presence of a PSE/PPSE, the ISD AID and the CPLC IC type (if known when probing).
+ *
+ * An AID is only skipped after it has been found absent on at least minConfirmations
+ * distinct cards of the profile (see cardIdentity(..)), and the last confirmation is
+ * no older than maxAgeMillis. Probing the same card again does not add a confirmation.
+ * If the AID is found on a card (any response other than '6A82'), the entry is removed.
+ *
+ * The cache is bounded: it holds at most maxProfiles profiles (least recently used
+ * are evicted) and at most maxEntriesPerProfile AIDs per profile (oldest are evicted).
+ *
+ * File layout:
+ * 'N' 'P' 'C' version(1) profileCount(4) profiles...
+ * Profile: fingerprint (20 bytes) entryCount(4) entries...
+ * Entry: aidLength(1) aid cardCount(1) cardIdentity(8)... lastConfirmedMillis(8)
+ *
+ * Version 1 files (which counted probes, not cards) are read as an empty cache.
+ *
+ * @author sasc
+ */
+public class NegativeProbeCache {
+
+    private static final byte[] MAGIC = {'N', 'P', 'C'};
+    private static final int VERSION = 2;
+    //More distinct cards than this do not make the entry more reliable
+    private static final int MAX_CARDS_PER_ENTRY = 16;
+    private static final int FINGERPRINT_LENGTH = 20;
+
+    public static final int DEFAULT_MAX_PROFILES = 64;
+    public static final int DEFAULT_MAX_ENTRIES_PER_PROFILE = 1024;
+    public static final int DEFAULT_MIN_CONFIRMATIONS = 2;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    private final File file;
+    private final int maxProfiles;
+    private final int maxEntriesPerProfile;
+    private int minConfirmations = DEFAULT_MIN_CONFIRMATIONS;
+    private long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+    private boolean modified = false;
+    private static NegativeProbeCache defaultCache = null;
+    private final LinkedHashMap<String, LinkedHashMap<String, ProbeEntry>> profiles;
+
+    private static class ProbeEntry {
+        //The identities of the cards the AID was found absent on, oldest first
+        long[] cards;
+        long lastConfirmedMillis;
+
+        ProbeEntry(long[] cards, long lastConfirmedMillis) {
+            this.cards = cards;
+            this.lastConfirmedMillis = lastConfirmedMillis;
+        }
+
+        void addCard(long cardIdentity) {
+            for (long card : cards) {
+                if (card == cardIdentity) {
+                    return;
+                }
+            }
+            int keep = Math.min(cards.length, MAX_CARDS_PER_ENTRY - 1);
+            long[] updated = new long[keep + 1];
+            System.arraycopy(cards, cards.length - keep, updated, 0, keep);
+            updated[keep] = cardIdentity;
+            cards = updated;
+        }
+    }
+
+    /**
+     * @param file the file to load from/save to, or null for an in-memory cache
+     */
+    public NegativeProbeCache(File file, int maxProfiles, int maxEntriesPerProfile) {
+        if (maxProfiles < 1 || maxEntriesPerProfile < 1) {
+            throw new IllegalArgumentException("maxProfiles and maxEntriesPerProfile must be > 0");
+        }
+        this.file = file;
+        this.maxProfiles = maxProfiles;
+        this.maxEntriesPerProfile = maxEntriesPerProfile;
+        this.profiles = new LinkedHashMap<String, LinkedHashMap<String, ProbeEntry>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LinkedHashMap<String, ProbeEntry>> eldest) {
+                return size() > NegativeProbeCache.this.maxProfiles;
+            }
+        };
+    }
+
+    /**
+     * Loads the cache from the file (an empty cache is returned if the file does not exist)
+     */
+    public static NegativeProbeCache open(File file) throws IOException {
+        NegativeProbeCache cache = new NegativeProbeCache(file, DEFAULT_MAX_PROFILES, DEFAULT_MAX_ENTRIES_PER_PROFILE);
+        if (file.exists()) {
+            cache.load();
+        }
+        return cache;
+    }
+
+    /**
+     * The cache used by scan profiles that enable it, if no cache is set in SessionProcessingEnv.
+     * Stored in the file given by the system property "sasc.negativeProbeCache", else in memory only
+     */
+    public static synchronized NegativeProbeCache getDefault() {
+        if (defaultCache == null) {
+            String path = System.getProperty("sasc.negativeProbeCache");
+            if (path != null) {
+                try {
+                    defaultCache = open(new File(path));
+                } catch (IOException ex) {
+                    Log.info("Unable to load the negative probe cache: " + ex.getMessage());
+                }
+            }
+            if (defaultCache == null) {
+                defaultCache = new NegativeProbeCache(null, DEFAULT_MAX_PROFILES, DEFAULT_MAX_ENTRIES_PER_PROFILE);
+            }
+        }
+        return defaultCache;
+    }
+
+    /**
+     * @param minConfirmations the number of distinct cards an AID must have been absent on, before it is skipped
+     */
+    public synchronized void setMinConfirmations(int minConfirmations) {
+        if (minConfirmations < 1) {
+            throw new IllegalArgumentException("minConfirmations must be > 0: " + minConfirmations);
+        }
+        this.minConfirmations = minConfirmations;
+    }
+
+    /**
+     * @param maxAgeMillis entries not confirmed within this time are not used (and are dropped on save)
+     */
+    public synchronized void setMaxAgeMillis(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @param atr the complete ATR (includes the historical bytes)
+     * @param psePresent true if the PSE or PPSE could be selected
+     * @param isdAid the AID of the Issuer Security Domain, or null
+     * @param cplcICType the IC type from the CPLC data, or null
+     * @return the card profile fingerprint
+     */
+    public static String fingerprint(byte[] atr, boolean psePresent, AID isdAid, byte[] cplcICType) {
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+        update(sha1, atr);
+        sha1.update((byte) (psePresent ? 1 : 0));
+        update(sha1, isdAid != null ? isdAid.getAIDBytes() : null);
+        update(sha1, cplcICType);
+        return Util.byteArrayToHexString(sha1.digest());
+    }
+
+    /**
+     * Identifies a card (not a card profile), so repeated scans of the same card
+     * are not counted as confirmations
+     *
+     * @param atr the complete ATR
+     * @param uniqueData data unique to the card (eg the contactless UID, or the CPLC), or null if not known.
+     *                   If null, all cards with the same ATR count as one card
+     */
+    public static long cardIdentity(byte[] atr, byte[] uniqueData) {
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+        update(sha1, atr);
+        update(sha1, uniqueData);
+        byte[] digest = sha1.digest();
+        long identity = 0;
+        for (int i = 0; i < 8; i++) {
+            identity = (identity << 8) | (digest[i] & 0xFF);
+        }
+        return identity;
+    }
+
+    private static void update(MessageDigest digest, byte[] value) {
+        if (value == null) {
+            digest.update((byte) 0xFF);
+            return;
+        }
+        digest.update((byte) value.length);
+        digest.update(value);
+    }
+
+    /**
+     * @return true if the AID has been found absent often enough (and recently enough) on cards of this profile
+     */
+    public synchronized boolean isKnownAbsent(String profile, byte[] aid) {
+        LinkedHashMap<String, ProbeEntry> entries = profiles.get(profile);
+        if (entries == null) {
+            return false;
+        }
+        ProbeEntry entry = entries.get(Util.byteArrayToHexString(aid));
+        return entry != null
+                && entry.cards.length >= minConfirmations
+                && !isExpired(entry, System.currentTimeMillis());
+    }
+
+    /**
+     * Records that the card responded '6A82' to SELECT by DF name = aid
+     *
+     * @param cardIdentity the card, see cardIdentity(..)
+     */
+    public synchronized void recordAbsent(String profile, long cardIdentity, byte[] aid) {
+        LinkedHashMap<String, ProbeEntry> entries = profiles.get(profile);
+        if (entries == null) {
+            entries = new LinkedHashMap<String, ProbeEntry>();
+            profiles.put(profile, entries);
+        }
+        String key = Util.byteArrayToHexString(aid);
+        long now = System.currentTimeMillis();
+        ProbeEntry entry = entries.remove(key); //Re-insert, so the entries are ordered by last confirmation
+        if (entry == null || isExpired(entry, now)) {
+            entry = new ProbeEntry(new long[0], now);
+        }
+        entry.addCard(cardIdentity);
+        entry.lastConfirmedMillis = now;
+        entries.put(key, entry);
+        if (entries.size() > maxEntriesPerProfile) {
+            entries.remove(entries.keySet().iterator().next());
+        }
+        modified = true;
+    }
+
+    /**
+     * Records that the AID was found (or at least not reported absent) on a card of this profile
+     */
+    public synchronized void recordPresent(String profile, byte[] aid) {
+        LinkedHashMap<String, ProbeEntry> entries = profiles.get(profile);
+        if (entries != null && entries.remove(Util.byteArrayToHexString(aid)) != null) {
+            modified = true;
+        }
+    }
+
+    /**
+     * Removes all entries for the profile (eg if a card of the profile was found to have other applications)
+     */
+    public synchronized void clear(String profile) {
+        if (profiles.remove(profile) != null) {
+            modified = true;
+        }
+    }
+
+    /**
+     * Writes the cache to the file (if modified)
+     */
+    public synchronized void save() throws IOException {
+        if (file == null || !modified) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            dos.write(MAGIC);
+            dos.writeByte(VERSION);
+            dos.writeInt(profiles.size());
+            for (Map.Entry<String, LinkedHashMap<String, ProbeEntry>> profile : profiles.entrySet()) {
+                dos.write(Util.fromHexString(profile.getKey()));
+                int count = 0;
+                for (ProbeEntry entry : profile.getValue().values()) {
+                    if (!isExpired(entry, now)) {
+                        count++;
+                    }
+                }
+                dos.writeInt(count);
+                for (Map.Entry<String, ProbeEntry> e : profile.getValue().entrySet()) {
+                    ProbeEntry entry = e.getValue();
+                    if (isExpired(entry, now)) {
+                        continue;
+                    }
+                    byte[] aid = Util.fromHexString(e.getKey());
+                    dos.writeByte(aid.length);
+                    dos.write(aid);
+                    dos.writeByte(entry.cards.length);
+                    for (long card : entry.cards) {
+                        dos.writeLong(card);
+                    }
+                    dos.writeLong(entry.lastConfirmedMillis);
+                }
+            }
+        } finally {
+            dos.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace " + file);
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Unable to rename " + tmpFile + " to " + file);
+        }
+        modified = false;
+    }
+
+    private void load() throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            dis.readFully(magic);
+            if (magic[0] != MAGIC[0] || magic[1] != MAGIC[1] || magic[2] != MAGIC[2]) {
+                throw new IOException("Not a negative probe cache file: " + file);
+            }
+            int version = dis.readUnsignedByte();
+            if (version == 1) {
+                //The confirmations in version 1 may all be from the same card
+                Log.debug("Ignoring version 1 negative probe cache file: " + file);
+                modified = true; //Overwrite it on save
+                return;
+            }
+            if (version != VERSION) {
+                throw new IOException("Unsupported negative probe cache version: " + version);
+            }
+            int profileCount = dis.readInt();
+            byte[] fingerprint = new byte[FINGERPRINT_LENGTH];
+            for (int i = 0; i < profileCount; i++) {
+                dis.readFully(fingerprint);
+                int entryCount = dis.readInt();
+                if (entryCount < 0) {
+                    throw new IOException("Corrupt negative probe cache file: " + file);
+                }
+                LinkedHashMap<String, ProbeEntry> entries = new LinkedHashMap<String, ProbeEntry>();
+                for (int j = 0; j < entryCount; j++) {
+                    byte[] aid = new byte[dis.readUnsignedByte()];
+                    dis.readFully(aid);
+                    long[] cards = new long[dis.readUnsignedByte()];
+                    for (int k = 0; k < cards.length; k++) {
+                        cards[k] = dis.readLong();
+                    }
+                    long lastConfirmedMillis = dis.readLong();
+                    entries.put(Util.byteArrayToHexString(aid), new ProbeEntry(cards, lastConfirmedMillis));
+                    if (entries.size() > maxEntriesPerProfile) {
+                        entries.remove(entries.keySet().iterator().next());
+                    }
+                }
+                profiles.put(Util.byteArrayToHexString(fingerprint), entries);
+            }
+        } finally {
+            dis.close();
+        }
+    }
+
+    private boolean isExpired(ProbeEntry entry, long now) {
+        return now - entry.lastConfirmedMillis > maxAgeMillis;
+    }
+}
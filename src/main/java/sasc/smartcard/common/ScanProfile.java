@@ -0,0 +1,188 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+
+/**
+ * The stages CardScanner runs, in which order, and how much time each stage may use.
+ *
+ * Stages run in priority order (lowest value first). A stage is skipped if the total
+ * budget is used up, and a running stage stops (between commands) when its own budget
+ * or the total budget is used up. Budgets are checked cooperatively, so a single slow
+ * command is not interrupted.
+ *
+ * @author sasc
+ */
+public class ScanProfile {
+
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    public static enum Stage {
+        /**
+         * PC/SC GET FEATURE REQUEST (always runs first, since it describes the reader)
+         */
+        TERMINAL_FEATURES,
+        /**
+         * SELECT ISD using zero length AID
+         */
+        SELECT_ISD,
+        /**
+         * SELECT MF, and read EF.ATR and EF.DIR
+         */
+        MASTER_FILE,
+        /**
+         * Direct selection of all known AIDs (EMV app discovery)
+         */
+        KNOWN_AIDS,
+        /**
+         * Partial selection of all RIDs (only if no AIDs were found)
+         */
+        ALL_RIDS,
+        /**
+         * The registered application handlers (GP, Yubikey, USIM etc) for the AIDs found
+         */
+        AID_HANDLERS
+    }
+
+    private static class StageBudget {
+        final int priority;
+        final long budgetMillis;
+
+        StageBudget(int priority, long budgetMillis) {
+            this.priority = priority;
+            this.budgetMillis = budgetMillis;
+        }
+    }
+
+    private final String name;
+    private final long totalBudgetMillis;
+    private final EnumMap<Stage, StageBudget> stages = new EnumMap<Stage, StageBudget>(Stage.class);
+    private boolean negativeProbeCacheEnabled = false;
+
+    public ScanProfile(String name, long totalBudgetMillis) {
+        if (totalBudgetMillis <= 0) {
+            throw new IllegalArgumentException("totalBudgetMillis must be > 0: " + totalBudgetMillis);
+        }
+        this.name = name;
+        this.totalBudgetMillis = totalBudgetMillis;
+    }
+
+    /**
+     * Payment card at the point of sale: find the EMV applications as fast as possible
+     */
+    public static ScanProfile fastPay() {
+        return new ScanProfile("fast-pay", 2500)
+                .addStage(Stage.KNOWN_AIDS, 0, 2000)
+                .addStage(Stage.SELECT_ISD, 1, 500)
+                .setNegativeProbeCacheEnabled(true);
+    }
+
+    /**
+     * Card intake/inventory: applications and GP card data (CPLC), within a fixed time per card
+     */
+    public static ScanProfile inventory() {
+        return new ScanProfile("inventory", 10000)
+                .addStage(Stage.SELECT_ISD, 0, 1000)
+                .addStage(Stage.KNOWN_AIDS, 1, 5000)
+                .addStage(Stage.AID_HANDLERS, 2, 4000)
+                .addStage(Stage.MASTER_FILE, 3, 2000)
+                .setNegativeProbeCacheEnabled(true);
+    }
+
+    /**
+     * Everything, without time limits (and without skipping AIDs known to be absent)
+     */
+    public static ScanProfile forensic() {
+        ScanProfile profile = new ScanProfile("forensic", UNLIMITED);
+        for (Stage stage : Stage.values()) {
+            profile.addStage(stage, stage.ordinal(), UNLIMITED);
+        }
+        return profile;
+    }
+
+    /**
+     * Adds (or replaces) a stage
+     *
+     * @param priority stages with lower values run first
+     * @param budgetMillis the maximum time for the stage, or UNLIMITED
+     */
+    public ScanProfile addStage(Stage stage, int priority, long budgetMillis) {
+        if (budgetMillis <= 0) {
+            throw new IllegalArgumentException("budgetMillis must be > 0: " + budgetMillis);
+        }
+        stages.put(stage, new StageBudget(priority, budgetMillis));
+        return this;
+    }
+
+    /**
+     * Skip the SELECTs of AIDs/RIDs known to be absent on cards of the same profile.
+     * Uses the cache set in SessionProcessingEnv, or NegativeProbeCache.getDefault() if none is set
+     */
+    public ScanProfile setNegativeProbeCacheEnabled(boolean enabled) {
+        this.negativeProbeCacheEnabled = enabled;
+        return this;
+    }
+
+    public boolean isNegativeProbeCacheEnabled() {
+        return negativeProbeCacheEnabled;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getTotalBudgetMillis() {
+        return totalBudgetMillis;
+    }
+
+    public boolean contains(Stage stage) {
+        return stages.containsKey(stage);
+    }
+
+    /**
+     * @return the budget of the stage, or 0 if the stage is not part of this profile
+     */
+    public long getBudgetMillis(Stage stage) {
+        StageBudget budget = stages.get(stage);
+        return budget != null ? budget.budgetMillis : 0;
+    }
+
+    /**
+     * @return the stages in the order they run (stages with equal priority run in declaration order)
+     */
+    public List<Stage> getStages() {
+        List<Stage> ordered = new ArrayList<Stage>(stages.keySet());
+        Collections.sort(ordered, new Comparator<Stage>() {
+            @Override
+            public int compare(Stage a, Stage b) {
+                int pa = stages.get(a).priority;
+                int pb = stages.get(b).priority;
+                return pa < pb ? -1 : (pa > pb ? 1 : 0);
+            }
+        });
+        return ordered;
+    }
+
+    @Override
+    public String toString() {
+        return "ScanProfile[" + name + ", stages=" + getStages() + "]";
+    }
+}
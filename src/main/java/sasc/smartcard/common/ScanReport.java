@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.common;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import sasc.smartcard.common.ScanProfile.Stage;
+
+/**
+ * What CardScanner did with each stage of the scan profile, and how long it took
+ *
+ * @author sasc
+ */
+public class ScanReport {
+
+    public static enum Outcome {
+        COMPLETED,
+        /**
+         * The stage ran to the end, but took longer than its budget (eg a single slow command)
+         */
+        COMPLETED_LATE,
+        /**
+         * The stage was stopped when its budget (or the total budget) was used up. The result may be partial
+         */
+        TIMED_OUT,
+        /**
+         * The scan was cancelled while the stage was running, or before it started
+         */
+        CANCELLED,
+        /**
+         * The total budget was used up before the stage started
+         */
+        SKIPPED,
+        /**
+         * The card was handled exclusively by an ATR handler
+         */
+        NOT_APPLICABLE
+    }
+
+    private final String profileName;
+    private final Map<Stage, Outcome> outcomes = new LinkedHashMap<Stage, Outcome>();
+    private final Map<Stage, Long> elapsedMillis = new LinkedHashMap<Stage, Long>();
+
+    public ScanReport(String profileName) {
+        this.profileName = profileName;
+    }
+
+    void record(Stage stage, Outcome outcome, long millis) {
+        outcomes.put(stage, outcome);
+        elapsedMillis.put(stage, millis);
+    }
+
+    public String getProfileName() {
+        return profileName;
+    }
+
+    /**
+     * @return the outcome of the stage, or null if the stage is not part of the profile
+     */
+    public Outcome getOutcome(Stage stage) {
+        return outcomes.get(stage);
+    }
+
+    public long getElapsedMillis(Stage stage) {
+        Long millis = elapsedMillis.get(stage);
+        return millis != null ? millis : 0;
+    }
+
+    /**
+     * @return the stages that did not complete (in the order they were scheduled).
+     * Stages completed late are not included
+     */
+    public List<Stage> getIncompleteStages() {
+        List<Stage> incomplete = new ArrayList<Stage>();
+        for (Map.Entry<Stage, Outcome> entry : outcomes.entrySet()) {
+            if (entry.getValue() != Outcome.COMPLETED && entry.getValue() != Outcome.COMPLETED_LATE) {
+                incomplete.add(entry.getKey());
+            }
+        }
+        return incomplete;
+    }
+
+    public boolean isComplete() {
+        return getIncompleteStages().isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Scan report (").append(profileName).append(")");
+        for (Map.Entry<Stage, Outcome> entry : outcomes.entrySet()) {
+            sb.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+            sb.append(" (").append(getElapsedMillis(entry.getKey())).append("ms)");
+        }
+        return sb.toString();
+    }
+}
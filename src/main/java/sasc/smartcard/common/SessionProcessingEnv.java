@@ -28,11 +28,22 @@ public class SessionProcessingEnv {
     private boolean probeAllKnownAIDs = false;
     private boolean discoverTerminalFeatures = false;
     private int initialPauseMillis = 100;
+    private NegativeProbeCache negativeProbeCache = null;
+    private boolean probeEverything = false;
+    private ScanProfile scanProfile = null;
     
     public SessionProcessingEnv(){
         
     }
     
+    public boolean getMaskSensitiveInformation(){
+        return maskSensitiveInformation;
+    }
+
+    public void setMaskSensitiveInformation(boolean value){
+        maskSensitiveInformation = value;
+    }
+
     public boolean getReadMasterFile(){
         return readMasterFile;
     }
@@ -89,4 +100,71 @@ public class SessionProcessingEnv {
     public void setDiscoverTerminalFeatures(boolean value) {
         this.discoverTerminalFeatures = value;
     }
+    
+    /**
+     * @return the cache set, or (if none) the default cache if the scan profile enables it, else null
+     */
+    public NegativeProbeCache getNegativeProbeCache(){
+        if(negativeProbeCache == null && getScanProfile().isNegativeProbeCacheEnabled()){
+            return NegativeProbeCache.getDefault();
+        }
+        return negativeProbeCache;
+    }
+    
+    /**
+     * Set the cache used to skip SELECTs of AIDs/RIDs known to be absent
+     * on cards of the same profile
+     * @param cache the cache, or null to use the default cache (only if enabled by the scan profile)
+     */
+    public void setNegativeProbeCache(NegativeProbeCache cache){
+        this.negativeProbeCache = cache;
+    }
+    
+    public boolean getProbeEverything(){
+        return probeEverything;
+    }
+    
+    /**
+     * Forensic mode: all AIDs/RIDs are selected, even if the negative probe cache
+     * says they are absent (the results are still recorded in the cache)
+     * @param value 
+     */
+    public void setProbeEverything(boolean value){
+        this.probeEverything = value;
+    }
+    
+    /**
+     * @return the scan profile set, or (if none) a profile without time limits
+     * containing the stages enabled by the individual options
+     */
+    public ScanProfile getScanProfile(){
+        if(scanProfile != null){
+            return scanProfile;
+        }
+        ScanProfile profile = new ScanProfile("default", ScanProfile.UNLIMITED);
+        if(discoverTerminalFeatures){
+            profile.addStage(ScanProfile.Stage.TERMINAL_FEATURES, 0, ScanProfile.UNLIMITED);
+        }
+        profile.addStage(ScanProfile.Stage.SELECT_ISD, 1, ScanProfile.UNLIMITED);
+        if(readMasterFile){
+            profile.addStage(ScanProfile.Stage.MASTER_FILE, 2, ScanProfile.UNLIMITED);
+        }
+        if(probeAllKnownAIDs){
+            profile.addStage(ScanProfile.Stage.KNOWN_AIDS, 3, ScanProfile.UNLIMITED);
+        }
+        if(selectAllRIDs){
+            profile.addStage(ScanProfile.Stage.ALL_RIDS, 4, ScanProfile.UNLIMITED);
+        }
+        profile.addStage(ScanProfile.Stage.AID_HANDLERS, 5, ScanProfile.UNLIMITED);
+        return profile;
+    }
+    
+    /**
+     * Set the stages to run when scanning the card, and their time budgets.
+     * This overrides readMasterFile, probeAllKnownAIDs, selectAllRIDs and discoverTerminalFeatures
+     * @param profile the profile, or null to use the individual options
+     */
+    public void setScanProfile(ScanProfile profile){
+        this.scanProfile = profile;
+    }
 }
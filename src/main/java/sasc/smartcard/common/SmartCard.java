@@ -22,6 +22,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.*;
 import sasc.iso7816.ATR;
+import sasc.iso7816.CardCapabilities;
 import sasc.emv.DDF;
 import sasc.emv.EMVApplication;
 import sasc.iso7816.Application;
@@ -59,6 +60,7 @@ public class SmartCard {
     private Type type = Type.UNKNOWN; //default
 
     private boolean allKnownAidsProbed = false;
+    private CardCapabilities cardCapabilities = null;
 
     //Use info from ATR, PSE/PPSE presence etc to guess interface type
     public enum Type{
@@ -110,6 +112,21 @@ public class SmartCard {
         return Collections.unmodifiableSet(atrSet);
     }
 
+    /**
+     * The APDU size limits of the card. From EF.ATR/INFO if it has been read,
+     * otherwise from the historical bytes of the ATR
+     */
+    public CardCapabilities getCardCapabilities() {
+        if (cardCapabilities != null) {
+            return cardCapabilities;
+        }
+        return getATR().getCardCapabilities();
+    }
+
+    public void setCardCapabilities(CardCapabilities cardCapabilities) {
+        this.cardCapabilities = cardCapabilities;
+    }
+
     public void setMasterFile(MasterFile mf) {
         this.mf = mf;
     }
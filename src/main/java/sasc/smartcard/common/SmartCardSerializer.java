@@ -0,0 +1,376 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.common;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import sasc.emv.ApplicationInterchangeProfile;
+import sasc.emv.ApplicationPriorityIndicator;
+import sasc.emv.DDF;
+import sasc.emv.EMVApplication;
+import sasc.emv.LanguagePreference;
+import sasc.emv.PAN;
+import sasc.emv.ServiceCode;
+import sasc.emv.Track2EquivalentData;
+import sasc.emv.TransactionLog;
+import sasc.iso7816.AID;
+import sasc.iso7816.ATR;
+import sasc.iso7816.Application;
+import sasc.iso7816.BERTLV;
+import sasc.iso7816.TagAndLength;
+import sasc.util.StructuredWriter;
+
+/**
+ * Walks the SmartCard model and streams it to a StructuredWriter (JSON, CBOR).
+ *
+ * This is the machine readable counterpart of SmartCard.dump(..).
+ * Fields can be selected with a FieldFilter, and PAN/Track 2 data is masked
+ * while being written if maskSensitiveData is set. Raw data that is not decoded
+ * (unknown/unprocessed records and transaction log records) may contain the same data,
+ * so only its length is written when masking.
+ *
+ * @author sasc
+ */
+public class SmartCardSerializer {
+
+    public static final String SCOPE_CARD = "card";
+    public static final String SCOPE_APPLICATION = "application";
+    public static final String SCOPE_TRACK2 = "track2EquivalentData";
+    public static final String SCOPE_TRANSACTION_LOG = "transactionLog";
+
+    /**
+     * Decides which fields are written.
+     * Called with one of the SCOPE_* constants and the field name as it appears in the output
+     */
+    public interface FieldFilter {
+        boolean include(String scope, String field);
+    }
+
+    public static final FieldFilter ALL_FIELDS = new FieldFilter() {
+        @Override
+        public boolean include(String scope, String field) {
+            return true;
+        }
+    };
+
+    private final StructuredWriter writer;
+    private final FieldFilter filter;
+    private final boolean maskSensitiveData;
+
+    //Reused for masking and date formatting
+    private final StringBuilder scratch = new StringBuilder(32);
+    private final Calendar calendar = Calendar.getInstance();
+
+    public SmartCardSerializer(StructuredWriter writer) {
+        this(writer, ALL_FIELDS, true);
+    }
+
+    /**
+     * Masks sensitive data if the session is set to mask sensitive information
+     */
+    public SmartCardSerializer(StructuredWriter writer, SessionProcessingEnv sessionEnv) {
+        this(writer, ALL_FIELDS, sessionEnv.getMaskSensitiveInformation());
+    }
+
+    public SmartCardSerializer(StructuredWriter writer, FieldFilter filter, boolean maskSensitiveData) {
+        if (writer == null) {
+            throw new IllegalArgumentException("Argument 'writer' cannot be null");
+        }
+        if (filter == null) {
+            throw new IllegalArgumentException("Argument 'filter' cannot be null");
+        }
+        this.writer = writer;
+        this.filter = filter;
+        this.maskSensitiveData = maskSensitiveData;
+    }
+
+    public void write(SmartCard card) throws IOException {
+        writer.beginObject();
+        if (filter.include(SCOPE_CARD, "atrs")) {
+            writer.name("atrs");
+            writer.beginArray();
+            for (ATR atr : card.getATRs()) {
+                writer.value(atr.getBytes());
+            }
+            writer.endArray();
+        }
+        if (filter.include(SCOPE_CARD, "type")) {
+            writer.name("type");
+            writer.value(card.getType().name());
+        }
+        DDF pse = card.getPSE();
+        if (pse != null && filter.include(SCOPE_CARD, "pse")) {
+            writer.name("pse");
+            writer.beginObject();
+            writer.name("name");
+            writer.value(pse.getName());
+            if (pse.getSFI() != null) {
+                writer.name("sfi");
+                writer.value(pse.getSFI().getValue());
+            }
+            writer.endObject();
+        }
+        if (filter.include(SCOPE_CARD, "aids")) {
+            writer.name("aids");
+            writer.beginArray();
+            for (AID aid : card.getAllAIDs()) {
+                writer.value(aid.getAIDBytes());
+            }
+            writer.endArray();
+        }
+        if (filter.include(SCOPE_CARD, "unhandledRecords")) {
+            writeRecords("unhandledRecords", card.getUnhandledRecords());
+        }
+        if (filter.include(SCOPE_CARD, "emvApplications")) {
+            writer.name("emvApplications");
+            writer.beginArray();
+            for (EMVApplication app : card.getEmvApplications()) {
+                write(app);
+            }
+            writer.endArray();
+        }
+        if (filter.include(SCOPE_CARD, "otherApplications")) {
+            writer.name("otherApplications");
+            writer.beginArray();
+            for (Application app : card.getOtherApplications()) {
+                writer.beginObject();
+                writer.name("aid");
+                writer.value(app.getAID() != null ? app.getAID().getAIDBytes() : null);
+                writer.name("type");
+                writer.value(app.getClass().getSimpleName());
+                writer.endObject();
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    public void write(EMVApplication app) throws IOException {
+        writer.beginObject();
+        if (app.getAID() != null && include("aid")) {
+            writer.name("aid");
+            writer.value(app.getAID().getAIDBytes());
+        }
+        writeString("label", app.getLabel());
+        writeString("preferredName", app.getPreferredName());
+        writeString("issuerUrl", app.getIssuerUrl());
+        ApplicationPriorityIndicator api = app.getApplicationPriorityIndicator();
+        if (api != null && include("selectionPriority")) {
+            writer.name("selectionPriority");
+            writer.value(api.getSelectionPriority());
+        }
+        ApplicationInterchangeProfile aip = app.getApplicationInterchangeProfile();
+        if (aip != null && include("aip")) {
+            writer.name("aip");
+            writer.value(aip.getBytes());
+        }
+        if (app.getPAN() != null && include("pan")) {
+            writer.name("pan");
+            writePAN(app.getPAN());
+        }
+        writeInt("panSequenceNumber", app.getPANSequenceNumber());
+        writeDate("expirationDate", app.getExpirationDate());
+        writeDate("effectiveDate", app.getEffectiveDate());
+        ServiceCode serviceCode = app.getServiceCode();
+        if (serviceCode != null && include("serviceCode")) {
+            writer.name("serviceCode");
+            writer.value(serviceCode.getServiceCodeAsString());
+        }
+        Track2EquivalentData track2 = app.getTrack2EquivalentData();
+        if (track2 != null && include("track2EquivalentData")) {
+            writer.name("track2EquivalentData");
+            writeTrack2(track2);
+        }
+        if (!maskSensitiveData) {
+            writeString("cardholderName", app.getCardholderName());
+        }
+        writeInt("applicationCurrencyCode", app.getApplicationCurrencyCode());
+        writeInt("applicationCurrencyExponent", app.getApplicationCurrencyExponent());
+        writeInt("issuerCountryCode", app.getIssuerCountryCode());
+        writeString("issuerCountryCodeAlpha3", app.getIssuerCountryCodeAlpha3());
+        writeInt("applicationVersionNumber", app.getApplicationVersionNumber());
+        writeInt("atc", app.getATC());
+        writeInt("lastOnlineAtc", app.getLastOnlineATC());
+        writeInt("pinTryCounter", app.getPINTryCounter());
+        writeInt("lowerConsecutiveOfflineLimit", app.getLowerConsecutiveOfflineLimit());
+        writeInt("upperConsecutiveOfflineLimit", app.getUpperConsecutiveOfflineLimit());
+        writeInt("issuerCodeTableIndex", app.getIssuerCodeTableIndex());
+        LanguagePreference languagePreference = app.getLanguagePreference();
+        if (languagePreference != null && include("languagePreference")) {
+            writer.name("languagePreference");
+            writer.beginArray();
+            for (Locale locale : languagePreference.getLocales()) {
+                writer.value(locale.getLanguage());
+            }
+            writer.endArray();
+        }
+        TransactionLog transactionLog = app.getTransactionLog();
+        if (transactionLog != null && include("transactionLog")) {
+            writer.name("transactionLog");
+            write(transactionLog);
+        }
+        if (include("unknownRecords")) {
+            writeRecords("unknownRecords", app.getUnknownRecords());
+        }
+        if (include("unprocessedRecords")) {
+            writeRecords("unprocessedRecords", app.getUnprocessedRecords());
+        }
+        writer.endObject();
+    }
+
+    public void write(TransactionLog transactionLog) throws IOException {
+        writer.beginObject();
+        if (filter.include(SCOPE_TRANSACTION_LOG, "format")) {
+            writer.name("format");
+            writer.beginArray();
+            for (TagAndLength tagAndLength : transactionLog.getLogFormat().getTagAndLengthList()) {
+                writer.value(tagAndLength.getBytes());
+            }
+            writer.endArray();
+        }
+        if (filter.include(SCOPE_TRANSACTION_LOG, "records")) {
+            writer.name("records");
+            writer.beginArray();
+            for (TransactionLog.Record record : transactionLog.getRecords()) {
+                writeRawData(record.getRawData());
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+    }
+
+    private boolean include(String field) {
+        return filter.include(SCOPE_APPLICATION, field);
+    }
+
+    private void writeString(String name, String value) throws IOException {
+        if (value != null && include(name)) {
+            writer.name(name);
+            writer.value(value);
+        }
+    }
+
+    //-1 means 'not present' in the EMVApplication model
+    private void writeInt(String name, int value) throws IOException {
+        if (value != -1 && include(name)) {
+            writer.name(name);
+            writer.value(value);
+        }
+    }
+
+    private void writeDate(String name, Date date) throws IOException {
+        if (date == null || !include(name)) {
+            return;
+        }
+        calendar.setTime(date);
+        scratch.setLength(0);
+        scratch.append(calendar.get(Calendar.YEAR)).append('-');
+        appendTwoDigits(calendar.get(Calendar.MONTH) + 1);
+        scratch.append('-');
+        appendTwoDigits(calendar.get(Calendar.DAY_OF_MONTH));
+        writer.name(name);
+        writer.value(scratch);
+    }
+
+    private void appendTwoDigits(int value) {
+        if (value < 10) {
+            scratch.append('0');
+        }
+        scratch.append(value);
+    }
+
+    private void writeTrack2(Track2EquivalentData track2) throws IOException {
+        writer.beginObject();
+        if (track2.getPAN() != null && filter.include(SCOPE_TRACK2, "pan")) {
+            writer.name("pan");
+            writePAN(track2.getPAN());
+        }
+        Date expirationDate = track2.getExpirationDate();
+        if (expirationDate != null && filter.include(SCOPE_TRACK2, "expirationDate")) {
+            calendar.setTime(expirationDate);
+            scratch.setLength(0);
+            scratch.append(calendar.get(Calendar.YEAR)).append('-');
+            appendTwoDigits(calendar.get(Calendar.MONTH) + 1);
+            writer.name("expirationDate");
+            writer.value(scratch);
+        }
+        if (track2.getServiceCode() != null && filter.include(SCOPE_TRACK2, "serviceCode")) {
+            writer.name("serviceCode");
+            writer.value(track2.getServiceCode().getServiceCodeAsString());
+        }
+        //Discretionary data may contain PVV and CVV/CVC
+        if (!maskSensitiveData && track2.getDiscretionaryData() != null && filter.include(SCOPE_TRACK2, "discretionaryData")) {
+            writer.name("discretionaryData");
+            writer.value(track2.getDiscretionaryData());
+        }
+        writer.endObject();
+    }
+
+    /**
+     * When masking, only the first 6 (IIN) and the last 4 digits are written
+     */
+    private void writePAN(PAN pan) throws IOException {
+        String panStr = pan.getPanAsString();
+        if (!maskSensitiveData) {
+            writer.value(panStr);
+            return;
+        }
+        int len = panStr.length();
+        int visiblePrefix = len > 10 ? 6 : 0;
+        scratch.setLength(0);
+        for (int i = 0; i < len; i++) {
+            if (i < visiblePrefix || i >= len - 4) {
+                scratch.append(panStr.charAt(i));
+            } else {
+                scratch.append('*');
+            }
+        }
+        writer.value(scratch);
+    }
+
+    private void writeRecords(String name, List<BERTLV> records) throws IOException {
+        writer.name(name);
+        writer.beginArray();
+        for (BERTLV tlv : records) {
+            writer.beginObject();
+            writer.name("tag");
+            writer.value(tlv.getTagBytes());
+            writer.name("value");
+            writeRawData(tlv.getValueBytes());
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
+    /**
+     * Undecoded data is written as is, or as its length when masking
+     * (it may contain the PAN, Track 2 or the cardholder name)
+     */
+    private void writeRawData(byte[] data) throws IOException {
+        if (maskSensitiveData) {
+            writer.beginObject();
+            writer.name("length");
+            writer.value(data.length);
+            writer.endObject();
+        } else {
+            writer.value(data);
+        }
+    }
+}
@@ -19,6 +19,7 @@ import java.util.Arrays;
 import java.util.List;
 import sasc.emv.EMVUtil;
 import sasc.emv.SW;
+import sasc.iso7816.BinaryFileReader;
 import sasc.smartcard.common.AtrHandler;
 import sasc.smartcard.common.SmartCard;
 import sasc.terminal.CardConnection;
@@ -111,30 +112,30 @@ public class StorageCardHandler implements AtrHandler {
         //    Error
         //      6CXX Wrong length (wrong number Le; 'XX' is the exact number).
 
-        int addressMSB = 0;
-        int addressLSB = 0;
-        while(addressMSB < 256) {
-            Log.commandHeader("PC/SC Read Binary (Storage Card)");
-            command = Util.fromHexString("FF B0 00 00 00"); //with Le
-            command[2] = (byte)addressMSB;
-            command[3] = (byte)addressLSB;
-            response = EMVUtil.sendCmdNoParse(terminal, command);
-            SW1 = response.getSW1();
-            SW2 = response.getSW2();
-            data = response.getData();
-            if(data.length > 0 && response.getSW() == SW.SUCCESS.getSW()){
-                addressLSB++;
-                if(addressLSB > 255) {
-                    addressLSB = 0;
-                    addressMSB++;
-                }
-                continue;
-            }
-            break;
-        }
+        BinaryFileReader reader = BinaryFileReader.forStorageCard(terminal, getBytesPerBlock(card.getATR().getBytes()));
+        reader.setCardCapabilities(card.getCardCapabilities());
+        data = reader.read();
+        Log.debug("Read " + data.length + " bytes from storage card (block size " + reader.getBlockSize() + ")");
         return false; //Don't handle exclusively. The card may have more applications or other functionality
     }
 
+    /**
+     * The unit of the address in P1P2, from the card name in the ATR (PC/SC part 3 supplement)
+     */
+    private static int getBytesPerBlock(byte[] atr) {
+        if (atr.length < 15) {
+            return 16;
+        }
+        int cardName = Util.byteToInt(atr[13], atr[14]);
+        switch (cardName) {
+            case 0x0003: //Mifare Ultralight
+            case 0x003A: //Mifare Ultralight C
+                return 4;
+            default: //Mifare Standard 1K/4K, Mini etc
+                return 16;
+        }
+    }
+
     @Override
     public List<String> getAtrPatterns() {
         return ATR_PATTERNS;
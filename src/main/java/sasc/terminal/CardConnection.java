@@ -22,6 +22,12 @@ package sasc.terminal;
 public interface CardConnection {
 
     CardResponse transmit(byte[] cmd) throws TerminalException;
+
+    /**
+     * Transmits the command in buffer[offset..offset+length-1].
+     * The buffer is not modified, and can be reused by the caller when the method returns
+     */
+    CardResponse transmit(byte[] buffer, int offset, int length) throws TerminalException;
     
     byte[] transmitControlCommand(int controlCode, byte[] data) throws TerminalException;
 
@@ -16,6 +16,7 @@
 package sasc.terminal.smartcardio;
 
 import javax.smartcardio.*;
+import sasc.iso7816.APDUCommandBuilder;
 import sasc.terminal.CardConnection;
 import sasc.terminal.CardResponse;
 import sasc.terminal.Terminal;
@@ -50,12 +51,22 @@ public class SmartcardioCardConnection implements CardConnection, Terminal {
         if (cmd == null) {
             throw new IllegalArgumentException("Argument 'cmd' cannot be null");
         }
+        return transmit(cmd, 0, cmd.length);
+    }
+
+    @Override
+    public CardResponse transmit(byte[] buffer, int offset, int length) throws TerminalException {
+        if (buffer == null) {
+            throw new IllegalArgumentException("Argument 'buffer' cannot be null");
+        }
 
-        if (cmd.length < 4) {
-            throw new IllegalArgumentException("APDU must be at least 4 bytes long: " + cmd.length);
+        if (length < 4) {
+            throw new IllegalArgumentException("APDU must be at least 4 bytes long: " + length);
         }
 
-        Log.debug("cmd bytes: " + Util.prettyPrintHexNoWrap(cmd));
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("cmd bytes: " + Util.prettyPrintHexNoWrap(buffer, offset, length));
+        }
 
         /*
          * case 1 : |CLA|INS|P1 |P2 |                    len = 4 
@@ -63,7 +74,6 @@ public class SmartcardioCardConnection implements CardConnection, Terminal {
          * case 3s: |CLA|INS|P1 |P2 |LC |...BODY...|     len = 6..260 
          * case 4s: |CLA|INS|P1 |P2 |LC |...BODY...|LE | len = 7..261
          *
-         * (Extended length is not currently supported) 
          * case 2e: |CLA|INS|P1 |P2 |00|LE1|LE2|                    len = 7 
          * case 3e: |CLA|INS|P1 |P2 |00|LC1|LC2|...BODY...|         len = 8..65542 
          * case 4e: |CLA|INS|P1 |P2 |00|LC1|LC2|...BODY...|LE1|LE2| len =10..65544
@@ -88,18 +98,19 @@ public class SmartcardioCardConnection implements CardConnection, Terminal {
         CommandAPDU commandAPDU = null;
 
         //Find the 'case' and print to Log 
-        if (cmd.length == 4) { //Case 1 (EMV doesn't use this)
-            commandAPDU = new CommandAPDU(cmd);
+        int b1 = length > 4 ? Util.byteToInt(buffer[offset + 4]) : 0;
+        if (length == 4) { //Case 1 (EMV doesn't use this)
+            commandAPDU = new CommandAPDU(buffer, offset, length);
             Log.debug("APDU case 1");
-        } else if (cmd.length == 5) { //Case 2s
+        } else if (length == 5) { //Case 2s
             commandAPDU = new CommandAPDU(
-                    Util.byteToInt(cmd[0]),
-                    Util.byteToInt(cmd[1]),
-                    Util.byteToInt(cmd[2]),
-                    Util.byteToInt(cmd[3]),
-                    (cmd[4] == 0x00 ? 256 : Util.byteToInt(cmd[4])));
+                    Util.byteToInt(buffer[offset]),
+                    Util.byteToInt(buffer[offset + 1]),
+                    Util.byteToInt(buffer[offset + 2]),
+                    Util.byteToInt(buffer[offset + 3]),
+                    (b1 == 0 ? 256 : b1));
             Log.debug("APDU case 2");
-        } else if (cmd.length == (5 + Util.byteToInt(cmd[4]))) { //Case 3s
+        } else if (b1 != 0 && length == 5 + b1) { //Case 3s
 //            if("T=1".equalsIgnoreCase(card.getProtocol())){
 //                //Add Le to end of command
 //                byte[] tmp = new byte[cmd.length+1];
@@ -109,28 +120,31 @@ public class SmartcardioCardConnection implements CardConnection, Terminal {
 //                commandAPDU = new CommandAPDU(cmd);
 //                Log.debug("APDU was case 3 but changed to case 4: "+commandAPDU);
 //            }else{
-            commandAPDU = new CommandAPDU(cmd);
+            commandAPDU = new CommandAPDU(buffer, offset, length);
             Log.debug("APDU case 3");
 //            }
-        } else if (cmd.length == (5 + Util.byteToInt(cmd[4]) + 1)) { //Case 4s
-            byte[] data = new byte[Util.byteToInt(cmd[4])];
-            System.arraycopy(cmd, 5, data, 0, data.length);
-            int le = Util.byteToInt(cmd[cmd.length - 1]);
+        } else if (b1 != 0 && length == 5 + b1 + 1) { //Case 4s
+            int le = Util.byteToInt(buffer[offset + length - 1]);
             commandAPDU = new CommandAPDU(
-                    Util.byteToInt(cmd[0]),
-                    Util.byteToInt(cmd[1]),
-                    Util.byteToInt(cmd[2]),
-                    Util.byteToInt(cmd[3]),
-                    data,
-                    0, //dataOffset
-                    data.length,
+                    Util.byteToInt(buffer[offset]),
+                    Util.byteToInt(buffer[offset + 1]),
+                    Util.byteToInt(buffer[offset + 2]),
+                    Util.byteToInt(buffer[offset + 3]),
+                    buffer,
+                    offset + 5, //dataOffset
+                    b1,
                     (le == 0 ? 256 : le));
             Log.debug("APDU case 4");
+        } else if (APDUCommandBuilder.isExtendedLength(buffer, offset, length)) { //Case 2e, 3e, 4e (throws IllegalArgumentException if malformed)
+            //CommandAPDU(byte[]) decodes extended length. Ne=65536 is encoded as Le=0000
+            commandAPDU = new CommandAPDU(buffer, offset, length);
+            Log.debug("APDU case " + (APDUCommandBuilder.getNc(buffer, offset, length) == 0 ? "2e" : (APDUCommandBuilder.getNe(buffer, offset, length) == 0 ? "3e" : "4e")));
         } else {
-            //Might be extended length
-            throw new IllegalArgumentException("Unsupported APDU format: " + Util.prettyPrintHexNoWrap(cmd));
+            throw new IllegalArgumentException("Unsupported APDU format: " + Util.prettyPrintHexNoWrap(buffer, offset, length));
+        }
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug(commandAPDU + " (" + Util.prettyPrintHexNoWrap(commandAPDU.getBytes()) + ")");
         }
-        Log.debug(commandAPDU + " (" + Util.prettyPrintHexNoWrap(commandAPDU.getBytes()) + ")");
         try {
             ResponseAPDU apdu = channel.transmit(commandAPDU);
             byte sw1 = (byte) apdu.getSW1();
@@ -142,7 +156,7 @@ public class SmartcardioCardConnection implements CardConnection, Terminal {
             //http://www.java2s.com/Open-Source/Java/6.0-JDK-Modules-sun/security/sun/security/smartcardio/PCSC.java.htm
             String desc = SmartcardioUtils.getPCSCErrorDescription(ce);
             throw new TerminalException("Error occured while transmitting command: " 
-                    + Util.byteArrayToHexString(cmd) 
+                    + Util.byteArrayToHexString(buffer, offset, length) 
                     + (desc.isEmpty()?"":" ("+desc+")"), ce);
         }
         return response;
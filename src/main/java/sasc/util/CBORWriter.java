@@ -0,0 +1,281 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streaming CBOR (RFC 7049) writer.
+ *
+ * Objects and arrays are encoded as indefinite length maps/arrays,
+ * so the number of elements does not have to be known in advance.
+ * Binary values are written as byte strings (major type 2).
+ *
+ * @author sasc
+ */
+public class CBORWriter implements StructuredWriter {
+
+    private static final int MAJOR_TYPE_UNSIGNED_INT = 0;
+    private static final int MAJOR_TYPE_NEGATIVE_INT = 1;
+    private static final int MAJOR_TYPE_BYTE_STRING  = 2;
+    private static final int MAJOR_TYPE_TEXT_STRING  = 3;
+
+    private static final int INDEFINITE_ARRAY = 0x9f;
+    private static final int INDEFINITE_MAP   = 0xbf;
+    private static final int FALSE            = 0xf4;
+    private static final int TRUE             = 0xf5;
+    private static final int NULL             = 0xf6;
+    private static final int BREAK            = 0xff;
+
+    private final OutputStream out;
+    private final byte[] buf;
+    private int pos = 0;
+
+    //Nesting state. One entry per open map/array
+    private boolean[] inObject = new boolean[16];
+    private int depth = 0;
+    private boolean nameWritten = false;
+
+    public CBORWriter(OutputStream out) {
+        this(out, 8192);
+    }
+
+    public CBORWriter(OutputStream out, int bufferSize) {
+        if (out == null) {
+            throw new IllegalArgumentException("Argument 'out' cannot be null");
+        }
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException("Buffer size must be at least 16: " + bufferSize);
+        }
+        this.out = out;
+        this.buf = new byte[bufferSize];
+    }
+
+    @Override
+    public void beginObject() throws IOException {
+        beforeValue();
+        push(true);
+        writeByte(INDEFINITE_MAP);
+    }
+
+    @Override
+    public void endObject() throws IOException {
+        pop(true);
+        writeByte(BREAK);
+    }
+
+    @Override
+    public void beginArray() throws IOException {
+        beforeValue();
+        push(false);
+        writeByte(INDEFINITE_ARRAY);
+    }
+
+    @Override
+    public void endArray() throws IOException {
+        pop(false);
+        writeByte(BREAK);
+    }
+
+    @Override
+    public void name(String name) throws IOException {
+        if (depth == 0 || !inObject[depth - 1] || nameWritten) {
+            throw new IllegalStateException("Name not allowed here: " + name);
+        }
+        writeText(name);
+        nameWritten = true;
+    }
+
+    @Override
+    public void value(CharSequence value) throws IOException {
+        if (value == null) {
+            nullValue();
+            return;
+        }
+        beforeValue();
+        writeText(value);
+    }
+
+    @Override
+    public void value(long value) throws IOException {
+        beforeValue();
+        if (value < 0) {
+            //-1 - n, computed without overflow for Long.MIN_VALUE
+            writeTypeAndLength(MAJOR_TYPE_NEGATIVE_INT, ~value);
+        } else {
+            writeTypeAndLength(MAJOR_TYPE_UNSIGNED_INT, value);
+        }
+    }
+
+    @Override
+    public void value(boolean value) throws IOException {
+        beforeValue();
+        writeByte(value ? TRUE : FALSE);
+    }
+
+    @Override
+    public void value(byte[] value) throws IOException {
+        if (value == null) {
+            nullValue();
+            return;
+        }
+        beforeValue();
+        writeTypeAndLength(MAJOR_TYPE_BYTE_STRING, value.length);
+        if (value.length > buf.length - pos) {
+            flushBuffer();
+            if (value.length > buf.length) {
+                out.write(value);
+                return;
+            }
+        }
+        System.arraycopy(value, 0, buf, pos, value.length);
+        pos += value.length;
+    }
+
+    @Override
+    public void nullValue() throws IOException {
+        beforeValue();
+        writeByte(NULL);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+
+    private void beforeValue() {
+        if (depth == 0) {
+            return;
+        }
+        if (inObject[depth - 1]) {
+            if (!nameWritten) {
+                throw new IllegalStateException("Values inside an object must be preceded by a name");
+            }
+            nameWritten = false;
+        }
+    }
+
+    private void push(boolean object) {
+        if (depth == inObject.length) {
+            boolean[] tmp = new boolean[inObject.length * 2];
+            System.arraycopy(inObject, 0, tmp, 0, inObject.length);
+            inObject = tmp;
+        }
+        inObject[depth++] = object;
+    }
+
+    private void pop(boolean object) {
+        if (depth == 0 || inObject[depth - 1] != object || nameWritten) {
+            throw new IllegalStateException("Unbalanced " + (object ? "endObject()" : "endArray()"));
+        }
+        depth--;
+    }
+
+    private void writeText(CharSequence s) throws IOException {
+        int len = s.length();
+        //The length prefix is the number of UTF-8 bytes
+        long utf8Length = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                utf8Length += 1;
+            } else if (c < 0x800) {
+                utf8Length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                utf8Length += 4;
+                i++;
+            } else {
+                utf8Length += 3;
+            }
+        }
+        writeTypeAndLength(MAJOR_TYPE_TEXT_STRING, utf8Length);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            ensureCapacity(4);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else {
+                buf[pos++] = (byte) (0xe0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    /**
+     * Writes the initial byte and the (shortest possible) argument.
+     * The argument is treated as an unsigned 64 bit value
+     */
+    private void writeTypeAndLength(int majorType, long length) throws IOException {
+        ensureCapacity(9);
+        int mt = majorType << 5;
+        if (length >= 0 && length < 24) {
+            buf[pos++] = (byte) (mt | (int) length);
+        } else if (length >= 0 && length <= 0xff) {
+            buf[pos++] = (byte) (mt | 24);
+            buf[pos++] = (byte) length;
+        } else if (length >= 0 && length <= 0xffff) {
+            buf[pos++] = (byte) (mt | 25);
+            buf[pos++] = (byte) (length >> 8);
+            buf[pos++] = (byte) length;
+        } else if (length >= 0 && length <= 0xffffffffL) {
+            buf[pos++] = (byte) (mt | 26);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (length >> shift);
+            }
+        } else {
+            buf[pos++] = (byte) (mt | 27);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (length >> shift);
+            }
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        ensureCapacity(1);
+        buf[pos++] = (byte) b;
+    }
+
+    private void ensureCapacity(int n) throws IOException {
+        if (pos + n > buf.length) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streaming JSON (RFC 4627) writer.
+ *
+ * Output is UTF-8 encoded into an internal byte buffer which is
+ * written to the OutputStream when full (or on flush/close).
+ * Binary values are written as lower case hex strings.
+ *
+ * @author sasc
+ */
+public class JSONWriter implements StructuredWriter {
+
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+
+    private final OutputStream out;
+    private final byte[] buf;
+    private int pos = 0;
+
+    //Nesting state. One entry per open object/array
+    private boolean[] inObject = new boolean[16];
+    private boolean[] hasElements = new boolean[16];
+    private int depth = 0;
+    private boolean nameWritten = false;
+
+    public JSONWriter(OutputStream out) {
+        this(out, 8192);
+    }
+
+    public JSONWriter(OutputStream out, int bufferSize) {
+        if (out == null) {
+            throw new IllegalArgumentException("Argument 'out' cannot be null");
+        }
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException("Buffer size must be at least 16: " + bufferSize);
+        }
+        this.out = out;
+        this.buf = new byte[bufferSize];
+    }
+
+    @Override
+    public void beginObject() throws IOException {
+        beforeValue();
+        push(true);
+        writeByte('{');
+    }
+
+    @Override
+    public void endObject() throws IOException {
+        pop(true);
+        writeByte('}');
+    }
+
+    @Override
+    public void beginArray() throws IOException {
+        beforeValue();
+        push(false);
+        writeByte('[');
+    }
+
+    @Override
+    public void endArray() throws IOException {
+        pop(false);
+        writeByte(']');
+    }
+
+    @Override
+    public void name(String name) throws IOException {
+        if (depth == 0 || !inObject[depth - 1] || nameWritten) {
+            throw new IllegalStateException("Name not allowed here: " + name);
+        }
+        if (hasElements[depth - 1]) {
+            writeByte(',');
+        }
+        hasElements[depth - 1] = true;
+        writeString(name);
+        writeByte(':');
+        nameWritten = true;
+    }
+
+    @Override
+    public void value(CharSequence value) throws IOException {
+        if (value == null) {
+            nullValue();
+            return;
+        }
+        beforeValue();
+        writeString(value);
+    }
+
+    @Override
+    public void value(long value) throws IOException {
+        beforeValue();
+        if (value == Long.MIN_VALUE) {
+            writeASCII("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+        ensureCapacity(20);
+        int start = pos;
+        do {
+            buf[pos++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        //Digits were written in reverse order
+        for (int i = start, j = pos - 1; i < j; i++, j--) {
+            byte tmp = buf[i];
+            buf[i] = buf[j];
+            buf[j] = tmp;
+        }
+    }
+
+    @Override
+    public void value(boolean value) throws IOException {
+        beforeValue();
+        writeBytes(value ? TRUE : FALSE);
+    }
+
+    @Override
+    public void value(byte[] value) throws IOException {
+        if (value == null) {
+            nullValue();
+            return;
+        }
+        beforeValue();
+        writeByte('"');
+        for (int i = 0; i < value.length; i++) {
+            ensureCapacity(2);
+            buf[pos++] = HEX[(value[i] >> 4) & 0x0f];
+            buf[pos++] = HEX[value[i] & 0x0f];
+        }
+        writeByte('"');
+    }
+
+    @Override
+    public void nullValue() throws IOException {
+        beforeValue();
+        writeBytes(NULL);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+
+    private void beforeValue() throws IOException {
+        if (depth == 0) {
+            return;
+        }
+        if (inObject[depth - 1]) {
+            if (!nameWritten) {
+                throw new IllegalStateException("Values inside an object must be preceded by a name");
+            }
+            nameWritten = false;
+        } else {
+            if (hasElements[depth - 1]) {
+                writeByte(',');
+            }
+            hasElements[depth - 1] = true;
+        }
+    }
+
+    private void push(boolean object) {
+        if (depth == inObject.length) {
+            inObject = resize(inObject);
+            hasElements = resize(hasElements);
+        }
+        inObject[depth] = object;
+        hasElements[depth] = false;
+        depth++;
+    }
+
+    private void pop(boolean object) {
+        if (depth == 0 || inObject[depth - 1] != object || nameWritten) {
+            throw new IllegalStateException("Unbalanced " + (object ? "endObject()" : "endArray()"));
+        }
+        depth--;
+    }
+
+    private static boolean[] resize(boolean[] array) {
+        boolean[] tmp = new boolean[array.length * 2];
+        System.arraycopy(array, 0, tmp, 0, array.length);
+        return tmp;
+    }
+
+    private void writeString(CharSequence s) throws IOException {
+        writeByte('"');
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            ensureCapacity(6);
+            if (c == '"' || c == '\\') {
+                buf[pos++] = '\\';
+                buf[pos++] = (byte) c;
+            } else if (c < 0x20) {
+                switch (c) {
+                    case '\n':
+                        buf[pos++] = '\\';
+                        buf[pos++] = 'n';
+                        break;
+                    case '\r':
+                        buf[pos++] = '\\';
+                        buf[pos++] = 'r';
+                        break;
+                    case '\t':
+                        buf[pos++] = '\\';
+                        buf[pos++] = 't';
+                        break;
+                    default:
+                        buf[pos++] = '\\';
+                        buf[pos++] = 'u';
+                        buf[pos++] = '0';
+                        buf[pos++] = '0';
+                        buf[pos++] = HEX[(c >> 4) & 0x0f];
+                        buf[pos++] = HEX[c & 0x0f];
+                }
+            } else if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else {
+                buf[pos++] = (byte) (0xe0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeASCII(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            writeByte(s.charAt(i));
+        }
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    private void writeByte(int b) throws IOException {
+        ensureCapacity(1);
+        buf[pos++] = (byte) b;
+    }
+
+    private void ensureCapacity(int n) throws IOException {
+        if (pos + n > buf.length) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+}
@@ -61,6 +61,13 @@ public class Log {
         stepNo.set(1);
     }
 
+    /**
+     * Can be used to avoid building log messages that will not be printed
+     */
+    public static boolean isEnabled(Level level) {
+        return level.getValue() >= Log.level.getValue();
+    }
+
     public static void debug(String msg) {
         logInternal("DEBUG: " + msg, Level.DEBUG);
     }
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * Event based writer for structured (machine readable) output.
+ *
+ * Implementations encode each event directly to the underlying stream,
+ * so no intermediate document or String representation is built.
+ *
+ * Inside an object, every value must be preceded by a call to name(..)
+ *
+ * @author sasc
+ */
+public interface StructuredWriter extends Flushable, Closeable {
+
+    void beginObject() throws IOException;
+
+    void endObject() throws IOException;
+
+    void beginArray() throws IOException;
+
+    void endArray() throws IOException;
+
+    void name(String name) throws IOException;
+
+    void value(CharSequence value) throws IOException;
+
+    void value(long value) throws IOException;
+
+    void value(boolean value) throws IOException;
+
+    /**
+     * Binary values are written as byte strings where the format supports it,
+     * otherwise as (lower case) hex strings
+     */
+    void value(byte[] value) throws IOException;
+
+    void nullValue() throws IOException;
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generator for the terminal Unpredictable Number (9F37) and other random data
+ * sent to the card (DOL data, challenges).
+ *
+ * Each thread has its own SecureRandom, created and seeded once (on first use),
+ * so generating a number does not construct or reseed a SecureRandom, and threads
+ * do not contend on a shared instance.
+ *
+ * For tests and for replaying a captured session, a deterministic mode can be
+ * enabled with useDeterministicSeed(seed). All threads then share one seeded
+ * generator, and the same seed gives the same sequence of numbers.
+ *
+ * The number of calls and the generation latency are recorded.
+ *
+ * @author sasc
+ */
+public class UnpredictableNumberGenerator {
+
+    private static final ThreadLocal<SecureRandom> threadRandom = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
+    private static volatile Random deterministicRandom = null;
+
+    private static final AtomicLong count = new AtomicLong();
+    private static final AtomicLong totalNanos = new AtomicLong();
+    private static final AtomicLong maxNanos = new AtomicLong();
+
+    private UnpredictableNumberGenerator() {
+        //Static methods only
+    }
+
+    /**
+     * @return a new 4 byte Unpredictable Number
+     */
+    public static byte[] nextUnpredictableNumber() {
+        return generate(4);
+    }
+
+    public static byte[] generate(int numBytes) {
+        byte[] data = new byte[numBytes];
+        nextBytes(data, 0, numBytes);
+        return data;
+    }
+
+    /**
+     * Fills dst[offset .. offset+length-1] with random bytes (eg directly into a DOL response)
+     */
+    public static void nextBytes(byte[] dst, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > dst.length) {
+            throw new IndexOutOfBoundsException("Invalid offset/length: " + offset + "/" + length + " (array length " + dst.length + ")");
+        }
+        long start = System.nanoTime();
+        Random deterministic = deterministicRandom;
+        if (deterministic != null) {
+            synchronized (deterministic) {
+                fill(deterministic, dst, offset, length);
+            }
+        } else {
+            fill(threadRandom.get(), dst, offset, length);
+        }
+        record(System.nanoTime() - start);
+    }
+
+    /**
+     * Replaces the SecureRandom generators with a single generator seeded with the given seed.
+     * For tests and replay only: the numbers are NOT unpredictable
+     */
+    public static void useDeterministicSeed(long seed) {
+        deterministicRandom = new Random(seed);
+        Log.debug("UnpredictableNumberGenerator: deterministic mode enabled");
+    }
+
+    /**
+     * Switches back to the (per thread) SecureRandom generators
+     */
+    public static void useSecureRandom() {
+        deterministicRandom = null;
+    }
+
+    public static boolean isDeterministic() {
+        return deterministicRandom != null;
+    }
+
+    /**
+     * @return the number of calls since the start (or the last resetMetrics())
+     */
+    public static long getCount() {
+        return count.get();
+    }
+
+    public static long getAverageLatencyNanos() {
+        long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / n;
+    }
+
+    public static long getMaxLatencyNanos() {
+        return maxNanos.get();
+    }
+
+    public static void resetMetrics() {
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    private static void fill(Random random, byte[] dst, int offset, int length) {
+        int end = offset + length;
+        while (offset < end) {
+            int rnd = random.nextInt();
+            for (int i = 0; i < 4 && offset < end; i++) {
+                dst[offset++] = (byte) rnd;
+                rnd >>>= 8;
+            }
+        }
+    }
+
+    private static void record(long nanos) {
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+}
@@ -19,7 +19,6 @@ import java.io.*;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
 import java.util.BitSet;
 import java.util.Date;
@@ -105,36 +104,18 @@ public class Util {
     }
 
     public static byte[] performRSA(byte[] dataBytes, byte[] expBytes, byte[] modBytes) {
+        //Positive signum, to avoid that the most significant bit is interpreted as the "signed" bit
+        return performRSA(dataBytes, new BigInteger(1, expBytes), new BigInteger(1, modBytes));
+    }
 
-        int inBytesLength = dataBytes.length;
-
-        if (expBytes[0] >= (byte) 0x80) {
-            //Prepend 0x00 to modulus
-            byte[] tmp = new byte[expBytes.length + 1];
-            tmp[0] = (byte) 0x00;
-            System.arraycopy(expBytes, 0, tmp, 1, expBytes.length);
-            expBytes = tmp;
-        }
-
-        if (modBytes[0] >= (byte) 0x80) {
-            //Prepend 0x00 to modulus
-            byte[] tmp = new byte[modBytes.length + 1];
-            tmp[0] = (byte) 0x00;
-            System.arraycopy(modBytes, 0, tmp, 1, modBytes.length);
-            modBytes = tmp;
-        }
+    /**
+     * RSA with a precomputed exponent and modulus (eg a CA Public Key that is used many times)
+     */
+    public static byte[] performRSA(byte[] dataBytes, BigInteger exp, BigInteger mod) {
 
-        if (dataBytes[0] >= (byte) 0x80) {
-            //Prepend 0x00 to signed data to avoid that the most significant bit is interpreted as the "signed" bit
-            byte[] tmp = new byte[dataBytes.length + 1];
-            tmp[0] = (byte) 0x00;
-            System.arraycopy(dataBytes, 0, tmp, 1, dataBytes.length);
-            dataBytes = tmp;
-        }
+        int inBytesLength = dataBytes.length;
 
-        BigInteger exp = new BigInteger(expBytes);
-        BigInteger mod = new BigInteger(modBytes);
-        BigInteger data = new BigInteger(dataBytes);
+        BigInteger data = new BigInteger(1, dataBytes);
 
         byte[] result = data.modPow(exp, mod).toByteArray();
 
@@ -443,6 +424,30 @@ public class Util {
         return binaryHexCodedDecimalToInt(Util.byteArrayToHexString(bcdArray));
     }
 
+    /**
+     * This method converts a BCD (eg Amount, Authorised (Numeric)) of up to 9 bytes to a long.
+     * eg 0x000000012345 = 12345 (long)
+     * @param bcdArray
+     */
+    public static long binaryCodedDecimalToLong(byte[] bcdArray) {
+        if (bcdArray == null) {
+            throw new IllegalArgumentException("Param bcdArray cannot be null");
+        }
+        if (bcdArray.length > 9) {
+            throw new IllegalArgumentException("Param bcdArray cannot be longer than 9 bytes: " + bcdArray.length);
+        }
+        long value = 0;
+        for (byte b : bcdArray) {
+            int high = (b >>> 4) & 0x0F;
+            int low = b & 0x0F;
+            if (high > 9 || low > 9) {
+                throw new IllegalArgumentException("Param bcdArray must be digits only: " + Util.byteArrayToHexString(bcdArray));
+            }
+            value = value * 100 + high * 10 + low;
+        }
+        return value;
+    }
+
     /**
      * This returns a String with length = 8
      * @param val
@@ -543,12 +548,11 @@ public class Util {
         }
     }
 
+    /**
+     * @see UnpredictableNumberGenerator
+     */
     public static byte[] generateRandomBytes(int numBytes){
-        //TODO get bytes from a hardware RNG, or set seed
-        byte[] rndBytes = new byte[numBytes];
-        SecureRandom random = new SecureRandom();
-        random.nextBytes(rndBytes);
-        return rndBytes;
+        return UnpredictableNumberGenerator.generate(numBytes);
     }
     
     public static InputStream loadResource(Class cls, String path){
@@ -629,7 +633,47 @@ public class Util {
         out.write(string);
         out.close();
     }
-    
+
+    /**
+     * Replaces target with the (completely written) file newFile.
+     * The old file is renamed aside before newFile takes its place, so a crash
+     * at any point leaves the old or the new content (see recoverReplacedFile)
+     */
+    public static void replaceFile(File newFile, File target) throws IOException {
+        File backup = getBackupFile(target);
+        if (backup.exists() && !backup.delete()) {
+            throw new IOException("Unable to delete " + backup);
+        }
+        if (target.exists() && !target.renameTo(backup)) {
+            throw new IOException("Unable to rename " + target + " to " + backup);
+        }
+        if (!newFile.renameTo(target)) {
+            backup.renameTo(target);
+            throw new IOException("Unable to rename " + newFile + " to " + target);
+        }
+        //A leftover backup is deleted by the next replaceFile or recoverReplacedFile
+        backup.delete();
+    }
+
+    /**
+     * Restores the old file if a replaceFile(..) was interrupted after the old file was renamed aside
+     */
+    public static void recoverReplacedFile(File target) throws IOException {
+        File backup = getBackupFile(target);
+        if (!backup.exists()) {
+            return;
+        }
+        if (target.exists()) {
+            backup.delete();
+        } else if (!backup.renameTo(target)) {
+            throw new IOException("Unable to restore " + target + " from " + backup);
+        }
+    }
+
+    private static File getBackupFile(File target) {
+        return new File(target.getPath() + ".bak");
+    }
+
     public static Class getCallerClass(int i) {
         Class[] classContext = new SecurityManager() {
             @Override public Class[] getClassContext() {
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.security.KeyPairGenerator;
+import java.security.KeyPair;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import sasc.emv.ApplicationCryptogram;
+import sasc.emv.EMVAPDUCommands;
+import sasc.emv.EMVTags;
+import sasc.emv.ICCPublicKey;
+import sasc.emv.SignedDataException;
+import sasc.emv.SignedDynamicApplicationData;
+import sasc.iso7816.AID;
+import sasc.iso7816.BERTLV;
+import sasc.iso7816.TLVUtil;
+import sasc.terminal.CardResponse;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class CardEmulatorTest {
+
+    private static final AID AID_VISA = new AID("a1 23 45 67 89 10 10");
+    private static final byte[] SESSION_KEY = Util.fromHexString("01 23 45 67 89 AB CD EF FE DC BA 98 76 54 32 10");
+    private static final byte[] AIP = Util.fromHexString("5C 00");
+
+    private CardEmulator emulator;
+    private ICCPublicKey iccPublicKey;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair keyPair = generator.generateKeyPair();
+        byte[] modulus = Util.resizeArray(((RSAPublicKey) keyPair.getPublic()).getModulus().toByteArray(), 128);
+        iccPublicKey = new ICCPublicKey();
+        iccPublicKey.setModulus(modulus);
+        iccPublicKey.setExponent(((RSAPublicKey) keyPair.getPublic()).getPublicExponent().toByteArray());
+
+        emulator = new CardEmulator("/sdacardtransaction.xml");
+        emulator.setICCPrivateKey(AID_VISA, modulus, ((RSAPrivateKey) keyPair.getPrivate()).getPrivateExponent().toByteArray());
+        emulator.setSessionKey(AID_VISA, SESSION_KEY);
+
+        assertEquals((short) 0x9000, emulator.transmit(Util.fromHexString("00 A4 04 00 07 a1 23 45 67 89 10 10 00")).getSW());
+        assertEquals((short) 0x9000, emulator.transmit(Util.fromHexString("80 A8 00 00 02 83 00 00")).getSW());
+    }
+
+    @Test
+    public void testGetChallenge() throws Exception {
+        CardResponse response = emulator.transmit(EMVAPDUCommands.getChallenge());
+        assertEquals((short) 0x9000, response.getSW());
+        assertEquals(8, response.getData().length);
+    }
+
+    @Test
+    public void testInternalAuthenticate() throws Exception {
+        byte[] ddolData = Util.fromHexString("11 22 33 44");
+        CardResponse response = emulator.transmit(EMVAPDUCommands.internalAuthenticate(ddolData));
+        assertEquals((short) 0x9000, response.getSW());
+        BERTLV tlv = TLVUtil.parseList(response.getData()).get(0);
+        assertEquals(EMVTags.RESPONSE_MESSAGE_TEMPLATE_1, tlv.getTag());
+        assertTrue(SignedDynamicApplicationData.parseSignedData(tlv.getValueBytes(), iccPublicKey, ddolData).validate());
+        try {
+            SignedDynamicApplicationData.parseSignedData(tlv.getValueBytes(), iccPublicKey, new byte[4]).validate();
+            fail("Expected SignedDataException (wrong terminal data)");
+        } catch (SignedDataException expected) {
+        }
+    }
+
+    @Test
+    public void testGenerateAC() throws Exception {
+        byte[] cdolData = new byte[29];
+        System.arraycopy(Util.fromHexString("AA BB CC DD"), 0, cdolData, 25, 4); //Unpredictable Number
+
+        CardResponse response = emulator.transmit(EMVAPDUCommands.generateAC((byte) 0x80, cdolData));
+        assertEquals((short) 0x9000, response.getSW());
+        byte[] data = TLVUtil.parseList(response.getData()).get(0).getValueBytes();
+        assertEquals((byte) 0x80, data[0]); //ARQC
+        assertEquals(0x7A, Util.byteArrayToInt(data, 1, 2)); //ATC incremented
+        //MAC over CDOL data || AIP '5C00' || ATC '007A' (computed with OpenSSL DES)
+        assertArrayEquals(Util.fromHexString("DA 05 71 83 50 07 CA 0F"), Arrays.copyOfRange(data, 3, 11));
+        assertArrayEquals(Util.fromHexString("DA 05 71 83 50 07 CA 0F"), ApplicationCryptogram.calculate(SESSION_KEY, cdolData, AIP, 0x7A));
+
+        //Second GENERATE AC, with CDA (same transaction, same ATC)
+        response = emulator.transmit(EMVAPDUCommands.generateAC((byte) 0x50, cdolData));
+        assertEquals((short) 0x9000, response.getSW());
+        BERTLV template = TLVUtil.parseList(response.getData()).get(0);
+        assertEquals(EMVTags.RESPONSE_MESSAGE_TEMPLATE_2, template.getTag());
+        List<BERTLV> children = template.getChildren();
+        assertArrayEquals(new byte[]{0x40}, children.get(0).getValueBytes()); //TC
+        assertArrayEquals(new byte[]{0x00, 0x7A}, children.get(1).getValueBytes());
+        BERTLV sdad = children.get(children.size() - 1);
+        assertEquals(EMVTags.SIGNED_DYNAMIC_APPLICATION_DATA, sdad.getTag());
+        assertTrue(SignedDynamicApplicationData.parseSignedData(sdad.getValueBytes(), iccPublicKey, Util.fromHexString("AA BB CC DD")).validate());
+
+        //Next transaction
+        emulator.transmit(Util.fromHexString("80 A8 00 00 02 83 00 00"));
+        response = emulator.transmit(EMVAPDUCommands.generateAC((byte) 0x00, cdolData));
+        data = TLVUtil.parseList(response.getData()).get(0).getValueBytes();
+        assertEquals(0x00, data[0]); //AAC
+        assertEquals(0x7B, Util.byteArrayToInt(data, 1, 2));
+    }
+
+    @Test
+    public void testMAC() throws Exception {
+        //ISO/IEC 9797-1 Annex B data and keys: K = 0123456789ABCDEF, K' = FEDCBA9876543210
+        //(padding method 1 gives the MAC A1C72E74EA3FA9B6 of Annex B. Padding method 2 computed with OpenSSL DES)
+        byte[] data = "Now is the time for all ".getBytes("US-ASCII");
+        assertArrayEquals(Util.fromHexString("E9 08 62 30 CA 3B E7 96"), ApplicationCryptogram.calculateMAC(SESSION_KEY, data));
+
+        //Padding method 2 adds a full block if the data is a multiple of 8 bytes
+        byte[] mac1 = ApplicationCryptogram.calculateMAC(SESSION_KEY, new byte[8]);
+        byte[] mac2 = ApplicationCryptogram.calculateMAC(SESSION_KEY, new byte[7]);
+        assertEquals(8, mac1.length);
+        assertFalse(Arrays.equals(mac1, mac2));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.junit.After;
+import org.junit.Test;
+import sasc.iso7816.AID;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class CATest {
+
+    private static final byte[] MOCK_RID = Util.fromHexString("A1 23 45 67 89");
+
+    @After
+    public void tearDown() {
+        CA.initFromFile("/certificationauthorities.xml");
+    }
+
+    private static void copyResource(String name, File file) throws Exception {
+        InputStream is = Util.loadResource(CA.class, name);
+        OutputStream os = new FileOutputStream(file);
+        try {
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                os.write(buf, 0, n);
+            }
+        } finally {
+            is.close();
+            os.close();
+        }
+    }
+
+    @Test
+    public void testInitFromFile() throws Exception {
+        File file = File.createTempFile("certificationauthorities", ".xml");
+        try {
+            copyResource("/certificationauthorities_mock.xml", file);
+            CA.initFromFile(file);
+            CA ca = CA.getCA(MOCK_RID);
+            assertNotNull(ca);
+            assertSame(ca.getPublicKey(7), CA.getPublicKey(MOCK_RID, 7));
+            assertNull(CA.getPublicKey(MOCK_RID, 8));
+            assertEquals(1, CA.getCAs().size());
+
+            //A file that is not valid does not replace the current CAs
+            OutputStream os = new FileOutputStream(file);
+            os.write("<CertificationAuthorities><CA RID=\"A1 23\"/></CertificationAuthorities>".getBytes("UTF-8"));
+            os.close();
+            try {
+                CA.initFromFile(file);
+                fail("Expected exception");
+            } catch (RuntimeException expected) {
+            }
+            assertSame(ca, CA.getCA(MOCK_RID));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testAddFromXmlFile() {
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        CA ca = CA.getCA(MOCK_RID);
+        int numCAs = CA.getCAs().size();
+        CA.addFromXmlFile("/certificationauthorities_test.xml");
+        assertTrue(CA.getCAs().size() >= numCAs);
+        //CAs already handed out are not modified
+        assertEquals(1, ca.getCAPublicKeys().size());
+        assertNotNull(CA.getPublicKey(MOCK_RID, 7));
+    }
+
+    @Test
+    public void testIndexOutOfRange() {
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        //Index not set (-1), or not a one byte index
+        assertNull(CA.getPublicKey(MOCK_RID, -1));
+        assertNull(CA.getPublicKey(MOCK_RID, 0x107));
+        assertNotNull(CA.getPublicKey(MOCK_RID, 7));
+        //Deprecated API
+        assertSame(CA.getCA(MOCK_RID), CA.getCA(new AID(Util.byteArrayToHexString(MOCK_RID) + "1010")));
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+import sasc.smartcard.common.Context;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class CaptureAnalyzerTest {
+
+    @After
+    public void tearDown() {
+        CA.initFromFile("/certificationauthorities.xml");
+    }
+
+    private static long count(Map<String, long[]> map, String key) {
+        long[] counter = map.get(key);
+        return counter != null ? counter[0] : 0;
+    }
+
+    @Test
+    public void testSDACapture() throws Exception {
+        Context.init();
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        CaptureAnalyzer.Statistics stats = new CaptureAnalyzer.Statistics();
+        InputStream is = CaptureAnalyzerTest.class.getResourceAsStream("/sdacardtransaction.xml");
+        try {
+            CaptureAnalyzer.analyzeCapture(is, stats);
+        } finally {
+            is.close();
+        }
+        assertEquals(1, stats.getNumCaptures());
+        assertEquals(2, stats.getNumApplications());
+        assertEquals(1, count(stats.getODAMethods(), "SDA"));
+        assertEquals(1, count(stats.getODAMethods(), "None"));
+        //The static data to be authenticated is built from the AFL records
+        assertEquals(1, count(stats.getCertificateResults(), "Issuer certificate valid"));
+        assertEquals(1, count(stats.getCertificateResults(), "Signed Static Application Data valid"));
+        assertEquals(0, count(stats.getCertificateResults(), "Signed Static Application Data invalid"));
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        Context.init();
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        File dir = File.createTempFile("captures", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        try {
+            for (String name : new String[]{"a.xml", "b.xml"}) {
+                copyResource("/sdacardtransaction.xml", new File(dir, name));
+            }
+            OutputStream os = new FileOutputStream(new File(dir, "broken.xml"));
+            os.write("<EMVCard><Applications>".getBytes("UTF-8"));
+            os.close();
+
+            CaptureAnalyzer analyzer = new CaptureAnalyzer(2);
+            analyzer.setKeepApplications(true);
+            CaptureAnalyzer.Statistics stats = analyzer.analyze(Collections.singletonList(dir));
+            assertEquals(2, stats.getNumCaptures());
+            assertEquals(1, stats.getNumFailedCaptures());
+            assertEquals(4, stats.getNumApplications());
+            assertEquals(4, analyzer.getApplications().size());
+            assertEquals(2, count(stats.getODAMethods(), "SDA"));
+            assertEquals(2, count(stats.getCertificateResults(), "Signed Static Application Data valid"));
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testCompactApplications() throws Exception {
+        Context.init();
+        List<CompactEMVApplication> compactApps = new ArrayList<CompactEMVApplication>();
+        InputStream is = CaptureAnalyzerTest.class.getResourceAsStream("/sdacardtransaction.xml");
+        List<EMVApplication> apps;
+        try {
+            apps = CaptureAnalyzer.readCapture(is, compactApps);
+        } finally {
+            is.close();
+        }
+        assertEquals(2, apps.size());
+        assertEquals(apps.size(), compactApps.size());
+        for (int i = 0; i < apps.size(); i++) {
+            EMVApplication app = apps.get(i);
+            CompactEMVApplication compact = compactApps.get(i);
+            assertEquals(app.getAID(), compact.getAID());
+            assertEquals(app.getLabel(), compact.getLabel());
+            assertEquals(app.getPAN().getPanAsString(), compact.getPAN().getPanAsString());
+            assertEquals(app.getPANSequenceNumber(), compact.getPANSequenceNumber());
+            assertEquals(app.getExpirationDate(), compact.getExpirationDate());
+            assertArrayEquals(app.getApplicationInterchangeProfile().getBytes(), compact.getApplicationInterchangeProfile().getBytes());
+
+            //Round trip
+            EMVApplication inflated = compact.toEMVApplication();
+            assertEquals(app.getAID(), inflated.getAID());
+            assertEquals(app.getLabel(), inflated.getLabel());
+            assertEquals(app.getPAN().getPanAsString(), inflated.getPAN().getPanAsString());
+            assertEquals(app.getExpirationDate(), inflated.getExpirationDate());
+            assertEquals(app.getCardholderName(), inflated.getCardholderName());
+            assertArrayEquals(app.getApplicationInterchangeProfile().getBytes(), inflated.getApplicationInterchangeProfile().getBytes());
+            assertEquals(app.getCVMList() != null, inflated.getCVMList() != null);
+            assertEquals(app.getIssuerPublicKeyCertificate() != null, inflated.getIssuerPublicKeyCertificate() != null);
+        }
+    }
+
+    private static void copyResource(String name, File file) throws Exception {
+        InputStream is = CaptureAnalyzerTest.class.getResourceAsStream(name);
+        OutputStream os = new FileOutputStream(file);
+        try {
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                os.write(buf, 0, n);
+            }
+        } finally {
+            is.close();
+            os.close();
+        }
+    }
+}
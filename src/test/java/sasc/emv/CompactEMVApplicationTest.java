@@ -0,0 +1,78 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import org.junit.Test;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class CompactEMVApplicationTest {
+
+    //SELECT response: AID A0000000031010, label "VISA", priority 01, PDOL 9F1A02
+    private static final String FCI = "6F 1D 84 07 A0 00 00 00 03 10 10 A5 12 50 04 56 49 53 41 87 01 01 9F 38 03 9F 1A 02 BF 0C 00";
+    //GPO response format 1: AIP 5C00, AFL 08010100
+    private static final String GPO = "80 06 5C 00 08 01 01 00";
+    //Record: PAN, expiration date, PAN sequence number, service code, cardholder name
+    private static final String RECORD = "70 25 5A 08 47 61 73 90 01 01 00 10 5F 24 03 25 12 31 5F 34 01 01 5F 30 02 02 01 5F 20 09 54 45 53 54 2F 43 41 52 44";
+    //GET DATA ATC
+    private static final String ATC = "9F 36 02 00 2A";
+
+    private CompactEMVApplication build() {
+        return new CompactEMVApplication.Builder()
+                .add(Util.fromHexString(FCI))
+                .add(Util.fromHexString(GPO))
+                .add(Util.fromHexString(RECORD))
+                .add(Util.fromHexString(ATC))
+                .build();
+    }
+
+    @Test
+    public void testGetters() {
+        CompactEMVApplication app = build();
+        assertEquals(12, app.size());
+        assertEquals("a0000000031010", Util.byteArrayToHexString(app.getAID().getAIDBytes()).toLowerCase());
+        assertEquals("VISA", app.getLabel());
+        assertEquals("4761739001010010", app.getPAN().getPanAsString());
+        assertEquals(1, app.getPANSequenceNumber());
+        assertEquals("TEST/CARD", app.getCardholderName());
+        assertEquals("201", app.getServiceCode().getServiceCodeAsString());
+        assertEquals(42, app.getATC());
+        assertEquals(-1, app.getPINTryCounter());
+        assertNull(app.getPreferredName());
+        assertArrayEquals(Util.fromHexString("08 01 01 00"), app.getValue(EMVTags.APPLICATION_FILE_LOCATOR));
+        assertEquals(EMVApplication.toDate(Util.fromHexString("25 12 31")), app.getExpirationDate());
+    }
+
+    @Test
+    public void testToEMVApplication() {
+        CompactEMVApplication compact = build();
+        EMVApplication app = compact.toEMVApplication();
+        assertEquals(compact.getAID(), app.getAID());
+        assertEquals("VISA", app.getLabel());
+        assertEquals("4761739001010010", app.getPAN().getPanAsString());
+        assertEquals(1, app.getPANSequenceNumber());
+        assertEquals(42, app.getATC());
+        assertEquals(compact.getExpirationDate(), app.getExpirationDate());
+        assertNotNull(app.getPDOL());
+        assertNotNull(app.getApplicationInterchangeProfile());
+        assertTrue(app.getUnknownRecords().isEmpty());
+        assertTrue(app.getUnprocessedRecords().isEmpty());
+    }
+}
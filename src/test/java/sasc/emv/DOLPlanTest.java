@@ -0,0 +1,90 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.util.Properties;
+import org.junit.Test;
+import sasc.iso7816.Tag;
+import sasc.iso7816.TagImpl;
+import sasc.iso7816.TagValueType;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class DOLPlanTest {
+
+    @Test
+    public void testProfileLookup() {
+        Properties defaults = new Properties();
+        defaults.setProperty("9f1a", "08 26");
+        defaults.setProperty("9f35", "14");
+        Properties runtime = new Properties();
+        runtime.setProperty("9f35", "22");
+        TerminalProfile profile = TerminalProfile.fromProperties(defaults, runtime);
+
+        int terminalType = TerminalProfile.packTag(Util.fromHexString("9f35"));
+        assertArrayEquals(Util.fromHexString("14"), profile.getDefaultValue(terminalType));
+        assertArrayEquals(Util.fromHexString("22"), profile.getRuntimeValue(terminalType));
+        assertNull(profile.getRuntimeValue(TerminalProfile.packTag(Util.fromHexString("9f1a"))));
+        //Same low bytes, different tag length
+        assertNull(profile.getDefaultValue(TerminalProfile.packTag(Util.fromHexString("00 9f 35"))));
+        assertEquals(-1, TerminalProfile.packTag(Util.fromHexString("df 81 81 01")));
+
+        //More values than the initial capacity
+        TerminalProfile large = new TerminalProfile();
+        for (int i = 0; i < 500; i++) {
+            large.setRuntimeValue(tag(String.format("df81%02x", i & 0x7f)), new byte[]{(byte) i});
+            large.setRuntimeValue(tag(String.format("9f%02x", i & 0x7f)), new byte[]{(byte) i});
+        }
+        for (int i = 372; i < 500; i++) {
+            assertArrayEquals(new byte[]{(byte) i}, large.getRuntimeValue(TerminalProfile.packTag(Util.fromHexString(String.format("df81%02x", i & 0x7f)))));
+            assertArrayEquals(new byte[]{(byte) i}, large.getRuntimeValue(TerminalProfile.packTag(Util.fromHexString(String.format("9f%02x", i & 0x7f)))));
+        }
+    }
+
+    @Test
+    public void testBuildAndCache() {
+        Properties defaults = new Properties();
+        defaults.setProperty("9f35", "14");
+        defaults.setProperty("9f02", "00 00 00 00 00 00");
+        TerminalProfile profile = TerminalProfile.fromProperties(defaults, new Properties());
+
+        //Amount, Authorised, Terminal Type, Unknown tag
+        byte[] dol = Util.fromHexString("9f 02 06 9f 35 01 df 7f 02");
+        DOLPlan plan = DOLPlan.forDOL(dol, profile);
+        assertEquals(9, plan.getLength());
+        assertArrayEquals(Util.fromHexString("00 00 00 00 00 00 14 00 00"), plan.build(null));
+
+        //Same DOL encoding from another card
+        assertSame(plan, DOLPlan.forDOL(Util.fromHexString("9f 02 06 9f 35 01 df 7f 02"), profile));
+        assertSame(plan, new DOL(DOL.Type.CDOL1, dol).getPlan(profile));
+
+        //A changed profile invalidates the plan
+        profile.setRuntimeValue(EMVTags.AMOUNT_AUTHORISED_NUMERIC, Util.fromHexString("00 00 00 00 10 00"));
+        assertFalse(plan.isValidFor(profile));
+        DOLPlan recompiled = DOLPlan.forDOL(dol, profile);
+        assertNotSame(plan, recompiled);
+        assertArrayEquals(Util.fromHexString("00 00 00 00 10 00 14 00 00"), recompiled.build(null));
+        assertSame(recompiled, DOLPlan.forDOL(dol, profile));
+    }
+
+    private static Tag tag(String id) {
+        return new TagImpl(id, TagValueType.BINARY, "Test", "Test");
+    }
+}
@@ -23,9 +23,12 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
+import sasc.iso7816.APDUCommandBuilder;
+import sasc.iso7816.TLVResponse;
 import sasc.iso7816.TLVUtil;
 import sasc.terminal.CardConnection;
 import sasc.terminal.CardResponse;
+import sasc.terminal.ScriptedCardConnection;
 import sasc.util.Util;
 
 /**
@@ -266,4 +269,52 @@ public class EMVUtilTest {
 //        // TODO review the generated test code and remove the default call to fail.
 //        fail("The test case is a prototype.");
 //    }
+
+    @Test
+    public void testCheckAndAddLeIfMissing() {
+        assertEquals("00a4040002a00000", Util.byteArrayToHexString(EMVUtil.checkAndAddLeIfMissing(Util.fromHexString("00a4040002a000"))).toLowerCase());
+        //Extended length (case 3e -> case 4e)
+        byte[] data = new byte[300];
+        byte[] cmd = APDUCommandBuilder.build((byte) 0x00, (byte) 0xDA, (byte) 0x01, (byte) 0x02, data, 0);
+        assertEquals(7 + 300, cmd.length);
+        byte[] cmdWithLe = EMVUtil.checkAndAddLeIfMissing(cmd);
+        assertEquals(7 + 300 + 2, cmdWithLe.length);
+        assertEquals(300, APDUCommandBuilder.getNc(cmdWithLe));
+        assertEquals(65536, APDUCommandBuilder.getNe(cmdWithLe));
+    }
+
+    @Test
+    public void testSendCmdChainedResponse() throws Exception {
+        ScriptedCardConnection terminal = new ScriptedCardConnection("6f 08 84 02 a0 00 61 05", "a5 03 88 01 01 90 00");
+        TLVResponse response = EMVUtil.sendCmdNoParse(terminal, "00 a4 04 00 02 a0 00");
+        assertEquals(2, terminal.getCommands().size());
+        assertEquals((short) 0x9000, response.getSW());
+        assertArrayEquals(Util.fromHexString("6f 08 84 02 a0 00 a5 03 88 01 01"), response.getData());
+    }
+
+    @Test
+    public void testProprietaryCase4() throws Exception {
+        //Lc='00' followed by Le. Not an ISO 7816-4 case (neither short nor extended), but sent as is
+        byte[] cmd = Util.fromHexString("80 CA 9F 7F 00 00");
+        try {
+            APDUCommandBuilder.getNe(cmd);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertArrayEquals(cmd, EMVUtil.checkAndAddLeIfMissing(cmd));
+
+        ScriptedCardConnection terminal = new ScriptedCardConnection("6C 03", "01 02 03 90 00");
+        TLVResponse response = EMVUtil.sendCmdNoParse(terminal, cmd);
+        assertEquals((short) 0x9000, response.getSW());
+        assertArrayEquals(Util.fromHexString("01 02 03"), response.getData());
+        assertArrayEquals(cmd, terminal.getCommands().get(0));
+        //Re-issued with the last byte as Le
+        assertArrayEquals(Util.fromHexString("80 CA 9F 7F 00 03"), terminal.getCommands().get(1));
+
+        //Proprietary case 4 with data, sent from a buffer range
+        byte[] buffer = Util.fromHexString("FF FF 90 5A 00 00 03 01 02 03 00 FF");
+        terminal = new ScriptedCardConnection("90 00");
+        EMVUtil.sendCmdNoParse(terminal, buffer, 2, 9);
+        assertArrayEquals(Util.fromHexString("90 5A 00 00 03 01 02 03 00"), terminal.getCommands().get(0));
+    }
 }
@@ -79,7 +79,7 @@ public class SASCIntegrationTest {
         Log.setPrintWriter(new PrintWriter(dumpWriter));
 
         sasc.smartcard.common.Context.init();
-        CA.initFromFile("/certificationAuthorities_mock.xml");
+        CA.initFromFile("/certificationauthorities_mock.xml");
         
         EMVTerminal.setPinCallbackHandler(new CallbackHandler(){
 
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class SWDescriptorTest {
+
+    @Test
+    public void testSuccess() {
+        SWDescriptor descriptor = SWDescriptor.get((short) 0x9000);
+        assertTrue(descriptor.isSuccess());
+        assertSame(SW.SUCCESS, descriptor.getSW());
+        assertSame(descriptor, SWDescriptor.get((byte) 0x90, (byte) 0x00));
+        //Sign extended bytes, as stored by the scanner
+        assertSame(descriptor, SWDescriptor.get((int) (byte) 0x90, 0x00));
+    }
+
+    @Test
+    public void testResponseBytesAvailable() {
+        for (int sw2 = 0; sw2 < 256; sw2++) {
+            assertEquals(SWDescriptor.Category.RESPONSE_BYTES_AVAILABLE, SWDescriptor.get(0x61, sw2).getCategory());
+        }
+    }
+
+    @Test
+    public void testExactLength() {
+        assertEquals(SWDescriptor.Category.EXACT_LENGTH, SWDescriptor.get((short) 0x6C00).getCategory());
+        assertEquals(SWDescriptor.Category.EXACT_LENGTH, SWDescriptor.get((short) 0x6C1A).getCategory());
+        assertEquals(SWDescriptor.Category.WRONG_LENGTH, SWDescriptor.get((short) 0x6700).getCategory());
+        //'67XX' other than '6700' is a generic error
+        assertEquals(SWDescriptor.Category.ERROR, SWDescriptor.get((short) 0x6701).getCategory());
+    }
+
+    @Test
+    public void testWarnings() {
+        assertEquals(SWDescriptor.Category.WARNING, SWDescriptor.get((short) 0x6200).getCategory());
+        assertEquals(SWDescriptor.Category.WARNING, SWDescriptor.get((short) 0x6282).getCategory());
+        assertEquals("End of file or record reached before reading Ne bytes", SWDescriptor.get((short) 0x6282).getDescription());
+        assertSame(SW.SELECTED_FILE_INVALIDATED, SWDescriptor.get((short) 0x6283).getSW());
+        assertEquals(SWDescriptor.Category.WARNING, SWDescriptor.get((short) 0x6283).getCategory());
+        assertEquals(SWDescriptor.Category.WARNING, SWDescriptor.get((short) 0x6300).getCategory());
+        assertEquals(SWDescriptor.Category.WARNING, SWDescriptor.get((short) 0x6381).getCategory());
+
+        SWDescriptor counter = SWDescriptor.get((short) 0x63C2);
+        assertEquals(SWDescriptor.Category.RETRY_COUNTER, counter.getCategory());
+        assertEquals(2, counter.getRetryCount());
+        assertEquals(-1, SWDescriptor.get((short) 0x6381).getRetryCount());
+    }
+
+    @Test
+    public void testErrorsAndUnknown() {
+        assertEquals(SWDescriptor.Category.ERROR, SWDescriptor.get((short) 0x6A82).getCategory());
+        assertSame(SW.FILE_OR_APPLICATION_NOT_FOUND, SWDescriptor.get((short) 0x6A82).getSW());
+        //Generic error, no SW constant
+        assertEquals(SWDescriptor.Category.ERROR, SWDescriptor.get((short) 0x6A8F).getCategory());
+        assertNull(SWDescriptor.get((short) 0x6A8F).getSW());
+
+        assertEquals(SWDescriptor.Category.PROPRIETARY, SWDescriptor.get((short) 0x9001).getCategory());
+        assertEquals(SWDescriptor.Category.PROPRIETARY, SWDescriptor.get((short) 0x9F10).getCategory());
+        assertEquals("", SWDescriptor.get((short) 0x9F10).getDescription());
+
+        assertEquals(SWDescriptor.Category.INVALID, SWDescriptor.get((short) 0x6000).getCategory());
+        assertEquals(SWDescriptor.Category.INVALID, SWDescriptor.get((short) 0x0000).getCategory());
+        assertEquals(SWDescriptor.Category.INVALID, SWDescriptor.get((short) 0xA000).getCategory());
+        assertFalse(SWDescriptor.get((short) 0xA000).isSuccess());
+    }
+}
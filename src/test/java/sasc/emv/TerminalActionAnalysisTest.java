@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import org.junit.Test;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class TerminalActionAnalysisTest {
+
+    @Test
+    public void testTVRPacking() {
+        TerminalVerificationResults tvr = new TerminalVerificationResults(Util.fromHexString("80 00 04 80 00"));
+        assertEquals(0x8000048000L, tvr.getValue());
+        assertTrue(tvr.offlineDataAuthenticationWasNotPerformed());
+        assertTrue(tvr.onlinePINEntered());
+        assertTrue(tvr.transactionExceedsFloorLimit());
+        assertFalse(tvr.sdaFailed());
+
+        tvr.setOfflineDataAuthenticationWasNotPerformed(false);
+        tvr.setScriptProcessingFailedAfterFinal_GENERATE_AC(true);
+        assertArrayEquals(Util.fromHexString("00 00 04 80 10"), tvr.toByteArray());
+        tvr.reset();
+        assertArrayEquals(new byte[5], tvr.toByteArray());
+    }
+
+    @Test
+    public void testDecide() {
+        //Typical Visa IACs
+        byte[] iacDenial = Util.fromHexString("00 10 00 00 00");  //Requested service not allowed
+        byte[] iacOnline = Util.fromHexString("F0 40 00 88 00");
+        byte[] iacDefault = Util.fromHexString("F0 40 00 80 00");
+        TerminalActionAnalysis taa = new TerminalActionAnalysis(iacDenial, iacOnline, iacDefault, null, null, null);
+
+        TerminalVerificationResults tvr = new TerminalVerificationResults();
+        assertEquals(TerminalActionAnalysis.TC, taa.decide(tvr.getValue(), true));
+        assertEquals(TerminalActionAnalysis.TC, taa.decide(tvr.getValue(), false));
+
+        tvr.setTransactionExceedsFloorLimit(true);
+        assertEquals(TerminalActionAnalysis.ARQC, taa.decide(tvr.getValue(), true));
+        assertEquals(TerminalActionAnalysis.AAC, taa.decide(tvr.getValue(), false));
+        assertEquals(TerminalActionAnalysis.AAC, taa.decideUnableToGoOnline(tvr.getValue()));
+
+        //Merchant forced online: in IAC-Online, but not in IAC-Default
+        tvr.reset();
+        tvr.setMerchantForcedTransactionOnline(true);
+        assertEquals(TerminalActionAnalysis.ARQC, taa.decide(tvr.getValue(), true));
+        assertEquals(TerminalActionAnalysis.TC, taa.decideUnableToGoOnline(tvr.getValue()));
+
+        tvr.setRequestedServiceNotAllowedForCardProduct(true);
+        assertEquals(TerminalActionAnalysis.AAC, taa.decide(tvr.getValue(), true));
+
+        //TAC-Denial is combined with the IAC-Denial
+        tvr.reset();
+        tvr.setNewCard(true);
+        assertEquals(TerminalActionAnalysis.TC, taa.decide(tvr.getValue(), true));
+        taa = new TerminalActionAnalysis(iacDenial, iacOnline, iacDefault, Util.fromHexString("00 08 00 00 00"), null, null);
+        assertEquals(TerminalActionAnalysis.AAC, taa.decide(tvr.getValue(), true));
+    }
+
+    @Test
+    public void testMissingIssuerActionCodes() {
+        //Missing IAC-Online and IAC-Default: all bits 1
+        TerminalActionAnalysis taa = new TerminalActionAnalysis(null, null, null, null, null, null);
+        assertEquals(TerminalActionAnalysis.TC, taa.decide(0, true));
+        assertEquals(TerminalActionAnalysis.ARQC, taa.decide(0x0000000010L, true));
+        assertEquals(TerminalActionAnalysis.AAC, taa.decide(0x0000000010L, false));
+    }
+
+    @Test
+    public void testReferenceControlParameter() {
+        assertEquals((byte) 0x50, TerminalActionAnalysis.getReferenceControlParameter(TerminalActionAnalysis.TC, true));
+        assertEquals((byte) 0x80, TerminalActionAnalysis.getReferenceControlParameter(TerminalActionAnalysis.ARQC, false));
+        assertEquals("ARQC", TerminalActionAnalysis.getDecisionName((byte) 0x90));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class TerminalExceptionFileTest {
+
+    @Test
+    public void testLookupDeltaAndCompact() throws Exception {
+        File file = File.createTempFile("tef", ".bin");
+        File deltaFile = new File(file.getPath() + ".delta");
+        try {
+            List<byte[]> entries = new ArrayList<byte[]>();
+            entries.add(TerminalExceptionFile.encodeEntry("4111111111111111", 1));
+            entries.add(TerminalExceptionFile.encodeEntry("5500000000000004", TerminalExceptionFile.ANY_PAN_SEQUENCE_NUMBER));
+            TerminalExceptionFile.create(file, entries);
+
+            TerminalExceptionFile tef = TerminalExceptionFile.open(file);
+            assertTrue(tef.contains("4111111111111111", 1));
+            assertFalse(tef.contains("4111111111111111", 2));
+            assertTrue(tef.contains("4111111111111111", -1));
+            assertTrue(tef.contains("5500000000000004", 7));
+            assertFalse(tef.contains("4000000000000002", 0));
+
+            tef.add(TerminalExceptionFile.encodeEntry("4000000000000002", 0));
+            tef.remove(TerminalExceptionFile.encodeEntry("4111111111111111", 1));
+            assertTrue(tef.contains("4000000000000002", 0));
+            assertFalse(tef.contains("4111111111111111", 1));
+            assertEquals(2, tef.size());
+            tef.close();
+
+            //Deltas are replayed on open
+            tef = TerminalExceptionFile.open(file);
+            assertTrue(tef.contains("4000000000000002", 0));
+            assertFalse(tef.contains("4111111111111111", 1));
+
+            tef.compact();
+            assertFalse(deltaFile.exists());
+            assertEquals(2 * 11 + 8, file.length());
+            assertTrue(tef.contains("4000000000000002", 0));
+            assertTrue(tef.contains("5500000000000004", 1));
+            assertFalse(tef.contains("4111111111111111", 1));
+            tef.close();
+        } finally {
+            deltaFile.delete();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testTruncatedDeltaRecord() throws Exception {
+        File file = File.createTempFile("tef", ".bin");
+        File deltaFile = new File(file.getPath() + ".delta");
+        try {
+            TerminalExceptionFile.create(file, new ArrayList<byte[]>());
+            TerminalExceptionFile tef = TerminalExceptionFile.open(file);
+            tef.add(TerminalExceptionFile.encodeEntry("4000000000000002", 0));
+            tef.close();
+            //Power loss while appending the next record
+            FileOutputStream fos = new FileOutputStream(deltaFile, true);
+            fos.write(new byte[]{'A', 0x41, 0x11});
+            fos.close();
+
+            tef = TerminalExceptionFile.open(file);
+            assertEquals(12, deltaFile.length());
+            tef.add(TerminalExceptionFile.encodeEntry("5500000000000004", 1));
+            tef.close();
+
+            tef = TerminalExceptionFile.open(file);
+            assertTrue(tef.contains("4000000000000002", 0));
+            assertTrue(tef.contains("5500000000000004", 1));
+            assertEquals(2, tef.size());
+            tef.close();
+        } finally {
+            deltaFile.delete();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testInterruptedReplace() throws Exception {
+        File file = File.createTempFile("tef", ".bin");
+        File backup = new File(file.getPath() + ".bak");
+        try {
+            List<byte[]> entries = new ArrayList<byte[]>();
+            entries.add(TerminalExceptionFile.encodeEntry("4111111111111111", 1));
+            TerminalExceptionFile.create(file, entries);
+            //Replacing an existing file
+            entries.add(TerminalExceptionFile.encodeEntry("5500000000000004", 2));
+            TerminalExceptionFile.create(file, entries);
+            assertFalse(backup.exists());
+
+            //Crash after the old file was renamed aside, before the new file took its place
+            assertTrue(file.renameTo(backup));
+            TerminalExceptionFile tef = TerminalExceptionFile.open(file);
+            assertTrue(tef.contains("5500000000000004", 2));
+            assertFalse(backup.exists());
+
+            //Lookups see the deltas added after the snapshot was taken
+            tef.add(TerminalExceptionFile.encodeEntry("4000000000000002", 3));
+            assertTrue(tef.contains("4000000000000002", -1));
+            assertTrue(tef.contains("4000000000000002", 3));
+            assertFalse(tef.contains("4000000000000002", 4));
+            tef.close();
+        } finally {
+            new File(file.getPath() + ".delta").delete();
+            backup.delete();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testManyEntries() throws Exception {
+        File file = File.createTempFile("tef", ".bin");
+        try {
+            List<byte[]> entries = new ArrayList<byte[]>();
+            for (int i = 0; i < 100000; i++) {
+                entries.add(TerminalExceptionFile.encodeEntry(String.valueOf(4000000000000000L + i * 7L), TerminalExceptionFile.ANY_PAN_SEQUENCE_NUMBER));
+            }
+            TerminalExceptionFile.create(file, entries);
+            TerminalExceptionFile tef = TerminalExceptionFile.open(file);
+            assertEquals(100000, tef.size());
+            for (int i = 0; i < 100000; i += 997) {
+                assertTrue(tef.contains(String.valueOf(4000000000000000L + i * 7L), 1));
+            }
+            for (int i = 0; i < 100000; i++) {
+                assertFalse(tef.contains(String.valueOf(5000000000000000L + i), 1));
+            }
+            tef.close();
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.File;
+import java.util.Date;
+import sasc.util.Util;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class TerminalTransactionStoreTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final PAN PAN_1 = new PAN("4111111111111111");
+    private static final PAN PAN_2 = new PAN("5500000000000004");
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("tts", ".bin");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRecordAndGetTotal() throws Exception {
+        long now = System.currentTimeMillis();
+        TerminalTransactionStore store = TerminalTransactionStore.open(file, 24 * HOUR);
+        try {
+            assertEquals(0, store.getTotal(PAN_1));
+            store.record(PAN_1, 1, 1000, new Date(now - HOUR));
+            store.record(PAN_1, 2, 2500, new Date(now));
+            store.record(PAN_2, -1, 700, new Date(now));
+            //Totals are per PAN, regardless of the PAN Sequence Number
+            assertEquals(3500, store.getTotal(PAN_1));
+            assertEquals(700, store.getTotal(PAN_2));
+            assertEquals(new Date(now), store.getLastTransactionDate(PAN_1));
+            assertEquals(3, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        long now = System.currentTimeMillis();
+        TerminalTransactionStore store = TerminalTransactionStore.open(file, 24 * HOUR);
+        try {
+            store.record(PAN_1, -1, 1000, new Date(now - 20 * HOUR));
+            store.record(PAN_1, -1, 2000, new Date(now - HOUR));
+            //Already outside the window: written, but not counted
+            store.record(PAN_1, -1, 4000, new Date(now - 30 * HOUR));
+            assertEquals(3000, store.getTotal(PAN_1));
+
+            store.expire(now + 5 * HOUR);
+            assertEquals(2000, store.getTotal(PAN_1));
+            store.expire(now + 24 * HOUR);
+            assertEquals(0, store.getTotal(PAN_1));
+            assertNull(store.getLastTransactionDate(PAN_1));
+            assertEquals(0, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testOutOfOrderDates() throws Exception {
+        long now = System.currentTimeMillis();
+        TerminalTransactionStore store = TerminalTransactionStore.open(file, 24 * HOUR);
+        try {
+            store.record(PAN_1, -1, 1000, new Date(now - HOUR));
+            //Recorded later, but older (eg the clock was set back)
+            store.record(PAN_2, -1, 2000, new Date(now - 20 * HOUR));
+            store.record(PAN_1, -1, 3000, new Date(now - 2 * HOUR));
+
+            //Only the PAN_2 entry is outside the window at this time
+            store.expire(now + 5 * HOUR);
+            assertEquals(4000, store.getTotal(PAN_1));
+            assertEquals(0, store.getTotal(PAN_2));
+            assertEquals(2, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testReopenAndCompact() throws Exception {
+        long now = System.currentTimeMillis();
+        TerminalTransactionStore store = TerminalTransactionStore.open(file, 24 * HOUR);
+        store.record(PAN_1, -1, 1000, new Date(now - HOUR));
+        store.record(PAN_2, -1, 4000, new Date(now - 30 * HOUR));
+        store.record(PAN_2, -1, 500, new Date(now));
+        store.close();
+        assertEquals(3 * 27, file.length());
+
+        store = TerminalTransactionStore.open(file, 24 * HOUR);
+        try {
+            assertEquals(1000, store.getTotal(PAN_1));
+            assertEquals(500, store.getTotal(PAN_2));
+
+            store.compact();
+            assertEquals(2 * 27, file.length());
+            assertEquals(1000, store.getTotal(PAN_1));
+
+            //Appending after compact
+            store.record(PAN_1, -1, 10, new Date(now));
+        } finally {
+            store.close();
+        }
+
+        store = TerminalTransactionStore.open(file, 24 * HOUR);
+        try {
+            assertEquals(1010, store.getTotal(PAN_1));
+            assertEquals(500, store.getTotal(PAN_2));
+            assertEquals(3, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testInterruptedCompact() throws Exception {
+        long now = System.currentTimeMillis();
+        TerminalTransactionStore store = TerminalTransactionStore.open(file, 24 * HOUR);
+        store.record(PAN_1, -1, 1000, new Date(now));
+        store.close();
+
+        //Crash after the old file was renamed aside, before the new file took its place
+        File backup = new File(file.getPath() + ".bak");
+        assertTrue(file.renameTo(backup));
+        store = TerminalTransactionStore.open(file, 24 * HOUR);
+        try {
+            assertEquals(1000, store.getTotal(PAN_1));
+            assertFalse(backup.exists());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testCIDFromGenerateACResponse() {
+        //Format 1: CID, ATC, AC
+        byte[] format1 = Util.fromHexString("80 0B 40 00 15 53 41 D1 18 4D EF 41 A2");
+        assertTrue(CryptogramInformationData.fromGenerateACResponse(format1).isTransactionCertificate());
+        //Format 2, ARQC
+        byte[] format2 = Util.fromHexString("77 0E 9F 27 01 80 9F 36 02 00 15 9F 26 02 41 A2");
+        assertFalse(CryptogramInformationData.fromGenerateACResponse(format2).isTransactionCertificate());
+        assertNull(CryptogramInformationData.fromGenerateACResponse(new byte[0]));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import org.junit.Test;
+import sasc.emv.TransactionLogDecoder.Column;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class TransactionLogBatchTest {
+
+    private static TransactionLog createLog() {
+        //Amount, CID, country, currency, date, type
+        LogFormat logFormat = new LogFormat(Util.fromHexString("9f 02 06 9f 27 01 9f 1a 02 5f 2a 02 9a 03 9c 01"));
+        TransactionLog log = new TransactionLog(logFormat);
+        log.addRecord(Util.fromHexString("00 00 00 00 38 70 40 02 50 09 78 12 04 21 00"));
+        log.addRecord(Util.fromHexString("00 00 00 01 30 00 40 02 50 09 78 12 04 07 00"));
+        log.addRecord(Util.fromHexString("00 00 00 00 61 24 40 02 50 09 78 12 03 20 00"));
+        return log;
+    }
+
+    @Test
+    public void testDecoder() {
+        TransactionLog log = createLog();
+        TransactionLogDecoder decoder = log.getDecoder();
+        byte[] record = log.getRecords().get(0).getRawData();
+        assertEquals(15, decoder.getRecordLength());
+        assertEquals(3870, decoder.getLong(Column.AMOUNT_AUTHORISED, record, 0));
+        assertEquals(0x40, decoder.getLong(Column.CRYPTOGRAM_INFORMATION_DATA, record, 0));
+        assertEquals(250, decoder.getLong(Column.TERMINAL_COUNTRY_CODE, record, 0));
+        assertEquals(978, decoder.getLong(Column.TRANSACTION_CURRENCY_CODE, record, 0));
+        assertEquals(20120421, decoder.getLong(Column.TRANSACTION_DATE, record, 0));
+        assertEquals(0, decoder.getLong(Column.TRANSACTION_TYPE, record, 0));
+        assertFalse(decoder.hasColumn(Column.ATC));
+        assertEquals(-1, decoder.getLong(Column.ATC, record, 0));
+        assertNull(decoder.getMerchantNameAndLocation(record, 0));
+    }
+
+    @Test
+    public void testDump() {
+        TransactionLog log = createLog();
+        String dump = log.getRecords().get(0).toString();
+        assertTrue(dump, dump.contains(": 3870"));
+        assertTrue(dump, dump.contains(": 40 (TC)"));
+        assertTrue(dump, dump.contains(": 978 (EUR)"));
+        assertTrue(dump, dump.contains(": 2012-04-21"));
+        assertTrue(dump, dump.contains(": 00 (Purchase"));
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        TransactionLog log = createLog();
+        TransactionLogBatch batch = new TransactionLogBatch(2);
+        int next = batch.addAll("card1", log, 0);
+        assertEquals(2, next);
+        assertTrue(batch.isFull());
+        assertEquals(13000, batch.getLong(Column.AMOUNT_AUTHORISED, 1));
+
+        StringBuilder csv = new StringBuilder();
+        batch.writeCSV(csv, true);
+        String[] lines = csv.toString().split("\r\n");
+        assertEquals(3, lines.length);
+        assertEquals("card1,3870,,978,20120421,,0,,250,64,", lines[1]);
+
+        batch.clear();
+        next = batch.addAll("card1", log, next);
+        assertEquals(3, next);
+        assertEquals(1, batch.size());
+        assertEquals(20120320, batch.getLong(Column.TRANSACTION_DATE, 0));
+        assertEquals(3, batch.addAll("card1", log, next));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Test;
+import sasc.terminal.CardResponse;
+import sasc.terminal.ScriptedCardConnection;
+import sasc.terminal.TerminalException;
+import sasc.util.Log;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class BinaryFileReaderTest {
+
+    /**
+     * A single transparent file (the current EF, or SFI 1).
+     * READ BINARY with Ne larger than maxNe is rejected with '6700'.
+     * Replies are silently cut to maxReplyLength, and the end of the file is
+     * reported with '6282' unless endOfFileSW is changed
+     */
+    static class TransparentFileCard extends ScriptedCardConnection {
+
+        final byte[] file;
+        final int maxNe;
+        int maxReplyLength = Integer.MAX_VALUE;
+        int endOfFileSW = 0x6282;
+
+        TransparentFileCard(byte[] file, int maxNe) {
+            this.file = file;
+            this.maxNe = maxNe;
+        }
+
+        @Override
+        protected CardResponse respond(byte[] cmd) {
+            if (cmd[1] != (byte) 0xB0) {
+                return response(null, 0x6D00);
+            }
+            int offset;
+            if ((cmd[2] & 0x80) != 0) {
+                if ((cmd[2] & 0x1F) != 1) {
+                    return response(null, 0x6A82);
+                }
+                offset = Util.byteToInt(cmd[3]);
+            } else {
+                offset = Util.byteToInt(cmd[2], cmd[3]);
+            }
+            int ne = APDUCommandBuilder.getNe(cmd);
+            if (ne > maxNe) {
+                return response(null, 0x6700);
+            }
+            if (offset > file.length) {
+                return response(null, 0x6B00);
+            }
+            int length = Math.min(ne, file.length - offset);
+            byte[] data = Arrays.copyOfRange(file, offset, offset + Math.min(length, maxReplyLength));
+            return response(data, length < ne ? endOfFileSW : 0x9000);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Log.resetStepNo();
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 7);
+        }
+        return content;
+    }
+
+    @Test
+    public void testWrongLengthHalvesBlockSize() throws TerminalException {
+        byte[] file = content(1000);
+        TransparentFileCard card = new TransparentFileCard(file, 128);
+        BinaryFileReader reader = BinaryFileReader.forTransparentFile(card);
+        assertArrayEquals(file, reader.read());
+        assertEquals(128, reader.getBlockSize());
+        //Ne 256 rejected, then 8 blocks of 128 (the last one short, with '6282')
+        assertEquals(9, card.getCommands().size());
+    }
+
+    @Test
+    public void testShortLastBlockKeepsBlockSize() throws TerminalException {
+        byte[] file = content(300);
+        TransparentFileCard card = new TransparentFileCard(file, 256);
+        card.endOfFileSW = 0x9000;
+        BinaryFileReader reader = BinaryFileReader.forTransparentFile(card);
+        assertArrayEquals(file, reader.read());
+        assertEquals(256, reader.getBlockSize());
+        //The read after the short reply is shortened, and gets nothing
+        assertEquals(3, card.getCommands().size());
+        assertArrayEquals(Util.fromHexString("00 B0 01 2C 2C"), card.getCommands().get(2));
+    }
+
+    @Test
+    public void testShortRepliesSetBlockSize() throws TerminalException {
+        byte[] file = content(1000);
+        TransparentFileCard card = new TransparentFileCard(file, 256);
+        card.maxReplyLength = 100;
+        BinaryFileReader reader = BinaryFileReader.forTransparentFile(card);
+        assertArrayEquals(file, reader.read());
+        assertEquals(100, reader.getBlockSize());
+    }
+
+    @Test
+    public void testExpectedLength() throws TerminalException {
+        byte[] file = content(300);
+        TransparentFileCard card = new TransparentFileCard(file, 256);
+        BinaryFileReader reader = BinaryFileReader.forTransparentFile(card);
+        assertArrayEquals(Arrays.copyOf(file, 10), reader.read(10));
+        assertArrayEquals(Util.fromHexString("00 B0 00 00 0A"), card.getCommands().get(0));
+        card.getCommands().clear();
+        assertArrayEquals(file, reader.read(300));
+        assertEquals(2, card.getCommands().size());
+        assertArrayEquals(Util.fromHexString("00 B0 01 00 2C"), card.getCommands().get(1));
+    }
+
+    @Test
+    public void testExtendedLength() throws TerminalException {
+        byte[] file = content(3000);
+        TransparentFileCard card = new TransparentFileCard(file, 65536);
+        BinaryFileReader reader = BinaryFileReader.forTransparentFile(card);
+        reader.setCardCapabilities(CardCapabilities.SHORT_LENGTH_ONLY.withEFATR(Util.fromHexString("7F 66 08 02 02 10 00 02 02 10 00")));
+        assertEquals(4096 - 2, reader.getBlockSize());
+        assertArrayEquals(file, reader.read());
+        assertEquals(1, card.getCommands().size());
+        assertTrue(APDUCommandBuilder.isExtendedLength(card.getCommands().get(0)));
+
+        //Limited by the caller (eg the MLe of an NDEF tag)
+        reader.setMaxBlockSize(1000);
+        assertEquals(1000, reader.getBlockSize());
+    }
+
+    @Test
+    public void testReadBySFI() throws TerminalException {
+        byte[] file = content(400);
+        TransparentFileCard card = new TransparentFileCard(file, 256);
+        BinaryFileReader reader = BinaryFileReader.forTransparentFile(card);
+        assertArrayEquals(file, reader.readBySFI(1, -1));
+        //The SFI selects the file in the first command only
+        assertArrayEquals(Util.fromHexString("00 B0 81 00 00"), card.getCommands().get(0));
+        assertArrayEquals(Util.fromHexString("00 B0 01 00 00"), card.getCommands().get(1));
+
+        card.getCommands().clear();
+        assertEquals(0, reader.readBySFI(2, -1).length);
+        assertEquals(1, card.getCommands().size());
+    }
+}
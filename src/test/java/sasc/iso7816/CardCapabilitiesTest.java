@@ -0,0 +1,74 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import org.junit.Test;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class CardCapabilitiesTest {
+
+    @Test
+    public void testExtendedLengthATR() {
+        //German eID card (nPA). Historical bytes: 80 31 F8 73 F7 41 E0 82 90 00
+        //'73' card capabilities, third software function table byte E0 (extended Lc/Le)
+        ATR atr = new ATR(Util.fromHexString("3B 8A 80 01 80 31 F8 73 F7 41 E0 82 90 00 75"));
+        assertTrue(atr.isIsoCompliant());
+        assertArrayEquals(Util.fromHexString("80 31 F8 73 F7 41 E0 82 90 00"), atr.getIsoCompliantATR().getHistoricalBytes());
+        CardCapabilities capabilities = atr.getCardCapabilities();
+        assertTrue(capabilities.isExtendedLengthSupported());
+        assertEquals(APDUCommandBuilder.MAX_EXTENDED_LC, capabilities.getMaxCommandDataLength());
+        assertEquals(APDUCommandBuilder.MAX_EXTENDED_NE, capabilities.getMaxResponseDataLength());
+    }
+
+    @Test
+    public void testShortLengthATR() {
+        //Card capabilities '73' without the extended length bit (third byte 00)
+        CardCapabilities capabilities = CardCapabilities.fromHistoricalBytes(Util.fromHexString("80 31 80 73 80 21 00 82 90 00"));
+        assertFalse(capabilities.isExtendedLengthSupported());
+
+        //Proprietary historical bytes: "JCOPv241"
+        ATR atr = new ATR(Util.fromHexString("3B F8 13 00 00 81 31 FE 45 4A 43 4F 50 76 32 34 31 B7"));
+        assertSame(CardCapabilities.SHORT_LENGTH_ONLY, atr.getCardCapabilities());
+
+        //Truncated compact-TLV object
+        assertSame(CardCapabilities.SHORT_LENGTH_ONLY, CardCapabilities.fromHistoricalBytes(Util.fromHexString("80 73 00")));
+        assertSame(CardCapabilities.SHORT_LENGTH_ONLY, CardCapabilities.fromHistoricalBytes(new byte[0]));
+    }
+
+    @Test
+    public void testEFATR() {
+        //Extended length information: command and response APDUs of at most 1024 bytes
+        byte[] efAtr = Util.fromHexString("7F 66 08 02 02 04 00 02 02 04 00");
+        CardCapabilities capabilities = CardCapabilities.SHORT_LENGTH_ONLY.withEFATR(efAtr);
+        assertTrue(capabilities.isExtendedLengthSupported());
+        assertEquals(1024 - 9, capabilities.getMaxCommandDataLength());
+        assertEquals(1024 - 2, capabilities.getMaxResponseDataLength());
+
+        //'47' card capabilities only
+        capabilities = CardCapabilities.SHORT_LENGTH_ONLY.withEFATR(Util.fromHexString("47 03 00 00 40"));
+        assertTrue(capabilities.isExtendedLengthSupported());
+        assertEquals(APDUCommandBuilder.MAX_EXTENDED_NE, capabilities.getMaxResponseDataLength());
+
+        //Garbage does not change the capabilities from the ATR
+        capabilities = CardCapabilities.SHORT_LENGTH_ONLY.withEFATR(Util.fromHexString("7F 66 FF"));
+        assertFalse(capabilities.isExtendedLengthSupported());
+    }
+}
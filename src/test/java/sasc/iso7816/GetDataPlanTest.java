@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Test;
+import sasc.CardEmulator;
+import sasc.emv.EMVAPDUCommands;
+import sasc.util.Log;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class GetDataPlanTest {
+
+    private static final GetDataPlan.Handler<List<String>> COLLECTOR = new GetDataPlan.Handler<List<String>>() {
+        @Override
+        public void onData(List<String> values, TLVResponse response) {
+            values.add(Util.prettyPrintHexNoWrap(response.getFirstTLV().getValueBytes()));
+        }
+
+        @Override
+        public void onError(List<String> values, TLVResponse response) {
+            values.add("SW=" + Util.short2Hex(response.getSW()));
+        }
+    };
+
+    private static final GetDataPlan<List<String>> PLAN = new GetDataPlan<List<String>>()
+            .add("Log Format", EMVAPDUCommands.getLogFormat(), true, COLLECTOR)
+            .add("ATC", EMVAPDUCommands.getApplicationTransactionCounter(), true, COLLECTOR)
+            .add("Last Online ATC Register", EMVAPDUCommands.getLastOnlineATCRegister(), true, COLLECTOR);
+
+    @After
+    public void tearDown() {
+        GetDataPlan.clearAbsentTags();
+        Log.resetStepNo();
+    }
+
+    @Test
+    public void testExecute() throws Exception {
+        CardEmulator emulator = new CardEmulator("/sdacardtransaction.xml");
+        assertEquals((short) 0x9000, emulator.transmit(Util.fromHexString("00 A4 04 00 07 a1 23 45 67 89 10 10 00")).getSW());
+
+        Set<Integer> absentTags = new HashSet<Integer>();
+        List<String> values = new ArrayList<String>();
+        assertEquals(3, PLAN.execute(emulator, values, absentTags));
+        assertEquals(3, values.size());
+        assertEquals("SW=6A81", values.get(0).toUpperCase());
+        assertEquals(1, absentTags.size());
+        assertTrue(absentTags.contains(0x9F4F));
+
+        //The Log Format is known to be absent, and is not requested again
+        values.clear();
+        assertEquals(2, PLAN.execute(emulator, values, absentTags));
+        assertEquals(2, values.size());
+
+        //No set of absent tags: everything is sent
+        assertEquals(3, PLAN.execute(emulator, new ArrayList<String>(), null));
+    }
+
+    @Test
+    public void testAbsentTagsSharedByProfile() throws Exception {
+        byte[] atr = Util.fromHexString("3B 68 00 00 00 73 C8 40 12 00 90 00");
+        AID aid = new AID("a1 23 45 67 89 10 10");
+        CardEmulator emulator = new CardEmulator("/sdacardtransaction.xml");
+        emulator.transmit(Util.fromHexString("00 A4 04 00 07 a1 23 45 67 89 10 10 00"));
+        assertEquals(3, PLAN.execute(emulator, new ArrayList<String>(), GetDataPlan.getAbsentTags(atr, aid)));
+
+        //Next card of the same profile
+        emulator = new CardEmulator("/sdacardtransaction.xml");
+        emulator.transmit(Util.fromHexString("00 A4 04 00 07 a1 23 45 67 89 10 10 00"));
+        assertSame(GetDataPlan.getAbsentTags(atr, aid), GetDataPlan.getAbsentTags(atr.clone(), new AID("a1 23 45 67 89 10 10")));
+        assertEquals(2, PLAN.execute(emulator, new ArrayList<String>(), GetDataPlan.getAbsentTags(atr, aid)));
+        //Other profiles are not affected
+        assertTrue(GetDataPlan.getAbsentTags(atr, new AID("a1 23 45 67 89 10 11")).isEmpty());
+
+        //The handler is told the data object is absent
+        GetDataPlan<List<String>> plan = new GetDataPlan<List<String>>()
+                .add("Log Format", EMVAPDUCommands.getLogFormat(), true,
+                        new GetDataPlan.Handler<List<String>>() {
+                            @Override
+                            public void onData(List<String> values, TLVResponse response) {
+                                values.add("data");
+                            }
+
+                            @Override
+                            public void onAbsent(List<String> values) {
+                                values.add("absent");
+                            }
+                        });
+        List<String> values = new ArrayList<String>();
+        assertEquals(0, plan.execute(emulator, values, GetDataPlan.getAbsentTags(atr, aid)));
+        assertEquals(Arrays.asList("absent"), values);
+    }
+
+    @Test
+    public void testHandlerExceptions() throws Exception {
+        CardEmulator emulator = new CardEmulator("/sdacardtransaction.xml");
+        emulator.transmit(Util.fromHexString("00 A4 04 00 07 a1 23 45 67 89 10 10 00"));
+        GetDataPlan<List<String>> plan = new GetDataPlan<List<String>>()
+                .add("ATC", EMVAPDUCommands.getApplicationTransactionCounter(), true,
+                        new GetDataPlan.Handler<List<String>>() {
+                            @Override
+                            public void onData(List<String> values, TLVResponse response) {
+                                throw new TLVException("Invalid data");
+                            }
+                        })
+                .add("Last Online ATC Register", EMVAPDUCommands.getLastOnlineATCRegister(), true, COLLECTOR);
+        //Parse errors do not stop the plan
+        List<String> values = new ArrayList<String>();
+        assertEquals(2, plan.execute(emulator, values, null));
+        assertEquals(1, values.size());
+
+        //Eg CPLC.parse(..) rejecting the value
+        plan = new GetDataPlan<List<String>>()
+                .add("ATC", EMVAPDUCommands.getApplicationTransactionCounter(), true,
+                        new GetDataPlan.Handler<List<String>>() {
+                            @Override
+                            public void onData(List<String> values, TLVResponse response) {
+                                throw new IllegalArgumentException("Invalid length");
+                            }
+                        })
+                .add("Last Online ATC Register", EMVAPDUCommands.getLastOnlineATCRegister(), true, COLLECTOR);
+        values.clear();
+        assertEquals(2, plan.execute(emulator, values, null));
+        assertEquals(1, values.size());
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+/**
+ * Fuzzes the strict TLV parser with mutated card responses and random data.
+ * Every input must either parse within the limits, or fail with a TLVException.
+ *
+ * @author sasc
+ */
+public class TLVUtilFuzzTest {
+
+    private static final long SEED = 0x5A5C2010L;
+    private static final int ITERATIONS = 20000;
+
+    private static final String[] CORPUS = {
+        //PPSE FCI
+        "6F 23 84 0E 32 50 41 59 2E 53 59 53 2E 44 44 46 30 31 A5 11 BF 0C 0E 61 0C 4F 07 A0 00 00 00 04 10 10 87 01 01",
+        //Application FCI with PDOL
+        "6F 1D 84 07 A0 00 00 00 03 10 10 A5 12 50 04 56 49 53 41 87 01 01 9F 38 03 9F 1A 02 BF 0C 00",
+        //Record
+        "70 25 5A 08 47 61 73 90 01 01 00 10 5F 24 03 25 12 31 5F 34 01 01 5F 30 02 02 01 5F 20 09 54 45 53 54 2F 43 41 52 44",
+        //GPO response format 2
+        "77 0E 82 02 5C 00 94 08 08 01 01 00 10 01 03 01",
+        //Long form length
+        "70 81 03 9F 36 00"
+    };
+
+    private static final TLVLimits LIMITS = new TLVLimits(4, 32, 512);
+
+    @Test
+    public void testCorpus() {
+        for (String hex : CORPUS) {
+            List<BERTLV> tlvs = TLVUtil.parseList(Util.fromHexString(hex), TLVLimits.DEFAULT);
+            assertEquals(1, tlvs.size());
+            assertArrayEquals(Util.fromHexString(hex), tlvs.get(0).toBERTLVByteArray());
+        }
+    }
+
+    @Test
+    public void testLimits() {
+        //Deeply nested constructed objects
+        byte[] nested = new byte[20];
+        for (int i = 0; i < nested.length; i += 2) {
+            nested[i] = 0x70;
+            nested[i + 1] = (byte) (nested.length - i - 2);
+        }
+        assertFails(nested, new TLVLimits(5, 100, 1000));
+        assertEquals(1, TLVUtil.parseList(nested, new TLVLimits(10, 100, 1000)).size());
+
+        //Length claims more bytes than available (must fail before allocating)
+        assertFails(Util.fromHexString("5A 83 FF FF FF 00"), TLVLimits.DEFAULT);
+        //5 length bytes
+        assertFails(Util.fromHexString("5A 84 00 00 00 01 00"), TLVLimits.DEFAULT);
+        //Indefinite length
+        assertFails(Util.fromHexString("70 80 5A 01 00 00 00"), TLVLimits.DEFAULT);
+        //Too many elements
+        assertFails(Util.fromHexString("9F 36 00 9F 36 00 9F 36 00"), new TLVLimits(4, 2, 1000));
+        //Too many value bytes
+        assertFails(Util.fromHexString("70 04 5A 02 00 00"), new TLVLimits(4, 10, 5));
+        //Tag that never ends
+        assertFails(Util.fromHexString("9F FF FF FF FF 01 00"), TLVLimits.DEFAULT);
+    }
+
+    @Test
+    public void testCardResponseLimits() {
+        //A card response nested deeper than TLVLimits.DEFAULT allows
+        byte[] nested = new byte[2 * 1000];
+        for (int i = 0; i < nested.length; i += 2) {
+            nested[i] = 0x70;
+            nested[i + 1] = (byte) Math.min(nested.length - i - 2, 0x7F);
+        }
+        TLVResponse response = new TLVResponse(nested, (byte) 0x90, (byte) 0x00);
+        try {
+            response.getTLVList();
+            fail("Expected TLVException (nesting depth)");
+        } catch (TLVException expected) {
+        }
+        try {
+            TLVUtil.prettyPrintAPDUResponse(nested, 0);
+            fail("Expected TLVException (nesting depth)");
+        } catch (TLVException expected) {
+        }
+
+        //The children of a constructed object from the lenient parser are decoded within the limits too
+        BERTLV outer = TLVUtil.parseList(Util.fromHexString("70 03 70 01 00")).get(0);
+        assertEquals(1, outer.getChildren().size());
+        assertEquals(0, outer.getChildren().get(0).getChildren().size());
+    }
+
+    @Test
+    public void testFuzz() {
+        Random random = new Random(SEED);
+        byte[][] corpus = new byte[CORPUS.length][];
+        for (int i = 0; i < CORPUS.length; i++) {
+            corpus[i] = Util.fromHexString(CORPUS[i]);
+        }
+        for (int i = 0; i < ITERATIONS; i++) {
+            byte[] input;
+            if (i % 4 == 0) {
+                input = new byte[random.nextInt(64)];
+                random.nextBytes(input);
+            } else {
+                input = mutate(corpus[random.nextInt(corpus.length)], random);
+            }
+            try {
+                List<BERTLV> tlvs = TLVUtil.parseList(input, LIMITS);
+                long[] counters = new long[2];
+                checkLimits(tlvs, 1, counters);
+                TLVUtil.prettyPrintAPDUResponse(input, 0, LIMITS);
+            } catch (TLVException expected) {
+            } catch (RuntimeException ex) {
+                throw new AssertionError("Unexpected exception for input " + Util.prettyPrintHexNoWrap(input) + ": " + ex);
+            }
+        }
+    }
+
+    private static void checkLimits(List<BERTLV> tlvs, int depth, long[] counters) {
+        assertTrue(depth <= LIMITS.getMaxDepth());
+        for (BERTLV tlv : tlvs) {
+            counters[0]++;
+            counters[1] += tlv.getLength();
+            assertTrue(counters[0] <= LIMITS.getMaxElements());
+            assertTrue(counters[1] <= LIMITS.getMaxTotalBytes());
+            if (tlv.getTag().isConstructed()) {
+                checkLimits(tlv.getChildren(), depth + 1, counters);
+            }
+        }
+    }
+
+    private static byte[] mutate(byte[] data, Random random) {
+        byte[] mutated;
+        switch (random.nextInt(4)) {
+            case 0: //Truncate
+                mutated = new byte[random.nextInt(data.length + 1)];
+                System.arraycopy(data, 0, mutated, 0, mutated.length);
+                return mutated;
+            case 1: //Duplicate (more elements)
+                mutated = new byte[data.length * 2];
+                System.arraycopy(data, 0, mutated, 0, data.length);
+                System.arraycopy(data, 0, mutated, data.length, data.length);
+                return mutated;
+            default: //Flip bytes
+                mutated = data.clone();
+                int count = 1 + random.nextInt(4);
+                for (int i = 0; i < count; i++) {
+                    int pos = random.nextInt(mutated.length);
+                    mutated[pos] = random.nextBoolean() ? (byte) random.nextInt(256) : (byte) (mutated[pos] ^ (1 << random.nextInt(8)));
+                }
+                return mutated;
+        }
+    }
+
+    private static void assertFails(byte[] data, TLVLimits limits) {
+        try {
+            TLVUtil.parseList(data, limits);
+            fail("Expected TLVException for " + Util.prettyPrintHexNoWrap(data));
+        } catch (TLVException expected) {
+        }
+    }
+}
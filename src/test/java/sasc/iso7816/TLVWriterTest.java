@@ -0,0 +1,98 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import sasc.emv.EMVTags;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class TLVWriterTest {
+
+    @Test
+    public void testEncodeLength() {
+        assertArrayEquals(Util.fromHexString("00"), BERTLV.encodeLength(0));
+        assertArrayEquals(Util.fromHexString("7F"), BERTLV.encodeLength(127));
+        assertArrayEquals(Util.fromHexString("81 80"), BERTLV.encodeLength(128));
+        assertArrayEquals(Util.fromHexString("81 FF"), BERTLV.encodeLength(255));
+        assertArrayEquals(Util.fromHexString("82 01 00"), BERTLV.encodeLength(256));
+        assertArrayEquals(Util.fromHexString("83 01 00 00"), BERTLV.encodeLength(65536));
+        assertArrayEquals(Util.fromHexString("84 7F FF FF FF"), BERTLV.encodeLength(Integer.MAX_VALUE));
+        BERTLV tlv = new BERTLV(EMVTags.APPLICATION_LABEL, Util.fromHexString("56 49 53 41"));
+        assertArrayEquals(Util.fromHexString("50 04 56 49 53 41"), tlv.toBERTLVByteArray());
+    }
+
+    @Test
+    public void testNestedTemplates() {
+        String fci = "6F 1D 84 07 A0 00 00 00 03 10 10 A5 12 50 04 56 49 53 41 87 01 01 9F 38 03 9F 1A 02 BF 0C 00";
+        TLVWriter writer = new TLVWriter(16);
+        writer.begin(EMVTags.FCI_TEMPLATE)
+                .write(EMVTags.DEDICATED_FILE_NAME, Util.fromHexString("A0 00 00 00 03 10 10"))
+                .begin(EMVTags.FCI_PROPRIETARY_TEMPLATE)
+                .write(EMVTags.APPLICATION_LABEL, "VISA".getBytes())
+                .write(EMVTags.APPLICATION_PRIORITY_INDICATOR, 0x01)
+                .write(EMVTags.PDOL, Util.fromHexString("9F 1A 02"))
+                .begin(EMVTags.FCI_ISSUER_DISCRETIONARY_DATA)
+                .end()
+                .end()
+                .end();
+        assertEquals(0, writer.getDepth());
+        assertArrayEquals(Util.fromHexString(fci), writer.toByteArray());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(64);
+        writer.writeTo(direct);
+        assertEquals(writer.size(), direct.position());
+    }
+
+    @Test
+    public void testBackPatchedLongLength() {
+        byte[] pan = Util.fromHexString("47 61 73 90 01 01 00 10");
+        TLVWriter writer = new TLVWriter();
+        for (int n = 0; n < 2; n++) {
+            writer.reset();
+            writer.begin(EMVTags.RECORD_TEMPLATE);
+            writer.begin(EMVTags.RECORD_TEMPLATE);
+            for (int i = 0; i < 40; i++) {
+                writer.write(EMVTags.PAN, pan);
+            }
+            writer.end();
+            writer.write(EMVTags.PAN, pan);
+            writer.end();
+
+            byte[] encoded = writer.toByteArray();
+            //70 82 01 9E 70 82 01 90 ...
+            assertArrayEquals(Util.fromHexString("70 82 01 9E 70 82 01 90"), Arrays.copyOf(encoded, 8));
+            List<BERTLV> tlvs = TLVUtil.parseList(encoded, TLVLimits.DEFAULT);
+            assertEquals(1, tlvs.size());
+            List<BERTLV> children = tlvs.get(0).getChildren();
+            assertEquals(2, children.size());
+            assertEquals(40, children.get(0).getChildren().size());
+            assertArrayEquals(pan, children.get(1).getValueBytes());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTemplateNotEnded() {
+        new TLVWriter().begin(EMVTags.RECORD_TEMPLATE).toByteArray();
+    }
+}
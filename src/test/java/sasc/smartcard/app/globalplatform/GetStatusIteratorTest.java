@@ -0,0 +1,116 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.app.globalplatform;
+
+import java.util.List;
+import org.junit.Test;
+import sasc.iso7816.SmartCardException;
+import sasc.terminal.ScriptedCardConnection;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class GetStatusIteratorTest {
+
+    private static final String PAGE_1 =
+            "E3 12 4F 07 A0 00 00 01 51 00 00 9F 70 01 07 C5 03 9E FE 80 "
+            + "E3 1A 4F 08 A0 00 00 00 03 10 10 01 9F 70 01 07 C5 03 00 00 00 C4 05 A0 00 00 00 03 "
+            + "63 10";
+    private static final String PAGE_2 =
+            "E3 19 4F 07 D2 76 00 01 18 00 02 9F 70 01 0F C5 03 00 00 00 CC 05 A0 00 00 01 51 "
+            + "90 00";
+
+    @Test
+    public void testPages() {
+        ScriptedCardConnection connection = new ScriptedCardConnection(PAGE_1, PAGE_2);
+        GetStatusIterator iterator = new GetStatusIterator(connection, RegistryEntry.Kind.APPLICATION, true);
+
+        assertTrue(iterator.hasNext());
+        assertEquals(1, iterator.getPageCount());
+        RegistryEntry sd = iterator.next();
+        assertEquals("a0000001510000", Util.byteArrayToHexString(sd.getAID().getAIDBytes()).toLowerCase());
+        assertEquals(0x07, sd.getLifeCycleState());
+        assertTrue(sd.isSecurityDomain());
+
+        RegistryEntry app = iterator.next();
+        assertFalse(app.isSecurityDomain());
+        assertEquals("A000000003", Util.byteArrayToHexString(app.getExecutableLoadFileAID().getAIDBytes()).toUpperCase());
+        //The second page is not requested before the entries of the first page are consumed
+        assertEquals(1, iterator.getPageCount());
+
+        RegistryEntry last = iterator.next();
+        assertEquals(2, iterator.getPageCount());
+        assertEquals("PERSONALIZED", RegistryEntry.getLifeCycleStateDescription(last.getKind(), last.getLifeCycleState()));
+        assertNotNull(last.getAssociatedSecurityDomainAID());
+        assertFalse(iterator.hasNext());
+
+        assertArrayEquals(Util.fromHexString("80 F2 40 02 02 4F 00 00"), connection.getCommands().get(0));
+        assertArrayEquals(Util.fromHexString("80 F2 40 03 02 4F 00 00"), connection.getCommands().get(1));
+    }
+
+    @Test
+    public void testLegacyFormat() {
+        //Load file with 2 modules
+        ScriptedCardConnection connection = new ScriptedCardConnection(
+                "05 A0 00 00 00 03 01 00 02 06 A0 00 00 00 03 10 06 A0 00 00 00 03 20 90 00");
+        int count = 0;
+        for (RegistryEntry entry : GetStatusIterator.registry(connection, RegistryEntry.Kind.EXECUTABLE_LOAD_FILE_AND_MODULES, false)) {
+            assertEquals("LOADED", RegistryEntry.getLifeCycleStateDescription(entry.getKind(), entry.getLifeCycleState()));
+            assertEquals(2, entry.getModuleAIDs().size());
+            count++;
+        }
+        assertEquals(1, count);
+        assertArrayEquals(Util.fromHexString("80 F2 10 00 02 4F 00 00"), connection.getCommands().get(0));
+    }
+
+    @Test
+    public void testErrors() {
+        assertFalse(new GetStatusIterator(new ScriptedCardConnection("6A 88"), RegistryEntry.Kind.APPLICATION, true).hasNext());
+        try {
+            new GetStatusIterator(new ScriptedCardConnection("69 82"), RegistryEntry.Kind.APPLICATION, true).hasNext();
+            fail("Expected SmartCardException");
+        } catch (SmartCardException expected) {
+        }
+        try {
+            GetStatusIterator iterator = new GetStatusIterator(new ScriptedCardConnection("E3 05 4F 03 A0 00 00 90 00"), RegistryEntry.Kind.APPLICATION, true);
+            iterator.next();
+            fail("Expected SmartCardException (AID too short)");
+        } catch (SmartCardException expected) {
+        }
+    }
+
+    @Test
+    public void testSnapshotCache() {
+        CPLC cplc = CPLC.parse(Util.fromHexString("47 90 50 40 47 91 81 02 31 00 83 58 00 11 68 91 45 81 48 12 83 65 00 00 00 00 01 2F 31 30 31 31 36 38 00 00 00 00 00 00 00 00"));
+        RegistrySnapshotCache cache = new RegistrySnapshotCache(10);
+        ScriptedCardConnection connection = new ScriptedCardConnection(PAGE_1, PAGE_2);
+
+        List<RegistryEntry> entries = cache.getOrRead(cplc, connection, RegistryEntry.Kind.APPLICATION, true);
+        assertEquals(3, entries.size());
+        assertEquals(2, connection.getCommands().size());
+        //From the cache
+        assertSame(entries, cache.getOrRead(cplc, connection, RegistryEntry.Kind.APPLICATION, true));
+        assertEquals(2, connection.getCommands().size());
+        assertNull(cache.get(cplc, RegistryEntry.Kind.EXECUTABLE_LOAD_FILE));
+
+        cache.invalidate(cplc);
+        assertNull(cache.get(cplc, RegistryEntry.Kind.APPLICATION));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.app.globalplatform;
+
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.After;
+import org.junit.Test;
+import sasc.emv.ApplicationCryptogram;
+import sasc.iso7816.AID;
+import sasc.iso7816.SmartCardException;
+import sasc.util.Log;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class SecureChannelTest {
+
+    private static final int NUM_ENTRIES = 20;
+
+    @After
+    public void tearDown() {
+        //The step numbers are global (SASCIntegrationTest compares them)
+        Log.resetStepNo();
+    }
+
+    private static GlobalPlatformEmulator createEmulator(SecureChannelKeys keys, int scpVersion) {
+        GlobalPlatformEmulator emulator = new GlobalPlatformEmulator(keys, scpVersion);
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            byte[] aid = Util.fromHexString("A0 00 00 01 51 00 00 00");
+            aid[7] = (byte) i;
+            emulator.addRegistryEntry(new RegistryEntry(RegistryEntry.Kind.APPLICATION, new AID(aid), 0x07, new byte[3]));
+        }
+        return emulator;
+    }
+
+    private static int countApplications(SecureChannel channel) {
+        int count = 0;
+        for (RegistryEntry entry : GetStatusIterator.registry(channel, RegistryEntry.Kind.APPLICATION, true)) {
+            assertEquals(0x07, entry.getLifeCycleState());
+            count++;
+        }
+        return count;
+    }
+
+    private static byte[] delete(SecureChannel channel, int lastAIDByte) throws Exception {
+        byte[] cmd = Util.fromHexString("80 E4 00 00 0A 4F 08 A0 00 00 01 51 00 00 00 00");
+        cmd[cmd.length - 2] = (byte) lastAIDByte;
+        return channel.transmit(cmd).getData();
+    }
+
+    @Test
+    public void testCMAC() {
+        //RFC 4493 test vectors
+        CMAC cmac = new CMAC(Util.fromHexString("2b7e1516 28aed2a6 abf71588 09cf4f3c"));
+        byte[] message = Util.fromHexString("6bc1bee2 2e409f96 e93d7e11 7393172a ae2d8a57 1e03ac9c 9eb76fac 45af8e51 30c81c46 a35ce411");
+        byte[] mac = new byte[16];
+        cmac.doFinal(mac, 0);
+        assertArrayEquals(Util.fromHexString("bb1d6929 e9593728 7fa37d12 9b756746"), mac);
+        cmac.update(message, 0, 16);
+        cmac.doFinal(mac, 0);
+        assertArrayEquals(Util.fromHexString("070a16b4 6b4d4144 f79bdd9d d04a287c"), mac);
+        cmac.update(message, 0, 40);
+        cmac.doFinal(mac, 0);
+        assertArrayEquals(Util.fromHexString("dfa66747 de9ae630 30ca3261 1497c827"), mac);
+    }
+
+    private static byte[] tripleDESCBC(byte[] key16, byte[] data) throws Exception {
+        byte[] key24 = Arrays.copyOf(key16, 24);
+        System.arraycopy(key16, 0, key24, 16, 8);
+        Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key24, "DESede"), new IvParameterSpec(new byte[8]));
+        return cipher.doFinal(data);
+    }
+
+    @Test
+    public void testSCP02AgainstJCE() throws Exception {
+        SecureChannelKeys keys = SecureChannelKeys.testKeys();
+        byte[] hostChallenge = Util.fromHexString("01 02 03 04 05 06 07 08");
+        byte[] sequenceCounterAndCardChallenge = Util.fromHexString("00 2A 11 12 13 14 15 16");
+        SCP02 scp02 = new SCP02(keys, hostChallenge, sequenceCounterAndCardChallenge, SCP02.DEFAULT_IMPLEMENTATION_OPTION);
+
+        byte[] testKey = keys.getEncKey();
+        byte[] sEnc = tripleDESCBC(testKey, Util.fromHexString("01 82 00 2A 00 00 00 00 00 00 00 00 00 00 00 00"));
+        byte[] sMac = tripleDESCBC(testKey, Util.fromHexString("01 01 00 2A 00 00 00 00 00 00 00 00 00 00 00 00"));
+
+        byte[] hostCryptogramInput = Util.fromHexString("00 2A 11 12 13 14 15 16 01 02 03 04 05 06 07 08 80 00 00 00 00 00 00 00");
+        byte[] hostCryptogram = Arrays.copyOfRange(tripleDESCBC(sEnc, hostCryptogramInput), 16, 24);
+        assertArrayEquals(hostCryptogram, scp02.calculateHostCryptogram());
+
+        //The first C-MAC (zero ICV) is a plain retail MAC of the modified APDU
+        byte[] cmd = Util.fromHexString("80 82 01 00 08 " + Util.byteArrayToHexString(hostCryptogram));
+        byte[] wrapped = new byte[261];
+        int length = scp02.wrap(cmd, 0, cmd.length, wrapped, 0);
+        assertEquals(5 + 16, length);
+        byte[] modified = Util.fromHexString("84 82 01 00 10 " + Util.byteArrayToHexString(hostCryptogram));
+        assertArrayEquals(ApplicationCryptogram.calculateMAC(sMac, modified), Arrays.copyOfRange(wrapped, 13, 21));
+        assertArrayEquals(modified, Arrays.copyOf(wrapped, 13));
+    }
+
+    @Test
+    public void testWrapUnwrap() {
+        SecureChannelKeys keys = new SecureChannelKeys(0x30, new byte[32], new byte[32], new byte[32]);
+        byte[] hostChallenge = Util.fromHexString("01 02 03 04 05 06 07 08");
+        byte[] cardChallenge = Util.fromHexString("11 12 13 14 15 16 17 18");
+        SCP03 host = new SCP03(keys, hostChallenge, cardChallenge, 0x00);
+        SCP03 card = new SCP03(keys, hostChallenge, cardChallenge, 0x00);
+        assertArrayEquals(host.calculateCardCryptogram(), card.calculateCardCryptogram());
+        host.setSecurityLevel(SecureChannelProtocol.SECURITY_LEVEL_C_DECRYPTION_AND_C_MAC);
+        card.setSecurityLevel(SecureChannelProtocol.SECURITY_LEVEL_C_DECRYPTION_AND_C_MAC);
+
+        byte[] wrapped = new byte[261];
+        byte[] unwrapped = new byte[261];
+        String[] commands = {"80 F2 40 02 02 4F 00 00", "80 CA 00 66 00", "80 E4 00 00 10 4F 0E A0 00 00 01 51 00 00 00 00 00 00 00 00 01", "80 E8 00 00"};
+        for (String command : commands) {
+            byte[] cmd = Util.fromHexString(command);
+            int length = host.wrap(cmd, 0, cmd.length, wrapped, 0);
+            assertEquals((byte) 0x84, wrapped[0]);
+            int unwrappedLength = card.unwrap(wrapped, 0, length, unwrapped, 0);
+            assertArrayEquals(command, cmd, Arrays.copyOf(unwrapped, unwrappedLength));
+        }
+        //Replayed command: the MAC chaining value has changed
+        byte[] cmd = Util.fromHexString(commands[0]);
+        int length = host.wrap(cmd, 0, cmd.length, wrapped, 0);
+        byte[] replay = Arrays.copyOf(wrapped, length);
+        assertTrue(card.unwrap(replay, 0, length, unwrapped, 0) > 0);
+        assertEquals(-1, card.unwrap(replay, 0, length, unwrapped, 0));
+
+        //Too long once padded and MAC'ed
+        try {
+            byte[] longCommand = new byte[5 + 240];
+            longCommand[4] = (byte) 240;
+            host.wrap(longCommand, 0, longCommand.length, wrapped, 0);
+            fail("Expected SmartCardException (command too long)");
+        } catch (SmartCardException expected) {
+        }
+    }
+
+    @Test
+    public void testSCP03KnownAnswer() {
+        //Expected values calculated independently (AES-CMAC KDF of Amendment D section 4.1.5)
+        SecureChannelKeys keys = SecureChannelKeys.testKeys();
+        byte[] hostChallenge = Util.fromHexString("01 02 03 04 05 06 07 08");
+        byte[] cardChallenge = Util.fromHexString("11 12 13 14 15 16 17 18");
+        SCP03 scp03 = new SCP03(keys, hostChallenge, cardChallenge, 0x00);
+        assertArrayEquals(Util.fromHexString("D7 C8 6A 7D 0A 2D 0D DC"), scp03.calculateCardCryptogram());
+        assertArrayEquals(Util.fromHexString("00 B1 1D 00 F7 5C 45 6B"), scp03.calculateHostCryptogram());
+
+        //Key Diversification Data, Key Information, card challenge, card cryptogram
+        byte[] initializeUpdateResponse = Util.fromHexString("00 00 00 00 00 00 00 00 00 00 30 03 00 11 12 13 14 15 16 17 18 D7 C8 6A 7D 0A 2D 0D DC");
+        assertTrue(scp03.verifyCardCryptogram(initializeUpdateResponse));
+
+        byte[] wrapped = new byte[261];
+        byte[] cmd = Util.fromHexString("80 82 03 00 08 00 B1 1D 00 F7 5C 45 6B");
+        int length = scp03.wrap(cmd, 0, cmd.length, wrapped, 0);
+        assertArrayEquals(Util.fromHexString("84 82 03 00 10 00 B1 1D 00 F7 5C 45 6B 08 28 91 E5 45 EC 80 79"), Arrays.copyOf(wrapped, length));
+
+        //C-DECRYPTION (encryption counter 1) and C-MAC chained from EXTERNAL AUTHENTICATE
+        scp03.setSecurityLevel(SecureChannelProtocol.SECURITY_LEVEL_C_DECRYPTION_AND_C_MAC);
+        cmd = Util.fromHexString("80 F2 40 02 02 4F 00 00");
+        length = scp03.wrap(cmd, 0, cmd.length, wrapped, 0);
+        assertArrayEquals(Util.fromHexString("84 F2 40 02 18 8D BE F7 10 A5 C9 C7 E4 2C EF EC 3E 1C 02 EC 41 A4 78 8F AF 76 97 F0 3B 00"), Arrays.copyOf(wrapped, length));
+    }
+
+    private void testSecureChannel(int scpVersion, SecureChannelKeys keys, int securityLevel) throws Exception {
+        GlobalPlatformEmulator emulator = createEmulator(keys, scpVersion);
+        emulator.setPageSize(8);
+        SecureChannel channel = SecureChannel.open(emulator, keys, securityLevel);
+        assertEquals(scpVersion, channel.getSecureChannelProtocol().getVersion());
+        assertTrue(emulator.isAuthenticated());
+
+        GetStatusIterator iterator = new GetStatusIterator(channel, RegistryEntry.Kind.APPLICATION, true);
+        int count = 0;
+        while (iterator.hasNext()) {
+            assertEquals(count, iterator.next().getAID().getAIDBytes()[7]);
+            count++;
+        }
+        assertEquals(NUM_ENTRIES, count);
+        assertEquals(3, iterator.getPageCount());
+
+        assertArrayEquals(new byte[]{0x00}, delete(channel, 5));
+        assertEquals(NUM_ENTRIES - 1, emulator.getRegistry().size());
+        assertEquals(NUM_ENTRIES - 1, countApplications(channel));
+    }
+
+    @Test
+    public void testSCP02() throws Exception {
+        testSecureChannel(2, SecureChannelKeys.testKeys(), SecureChannelProtocol.SECURITY_LEVEL_C_MAC);
+        testSecureChannel(2, SecureChannelKeys.testKeys(), SecureChannelProtocol.SECURITY_LEVEL_C_DECRYPTION_AND_C_MAC);
+    }
+
+    @Test
+    public void testSCP03() throws Exception {
+        testSecureChannel(3, SecureChannelKeys.testKeys(), SecureChannelProtocol.SECURITY_LEVEL_C_MAC);
+        byte[] key256 = Util.fromHexString("404142434445464748494A4B4C4D4E4F404142434445464748494A4B4C4D4E4F");
+        testSecureChannel(3, new SecureChannelKeys(0x30, key256, key256, key256), SecureChannelProtocol.SECURITY_LEVEL_C_DECRYPTION_AND_C_MAC);
+    }
+
+    @Test
+    public void testAuthenticationErrors() throws Exception {
+        GlobalPlatformEmulator emulator = createEmulator(SecureChannelKeys.testKeys(), 2);
+        //No secure channel
+        assertEquals((short) 0x6982, emulator.transmit(Util.fromHexString("80 F2 40 02 02 4F 00 00")).getSW());
+
+        byte[] wrongKey = new byte[16];
+        try {
+            SecureChannel.open(emulator, new SecureChannelKeys(0, wrongKey, wrongKey, wrongKey), SecureChannelProtocol.SECURITY_LEVEL_C_MAC);
+            fail("Expected SmartCardException (wrong keys)");
+        } catch (SmartCardException expected) {
+        }
+        assertFalse(emulator.isAuthenticated());
+
+        SecureChannel channel = SecureChannel.open(emulator, SecureChannelKeys.testKeys(), SecureChannelProtocol.SECURITY_LEVEL_C_MAC);
+        //Wrong C-MAC: the card closes the secure channel
+        assertEquals((short) 0x6982, emulator.transmit(Util.fromHexString("84 F2 40 02 0A 4F 00 01 02 03 04 05 06 07 08 00")).getSW());
+        assertFalse(emulator.isAuthenticated());
+        try {
+            countApplications(channel);
+            fail("Expected SmartCardException (secure channel closed)");
+        } catch (SmartCardException expected) {
+        }
+    }
+}
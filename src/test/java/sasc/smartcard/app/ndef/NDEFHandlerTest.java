@@ -0,0 +1,98 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.app.ndef;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+import sasc.iso7816.AID;
+import sasc.iso7816.APDUCommandBuilder;
+import sasc.iso7816.ATR;
+import sasc.smartcard.common.SmartCard;
+import sasc.terminal.CardResponse;
+import sasc.terminal.ScriptedCardConnection;
+import sasc.terminal.TerminalException;
+import sasc.util.Log;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class NDEFHandlerTest {
+
+    /**
+     * NFC Forum Type 4 Tag with the CC file and one NDEF file. Returns at most 16 bytes per READ BINARY
+     */
+    private static class Type4Tag extends ScriptedCardConnection {
+
+        final Map<String, byte[]> files = new HashMap<String, byte[]>();
+        byte[] current = null;
+        int numReadBinary = 0;
+
+        @Override
+        protected CardResponse respond(byte[] cmd) {
+            if (cmd[1] == (byte) 0xA4 && cmd[2] == 0x04) {
+                return response(null, 0x9000);
+            }
+            if (cmd[1] == (byte) 0xA4 && cmd[2] == 0x00) {
+                current = files.get(Util.byteArrayToHexString(Arrays.copyOfRange(cmd, 5, 7)).toUpperCase());
+                return response(null, current != null ? 0x9000 : 0x6A82);
+            }
+            if (cmd[1] == (byte) 0xB0 && current != null) {
+                numReadBinary++;
+                int offset = Util.byteToInt(cmd[2], cmd[3]);
+                int length = Math.min(Math.min(APDUCommandBuilder.getNe(cmd), 16), current.length - offset);
+                return response(Arrays.copyOfRange(current, offset, offset + length), 0x9000);
+            }
+            return response(null, 0x6D00);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Log.resetStepNo();
+    }
+
+    @Test
+    public void testReadNdefMessage() throws TerminalException {
+        //URI record "https://example.com/"
+        byte[] message = Util.fromHexString("D1 01 0C 55 04 65 78 61 6D 70 6C 65 2E 63 6F 6D 2F");
+        byte[] ndefFile = new byte[2 + message.length + 10];
+        ndefFile[1] = (byte) message.length;
+        System.arraycopy(message, 0, ndefFile, 2, message.length);
+
+        Type4Tag tag = new Type4Tag();
+        //Mapping version 2.0, MLe 0x0010, MLc 0x0010, NDEF file E104 of 0x001D bytes, read/write access granted
+        tag.files.put("E103", Util.fromHexString("00 0F 20 00 10 00 10 04 06 E1 04 00 1D 00 00"));
+        tag.files.put("E104", ndefFile);
+
+        SmartCard card = new SmartCard(new ATR(Util.fromHexString("3B 80 80 01 01")));
+        AID aid = new AID(NDEFHandler.NDEF_AID);
+        assertTrue(new NDEFHandler().process(aid, card, tag));
+
+        NDEFApplication app = (NDEFApplication) card.getOtherApplications().iterator().next();
+        assertEquals(16, app.getMaxReadLength());
+        assertArrayEquals(Util.fromHexString("E1 04"), app.getNdefFileId());
+        assertEquals(0x1D, app.getMaxNdefFileSize());
+        assertArrayEquals(message, app.getNdefMessage());
+        //CC (15 bytes), NLEN, then the NDEF file in blocks of MLe
+        assertEquals(1 + 1 + 2, tag.numReadBinary);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.common;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import sasc.emv.ApplicationInterchangeProfile;
+import sasc.emv.EMVApplication;
+import sasc.emv.PAN;
+import sasc.iso7816.AID;
+import sasc.iso7816.ATR;
+import sasc.util.Util;
+
+/**
+ *
+ * @author sasc
+ */
+public class CardSnapshotTest {
+
+    private static SmartCard createCard(String pan) {
+        SmartCard card = new SmartCard(new ATR(Util.fromHexString("3b 02 14 50")));
+        EMVApplication app = new EMVApplication();
+        app.setAID(new AID("a0 00 00 00 03 10 10"));
+        app.setLabel("VISA");
+        app.setPAN(new PAN(pan));
+        app.setATC(42);
+        app.setExpirationDate(Util.fromHexString("25 12 31"));
+        app.setApplicationInterchangeProfile(new ApplicationInterchangeProfile((byte) 0x5C, (byte) 0x00));
+        card.addEMVApplication(app);
+        return card;
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        File file = File.createTempFile("snapshots", ".bin");
+        try {
+            CardSnapshotWriter writer = CardSnapshotWriter.create(file);
+            writer.write(createCard("4111111111111111"));
+            writer.write(createCard("4761739001010010"));
+            writer.close();
+
+            //Simulate an interrupted write
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.seek(raf.length());
+            raf.write(new byte[]{0x00, 0x00, 0x01, 0x00, 0x00});
+            raf.close();
+
+            CardSnapshotReader reader = CardSnapshotReader.open(file);
+            int count = 0;
+            for (CardSnapshotReader.Snapshot snapshot : reader) {
+                assertArrayEquals(Util.fromHexString("3b 02 14 50"), snapshot.getATR());
+                assertEquals(1, snapshot.getEMVApplicationCount());
+                assertArrayEquals(Util.fromHexString("a0 00 00 00 03 10 10"), snapshot.getAID(0));
+                assertEquals("VISA", snapshot.getLabel(0));
+                assertEquals(count == 0 ? "4111111111111111" : "4761739001010010", snapshot.getPAN(0));
+                assertEquals(-1, snapshot.getPANSequenceNumber(0));
+                assertEquals(20251231, snapshot.getExpirationDate(0));
+                assertEquals(42, snapshot.getATC(0));
+                assertEquals(-1, snapshot.getPINTryCounter(0));
+                assertArrayEquals(new byte[]{0x5C, 0x00}, snapshot.getAIP(0));
+                assertFalse(snapshot.hasFlag(0, CardSnapshotReader.FLAG_SSAD_VALID));
+                assertEquals(0, snapshot.getRecordCount(0));
+                assertEquals(0, snapshot.getSecurityDomainCount());
+                count++;
+            }
+            reader.close();
+            assertEquals(2, count);
+        } finally {
+            file.delete();
+        }
+    }
+}
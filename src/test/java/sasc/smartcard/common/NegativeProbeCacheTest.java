@@ -0,0 +1,147 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class NegativeProbeCacheTest {
+
+    private static final byte[] ATR = Util.fromHexString("3B 68 00 00 00 73 C8 40 12 00 90 00");
+    private static final byte[] AID = Util.fromHexString("A0 00 00 00 04 10 10");
+    private static final String PROFILE = NegativeProbeCache.fingerprint(ATR, true, null, null);
+
+    private static NegativeProbeCache newCache(File file) {
+        return new NegativeProbeCache(file, NegativeProbeCache.DEFAULT_MAX_PROFILES, NegativeProbeCache.DEFAULT_MAX_ENTRIES_PER_PROFILE);
+    }
+
+    @Test
+    public void testConfirmedByDistinctCards() {
+        NegativeProbeCache cache = newCache(null);
+        long card1 = NegativeProbeCache.cardIdentity(ATR, Util.fromHexString("04 A2 19 8A"));
+        long card2 = NegativeProbeCache.cardIdentity(ATR, Util.fromHexString("04 5C 03 11"));
+        assertTrue(card1 != card2);
+        assertEquals(card1, NegativeProbeCache.cardIdentity(ATR, Util.fromHexString("04 A2 19 8A")));
+
+        //Scanning the same card again is not a confirmation
+        for (int i = 0; i < 5; i++) {
+            cache.recordAbsent(PROFILE, card1, AID);
+        }
+        assertFalse(cache.isKnownAbsent(PROFILE, AID));
+
+        cache.recordAbsent(PROFILE, card2, AID);
+        assertTrue(cache.isKnownAbsent(PROFILE, AID));
+        assertFalse(cache.isKnownAbsent(NegativeProbeCache.fingerprint(ATR, false, null, null), AID));
+
+        //Found on a card of the profile
+        cache.recordPresent(PROFILE, AID);
+        assertFalse(cache.isKnownAbsent(PROFILE, AID));
+    }
+
+    @Test
+    public void testExpiry() {
+        NegativeProbeCache cache = newCache(null);
+        cache.setMinConfirmations(1);
+        cache.recordAbsent(PROFILE, NegativeProbeCache.cardIdentity(ATR, null), AID);
+        assertTrue(cache.isKnownAbsent(PROFILE, AID));
+
+        cache.setMaxAgeMillis(-1);
+        assertFalse(cache.isKnownAbsent(PROFILE, AID));
+
+        //An expired entry starts over: the cards confirmed before it expired do not count
+        cache.recordAbsent(PROFILE, NegativeProbeCache.cardIdentity(ATR, Util.fromHexString("01")), AID);
+        cache.setMaxAgeMillis(NegativeProbeCache.DEFAULT_MAX_AGE_MILLIS);
+        cache.setMinConfirmations(2);
+        assertFalse(cache.isKnownAbsent(PROFILE, AID));
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        File file = File.createTempFile("npc", ".bin");
+        try {
+            NegativeProbeCache cache = newCache(file);
+            byte[] otherAid = Util.fromHexString("A0 00 00 00 03 10 10");
+            cache.recordAbsent(PROFILE, NegativeProbeCache.cardIdentity(ATR, Util.fromHexString("01")), AID);
+            cache.recordAbsent(PROFILE, NegativeProbeCache.cardIdentity(ATR, Util.fromHexString("02")), AID);
+            cache.recordAbsent(PROFILE, NegativeProbeCache.cardIdentity(ATR, Util.fromHexString("01")), otherAid);
+            cache.save();
+
+            NegativeProbeCache loaded = NegativeProbeCache.open(file);
+            assertTrue(loaded.isKnownAbsent(PROFILE, AID));
+            assertFalse(loaded.isKnownAbsent(PROFILE, otherAid));
+            //The card identities are stored, so the same card is still not a second confirmation
+            loaded.recordAbsent(PROFILE, NegativeProbeCache.cardIdentity(ATR, Util.fromHexString("01")), otherAid);
+            assertFalse(loaded.isKnownAbsent(PROFILE, otherAid));
+            loaded.recordAbsent(PROFILE, NegativeProbeCache.cardIdentity(ATR, Util.fromHexString("03")), otherAid);
+            assertTrue(loaded.isKnownAbsent(PROFILE, otherAid));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testVersion1FileIgnored() throws IOException {
+        File file = File.createTempFile("npc", ".bin");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                //Header, no profiles
+                fos.write(Util.fromHexString("4E 50 43 01 00 00 00 00"));
+            } finally {
+                fos.close();
+            }
+            NegativeProbeCache cache = NegativeProbeCache.open(file);
+            assertFalse(cache.isKnownAbsent(PROFILE, AID));
+            cache.save();
+            //Rewritten in the current format
+            assertEquals(2, readVersion(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static int readVersion(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            fis.skip(3);
+            return fis.read();
+        } finally {
+            fis.close();
+        }
+    }
+
+    @Test
+    public void testEnabledByScanProfile() {
+        SessionProcessingEnv env = new SessionProcessingEnv();
+        assertNull(env.getNegativeProbeCache());
+        env.setScanProfile(ScanProfile.forensic());
+        assertNull(env.getNegativeProbeCache());
+        env.setScanProfile(ScanProfile.fastPay());
+        assertSame(NegativeProbeCache.getDefault(), env.getNegativeProbeCache());
+        NegativeProbeCache cache = newCache(null);
+        env.setNegativeProbeCache(cache);
+        assertSame(cache, env.getNegativeProbeCache());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.common;
+
+import java.util.Arrays;
+import org.junit.Test;
+import sasc.smartcard.common.ScanProfile.Stage;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class ScanProfileTest {
+
+    @Test
+    public void testDefaultProfile() {
+        //Without a scan profile, the scanner runs the same steps as before scan profiles existed
+        SessionProcessingEnv env = new SessionProcessingEnv();
+        ScanProfile profile = env.getScanProfile();
+        assertEquals("default", profile.getName());
+        assertEquals(ScanProfile.UNLIMITED, profile.getTotalBudgetMillis());
+        assertEquals(Arrays.asList(Stage.SELECT_ISD, Stage.AID_HANDLERS), profile.getStages());
+        assertFalse(profile.isNegativeProbeCacheEnabled());
+
+        env.setDiscoverTerminalFeatures(true);
+        env.setReadMasterFile(true);
+        env.setProbeAllKnownAIDs(true);
+        env.setSelectAllRIDs(true);
+        profile = env.getScanProfile();
+        assertEquals(Arrays.asList(Stage.TERMINAL_FEATURES, Stage.SELECT_ISD, Stage.MASTER_FILE,
+                Stage.KNOWN_AIDS, Stage.ALL_RIDS, Stage.AID_HANDLERS), profile.getStages());
+        for (Stage stage : Stage.values()) {
+            assertEquals(ScanProfile.UNLIMITED, profile.getBudgetMillis(stage));
+        }
+
+        //An explicit profile overrides the individual options
+        env.setScanProfile(ScanProfile.fastPay());
+        assertEquals("fast-pay", env.getScanProfile().getName());
+    }
+
+    @Test
+    public void testFactories() {
+        ScanProfile fastPay = ScanProfile.fastPay();
+        assertEquals(Arrays.asList(Stage.KNOWN_AIDS, Stage.SELECT_ISD), fastPay.getStages());
+        assertEquals(2000, fastPay.getBudgetMillis(Stage.KNOWN_AIDS));
+        assertFalse(fastPay.contains(Stage.MASTER_FILE));
+        assertEquals(0, fastPay.getBudgetMillis(Stage.MASTER_FILE));
+        assertTrue(fastPay.isNegativeProbeCacheEnabled());
+
+        assertEquals(Arrays.asList(Stage.SELECT_ISD, Stage.KNOWN_AIDS, Stage.AID_HANDLERS, Stage.MASTER_FILE),
+                ScanProfile.inventory().getStages());
+
+        ScanProfile forensic = ScanProfile.forensic();
+        assertEquals(Arrays.asList(Stage.values()), forensic.getStages());
+        assertFalse(forensic.isNegativeProbeCacheEnabled());
+    }
+
+    @Test
+    public void testPriorityOrder() {
+        ScanProfile profile = new ScanProfile("test", 1000)
+                .addStage(Stage.AID_HANDLERS, 1, 100)
+                .addStage(Stage.MASTER_FILE, 0, 100)
+                .addStage(Stage.SELECT_ISD, 1, 100);
+        //Equal priority: declaration order
+        assertEquals(Arrays.asList(Stage.MASTER_FILE, Stage.SELECT_ISD, Stage.AID_HANDLERS), profile.getStages());
+        //Replaced
+        profile.addStage(Stage.MASTER_FILE, 2, 50);
+        assertEquals(Arrays.asList(Stage.SELECT_ISD, Stage.AID_HANDLERS, Stage.MASTER_FILE), profile.getStages());
+        assertEquals(50, profile.getBudgetMillis(Stage.MASTER_FILE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidStageBudget() {
+        new ScanProfile("test", 1000).addStage(Stage.SELECT_ISD, 0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTotalBudget() {
+        new ScanProfile("test", 0);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.common;
+
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Test;
+import sasc.iso7816.ATR;
+import sasc.smartcard.common.ScanProfile.Stage;
+import sasc.terminal.CardResponse;
+import sasc.terminal.TerminalException;
+import sasc.terminal.ScriptedCardConnection;
+import sasc.util.Log;
+import sasc.util.Util;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class ScanReportTest {
+
+    private static final byte[] ATR_BYTES = Util.fromHexString("3B 68 00 00 00 73 C8 40 12 00 90 00");
+
+    /**
+     * A card without applications, that takes delayMillis to answer each command
+     */
+    private static class SlowCard extends ScriptedCardConnection {
+
+        final long delayMillis;
+
+        SlowCard(long delayMillis) {
+            this.delayMillis = delayMillis;
+            withATR(ATR_BYTES);
+        }
+
+        @Override
+        protected CardResponse respond(byte[] cmd) throws TerminalException {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException ex) {
+                throw new TerminalException(ex);
+            }
+            return response(null, 0x6A82);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Log.resetStepNo();
+    }
+
+    private static ScanReport scan(SlowCard card, ScanProfile profile) throws TerminalException {
+        SessionProcessingEnv env = new SessionProcessingEnv();
+        env.setScanProfile(profile);
+        CardScanner scanner = new CardScanner(new SmartCard(new ATR(ATR_BYTES)), card, env);
+        scanner.start();
+        return scanner.getScanReport();
+    }
+
+    @Test
+    public void testRecord() {
+        ScanReport report = new ScanReport("test");
+        assertTrue(report.isComplete());
+        report.record(Stage.SELECT_ISD, ScanReport.Outcome.COMPLETED, 10);
+        report.record(Stage.KNOWN_AIDS, ScanReport.Outcome.COMPLETED_LATE, 20);
+        assertTrue(report.isComplete());
+        report.record(Stage.AID_HANDLERS, ScanReport.Outcome.TIMED_OUT, 30);
+        report.record(Stage.MASTER_FILE, ScanReport.Outcome.SKIPPED, 0);
+        assertFalse(report.isComplete());
+        assertEquals(Arrays.asList(Stage.AID_HANDLERS, Stage.MASTER_FILE), report.getIncompleteStages());
+        assertEquals(ScanReport.Outcome.COMPLETED_LATE, report.getOutcome(Stage.KNOWN_AIDS));
+        assertEquals(20, report.getElapsedMillis(Stage.KNOWN_AIDS));
+        assertNull(report.getOutcome(Stage.ALL_RIDS));
+        assertEquals(0, report.getElapsedMillis(Stage.ALL_RIDS));
+    }
+
+    @Test
+    public void testStageCompletedLate() throws TerminalException {
+        //The single SELECT takes longer than the budget, but nothing is left out
+        SlowCard card = new SlowCard(30);
+        ScanReport report = scan(card, new ScanProfile("test", ScanProfile.UNLIMITED).addStage(Stage.SELECT_ISD, 0, 1));
+        assertEquals(ScanReport.Outcome.COMPLETED_LATE, report.getOutcome(Stage.SELECT_ISD));
+        assertTrue(report.isComplete());
+        assertEquals(1, card.getCommands().size());
+    }
+
+    @Test
+    public void testStageTimedOut() throws TerminalException {
+        //Probing is stopped between SELECTs when the budget is used up
+        SlowCard card = new SlowCard(20);
+        ScanReport report = scan(card, new ScanProfile("test", ScanProfile.UNLIMITED)
+                .addStage(Stage.KNOWN_AIDS, 0, 50)
+                .addStage(Stage.AID_HANDLERS, 1, ScanProfile.UNLIMITED));
+        assertEquals(ScanReport.Outcome.TIMED_OUT, report.getOutcome(Stage.KNOWN_AIDS));
+        assertEquals(ScanReport.Outcome.COMPLETED, report.getOutcome(Stage.AID_HANDLERS));
+        assertEquals(Arrays.asList(Stage.KNOWN_AIDS), report.getIncompleteStages());
+        assertTrue(card.getCommands().size() < 10);
+    }
+
+    @Test
+    public void testTotalBudgetUsedUp() throws TerminalException {
+        SlowCard card = new SlowCard(30);
+        ScanReport report = scan(card, new ScanProfile("test", 10)
+                .addStage(Stage.SELECT_ISD, 0, ScanProfile.UNLIMITED)
+                .addStage(Stage.AID_HANDLERS, 1, ScanProfile.UNLIMITED));
+        assertEquals(ScanReport.Outcome.COMPLETED_LATE, report.getOutcome(Stage.SELECT_ISD));
+        assertEquals(ScanReport.Outcome.SKIPPED, report.getOutcome(Stage.AID_HANDLERS));
+    }
+}
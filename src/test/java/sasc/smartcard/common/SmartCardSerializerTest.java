@@ -0,0 +1,110 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.common;
+
+import java.io.ByteArrayOutputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import sasc.emv.EMVApplication;
+import sasc.emv.PAN;
+import sasc.iso7816.AID;
+import sasc.iso7816.ATR;
+import sasc.iso7816.BERTLV;
+import sasc.iso7816.TagImpl;
+import sasc.iso7816.TagValueType;
+import sasc.util.CBORWriter;
+import sasc.util.JSONWriter;
+import sasc.util.Util;
+
+/**
+ *
+ * @author sasc
+ */
+public class SmartCardSerializerTest {
+
+    private static SmartCard createCard() {
+        SmartCard card = new SmartCard(new ATR(Util.fromHexString("3b 02 14 50")));
+        EMVApplication app = new EMVApplication();
+        app.setAID(new AID("a0 00 00 00 03 10 10"));
+        app.setLabel("VISA \"Debit\"");
+        app.setPAN(new PAN("4111111111111111"));
+        //A proprietary record with the PAN inside
+        app.addUnknownRecord(new BERTLV(new TagImpl("df7f", TagValueType.BINARY, "Proprietary", ""), Util.fromHexString("5a 08 41 11 11 11 11 11 11 11")));
+        card.addEMVApplication(app);
+        return card;
+    }
+
+    @Test
+    public void testJSONMasked() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SmartCardSerializer(new JSONWriter(out)).write(createCard());
+        String json = out.toString("UTF-8");
+        assertTrue(json, json.startsWith("{\"atrs\":[\"3b021450\"],\"type\":\"UNKNOWN\""));
+        assertTrue(json, json.contains("\"aid\":\"a0000000031010\""));
+        assertTrue(json, json.contains("\"label\":\"VISA \\\"Debit\\\"\""));
+        assertTrue(json, json.contains("\"pan\":\"411111******1111\""));
+        assertFalse(json, json.contains("4111111111111111"));
+    }
+
+    @Test
+    public void testRawDataMasked() throws Exception {
+        SessionProcessingEnv env = new SessionProcessingEnv();
+        env.setMaskSensitiveInformation(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SmartCardSerializer(new JSONWriter(out), env).write(createCard());
+        String json = out.toString("UTF-8");
+        assertTrue(json, json.contains("\"unknownRecords\":[{\"tag\":\"df7f\",\"value\":{\"length\":10}}]"));
+        assertFalse(json, json.contains("4111111111"));
+
+        env.setMaskSensitiveInformation(false);
+        out.reset();
+        new SmartCardSerializer(new JSONWriter(out), env).write(createCard());
+        json = out.toString("UTF-8");
+        assertTrue(json, json.contains("\"value\":\"5a084111111111111111\""));
+    }
+
+    @Test
+    public void testFieldFilter() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SmartCardSerializer.FieldFilter filter = new SmartCardSerializer.FieldFilter() {
+            @Override
+            public boolean include(String scope, String field) {
+                return SmartCardSerializer.SCOPE_APPLICATION.equals(scope) ? "pan".equals(field) : "emvApplications".equals(field);
+            }
+        };
+        new SmartCardSerializer(new JSONWriter(out), filter, false).write(createCard());
+        assertEquals("{\"emvApplications\":[{\"pan\":\"4111111111111111\"}]}", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testCBOR() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CBORWriter writer = new CBORWriter(out);
+        writer.beginObject();
+        writer.name("a");
+        writer.value(-500);
+        writer.name("b");
+        writer.value(new byte[]{0x01, 0x02});
+        writer.name("c");
+        writer.beginArray();
+        writer.value(true);
+        writer.nullValue();
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+        assertEquals("bf61613901f3616242010261639ff5f6ffff", Util.byteArrayToHexString(out.toByteArray()));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.terminal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import sasc.iso7816.TLVResponse;
+import sasc.util.Util;
+
+/**
+ * A CardConnection for tests. Records every command, and returns the scripted
+ * responses (response data and SW1SW2, in hex) in order.
+ *
+ * Cards with behaviour (eg a file system) override respond(..) instead of scripting the responses.
+ *
+ * @author sasc
+ */
+public class ScriptedCardConnection implements CardConnection {
+
+    private final LinkedList<String> responses = new LinkedList<String>();
+    private final List<byte[]> commands = new ArrayList<byte[]>();
+    private byte[] atr = new byte[0];
+
+    public ScriptedCardConnection(String... responses) {
+        this.responses.addAll(Arrays.asList(responses));
+    }
+
+    public ScriptedCardConnection withATR(byte[] atr) {
+        this.atr = atr.clone();
+        return this;
+    }
+
+    /**
+     * @return the commands sent so far (copies), in order
+     */
+    public List<byte[]> getCommands() {
+        return commands;
+    }
+
+    public static TLVResponse response(byte[] data, int sw) {
+        return new TLVResponse(data != null ? data : new byte[0], (byte) (sw >>> 8), (byte) sw);
+    }
+
+    /**
+     * Returns the next scripted response
+     *
+     * @throws IllegalStateException if all scripted responses have been returned
+     */
+    protected CardResponse respond(byte[] cmd) throws TerminalException {
+        if (responses.isEmpty()) {
+            throw new IllegalStateException("No response scripted for " + Util.prettyPrintHexNoWrap(cmd));
+        }
+        byte[] response = Util.fromHexString(responses.removeFirst());
+        return new TLVResponse(Arrays.copyOf(response, response.length - 2), response[response.length - 2], response[response.length - 1]);
+    }
+
+    @Override
+    public CardResponse transmit(byte[] cmd) throws TerminalException {
+        commands.add(cmd.clone());
+        return respond(cmd);
+    }
+
+    @Override
+    public CardResponse transmit(byte[] buffer, int offset, int length) throws TerminalException {
+        return transmit(Arrays.copyOfRange(buffer, offset, offset + length));
+    }
+
+    @Override
+    public byte[] transmitControlCommand(int controlCode, byte[] data) throws TerminalException {
+        throw new TerminalException("Control commands not supported");
+    }
+
+    @Override
+    public byte[] getATR() {
+        return atr.clone();
+    }
+
+    @Override
+    public Terminal getTerminal() {
+        return null;
+    }
+
+    @Override
+    public String getConnectionInfo() {
+        return getClass().getSimpleName();
+    }
+
+    @Override
+    public String getProtocol() {
+        return "T=1";
+    }
+
+    @Override
+    public void resetCard() throws TerminalException {
+    }
+
+    @Override
+    public boolean disconnect(boolean attemptReset) throws TerminalException {
+        return true;
+    }
+}
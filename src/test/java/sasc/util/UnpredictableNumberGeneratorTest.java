@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class UnpredictableNumberGeneratorTest {
+
+    @After
+    public void tearDown() {
+        UnpredictableNumberGenerator.useSecureRandom();
+    }
+
+    @Test
+    public void testDeterministicReplay() {
+        UnpredictableNumberGenerator.useDeterministicSeed(2010);
+        assertTrue(UnpredictableNumberGenerator.isDeterministic());
+        byte[] un1 = UnpredictableNumberGenerator.nextUnpredictableNumber();
+        byte[] data1 = UnpredictableNumberGenerator.generate(7);
+
+        UnpredictableNumberGenerator.useDeterministicSeed(2010);
+        assertArrayEquals(un1, UnpredictableNumberGenerator.nextUnpredictableNumber());
+        assertArrayEquals(data1, Util.generateRandomBytes(7));
+    }
+
+    @Test
+    public void testNextBytes() {
+        byte[] buffer = new byte[12];
+        UnpredictableNumberGenerator.useDeterministicSeed(1);
+        UnpredictableNumberGenerator.nextBytes(buffer, 3, 5);
+        assertArrayEquals(new byte[3], Arrays.copyOfRange(buffer, 0, 3));
+        assertArrayEquals(new byte[4], Arrays.copyOfRange(buffer, 8, 12));
+
+        UnpredictableNumberGenerator.useDeterministicSeed(1);
+        assertArrayEquals(UnpredictableNumberGenerator.generate(5), Arrays.copyOfRange(buffer, 3, 8));
+
+        UnpredictableNumberGenerator.useSecureRandom();
+        assertFalse(UnpredictableNumberGenerator.isDeterministic());
+        assertFalse(Arrays.equals(UnpredictableNumberGenerator.generate(16), UnpredictableNumberGenerator.generate(16)));
+    }
+
+    @Test
+    public void testMetrics() {
+        UnpredictableNumberGenerator.resetMetrics();
+        for (int i = 0; i < 10; i++) {
+            UnpredictableNumberGenerator.nextUnpredictableNumber();
+        }
+        assertEquals(10, UnpredictableNumberGenerator.getCount());
+        assertTrue(UnpredictableNumberGenerator.getMaxLatencyNanos() >= UnpredictableNumberGenerator.getAverageLatencyNanos());
+    }
+}